@@ -0,0 +1,93 @@
+package sibbo.bitmessage.android;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the sha512 variants of {@link Digest} and the double sha512 POW
+ * trial, once done with {@link MessageDigest} the way the workers used to do
+ * it and once with the kernels.
+ * 
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DigestBenchmark 
+{
+	/** The payload length for the Digest.sha512 benchmarks. */
+	@Param({ "64", "1024", "10000" })
+	public int payloadLength;
+
+	private byte[] payload;
+	private byte[] initialHash;
+	private MessageDigest sha512;
+	private Sha512Kernel kernel;
+	private long nonce;
+
+	@Setup
+	public void setUp() throws Exception 
+	{
+		Random random = new Random(42);
+		payload = new byte[payloadLength];
+		random.nextBytes(payload);
+		initialHash = new byte[64];
+		random.nextBytes(initialHash);
+		sha512 = MessageDigest.getInstance("SHA-512");
+		kernel = new Sha512Kernel(initialHash);
+	}
+
+	@Benchmark
+	public byte[] sha512() 
+	{
+		return Digest.sha512(payload);
+	}
+
+	@Benchmark
+	public byte[] sha512Truncated() 
+	{
+		return Digest.sha512(payload, 32);
+	}
+
+	@Benchmark
+	public byte[] sha512MultipleArrays() 
+	{
+		return Digest.sha512(initialHash, payload);
+	}
+
+	/** The trial as it was done with MessageDigest, including its allocations. */
+	@Benchmark
+	public long trialMessageDigest() 
+	{
+		sha512.reset();
+		sha512.update(Util.getBytes(nonce++));
+		byte[] hash = sha512.digest(initialHash);
+		sha512.reset();
+		hash = sha512.digest(hash);
+
+		return Util.getLong(hash);
+	}
+
+	@Benchmark
+	public long trialKernel() 
+	{
+		return kernel.trial(nonce++);
+	}
+}
@@ -0,0 +1,68 @@
+package sibbo.bitmessage.android;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks complete {@link POWCalculator#execute(int)} calls with 1 to N
+ * threads. Every invocation uses a new random initial hash and a target that
+ * needs about {@link #EXPECTED_TRIALS} trials on average, so the time per call
+ * shows how the calculation scales with the number of threads, including the
+ * cost of starting and stopping the workers.
+ * 
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class POWCalculatorBenchmark 
+{
+	/** The average number of trials needed per calculation. */
+	private static final long EXPECTED_TRIALS = 1 << 20;
+
+	@Param({ "1", "2", "4", "8" })
+	public int threads;
+
+	private final Random random = new Random(42);
+	private POWCalculator calculator;
+
+	@Setup(Level.Trial)
+	public void setUpCalculator() 
+	{
+		calculator = new POWCalculator();
+		calculator.setThreadCount(threads);
+		calculator.setTarget(Long.MAX_VALUE / EXPECTED_TRIALS * 2);
+		calculator.setTargetLoad(1);
+	}
+
+	@Setup(Level.Invocation)
+	public void setUpJob() 
+	{
+		byte[] initialHash = new byte[64];
+		random.nextBytes(initialHash);
+		calculator.setInitialHash(initialHash);
+	}
+
+	@Benchmark
+	public byte[] execute() 
+	{
+		return calculator.execute(600);
+	}
+}
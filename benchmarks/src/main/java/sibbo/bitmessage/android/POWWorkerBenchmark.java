@@ -0,0 +1,67 @@
+package sibbo.bitmessage.android;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the trial loop of a single {@link POWWorker}, one batch of
+ * {@link #BATCH} nonces per invocation. The target can never be reached, so
+ * every batch is searched completely. The score is in nonces per second.
+ * 
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class POWWorkerBenchmark 
+{
+	/** The number of nonces searched per invocation. */
+	private static final int BATCH = 1024;
+
+	private POWWorker worker;
+	private long nonce;
+
+	@Setup
+	public void setUp() 
+	{
+		byte[] initialHash = new byte[64];
+		new Random(42).nextBytes(initialHash);
+
+		POWListener listener = new POWListener() 
+		{
+			@Override
+			public void powFinished(POWWorker powWorker) 
+			{
+				// Never called, the worker is not run.
+			}
+		};
+
+		worker = new POWWorker(-1, new NonceScheduler(), initialHash, listener, 1, new CancellationToken());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long searchBatch() 
+	{
+		long found = worker.search(nonce, BATCH);
+		nonce += BATCH;
+
+		return found;
+	}
+}
@@ -0,0 +1,77 @@
+package sibbo.bitmessage.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks batch verification, in verifications per second. Without the
+ * cache every object is hashed, with it every batch after the first is
+ * answered from the cache, like objects announced by many peers.
+ * 
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PowVerifierBenchmark 
+{
+	private static final int BATCH = 1000;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	@Param({ "0", "100000" })
+	public int cacheSize;
+
+	private PowVerifier verifier;
+	private List<PowVerifier.Request> requests;
+
+	@Setup
+	public void setUp() 
+	{
+		verifier = new PowVerifier(threads, cacheSize);
+		requests = new ArrayList<PowVerifier.Request>();
+		Random random = new Random(42);
+
+		for (int i = 0; i < BATCH; i++)
+		{
+			byte[] payload = new byte[300];
+			random.nextBytes(payload);
+			requests.add(PowVerifier.Request.forPayload(random.nextLong(), payload, 1));
+		}
+	}
+
+	@TearDown
+	public void tearDown() 
+	{
+		verifier.shutdown();
+	}
+
+	/** Every invocation verifies {@link #BATCH} objects. */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public boolean[] verifyAll() throws InterruptedException 
+	{
+		return verifier.verifyAll(requests);
+	}
+}
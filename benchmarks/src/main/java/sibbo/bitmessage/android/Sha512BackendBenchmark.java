@@ -0,0 +1,91 @@
+package sibbo.bitmessage.android;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the SHA-512 backends against each other. The native backend is
+ * only measured if its library can be loaded, see jni/sha512pow.c, and the
+ * vector backend only if the forked JVM has the Vector API module, see
+ * VectorSha512Backend.
+ * 
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Sha512BackendBenchmark 
+{
+	/** The number of nonces per search call. */
+	private static final int BATCH = 1024;
+
+	@Param({ "java", "jca", "native", "vector" })
+	public String backend;
+
+	private byte[] payload;
+	private MessageDigest sha512;
+	private Sha512Trial trial;
+	private long nonce;
+
+	@Setup
+	public void setUp() 
+	{
+		Sha512Backend b = null;
+
+		for (Sha512Backend candidate : Sha512Backends.getBackends())
+		{
+			if (candidate.getName().equals(backend))
+			{
+				b = candidate;
+			}
+		}
+
+		if (b == null || !Sha512Backends.isCorrect(b))
+		{
+			throw new IllegalStateException("Backend " + backend + " is not available.");
+		}
+
+		Random random = new Random(42);
+		payload = new byte[1024];
+		random.nextBytes(payload);
+		byte[] initialHash = new byte[64];
+		random.nextBytes(initialHash);
+		sha512 = b.newDigest();
+		trial = b.newTrial(initialHash);
+	}
+
+	@Benchmark
+	public byte[] digest1024() 
+	{
+		return sha512.digest(payload);
+	}
+
+	/** Every invocation does {@link #BATCH} trials. */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long search() 
+	{
+		long found = trial.search(nonce, BATCH, -1);
+		nonce += BATCH;
+
+		return found;
+	}
+}
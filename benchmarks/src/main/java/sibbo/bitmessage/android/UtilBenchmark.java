@@ -0,0 +1,62 @@
+package sibbo.bitmessage.android;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the conversions of {@link Util}.
+ * 
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UtilBenchmark 
+{
+	private long value = 0x0123456789abcdefL;
+	private byte[] bytes = Util.getBytes(value);
+
+	@Benchmark
+	public byte[] getBytesLong() 
+	{
+		return Util.getBytes(value++);
+	}
+
+	@Benchmark
+	public byte[] getBytesInt() 
+	{
+		return Util.getBytes((int) value++);
+	}
+
+	@Benchmark
+	public long getLong() 
+	{
+		return Util.getLong(bytes);
+	}
+
+	@Benchmark
+	public int getInt() 
+	{
+		return Util.getInt(bytes);
+	}
+
+	@Benchmark
+	public byte[] putLong() 
+	{
+		Util.putLong(bytes, 0, value++);
+		return bytes;
+	}
+}
@@ -0,0 +1,88 @@
+package sibbo.bitmessage.android;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks building an object and taking its initial hash with
+ * {@link WireCodec} in a reused buffer, against concatenating arrays.
+ * 
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireCodecBenchmark 
+{
+	@Param({ "256", "4096" })
+	private int payloadLength;
+
+	@Param({ "false", "true" })
+	private boolean direct;
+
+	private byte[] payload;
+	private ByteBuffer buffer;
+	private MessageDigest sha512;
+	private final byte[] hash = new byte[64];
+	private long expiresTime = 1700000000L;
+
+	@Setup
+	public void setUp() 
+	{
+		payload = new byte[payloadLength];
+		buffer = direct ? ByteBuffer.allocateDirect(payloadLength + 64) : ByteBuffer.allocate(payloadLength + 64);
+		sha512 = Sha512Backends.getDefault().newDigest();
+	}
+
+	@Benchmark
+	public byte[] codec() 
+	{
+		buffer.clear();
+		int start = WireCodec.putObjectHeader(buffer, expiresTime++, 2, 1, 1);
+		WireCodec.putVarBytes(buffer, payload, 0, payload.length);
+		WireCodec.initialHash(sha512, buffer, start, buffer.position(), hash, 0);
+		WireCodec.putNonce(buffer, start, expiresTime);
+		return hash;
+	}
+
+	@Benchmark
+	public byte[] arrays() 
+	{
+		byte[] expires = Util.getBytes(expiresTime++);
+		byte[] type = Util.getBytes(2);
+		byte[] length = new byte[] { (byte) 0xfd, (byte) (payload.length >> 8), (byte) payload.length };
+		byte[] object = new byte[8 + expires.length + type.length + 2 + length.length + payload.length];
+		int offset = 8;
+		System.arraycopy(expires, 0, object, offset, expires.length);
+		offset += expires.length;
+		System.arraycopy(type, 0, object, offset, type.length);
+		offset += type.length;
+		object[offset++] = 1;
+		object[offset++] = 1;
+		System.arraycopy(length, 0, object, offset, length.length);
+		offset += length.length;
+		System.arraycopy(payload, 0, object, offset, payload.length);
+		byte[] body = new byte[object.length - 8];
+		System.arraycopy(object, 8, body, 0, body.length);
+		byte[] initialHash = Digest.sha512(body);
+		System.arraycopy(Util.getBytes(expiresTime), 0, object, 0, 8);
+		return initialHash;
+	}
+}
@@ -0,0 +1,9 @@
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE    := sha512pow
+LOCAL_SRC_FILES := sha512pow.c
+LOCAL_CFLAGS    := -O3
+
+include $(BUILD_SHARED_LIBRARY)
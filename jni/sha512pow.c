@@ -0,0 +1,216 @@
+/*
+ * Native SHA-512 for sibbo.bitmessage.android.NativeSha512Backend.
+ *
+ * Build for the app with the NDK (ndk-build in the project directory), or
+ * for a desktop JVM with e.g.
+ *
+ *   gcc -O3 -shared -fPIC -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" \
+ *       -o libsha512pow.so jni/sha512pow.c
+ *
+ * and start the JVM with -Djava.library.path pointing to the directory of
+ * the library.
+ *
+ * @author Jonathan Coe
+ */
+
+#include <jni.h>
+#include <stdint.h>
+
+static const uint64_t K[80] = {
+	0x428a2f98d728ae22ULL, 0x7137449123ef65cdULL, 0xb5c0fbcfec4d3b2fULL, 0xe9b5dba58189dbbcULL,
+	0x3956c25bf348b538ULL, 0x59f111f1b605d019ULL, 0x923f82a4af194f9bULL, 0xab1c5ed5da6d8118ULL,
+	0xd807aa98a3030242ULL, 0x12835b0145706fbeULL, 0x243185be4ee4b28cULL, 0x550c7dc3d5ffb4e2ULL,
+	0x72be5d74f27b896fULL, 0x80deb1fe3b1696b1ULL, 0x9bdc06a725c71235ULL, 0xc19bf174cf692694ULL,
+	0xe49b69c19ef14ad2ULL, 0xefbe4786384f25e3ULL, 0x0fc19dc68b8cd5b5ULL, 0x240ca1cc77ac9c65ULL,
+	0x2de92c6f592b0275ULL, 0x4a7484aa6ea6e483ULL, 0x5cb0a9dcbd41fbd4ULL, 0x76f988da831153b5ULL,
+	0x983e5152ee66dfabULL, 0xa831c66d2db43210ULL, 0xb00327c898fb213fULL, 0xbf597fc7beef0ee4ULL,
+	0xc6e00bf33da88fc2ULL, 0xd5a79147930aa725ULL, 0x06ca6351e003826fULL, 0x142929670a0e6e70ULL,
+	0x27b70a8546d22ffcULL, 0x2e1b21385c26c926ULL, 0x4d2c6dfc5ac42aedULL, 0x53380d139d95b3dfULL,
+	0x650a73548baf63deULL, 0x766a0abb3c77b2a8ULL, 0x81c2c92e47edaee6ULL, 0x92722c851482353bULL,
+	0xa2bfe8a14cf10364ULL, 0xa81a664bbc423001ULL, 0xc24b8b70d0f89791ULL, 0xc76c51a30654be30ULL,
+	0xd192e819d6ef5218ULL, 0xd69906245565a910ULL, 0xf40e35855771202aULL, 0x106aa07032bbd1b8ULL,
+	0x19a4c116b8d2d0c8ULL, 0x1e376c085141ab53ULL, 0x2748774cdf8eeb99ULL, 0x34b0bcb5e19b48a8ULL,
+	0x391c0cb3c5c95a63ULL, 0x4ed8aa4ae3418acbULL, 0x5b9cca4f7763e373ULL, 0x682e6ff3d6b2b8a3ULL,
+	0x748f82ee5defb2fcULL, 0x78a5636f43172f60ULL, 0x84c87814a1f0ab72ULL, 0x8cc702081a6439ecULL,
+	0x90befffa23631e28ULL, 0xa4506cebde82bde9ULL, 0xbef9a3f7b2c67915ULL, 0xc67178f2e372532bULL,
+	0xca273eceea26619cULL, 0xd186b8c721c0c207ULL, 0xeada7dd6cde0eb1eULL, 0xf57d4f7fee6ed178ULL,
+	0x06f067aa72176fbaULL, 0x0a637dc5a2c898a6ULL, 0x113f9804bef90daeULL, 0x1b710b35131c471bULL,
+	0x28db77f523047d84ULL, 0x32caab7b40c72493ULL, 0x3c9ebe0a15c9bebcULL, 0x431d67c49c100d4cULL,
+	0x4cc5d4becb3e42b6ULL, 0x597f299cfc657e2aULL, 0x5fcb6fab3ad6faecULL, 0x6c44198c4a475817ULL
+};
+
+static const uint64_t IV[8] = {
+	0x6a09e667f3bcc908ULL, 0xbb67ae8584caa73bULL, 0x3c6ef372fe94f82bULL, 0xa54ff53a5f1d36f1ULL,
+	0x510e527fade682d1ULL, 0x9b05688c2b3e6c1fULL, 0x1f83d9abfb41bd6bULL, 0x5be0cd19137e2179ULL
+};
+
+#define ROTR(x, n) (((x) >> (n)) | ((x) << (64 - (n))))
+#define CH(x, y, z) (((x) & (y)) ^ (~(x) & (z)))
+#define MAJ(x, y, z) (((x) & (y)) ^ ((x) & (z)) ^ ((y) & (z)))
+#define BSIG0(x) (ROTR(x, 28) ^ ROTR(x, 34) ^ ROTR(x, 39))
+#define BSIG1(x) (ROTR(x, 14) ^ ROTR(x, 18) ^ ROTR(x, 41))
+#define SSIG0(x) (ROTR(x, 1) ^ ROTR(x, 8) ^ ((x) >> 7))
+#define SSIG1(x) (ROTR(x, 19) ^ ROTR(x, 61) ^ ((x) >> 6))
+
+static uint64_t read64(const uint8_t *p)
+{
+	return (uint64_t) p[0] << 56 | (uint64_t) p[1] << 48 | (uint64_t) p[2] << 40 | (uint64_t) p[3] << 32
+			| (uint64_t) p[4] << 24 | (uint64_t) p[5] << 16 | (uint64_t) p[6] << 8 | (uint64_t) p[7];
+}
+
+/* Runs the 80 rounds on an expanded schedule and adds the result to the state. */
+static void rounds(uint64_t state[8], uint64_t w[80])
+{
+	uint64_t a = state[0], b = state[1], c = state[2], d = state[3];
+	uint64_t e = state[4], f = state[5], g = state[6], h = state[7];
+	int t;
+
+	for (t = 16; t < 80; t++)
+	{
+		w[t] = SSIG1(w[t - 2]) + w[t - 7] + SSIG0(w[t - 15]) + w[t - 16];
+	}
+
+	for (t = 0; t < 80; t++)
+	{
+		uint64_t t1 = h + BSIG1(e) + CH(e, f, g) + K[t] + w[t];
+		uint64_t t2 = BSIG0(a) + MAJ(a, b, c);
+
+		h = g;
+		g = f;
+		f = e;
+		e = d + t1;
+		d = c;
+		c = b;
+		b = a;
+		a = t1 + t2;
+	}
+
+	state[0] += a;
+	state[1] += b;
+	state[2] += c;
+	state[3] += d;
+	state[4] += e;
+	state[5] += f;
+	state[6] += g;
+	state[7] += h;
+}
+
+/* Calculates sha512(sha512(nonce || initialHash)) and returns the first word. */
+static uint64_t trial(const uint64_t ih[8], uint64_t nonce)
+{
+	uint64_t w[80];
+	uint64_t state[8];
+	int i;
+
+	w[0] = nonce;
+
+	for (i = 0; i < 8; i++)
+	{
+		w[i + 1] = ih[i];
+		state[i] = IV[i];
+	}
+
+	w[9] = 0x8000000000000000ULL;
+
+	for (i = 10; i < 15; i++)
+	{
+		w[i] = 0;
+	}
+
+	w[15] = 72 * 8;
+	rounds(state, w);
+
+	for (i = 0; i < 8; i++)
+	{
+		w[i] = state[i];
+		state[i] = IV[i];
+	}
+
+	w[8] = 0x8000000000000000ULL;
+
+	for (i = 9; i < 15; i++)
+	{
+		w[i] = 0;
+	}
+
+	w[15] = 64 * 8;
+	rounds(state, w);
+
+	return state[0];
+}
+
+static void readInitialHash(JNIEnv *env, jbyteArray initialHash, uint64_t ih[8])
+{
+	uint8_t bytes[64];
+	int i;
+
+	(*env)->GetByteArrayRegion(env, initialHash, 0, 64, (jbyte *) bytes);
+
+	for (i = 0; i < 8; i++)
+	{
+		ih[i] = read64(bytes + i * 8);
+	}
+}
+
+JNIEXPORT void JNICALL Java_sibbo_bitmessage_android_NativeSha512Backend_compress(JNIEnv *env, jclass cls,
+		jlongArray state, jbyteArray data, jint offset, jint blocks)
+{
+	uint64_t s[8];
+	uint64_t w[80];
+	jbyte *bytes;
+	int block, t;
+
+	(*env)->GetLongArrayRegion(env, state, 0, 8, (jlong *) s);
+	bytes = (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+
+	if (bytes == NULL)
+	{
+		return;
+	}
+
+	for (block = 0; block < blocks; block++)
+	{
+		const uint8_t *p = (const uint8_t *) bytes + offset + block * 128;
+
+		for (t = 0; t < 16; t++)
+		{
+			w[t] = read64(p + t * 8);
+		}
+
+		rounds(s, w);
+	}
+
+	(*env)->ReleasePrimitiveArrayCritical(env, data, bytes, JNI_ABORT);
+	(*env)->SetLongArrayRegion(env, state, 0, 8, (jlong *) s);
+}
+
+JNIEXPORT jlong JNICALL Java_sibbo_bitmessage_android_NativeSha512Backend_trial(JNIEnv *env, jclass cls,
+		jbyteArray initialHash, jlong nonce)
+{
+	uint64_t ih[8];
+
+	readInitialHash(env, initialHash, ih);
+
+	return (jlong) trial(ih, (uint64_t) nonce);
+}
+
+JNIEXPORT jlong JNICALL Java_sibbo_bitmessage_android_NativeSha512Backend_search(JNIEnv *env, jclass cls,
+		jbyteArray initialHash, jlong from, jint count, jlong target)
+{
+	uint64_t ih[8];
+	jlong n;
+
+	readInitialHash(env, initialHash, ih);
+
+	for (n = from; n < from + count; n++)
+	{
+		jlong result = (jlong) trial(ih, (uint64_t) n);
+
+		if (result <= target && result >= 0)
+		{
+			return n;
+		}
+	}
+
+	return -1;
+}
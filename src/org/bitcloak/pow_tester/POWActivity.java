@@ -1,14 +1,27 @@
 package org.bitcloak.pow_tester;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.Random;
+import sibbo.bitmessage.android.BenchmarkHistory;
+import sibbo.bitmessage.android.BenchmarkResult;
+import sibbo.bitmessage.android.CancellationToken;
+import sibbo.bitmessage.android.HashRateMeter;
 import sibbo.bitmessage.android.POWCalculator;
+import sibbo.bitmessage.android.PowBenchmark;
+import sibbo.bitmessage.android.PowProgress;
+import sibbo.bitmessage.android.PowProgressListener;
+import sibbo.bitmessage.android.PowSoakTest;
+import sibbo.bitmessage.android.RateStatistics;
+import sibbo.bitmessage.android.ThreadTuner;
 import sibbo.bitmessage.android.Util;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Color;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.PowerManager;
 import android.util.Log;
@@ -16,6 +29,7 @@ import android.view.Menu;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
@@ -35,12 +49,26 @@ public class POWActivity extends Activity
 	private SeekBar payloadLengthSeekBar;
 	private TextView difficultyTextView;
 	private SeekBar difficultySeekBar;
+	private CheckBox deterministicCheckBox;
+	private CheckBox soakCheckBox;
 	private Button runTestButton;
 	private TextView resultTitleTextView;
 	private TextView resultTextView;
 	
 	private boolean powTestSuccessful;
 	private boolean powTestRunning;
+	
+	/** The calculator of the running test, used to cancel it. */
+	private volatile POWCalculator runningPOWCalculator;
+	
+	/** The running deterministic benchmark, used to cancel it. */
+	private volatile PowBenchmark runningBenchmark;
+	
+	/** The running soak test, so it can be cancelled. */
+	private volatile PowSoakTest runningSoakTest;
+	
+	/** Cancels the running thread tuning. */
+	private volatile CancellationToken runningTuning;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) 
@@ -48,6 +76,8 @@ public class POWActivity extends Activity
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_pow);
 		
+		ThreadTuner.setDefault(new ThreadTuner(new File(getFilesDir(), "threads.properties")));
+		
 		payloadLengthSeekBar = (SeekBar) findViewById(R.id.payloadLengthSeekBar);
 		payloadLengthTextView = (TextView) findViewById(R.id.payloadLengthTextView);
 		resultTitleTextView = (TextView) findViewById(R.id.resultTitleTextView);
@@ -128,6 +158,9 @@ public class POWActivity extends Activity
 			}
 		});
 
+		deterministicCheckBox = (CheckBox) findViewById(R.id.deterministicCheckBox);
+		soakCheckBox = (CheckBox) findViewById(R.id.soakCheckBox);
+
 		runTestButton = (Button) findViewById(R.id.runTestButton);
 		runTestButton.setOnClickListener(new OnClickListener() 
 		{
@@ -155,8 +188,29 @@ public class POWActivity extends Activity
 				
 				else
 				{
-					// Cancel and then set to 'ready to run' state
-					testTask.cancel(true);
+					// Cancel and then set to 'ready to run' state. The calculator stops its workers
+					// itself, interrupting the task thread is not needed.
+					CancellationToken tuning = runningTuning;
+					if (tuning != null)
+					{
+						tuning.cancel();
+					}
+					POWCalculator pow = runningPOWCalculator;
+					if (pow != null)
+					{
+						pow.cancel();
+					}
+					PowBenchmark benchmark = runningBenchmark;
+					if (benchmark != null)
+					{
+						benchmark.cancel();
+					}
+					PowSoakTest soakTest = runningSoakTest;
+					if (soakTest != null)
+					{
+						soakTest.cancel();
+					}
+					testTask.cancel(false);
 					
 					resultTitleTextView.setVisibility(View.INVISIBLE);
 					resultTextView.setTextColor(Color.BLACK);
@@ -177,18 +231,96 @@ public class POWActivity extends Activity
 		return true;
 	}
 	
-	private class TestTask extends AsyncTask<Void, Void, Object>
+	private class TestTask extends AsyncTask<Void, PowProgress, Object>
 	{		
+		/** The mode of the test, read from the check boxes on the UI thread. */
+		private boolean deterministic;
+		private boolean soak;
+		
+		@Override
+		protected void onPreExecute()
+		{
+			deterministic = deterministicCheckBox.isChecked();
+			soak = soakCheckBox.isChecked();
+		}
+		
 		@Override
 		protected Object doInBackground(Void... params) 
 		{							
 			Log.i(TAG, "DoPOWTask.doInBackground() called");
 			
-			String result = runTest();
+			// Tunes the thread count once per device, before the first test.
+			// The token is published before the task is checked, so a cancel
+			// either stops the tuning or is seen right after it.
+			ThreadTuner tuner = ThreadTuner.getDefault();
+			
+			if (!tuner.isTuned())
+			{
+				CancellationToken token = new CancellationToken();
+				runningTuning = token;
+				
+				if (!isCancelled())
+				{
+					tuner.tune(token);
+				}
+				
+				runningTuning = null;
+			}
+			
+			if (isCancelled())
+			{
+				return null;
+			}
+			
+			if (deterministic)
+			{
+				return runBenchmark();
+			}
+			
+			PowProgressListener listener = new PowProgressListener() 
+			{
+				@Override
+				public void progressUpdated(PowProgress progress) 
+				{
+					publishProgress(progress);
+				}
+			};
+			
+			if (soak)
+			{
+				return runSoakTest(listener);
+			}
+			
+			String result = runTest(listener);
 			
 			return result;
 		}
 		
+		@Override
+		protected void onProgressUpdate(PowProgress... progress)
+		{
+			if (powTestRunning == false)
+			{
+				return;
+			}
+			
+			PowProgress p = progress[progress.length - 1];
+			DecimalFormat formatter = new DecimalFormat("###,###,###");
+			
+			if (soak)
+			{
+				resultTextView.setText("Running soak test...\n"
+						+ "Time: " + (p.getElapsedTime() / 1000) + " seconds\n"
+						+ "Hash rate: " + formatter.format(p.getHashRate()) + " h/s");
+				return;
+			}
+			
+			resultTextView.setText("Running Proof of Work test...\n"
+					+ "Time: " + (p.getElapsedTime() / 1000) + " seconds\n"
+					+ "Hash rate: " + formatter.format(p.getHashRate()) + " h/s\n"
+					+ "Chance of success so far: " + Math.round(p.getSuccessProbability() * 100) + "%");
+		}
+		
 		protected void onPostExecute(Object POWResult)
 		{
 			Log.i(TAG, "DoPOWTask.onPostExecute() called");
@@ -215,37 +347,59 @@ public class POWActivity extends Activity
 	}
 	
 	@SuppressLint("Wakelock")
-	private String runTest()
+	private String runTest(PowProgressListener progressListener)
 	{
 		Random r = new Random();
 		byte[] hash = new byte[64];
 		r.nextBytes(hash);
 		
 		POWCalculator pow = new POWCalculator();
+		runningPOWCalculator = pow;
 				
 		Log.i(TAG, "Using a difficulty factor of " + (difficultySeekBar.getProgress() + 1));
 		pow.setDifficulty((difficultySeekBar.getProgress() + 1)); // Have to add 1 as the minimum difficulty in Bitmessage is 1
-		pow.setTarget(POWCalculator.getPOWTarget(payloadLengthSeekBar.getProgress()));
+		pow.setPayloadLength(payloadLengthSeekBar.getProgress());
 		pow.setInitialHash(hash);
 		pow.setTargetLoad(1);
+		
+		// Measures the rate in windows of a second after a second of warm-up,
+		// with four snapshots per window
+		HashRateMeter meter = new HashRateMeter(HashRateMeter.DEFAULT_WARM_UP, HashRateMeter.DEFAULT_WINDOW, progressListener);
+		pow.setProgressListener(meter, HashRateMeter.DEFAULT_WINDOW / 4);
 
 		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
 		PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK, "POW");
 		
 		wl.acquire();
-		long start = System.currentTimeMillis();
+		long start = System.nanoTime();
 		byte[] result = pow.execute(maxTimeAllowedSeekBar.getProgress() + 1); // Do the POW calculations
-		long end = System.currentTimeMillis();
+		long end = System.nanoTime();
 		wl.release();
+		runningPOWCalculator = null;
 
 		DecimalFormat formatter = new DecimalFormat("###,###,###"); // Format with comma separators
-		long hashRate = pow.getHashesCalculated() / ((end - start) / 1000);
-		double hashRateValue = (double) hashRate;
+		double seconds = (end - start) / 1e9;
 		
 		StringBuilder ResultString = new StringBuilder();
-		ResultString.append("Cores: " + Runtime.getRuntime().availableProcessors() + "\n");
-		ResultString.append("Time: " + ((end - start) / 1000) + "." + (((end - start) / 1000) / 10) + " seconds\n");
-		ResultString.append("Hash rate: " + formatter.format(hashRateValue) + " h/s\n");
+		ResultString.append("Cores: " + Runtime.getRuntime().availableProcessors() + ", threads: " + pow.getThreadCount() + "\n");
+		ResultString.append("Time: " + new DecimalFormat("0.0").format(seconds) + " seconds\n");
+		
+		if (meter.getWindows() >= 2)
+		{
+			RateStatistics nonceRate = meter.getNonceRate();
+			RateStatistics hashRate = meter.getHashRate();
+			
+			ResultString.append("Nonce rate: " + formatter.format(nonceRate.getMean()) + " n/s (+/- "
+					+ formatter.format(nonceRate.getConfidence()) + ")\n");
+			ResultString.append("Hash rate: " + formatter.format(hashRate.getMean()) + " h/s (+/- "
+					+ formatter.format(hashRate.getConfidence()) + ", sd " + formatter.format(hashRate.getStandardDeviation())
+					+ ", " + hashRate.getWindows() + " windows)\n");
+		}
+		else
+		{
+			// Too short to measure after the warm-up, only the rate of the whole test
+			ResultString.append("Hash rate: " + formatter.format(pow.getHashesCalculated() / seconds) + " h/s (unmeasured)\n");
+		}
 		
 		if (pow.getPOWSuccessfulResult() == true)
 		{
@@ -262,4 +416,129 @@ public class POWActivity extends Activity
 		
 		return ResultString.toString();
 	}
+	
+	/**
+	 * Runs the soak test for the max time allowed and shows how the hash rate
+	 * held up.
+	 */
+	@SuppressLint("Wakelock")
+	private String runSoakTest(PowProgressListener progressListener)
+	{
+		PowSoakTest test = new PowSoakTest();
+		test.setDuration(maxTimeAllowedSeekBar.getProgress() + 1);
+		test.setInterval(Math.max(1000, test.getDuration() * 1000L / 60)); // About 60 samples
+		test.setThreadCount(ThreadTuner.getDefault().getThreadCount());
+		test.setProgressListener(progressListener);
+		runningSoakTest = test;
+		
+		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK, "POW");
+		
+		wl.acquire();
+		boolean finished = test.run() != null;
+		wl.release();
+		runningSoakTest = null;
+		
+		if (!finished)
+		{
+			return "Result: The soak test did not finish";
+		}
+		
+		DecimalFormat formatter = new DecimalFormat("###,###,###");
+		RateStatistics steady = test.getSteadyState();
+		long onset = test.getThrottleOnset();
+		double perCpuSecond = test.getHashesPerCpuSecond();
+		
+		StringBuilder ResultString = new StringBuilder();
+		ResultString.append("Cores: " + Runtime.getRuntime().availableProcessors() + ", threads: " + test.getThreadCount() + "\n");
+		ResultString.append("Time: " + test.getDuration() + " seconds, " + test.getSamples().size() + " samples\n");
+		ResultString.append("Peak hash rate: " + formatter.format(test.getPeakHashRate()) + " h/s\n");
+		
+		if (steady != null)
+		{
+			ResultString.append("Steady-state hash rate: " + formatter.format(steady.getMean()) + " h/s (+/- "
+					+ formatter.format(steady.getConfidence()) + ", " + Math.round(test.getSustainedShare() * 100) + "% of peak)\n");
+		}
+		
+		if (!Double.isNaN(perCpuSecond))
+		{
+			ResultString.append("Hashes per CPU-second: " + formatter.format(perCpuSecond) + " ("
+					+ test.getCpuTimeSource().name().toLowerCase() + ")\n");
+		}
+		
+		if (onset >= 0)
+		{
+			ResultString.append("Result: Throttling started after " + new DecimalFormat("0.0").format(onset / 1000.0) + " seconds");
+		}
+		else
+		{
+			ResultString.append("Result: No throttling");
+		}
+		
+		powTestSuccessful = true;
+		
+		return ResultString.toString();
+	}
+	
+	/**
+	 * Runs the deterministic benchmark with its default settings, stores the
+	 * result in the history and compares it to the earlier results.
+	 */
+	@SuppressLint("Wakelock")
+	private String runBenchmark()
+	{
+		PowBenchmark benchmark = new PowBenchmark();
+		benchmark.setDevice(Build.MANUFACTURER + " " + Build.MODEL);
+		benchmark.setMaxTime(maxTimeAllowedSeekBar.getProgress() + 1);
+		benchmark.setThreads(ThreadTuner.getDefault().getThreadCount());
+		runningBenchmark = benchmark;
+		
+		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK, "POW");
+		
+		wl.acquire();
+		BenchmarkResult result = benchmark.run();
+		wl.release();
+		runningBenchmark = null;
+		
+		if (result == null)
+		{
+			return "Result: A benchmark run did not finish within the time allowed";
+		}
+		
+		try
+		{
+			BenchmarkHistory history = new BenchmarkHistory(new File(getFilesDir(), "benchmark-history.txt"));
+			result = history.record(result);
+		}
+		catch (IOException e)
+		{
+			Log.e(TAG, "Could not store the benchmark result", e);
+		}
+		
+		DecimalFormat formatter = new DecimalFormat("###,###,###");
+		
+		StringBuilder ResultString = new StringBuilder();
+		ResultString.append("Cores: " + result.getCores() + ", threads: " + result.getThreads() + "\n");
+		ResultString.append("Nonces per run: " + formatter.format(result.getNonces()) + " x " + result.getRuns() + "\n");
+		ResultString.append("Hash rate: " + formatter.format(result.getHashRate()) + " h/s (+/- "
+				+ formatter.format(result.getHashRateDeviation()) + ")\n");
+		
+		if (result.getBaseline() == 0)
+		{
+			ResultString.append("Result: First run, stored as baseline");
+			powTestSuccessful = true;
+		}
+		else if (result.isRegression())
+		{
+			ResultString.append("Result: Regression! Baseline is " + formatter.format(result.getBaseline()) + " h/s");
+		}
+		else
+		{
+			ResultString.append("Result: No regression, baseline is " + formatter.format(result.getBaseline()) + " h/s");
+			powTestSuccessful = true;
+		}
+		
+		return ResultString.toString();
+	}
 }
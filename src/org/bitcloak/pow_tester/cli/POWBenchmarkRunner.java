@@ -0,0 +1,880 @@
+package org.bitcloak.pow_tester.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import sibbo.bitmessage.android.AddressKeys;
+import sibbo.bitmessage.android.AddressSearch;
+import sibbo.bitmessage.android.BenchmarkHistory;
+import sibbo.bitmessage.android.BenchmarkResult;
+import sibbo.bitmessage.android.HashRateMeter;
+import sibbo.bitmessage.android.LoadGovernor;
+import sibbo.bitmessage.android.POWCalculator;
+import sibbo.bitmessage.android.PowBenchmark;
+import sibbo.bitmessage.android.PowCoordinator;
+import sibbo.bitmessage.android.PowEstimator;
+import sibbo.bitmessage.android.PowNode;
+import sibbo.bitmessage.android.PowOutcome;
+import sibbo.bitmessage.android.PowParameters;
+import sibbo.bitmessage.android.PowSoakTest;
+import sibbo.bitmessage.android.ProofOfWorkFunction;
+import sibbo.bitmessage.android.ProofOfWorkFunctions;
+import sibbo.bitmessage.android.RateStatistics;
+import sibbo.bitmessage.android.ThreadTuner;
+import sibbo.bitmessage.android.Util;
+
+/**
+ * Runs the same Proof of Work test as the app from the command line, so it can
+ * be run on any JVM, e.g. on servers and build machines. Takes the same
+ * settings as the app, repeats the test and prints the results as JSON or CSV.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class POWBenchmarkRunner
+{
+	private static final String USAGE = "Usage: POWBenchmarkRunner [options]\n"
+			+ "  --payload-length <bytes>   Payload length, default 0\n"
+			+ "  --difficulty <factor>      Difficulty factor, 1 is the network minimum, default 1\n"
+			+ "  --ttl <seconds>            Time to live of the object, 0 for none, default 0\n"
+			+ "  --max-time <seconds|auto>  Max time allowed per trial, default 60, auto from the estimate\n"
+			+ "  --threads <count>          Number of worker threads, default the tuned count\n"
+			+ "  --windows <count>          Measurement mode: after a warm-up of a second, measure the rate\n"
+			+ "                             in this many windows of a second, without outliers\n"
+			+ "  --soak <seconds>           Soak mode: calculate this long at full load, report the decay of\n"
+			+ "                             the rate, the onset of throttling, the steady-state rate and the\n"
+			+ "                             hashes per CPU-second\n"
+			+ "  --interval <seconds>       Time between two samples of the soak mode, default 10\n"
+			+ "  --address <null bytes>     Address mode: search keys whose ripe starts with this many\n"
+			+ "                             zero bytes, report the keys per second\n"
+			+ "  --coordinator <port>       Distributed mode: solve the trials with the nodes that connect\n"
+			+ "                             to this port, 0 for any free port\n"
+			+ "  --nodes <count>            Nodes to wait for before the first trial, default 1\n"
+			+ "  --node <host:port>         Work as a node for the coordinator at this address\n"
+			+ "  --tuning <path>            Load the tuned thread count from this file, or store it there\n"
+			+ "  --tune                     Measure the hash rate per thread count, print the scaling curve\n"
+			+ "                             and store the best count in the --tuning file\n"
+			+ "  --trials <count>           Number of trials, default 5\n"
+			+ "  --load-profile <name>      max_throughput, balanced or background, default max_throughput\n"
+			+ "  --function <name>          POW function: double-sha512 (default), double-sha512-hash-first,\n"
+			+ "                             memory-hard or memory-hard-<KiB>\n"
+			+ "  --checkpoint-dir <path>    Resume trials from checkpoints in this directory\n"
+			+ "  --seed <long>              Seed for the initial hashes, random by default\n"
+			+ "  --nonces <count>           Deterministic mode: try exactly this many nonces per trial,\n"
+			+ "                             with a seeded initial hash (seed 0 by default) and no target\n"
+			+ "  --history <path>           Deterministic mode: store the result in this file and compare\n"
+			+ "                             it to earlier ones, exit with 3 on a regression\n"
+			+ "  --threshold <percent>      Drop of the hash rate that counts as a regression, default 10\n"
+			+ "  --format <json|csv>        Output format, default json\n"
+			+ "  --verbose                  Show the log output of the calculation\n";
+
+	private int payloadLength = 0;
+	private int difficulty = 1;
+	private int ttl = 0;
+	private int maxTime = 60;
+	private boolean autoMaxTime;
+	private int threads;
+	private File tuning;
+	private boolean tune;
+	private int trials = 5;
+	private LoadGovernor.Profile profile = LoadGovernor.Profile.MAX_THROUGHPUT;
+	private ProofOfWorkFunction function = ProofOfWorkFunctions.DOUBLE_SHA512;
+	private Long seed;
+	private File checkpointDirectory;
+	private long nonces;
+	private int windows;
+	private int soak;
+	private int interval = (int) (PowSoakTest.DEFAULT_INTERVAL / 1000);
+	private int addressNullBytes;
+	private Integer coordinatorPort;
+	private int nodes = 1;
+	private String coordinatorAddress;
+	private File history;
+	private int threshold = 10;
+	private boolean csv;
+	private boolean verbose;
+
+	/** Only created by main(). */
+	private POWBenchmarkRunner()
+	{
+
+	}
+
+	public static void main(String[] args)
+	{
+		POWBenchmarkRunner runner = new POWBenchmarkRunner();
+
+		try
+		{
+			runner.parse(args);
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+		}
+
+		if (!runner.verbose)
+		{
+			Logger.getLogger("sibbo.bitmessage.android").setLevel(Level.WARNING);
+		}
+
+		ThreadTuner tuner = runner.tuning == null ? new ThreadTuner() : new ThreadTuner(runner.tuning);
+		ThreadTuner.setDefault(tuner);
+
+		if (runner.tune)
+		{
+			System.exit(runner.runTuning(tuner, System.out));
+		}
+
+		if (runner.threads == 0)
+		{
+			runner.threads = tuner.getThreadCount();
+		}
+
+		if (runner.coordinatorAddress != null)
+		{
+			System.exit(runner.runNode());
+		}
+
+		if (runner.coordinatorPort != null)
+		{
+			System.exit(runner.runCoordinator(System.out));
+		}
+
+		if (runner.addressNullBytes > 0)
+		{
+			System.exit(runner.runAddressSearch(System.out));
+		}
+
+		if (runner.soak > 0)
+		{
+			System.exit(runner.runSoak(System.out));
+		}
+
+		if (runner.windows > 0)
+		{
+			runner.runMeasurement(System.out);
+			return;
+		}
+
+		if (runner.nonces > 0)
+		{
+			System.exit(runner.runDeterministic(System.out));
+		}
+
+		runner.run(System.out);
+	}
+
+	private void parse(String[] args)
+	{
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+
+			if (arg.equals("--verbose"))
+			{
+				verbose = true;
+				continue;
+			}
+			else if (arg.equals("--tune"))
+			{
+				tune = true;
+				continue;
+			}
+			else if (arg.equals("--help"))
+			{
+				System.out.print(USAGE);
+				System.exit(0);
+			}
+
+			if (i + 1 == args.length)
+			{
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+
+			String value = args[++i];
+
+			try
+			{
+				if (arg.equals("--payload-length"))
+				{
+					payloadLength = atLeast(arg, Integer.parseInt(value), 0);
+				}
+				else if (arg.equals("--difficulty"))
+				{
+					difficulty = atLeast(arg, Integer.parseInt(value), 1);
+				}
+				else if (arg.equals("--ttl"))
+				{
+					ttl = atLeast(arg, Integer.parseInt(value), 0);
+				}
+				else if (arg.equals("--max-time"))
+				{
+					autoMaxTime = value.equals("auto");
+
+					if (!autoMaxTime)
+					{
+						maxTime = atLeast(arg, Integer.parseInt(value), 1);
+					}
+				}
+				else if (arg.equals("--threads"))
+				{
+					threads = atLeast(arg, Integer.parseInt(value), 1);
+				}
+				else if (arg.equals("--tuning"))
+				{
+					tuning = new File(value);
+				}
+				else if (arg.equals("--trials"))
+				{
+					trials = atLeast(arg, Integer.parseInt(value), 1);
+				}
+				else if (arg.equals("--load-profile"))
+				{
+					try
+					{
+						profile = LoadGovernor.Profile.valueOf(value.toUpperCase(Locale.US));
+					}
+					catch (IllegalArgumentException e)
+					{
+						throw new IllegalArgumentException("Unknown load profile: " + value);
+					}
+				}
+				else if (arg.equals("--function"))
+				{
+					function = ProofOfWorkFunctions.get(value);
+				}
+				else if (arg.equals("--checkpoint-dir"))
+				{
+					checkpointDirectory = new File(value);
+				}
+				else if (arg.equals("--nonces"))
+				{
+					nonces = atLeast(arg, Integer.parseInt(value), 1);
+				}
+				else if (arg.equals("--windows"))
+				{
+					windows = atLeast(arg, Integer.parseInt(value), 2);
+				}
+				else if (arg.equals("--soak"))
+				{
+					soak = atLeast(arg, Integer.parseInt(value), 1);
+				}
+				else if (arg.equals("--interval"))
+				{
+					interval = atLeast(arg, Integer.parseInt(value), 1);
+				}
+				else if (arg.equals("--address"))
+				{
+					addressNullBytes = atLeast(arg, Integer.parseInt(value), 1);
+
+					if (addressNullBytes > 4)
+					{
+						throw new IllegalArgumentException(arg + " must be at most 4");
+					}
+				}
+				else if (arg.equals("--coordinator"))
+				{
+					coordinatorPort = Integer.valueOf(atLeast(arg, Integer.parseInt(value), 0));
+				}
+				else if (arg.equals("--nodes"))
+				{
+					nodes = atLeast(arg, Integer.parseInt(value), 1);
+				}
+				else if (arg.equals("--node"))
+				{
+					int colon = value.lastIndexOf(':');
+
+					if (colon <= 0)
+					{
+						throw new IllegalArgumentException(arg + " must be host:port");
+					}
+
+					Integer.parseInt(value.substring(colon + 1));
+					coordinatorAddress = value;
+				}
+				else if (arg.equals("--history"))
+				{
+					history = new File(value);
+				}
+				else if (arg.equals("--threshold"))
+				{
+					threshold = atLeast(arg, Integer.parseInt(value), 1);
+
+					if (threshold >= 100)
+					{
+						throw new IllegalArgumentException(arg + " must be less than 100");
+					}
+				}
+				else if (arg.equals("--seed"))
+				{
+					seed = Long.valueOf(value);
+				}
+				else if (arg.equals("--format"))
+				{
+					if (!value.equals("json") && !value.equals("csv"))
+					{
+						throw new IllegalArgumentException("Unknown format: " + value);
+					}
+
+					csv = value.equals("csv");
+				}
+				else
+				{
+					throw new IllegalArgumentException("Unknown option: " + arg);
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Not a number for " + arg + ": " + value);
+			}
+		}
+	}
+
+	private static int atLeast(String option, int value, int min)
+	{
+		if (value < min)
+		{
+			throw new IllegalArgumentException(option + " must be at least " + min);
+		}
+
+		return value;
+	}
+
+	private void run(PrintStream out)
+	{
+		Random random = seed == null ? new Random() : new Random(seed.longValue());
+		long target = PowParameters.forDifficulty(difficulty).withTtl(ttl).getTarget(payloadLength);
+		PowEstimator estimator = new PowEstimator();
+
+		if (autoMaxTime)
+		{
+			maxTime = estimator.getMaxTime(target, threads, 0.99);
+		}
+
+		if (csv)
+		{
+			out.println("trial,payload_length,difficulty,threads,outcome,nonce,seconds,hashes,hash_rate,cpu_share");
+		}
+		else
+		{
+			out.println("{");
+			out.println("  \"cores\": " + Runtime.getRuntime().availableProcessors() + ",");
+			out.println("  \"threads\": " + threads + ",");
+			out.println("  \"loadProfile\": \"" + profile + "\",");
+			out.println("  \"function\": \"" + function.getName() + "\",");
+			out.println("  \"payloadLength\": " + payloadLength + ",");
+			out.println("  \"difficulty\": " + difficulty + ",");
+			out.println("  \"ttl\": " + ttl + ",");
+			out.println("  \"maxTime\": " + maxTime + ",");
+			out.println("  \"target\": " + target + ",");
+			out.println(String.format(Locale.US, "  \"expectedSeconds\": %.3f,",
+					estimator.getExpectedTime(target, threads) / 1000));
+			out.println("  \"trials\": [");
+		}
+
+		double rateSum = 0;
+
+		for (int trial = 1; trial <= trials; trial++)
+		{
+			byte[] hash = new byte[64];
+			random.nextBytes(hash);
+
+			POWCalculator pow = new POWCalculator();
+			pow.setThreadCount(threads);
+			pow.setFunction(function);
+			pow.setTarget(target);
+			pow.setInitialHash(hash);
+			pow.setLoadGovernor(new LoadGovernor(profile));
+			pow.setCheckpointDirectory(checkpointDirectory);
+
+			long start = System.nanoTime();
+			byte[] result = pow.execute(maxTime);
+			long end = System.nanoTime();
+
+			double seconds = (end - start) / 1e9;
+			double hashRate = pow.getHashesCalculated() / seconds;
+			PowOutcome outcome = pow.getOutcome();
+			double cpuShare = pow.getLoadGovernor().getCpuShare();
+			String nonce = outcome == PowOutcome.FOUND ? String.valueOf(Util.getLong(result)) : "";
+			rateSum += hashRate;
+
+			if (csv)
+			{
+				out.println(String.format(Locale.US, "%d,%d,%d,%d,%s,%s,%.3f,%d,%.0f,%.2f", trial, payloadLength,
+						difficulty, threads, outcome, nonce, seconds, pow.getHashesCalculated(), hashRate, cpuShare));
+			}
+			else
+			{
+				out.println(String.format(Locale.US,
+						"    {\"trial\": %d, \"outcome\": \"%s\", \"nonce\": %s, \"seconds\": %.3f, \"hashes\": %d, \"hashRate\": %.0f, \"cpuShare\": %.2f}%s",
+						trial, outcome, nonce.length() == 0 ? "null" : nonce, seconds, pow.getHashesCalculated(),
+						hashRate, cpuShare, trial < trials ? "," : ""));
+			}
+
+			out.flush();
+		}
+
+		if (!csv)
+		{
+			out.println("  ],");
+			out.println(String.format(Locale.US, "  \"averageHashRate\": %.0f", rateSum / trials));
+			out.println("}");
+		}
+	}
+
+	/**
+	 * Runs the deterministic benchmark and records it in the history.
+	 *
+	 * @return The exit status: 0, 1 if a trial did not finish, 3 on a
+	 *         regression.
+	 */
+	private int runDeterministic(PrintStream out)
+	{
+		PowBenchmark benchmark = new PowBenchmark();
+		benchmark.setSeed(seed == null ? 0 : seed.longValue());
+		benchmark.setNonces(nonces);
+		benchmark.setRuns(trials, 1);
+		benchmark.setThreads(threads);
+		benchmark.setFunction(function);
+		benchmark.setMaxTime(maxTime);
+
+		BenchmarkResult result = benchmark.run();
+
+		if (result == null)
+		{
+			System.err.println("A trial did not finish within " + maxTime + " seconds");
+			return 1;
+		}
+
+		if (history != null)
+		{
+			BenchmarkHistory store = new BenchmarkHistory(history);
+			store.setThreshold(threshold / 100.0);
+
+			try
+			{
+				result = store.record(result);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Could not update the history " + history + ": " + e.getMessage());
+			}
+		}
+
+		if (csv)
+		{
+			out.println("device,cores,threads,backend,seed,nonces,trials,hash_rate,hash_rate_deviation,baseline,regression");
+			out.println(String.format(Locale.US, "%s,%d,%d,%s,%d,%d,%d,%.0f,%.0f,%.0f,%s", result.getDevice(),
+					result.getCores(), result.getThreads(), result.getBackend(), result.getSeed(),
+					result.getNonces(), result.getRuns(), result.getHashRate(), result.getHashRateDeviation(),
+					result.getBaseline(), result.isRegression()));
+		}
+		else
+		{
+			out.println("{");
+			out.println("  \"device\": \"" + result.getDevice() + "\",");
+			out.println("  \"cores\": " + result.getCores() + ",");
+			out.println("  \"threads\": " + result.getThreads() + ",");
+			out.println("  \"backend\": \"" + result.getBackend() + "\",");
+			out.println("  \"seed\": " + result.getSeed() + ",");
+			out.println("  \"nonces\": " + result.getNonces() + ",");
+			out.println("  \"trials\": " + result.getRuns() + ",");
+			out.println(String.format(Locale.US, "  \"hashRate\": %.0f,", result.getHashRate()));
+			out.println(String.format(Locale.US, "  \"hashRateDeviation\": %.0f,", result.getHashRateDeviation()));
+			out.println(String.format(Locale.US, "  \"baseline\": %.0f,", result.getBaseline()));
+			out.println("  \"regression\": " + result.isRegression());
+			out.println("}");
+		}
+
+		return result.isRegression() ? 3 : 0;
+	}
+
+	/**
+	 * Works as a node until the coordinator closes the connection.
+	 *
+	 * @return The exit status: 0, 1 if the node never calculated a lease.
+	 */
+	private int runNode()
+	{
+		int colon = coordinatorAddress.lastIndexOf(':');
+		PowNode node = new PowNode(coordinatorAddress.substring(0, colon),
+				Integer.parseInt(coordinatorAddress.substring(colon + 1)));
+		node.setThreadCount(threads);
+		node.run();
+
+		return node.getLeases() > 0 ? 0 : 1;
+	}
+
+	/**
+	 * Solves the trials with the nodes that connect, and prints the results.
+	 *
+	 * @return The exit status: 0, 1 if the nodes did not connect or the
+	 *         coordinator could not be started.
+	 */
+	private int runCoordinator(PrintStream out)
+	{
+		PowCoordinator coordinator;
+
+		try
+		{
+			coordinator = new PowCoordinator(coordinatorPort.intValue());
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not listen on port " + coordinatorPort + ": " + e.getMessage());
+			return 1;
+		}
+
+		System.err.println("Waiting for " + nodes + " nodes on port " + coordinator.getPort());
+
+		try
+		{
+			if (!coordinator.awaitNodes(nodes, maxTime * 1000L))
+			{
+				System.err.println("Only " + coordinator.getNodes() + " nodes connected within " + maxTime
+						+ " seconds");
+				coordinator.close();
+				return 1;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			coordinator.close();
+			return 1;
+		}
+
+		Random random = seed == null ? new Random() : new Random(seed.longValue());
+		long target = PowParameters.forDifficulty(difficulty).withTtl(ttl).getTarget(payloadLength);
+
+		if (csv)
+		{
+			out.println("trial,payload_length,difficulty,nodes,outcome,nonce,seconds,nonces,hash_rate,reassigned_leases");
+		}
+		else
+		{
+			out.println("{");
+			out.println("  \"port\": " + coordinator.getPort() + ",");
+			out.println("  \"payloadLength\": " + payloadLength + ",");
+			out.println("  \"difficulty\": " + difficulty + ",");
+			out.println("  \"ttl\": " + ttl + ",");
+			out.println("  \"maxTime\": " + maxTime + ",");
+			out.println("  \"target\": " + target + ",");
+			out.println("  \"trials\": [");
+		}
+
+		for (int trial = 1; trial <= trials; trial++)
+		{
+			byte[] hash = new byte[64];
+			random.nextBytes(hash);
+			int reassigned = coordinator.getReassignedLeases();
+
+			long start = System.nanoTime();
+			byte[] result = coordinator.solve(hash, target, maxTime);
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			PowOutcome outcome = coordinator.getOutcome();
+			String nonce = result == null ? "" : String.valueOf(Util.getLong(result));
+			double hashRate = coordinator.getNoncesTried() * 2 / seconds;
+			reassigned = coordinator.getReassignedLeases() - reassigned;
+
+			if (csv)
+			{
+				out.println(String.format(Locale.US, "%d,%d,%d,%d,%s,%s,%.3f,%d,%.0f,%d", trial, payloadLength,
+						difficulty, coordinator.getNodes(), outcome, nonce, seconds, coordinator.getNoncesTried(),
+						hashRate, reassigned));
+			}
+			else
+			{
+				out.println(String.format(Locale.US,
+						"    {\"trial\": %d, \"nodes\": %d, \"outcome\": \"%s\", \"nonce\": %s, \"seconds\": %.3f, \"nonces\": %d, \"hashRate\": %.0f, \"reassignedLeases\": %d}%s",
+						trial, coordinator.getNodes(), outcome, nonce.length() == 0 ? "null" : nonce, seconds,
+						coordinator.getNoncesTried(), hashRate, reassigned, trial < trials ? "," : ""));
+			}
+
+			out.flush();
+		}
+
+		if (!csv)
+		{
+			out.println("  ]");
+			out.println("}");
+		}
+
+		coordinator.close();
+
+		return 0;
+	}
+
+	/**
+	 * Searches address keys in every trial and prints the key rate. The keys
+	 * themselves are not printed.
+	 *
+	 * @return The exit status: 0, 1 if a trial did not find keys.
+	 */
+	private int runAddressSearch(PrintStream out)
+	{
+		if (csv)
+		{
+			out.println("trial,null_bytes,threads,outcome,seconds,keys,key_rate,ripe");
+		}
+		else
+		{
+			out.println("{");
+			out.println("  \"cores\": " + Runtime.getRuntime().availableProcessors() + ",");
+			out.println("  \"threads\": " + threads + ",");
+			out.println("  \"nullBytes\": " + addressNullBytes + ",");
+			out.println("  \"expectedKeys\": " + AddressSearch.getExpectedKeys(addressNullBytes) + ",");
+			out.println("  \"trials\": [");
+		}
+
+		int status = 0;
+
+		for (int trial = 1; trial <= trials; trial++)
+		{
+			AddressSearch search = new AddressSearch();
+			search.setThreadCount(threads);
+			search.setNullBytes(addressNullBytes);
+
+			long start = System.nanoTime();
+			AddressKeys keys = search.execute(maxTime);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			String ripe = keys == null ? "" : toHex(keys.getRipe());
+
+			if (keys == null)
+			{
+				status = 1;
+			}
+
+			if (csv)
+			{
+				out.println(String.format(Locale.US, "%d,%d,%d,%s,%.3f,%d,%.0f,%s", trial, addressNullBytes, threads,
+						search.getOutcome(), seconds, search.getKeysCalculated(), search.getKeyRate(), ripe));
+			}
+			else
+			{
+				out.println(String.format(Locale.US,
+						"    {\"trial\": %d, \"outcome\": \"%s\", \"seconds\": %.3f, \"keys\": %d, \"keyRate\": %.0f, \"ripe\": %s}%s",
+						trial, search.getOutcome(), seconds, search.getKeysCalculated(), search.getKeyRate(),
+						keys == null ? "null" : "\"" + ripe + "\"", trial < trials ? "," : ""));
+			}
+
+			out.flush();
+		}
+
+		if (!csv)
+		{
+			out.println("  ]");
+			out.println("}");
+		}
+
+		return status;
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder();
+
+		for (byte b : bytes)
+		{
+			hex.append(String.format("%02x", b & 0xff));
+		}
+
+		return hex.toString();
+	}
+
+	/**
+	 * Measures the nonce and hash rate of a calculation that finds no nonce,
+	 * in windows after a warm-up.
+	 */
+	private void runMeasurement(PrintStream out)
+	{
+		POWCalculator pow = new POWCalculator();
+		pow.setThreadCount(threads);
+		pow.setFunction(function);
+		pow.setTarget(-1);
+		pow.setInitialHash(PowBenchmark.getInitialHash(seed == null ? 0 : seed.longValue()));
+		pow.setLoadGovernor(new LoadGovernor(profile));
+
+		HashRateMeter meter = new HashRateMeter();
+		RateStatistics nonceRate = meter.measure(pow, windows);
+		RateStatistics hashRate = nonceRate.scale(2);
+
+		if (csv)
+		{
+			out.println("rate,mean,standard_deviation,confidence_95,lower,upper,windows,rejected");
+			printRate(out, "nonce", nonceRate);
+			printRate(out, "hash", hashRate);
+		}
+		else
+		{
+			out.println("{");
+			out.println("  \"cores\": " + Runtime.getRuntime().availableProcessors() + ",");
+			out.println("  \"threads\": " + threads + ",");
+			out.println("  \"loadProfile\": \"" + profile + "\",");
+			out.println("  \"function\": \"" + function.getName() + "\",");
+			out.println("  \"warmUpMillis\": " + HashRateMeter.DEFAULT_WARM_UP + ",");
+			out.println("  \"windowMillis\": " + HashRateMeter.DEFAULT_WINDOW + ",");
+			out.println("  \"nonceRate\": " + toJson(nonceRate) + ",");
+			out.println("  \"hashRate\": " + toJson(hashRate));
+			out.println("}");
+		}
+	}
+
+	/**
+	 * Runs the soak test and prints its samples and summary.
+	 *
+	 * @return The exit status: 0, 1 if the test did not finish.
+	 */
+	private int runSoak(PrintStream out)
+	{
+		PowSoakTest test = new PowSoakTest();
+		test.setDuration(soak);
+		test.setInterval(interval * 1000L);
+		test.setThreadCount(threads);
+		test.setFunction(function);
+		test.setSeed(seed == null ? 0 : seed.longValue());
+
+		List<PowSoakTest.Sample> samples = test.run();
+
+		if (samples == null)
+		{
+			System.err.println("The soak test did not finish");
+			return 1;
+		}
+
+		double[] curve = test.getDecayCurve();
+		long onset = test.getThrottleOnset();
+		RateStatistics steady = test.getSteadyState();
+
+		if (csv)
+		{
+			out.println("seconds,hash_rate,relative_rate,cpu_load,hashes_per_cpu_second,throttled");
+
+			for (int i = 0; i < samples.size(); i++)
+			{
+				PowSoakTest.Sample s = samples.get(i);
+				out.println(String.format(Locale.US, "%.1f,%.0f,%.3f,%s,%s,%s", s.getTime() / 1000.0,
+						s.getHashRate(), curve[i], toCsv("%.2f", s.getCpuLoad()),
+						toCsv("%.0f", s.getHashesPerCpuSecond()), onset >= 0 && s.getTime() > onset));
+			}
+		}
+		else
+		{
+			out.println("{");
+			out.println("  \"cores\": " + Runtime.getRuntime().availableProcessors() + ",");
+			out.println("  \"threads\": " + threads + ",");
+			out.println("  \"function\": \"" + function.getName() + "\",");
+			out.println("  \"durationSeconds\": " + soak + ",");
+			out.println("  \"intervalSeconds\": " + interval + ",");
+			out.println("  \"cpuTimeSource\": \"" + test.getCpuTimeSource().name().toLowerCase(Locale.US) + "\",");
+			out.println(String.format(Locale.US, "  \"hashRate\": %.0f,", test.getHashRate()));
+			out.println(String.format(Locale.US, "  \"peakHashRate\": %.0f,", test.getPeakHashRate()));
+			out.println("  \"steadyStateHashRate\": " + (steady == null ? "null" : toJson(steady)) + ",");
+			out.println("  \"sustainedShare\": " + toCsv("%.3f", test.getSustainedShare()) + ",");
+			out.println("  \"throttleOnsetSeconds\": " + (onset < 0 ? "null" : String.format(Locale.US, "%.1f",
+					onset / 1000.0)) + ",");
+			out.println("  \"cpuLoad\": " + toCsv("%.2f", test.getCpuLoad()) + ",");
+			out.println("  \"hashesPerCpuSecond\": " + toCsv("%.0f", test.getHashesPerCpuSecond()) + ",");
+			out.println("  \"samples\": [");
+
+			for (int i = 0; i < samples.size(); i++)
+			{
+				PowSoakTest.Sample s = samples.get(i);
+				out.println(String.format(Locale.US, "    {\"seconds\": %.1f, \"hashRate\": %.0f, "
+						+ "\"relativeRate\": %.3f, \"cpuLoad\": %s, \"hashesPerCpuSecond\": %s}%s",
+						s.getTime() / 1000.0, s.getHashRate(), curve[i], toCsv("%.2f", s.getCpuLoad()),
+						toCsv("%.0f", s.getHashesPerCpuSecond()), i + 1 < samples.size() ? "," : ""));
+			}
+
+			out.println("  ]");
+			out.println("}");
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Formats a number that may be unknown, as null then.
+	 */
+	private static String toCsv(String format, double value)
+	{
+		return Double.isNaN(value) ? "null" : String.format(Locale.US, format, value);
+	}
+
+	private static void printRate(PrintStream out, String name, RateStatistics rate)
+	{
+		out.println(String.format(Locale.US, "%s,%.0f,%.0f,%.0f,%.0f,%.0f,%d,%d", name, rate.getMean(),
+				rate.getStandardDeviation(), rate.getConfidence(), rate.getLower(), rate.getUpper(),
+				rate.getWindows(), rate.getRejected()));
+	}
+
+	private static String toJson(RateStatistics rate)
+	{
+		return String.format(Locale.US, "{\"mean\": %.0f, \"standardDeviation\": %.0f, \"confidence95\": %.0f, "
+				+ "\"lower\": %.0f, \"upper\": %.0f, \"windows\": %d, \"rejected\": %d}", rate.getMean(),
+				rate.getStandardDeviation(), rate.getConfidence(), rate.getLower(), rate.getUpper(),
+				rate.getWindows(), rate.getRejected());
+	}
+
+	/**
+	 * Tunes the thread count and prints the scaling curve.
+	 *
+	 * @return The exit status: 0, 1 if the tuning failed.
+	 */
+	private int runTuning(ThreadTuner tuner, PrintStream out)
+	{
+		List<ThreadTuner.Point> curve = tuner.tune();
+
+		if (curve == null)
+		{
+			System.err.println("The tuning did not finish");
+			return 1;
+		}
+
+		double quota = ThreadTuner.getCpuQuota();
+
+		if (csv)
+		{
+			out.println("threads,hash_rate,speedup,efficiency,marginal_speedup,recommended");
+
+			for (ThreadTuner.Point p : curve)
+			{
+				out.println(String.format(Locale.US, "%d,%.0f,%.2f,%.2f,%.2f,%s", p.getThreads(), p.getHashRate(),
+						p.getSpeedup(), p.getEfficiency(), p.getMarginalSpeedup(),
+						p.getThreads() == tuner.getThreadCount()));
+			}
+		}
+		else
+		{
+			out.println("{");
+			out.println("  \"cores\": " + Runtime.getRuntime().availableProcessors() + ",");
+			out.println(String.format(Locale.US, "  \"cpuQuota\": %s,", quota > 0 ? String.format(Locale.US,
+					"%.2f", quota) : "null"));
+			out.println("  \"cpuLimit\": " + ThreadTuner.getCpuLimit() + ",");
+			out.println("  \"threads\": " + tuner.getThreadCount() + ",");
+			out.println("  \"curve\": [");
+
+			for (int i = 0; i < curve.size(); i++)
+			{
+				ThreadTuner.Point p = curve.get(i);
+				out.println(String.format(Locale.US, "    {\"threads\": %d, \"hashRate\": %.0f, \"speedup\": %.2f, "
+						+ "\"efficiency\": %.2f, \"marginalSpeedup\": %.2f}%s", p.getThreads(), p.getHashRate(),
+						p.getSpeedup(), p.getEfficiency(), p.getMarginalSpeedup(), i + 1 < curve.size() ? "," : ""));
+			}
+
+			out.println("  ]");
+			out.println("}");
+		}
+
+		return 0;
+	}
+}
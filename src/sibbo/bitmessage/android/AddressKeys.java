@@ -0,0 +1,96 @@
+package sibbo.bitmessage.android;
+
+/**
+ * The key pairs of a Bitmessage address found by {@link AddressSearch}, and
+ * their digest, the ripe the address is made of.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class AddressKeys
+{
+	private final byte[] privateSigningKey;
+	private final byte[] publicSigningKey;
+	private final byte[] privateEncryptionKey;
+	private final byte[] publicEncryptionKey;
+	private final byte[] ripe;
+
+	AddressKeys(byte[] privateSigningKey, byte[] publicSigningKey, byte[] privateEncryptionKey,
+			byte[] publicEncryptionKey, byte[] ripe)
+	{
+		this.privateSigningKey = privateSigningKey;
+		this.publicSigningKey = publicSigningKey;
+		this.privateEncryptionKey = privateEncryptionKey;
+		this.publicEncryptionKey = publicEncryptionKey;
+		this.ripe = ripe;
+	}
+
+	/**
+	 * Returns the private signing key.
+	 *
+	 * @return The 32 byte key.
+	 */
+	public byte[] getPrivateSigningKey()
+	{
+		return privateSigningKey.clone();
+	}
+
+	/**
+	 * Returns the public signing key.
+	 *
+	 * @return The 65 byte uncompressed key.
+	 */
+	public byte[] getPublicSigningKey()
+	{
+		return publicSigningKey.clone();
+	}
+
+	/**
+	 * Returns the private encryption key.
+	 *
+	 * @return The 32 byte key.
+	 */
+	public byte[] getPrivateEncryptionKey()
+	{
+		return privateEncryptionKey.clone();
+	}
+
+	/**
+	 * Returns the public encryption key.
+	 *
+	 * @return The 65 byte uncompressed key.
+	 */
+	public byte[] getPublicEncryptionKey()
+	{
+		return publicEncryptionKey.clone();
+	}
+
+	/**
+	 * Returns the digest of the public keys, see
+	 * {@link Digest#keyDigest(byte[], byte[])}.
+	 *
+	 * @return The 20 byte ripe.
+	 */
+	public byte[] getRipe()
+	{
+		return ripe.clone();
+	}
+
+	/**
+	 * Returns the number of zero bytes the ripe starts with. Each one makes
+	 * the address one character shorter.
+	 *
+	 * @return The number of leading zero bytes.
+	 */
+	public int getNullBytes()
+	{
+		int n = 0;
+
+		while (n < ripe.length && ripe[n] == 0)
+		{
+			n++;
+		}
+
+		return n;
+	}
+}
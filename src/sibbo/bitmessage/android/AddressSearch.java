@@ -0,0 +1,344 @@
+package sibbo.bitmessage.android;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Searches for the keys of a Bitmessage address whose ripe (see
+ * {@link Digest#keyDigest(byte[], byte[])}) starts with a given number of zero
+ * bytes. Every zero byte makes the address one character shorter and the
+ * search 256 times longer.<br />
+ * <br />
+ * Like a POW calculation, the search runs one {@link AddressSearchWorker} per
+ * thread in a {@link WorkerGroup} until one of them finds a key pair, the time
+ * runs out or it is cancelled, and it publishes the keys tried per worker in
+ * {@link PowCounters}. A worker that fails does not stop the others, the
+ * search only fails if all of them do. The signing key is the same for all candidates, only
+ * the encryption key changes, as in PyBitmessage. Each worker starts at a
+ * random private key and counts up from there, so the workers never try the
+ * same key. The result is checked with a full scalar multiplication and
+ * {@link Digest#keyDigest(byte[], byte[])} before it is returned.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class AddressSearch
+{
+	private static final Logger LOG = Logger.getLogger(AddressSearch.class.getName());
+
+	/** The number of keys a worker derives with one modular inversion. */
+	public static final int BATCH_SIZE = 256;
+
+	/** The multiples of G the workers step by, computed once. */
+	private static BigInteger[][] steps;
+
+	/** The number of leading zero bytes of the ripe. */
+	private int nullBytes = 1;
+
+	/** The number of worker threads, or 0 to ask the default {@link ThreadTuner}. */
+	private int threadCount;
+
+	/** The private signing key, or null for a random one per search. */
+	private BigInteger signingKey;
+
+	/** How the last search ended. */
+	private volatile PowOutcome outcome;
+
+	/** The counters of the running or last search. */
+	private volatile PowCounters counters;
+
+	/** Runs the workers of the running or last search. */
+	private volatile WorkerGroup<AddressSearchWorker> group;
+
+	/** Set by {@link #cancel()}. */
+	private volatile boolean cancelRequested;
+
+	/** The number of keys tried by the last search. */
+	private long keysCalculated;
+
+	/** The time the last search took in nanoseconds. */
+	private long searchTime;
+
+	/**
+	 * Sets the number of zero bytes the ripe must start with.
+	 *
+	 * @param newNullBytes The number of zero bytes, 1 to 4. Bitmessage clients
+	 *            use 1, or 2 for short addresses.
+	 */
+	public void setNullBytes(int newNullBytes)
+	{
+		if (newNullBytes < 1 || newNullBytes > 4)
+		{
+			throw new IllegalArgumentException("newNullBytes must be between 1 and 4.");
+		}
+
+		nullBytes = newNullBytes;
+	}
+
+	public int getNullBytes()
+	{
+		return nullBytes;
+	}
+
+	/**
+	 * Sets the number of worker threads. The default is the count of
+	 * {@link ThreadTuner#getDefault()}.
+	 *
+	 * @param newThreadCount The number of worker threads.
+	 */
+	public void setThreadCount(int newThreadCount)
+	{
+		if (newThreadCount < 1)
+		{
+			throw new IllegalArgumentException("newThreadCount must be at least 1.");
+		}
+
+		threadCount = newThreadCount;
+	}
+
+	public int getThreadCount()
+	{
+		return threadCount > 0 ? threadCount : ThreadTuner.getDefault().getThreadCount();
+	}
+
+	/**
+	 * Sets the private signing key of the address, e.g. to search an
+	 * encryption key for an existing signing key.
+	 *
+	 * @param privateSigningKey The 32 byte private key, or null for a new
+	 *            random one with every search.
+	 */
+	public void setSigningKey(byte[] privateSigningKey)
+	{
+		if (privateSigningKey == null)
+		{
+			signingKey = null;
+			return;
+		}
+
+		BigInteger key = new BigInteger(1, privateSigningKey);
+
+		if (privateSigningKey.length != Secp256k1.PRIVATE_KEY_LENGTH || key.signum() == 0
+				|| key.compareTo(Secp256k1.N) >= 0)
+		{
+			throw new IllegalArgumentException("Not a valid private key.");
+		}
+
+		signingKey = key;
+	}
+
+	/**
+	 * Returns the expected number of keys a search has to try.
+	 *
+	 * @param nullBytes The number of zero bytes.
+	 * @return 256 to the power of the zero bytes.
+	 */
+	public static long getExpectedKeys(int nullBytes)
+	{
+		return 1L << (8 * nullBytes);
+	}
+
+	/**
+	 * Searches the keys.<br />
+	 * <b>WARNING: This can take a long time.</b>
+	 *
+	 * @param maxTime The maximum time in seconds the search may take.
+	 * @return The keys, or null if the time ran out, the search was
+	 *         cancelled or it failed. See {@link #getOutcome()}.
+	 */
+	public synchronized AddressKeys execute(int maxTime)
+	{
+		BigInteger privateSigningKey = signingKey != null ? signingKey : Secp256k1
+				.newPrivateKey(new SecureRandom());
+		byte[] publicSigningKey = Secp256k1.getPublicKey(privateSigningKey);
+		BigInteger[][] multiples = getSteps();
+		AddressSearchWorker[] workers = new AddressSearchWorker[getThreadCount()];
+
+		counters = new PowCounters(workers.length);
+		WorkerGroup<AddressSearchWorker> g = new WorkerGroup<AddressSearchWorker>(maxTime);
+		group = g;
+
+		if (cancelRequested)
+		{
+			// cancel() was called before the search started.
+			g.cancel();
+		}
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < workers.length; i++)
+		{
+			workers[i] = new AddressSearchWorker(publicSigningKey, multiples, nullBytes, this, g.getToken(),
+					counters, i);
+		}
+
+		g.start(workers, "Address Search Worker");
+		g.await();
+		keysCalculated = 0;
+
+		for (AddressSearchWorker w : workers)
+		{
+			keysCalculated += w.getKeysCalculated();
+		}
+
+		searchTime = System.nanoTime() - start;
+		AddressSearchWorker w = g.getWinner();
+		BigInteger found = w == null ? null : w.getFound();
+		AddressKeys keys = found == null ? null : verify(privateSigningKey, publicSigningKey, found);
+
+		if (keys != null)
+		{
+			outcome = PowOutcome.FOUND;
+		}
+		else if (g.isCancelled())
+		{
+			outcome = PowOutcome.CANCELLED;
+		}
+		else if (w != null && found == null)
+		{
+			outcome = PowOutcome.TIMED_OUT;
+		}
+		else
+		{
+			// The keys did not pass the check, or every worker failed.
+			outcome = PowOutcome.FAILED;
+		}
+
+		cancelRequested = false;
+		LOG.info("Address search " + outcome + " after " + keysCalculated + " keys, " + (long) getKeyRate()
+				+ " keys/s");
+
+		return keys;
+	}
+
+	/**
+	 * Returns the affine multiples of G the workers step by, G to
+	 * {@link #BATCH_SIZE} * G.
+	 */
+	private static synchronized BigInteger[][] getSteps()
+	{
+		if (steps == null)
+		{
+			BigInteger[][] s = new BigInteger[BATCH_SIZE][];
+			s[0] = Secp256k1.G;
+
+			for (int i = 1; i < s.length; i++)
+			{
+				s[i] = Secp256k1.add(s[i - 1], Secp256k1.G);
+			}
+
+			steps = s;
+		}
+
+		return steps;
+	}
+
+	/**
+	 * Derives the public encryption key of a found private key from scratch
+	 * and checks its digest.
+	 *
+	 * @return The keys, or null if they do not fulfill the search.
+	 */
+	private AddressKeys verify(BigInteger privateSigningKey, byte[] publicSigningKey, BigInteger encryptionKey)
+	{
+		byte[] publicEncryptionKey = Secp256k1.getPublicKey(encryptionKey);
+		byte[] ripe = Digest.keyDigest(publicSigningKey, publicEncryptionKey);
+
+		for (int i = 0; i < nullBytes; i++)
+		{
+			if (ripe[i] != 0)
+			{
+				LOG.severe("The found keys do not fulfill the search: " + Arrays.toString(ripe));
+				return null;
+			}
+		}
+
+		byte[] signing = new byte[Secp256k1.PRIVATE_KEY_LENGTH];
+		byte[] encryption = new byte[Secp256k1.PRIVATE_KEY_LENGTH];
+		Secp256k1.toBytes(privateSigningKey, signing, 0, signing.length);
+		Secp256k1.toBytes(encryptionKey, encryption, 0, encryption.length);
+
+		return new AddressKeys(signing, publicSigningKey, encryption, publicEncryptionKey, ripe);
+	}
+
+	/**
+	 * Called by a worker that found keys or ran out of time. The first such
+	 * worker ends the search.
+	 */
+	void workerFinished(AddressSearchWorker worker)
+	{
+		group.end(worker);
+	}
+
+	/**
+	 * Cancels the running search. Can be called from any thread,
+	 * {@link #execute(int)} then returns within about one batch.
+	 */
+	public void cancel()
+	{
+		cancelRequested = true;
+
+		WorkerGroup<AddressSearchWorker> g = group;
+
+		if (g != null)
+		{
+			g.cancel();
+		}
+	}
+
+	/**
+	 * Returns how the last search ended.
+	 *
+	 * @return The outcome, FOUND, TIMED_OUT, CANCELLED or FAILED, or null if
+	 *         no search ran yet.
+	 */
+	public PowOutcome getOutcome()
+	{
+		return outcome;
+	}
+
+	/**
+	 * Returns the number of keys the running or last search tried so far.
+	 * Can be called from any thread.
+	 *
+	 * @return The number of keys.
+	 */
+	public long getKeys()
+	{
+		PowCounters c = counters;
+		long keys = 0;
+
+		if (c != null)
+		{
+			for (int i = 0; i < c.getWorkers(); i++)
+			{
+				keys += c.getNonces(i);
+			}
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Returns the number of keys the last search tried.
+	 *
+	 * @return The number of keys.
+	 */
+	public long getKeysCalculated()
+	{
+		return keysCalculated;
+	}
+
+	/**
+	 * Returns the number of keys the last search tried per second, all
+	 * workers together.
+	 *
+	 * @return The key rate.
+	 */
+	public double getKeyRate()
+	{
+		return searchTime == 0 ? 0 : keysCalculated * 1e9 / searchTime;
+	}
+}
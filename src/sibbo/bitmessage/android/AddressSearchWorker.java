@@ -0,0 +1,228 @@
+package sibbo.bitmessage.android;
+
+import java.math.BigInteger;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * A worker of an {@link AddressSearch}. It walks through consecutive private
+ * encryption keys from a random start and hashes every candidate with the
+ * fixed public signing key.<br />
+ * <br />
+ * The public key of k + j is the public key of k plus j * G, so a candidate
+ * takes one point addition instead of a scalar multiplication. The additions
+ * of a batch share a single modular inversion (Montgomery's trick), and the
+ * multiples of G are computed once per search. Hashing works on arrays that
+ * are allocated once: the public keys are written into one buffer, SHA-512
+ * digests into another and {@link Ripemd160} into a third.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+class AddressSearchWorker implements Runnable
+{
+	/** The affine points G, 2G, ... {@link AddressSearch#BATCH_SIZE} * G. */
+	private final BigInteger[][] steps;
+
+	/** The search to inform when this worker stops. */
+	private final AddressSearch search;
+
+	/** Tells the worker when to stop, also carries the time allowed. */
+	private final CancellationToken token;
+
+	/** The number of leading zero bytes the ripe must have. */
+	private final int nullBytes;
+
+	/** The counters to publish the progress to. */
+	private final PowCounters counters;
+
+	/** The slot of this worker in the counters. */
+	private final int counterSlot;
+
+	/** The public signing key followed by the candidate public encryption key. */
+	private final byte[] keys = new byte[2 * Secp256k1.PUBLIC_KEY_LENGTH];
+
+	private final byte[] sha512 = new byte[64];
+
+	private final byte[] ripe = new byte[Ripemd160.DIGEST_LENGTH];
+
+	/** The private encryption key of the last candidate that was found, or null. */
+	private volatile BigInteger found;
+
+	/** The number of keys tried so far. */
+	private volatile long keysCalculated;
+
+	AddressSearchWorker(byte[] publicSigningKey, BigInteger[][] steps, int nullBytes, AddressSearch search,
+			CancellationToken token, PowCounters counters, int counterSlot)
+	{
+		System.arraycopy(publicSigningKey, 0, keys, 0, Secp256k1.PUBLIC_KEY_LENGTH);
+		this.steps = steps;
+		this.nullBytes = nullBytes;
+		this.search = search;
+		this.token = token;
+		this.counters = counters;
+		this.counterSlot = counterSlot;
+	}
+
+	@Override
+	public void run()
+	{
+		token.start();
+
+		try
+		{
+			// Only a result or the end of the time ends the search. A worker
+			// that throws is counted by the group, the other workers go on.
+			if (search())
+			{
+				search.workerFinished(this);
+			}
+		}
+		catch (DigestException e)
+		{
+			throw new IllegalStateException("The SHA-512 digest failed.", e);
+		}
+		finally
+		{
+			token.acknowledge();
+		}
+	}
+
+	/**
+	 * Searches until keys are found, the time runs out or the token is
+	 * cancelled.
+	 *
+	 * @return True if keys were found or the time ran out.
+	 * @throws DigestException If the SHA-512 digest fails.
+	 */
+	private boolean search() throws DigestException
+	{
+		MessageDigest sha = Sha512Backends.getDefault().newDigest();
+		Ripemd160 ripemd160 = new Ripemd160();
+		SecureRandom random = new SecureRandom();
+		BigInteger p = Secp256k1.P;
+		int batch = steps.length;
+		BigInteger[] products = new BigInteger[batch];
+		BigInteger[] inverses = new BigInteger[batch];
+		BigInteger batchSize = BigInteger.valueOf(batch);
+		BigInteger limit = Secp256k1.N.subtract(batchSize);
+
+		BigInteger key = null;
+		BigInteger x = null;
+		BigInteger y = null;
+
+		while (!token.isCancelled())
+		{
+			if (token.hasExpired(System.nanoTime()))
+			{
+				return true;
+			}
+
+			if (key == null || key.compareTo(limit) >= 0)
+			{
+				key = Secp256k1.newPrivateKey(random);
+				BigInteger[] point = Secp256k1.multiply(key, Secp256k1.G);
+				x = point[0];
+				y = point[1];
+			}
+
+			// One inversion for the whole batch: invert the product of all
+			// differences, then peel off one difference at a time.
+			BigInteger product = BigInteger.ONE;
+
+			for (int j = 0; j < batch; j++)
+			{
+				product = product.multiply(steps[j][0].subtract(x)).mod(p);
+				products[j] = product;
+			}
+
+			if (product.signum() == 0)
+			{
+				// The start point is a multiple of G in the batch, practically
+				// never, start somewhere else.
+				key = null;
+				continue;
+			}
+
+			BigInteger inverse = product.modInverse(p);
+
+			for (int j = batch - 1; j > 0; j--)
+			{
+				inverses[j] = inverse.multiply(products[j - 1]).mod(p);
+				inverse = inverse.multiply(steps[j][0].subtract(x)).mod(p);
+			}
+
+			inverses[0] = inverse;
+			BigInteger lastX = null;
+			BigInteger lastY = null;
+
+			for (int j = 0; j < batch; j++)
+			{
+				BigInteger lambda = steps[j][1].subtract(y).multiply(inverses[j]).mod(p);
+				BigInteger cx = lambda.multiply(lambda).subtract(x).subtract(steps[j][0]).mod(p);
+				BigInteger cy = lambda.multiply(x.subtract(cx)).subtract(y).mod(p);
+
+				Secp256k1.encode(cx, cy, keys, Secp256k1.PUBLIC_KEY_LENGTH);
+				sha.update(keys);
+				sha.digest(sha512, 0, sha512.length);
+				ripemd160.update(sha512, 0, sha512.length);
+				ripemd160.digest(ripe, 0);
+
+				if (hasNullBytes())
+				{
+					publish(j + 1);
+					found = key.add(BigInteger.valueOf(j + 1));
+					return true;
+				}
+
+				lastX = cx;
+				lastY = cy;
+			}
+
+			publish(batch);
+			key = key.add(batchSize);
+			x = lastX;
+			y = lastY;
+		}
+
+		return false;
+	}
+
+	private boolean hasNullBytes()
+	{
+		for (int i = 0; i < nullBytes; i++)
+		{
+			if (ripe[i] != 0)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Publishes the progress of a batch. Only this worker writes its counter.
+	 */
+	private void publish(int count)
+	{
+		keysCalculated = keysCalculated + count;
+		counters.add(counterSlot, count, System.nanoTime());
+	}
+
+	/**
+	 * Returns the private encryption key this worker found.
+	 *
+	 * @return The key, or null if the worker found none.
+	 */
+	BigInteger getFound()
+	{
+		return found;
+	}
+
+	long getKeysCalculated()
+	{
+		return keysCalculated;
+	}
+}
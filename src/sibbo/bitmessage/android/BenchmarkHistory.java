@@ -0,0 +1,232 @@
+package sibbo.bitmessage.android;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Stores the results of {@link PowBenchmark} runs in a local file and flags
+ * regressions.<br />
+ * <br />
+ * The file has one line per result with tab separated fields and is only ever
+ * appended to, so a crash can at most lose the last line. When a result is
+ * recorded, it is compared to the baseline, the mean hash rate of the last
+ * {@link #BASELINE_RESULTS} comparable results (same device and settings) that
+ * were not regressions themselves. A result whose hash rate is more than the
+ * threshold below the baseline is flagged as a regression.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class BenchmarkHistory
+{
+	private static final Logger LOG = Logger.getLogger(BenchmarkHistory.class.getName());
+
+	/** The number of earlier results the baseline is calculated from. */
+	public static final int BASELINE_RESULTS = 5;
+
+	/** The default relative drop of the hash rate that counts as a regression. */
+	public static final double DEFAULT_THRESHOLD = 0.1;
+
+	/** The first line of the file, identifies the format. */
+	private static final String HEADER = "# POW benchmark history 1";
+
+	private static final int FIELDS = 12;
+
+	private final File file;
+
+	private double threshold = DEFAULT_THRESHOLD;
+
+	/**
+	 * Creates a history that is stored in the given file.
+	 *
+	 * @param file The file, created with the first result.
+	 */
+	public BenchmarkHistory(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Sets the relative drop of the hash rate against the baseline that counts
+	 * as a regression.
+	 *
+	 * @param newThreshold The threshold, e.g. 0.1 for 10%.
+	 */
+	public void setThreshold(double newThreshold)
+	{
+		if (!(newThreshold > 0 && newThreshold < 1))
+		{
+			throw new IllegalArgumentException("newThreshold must be between 0 and 1.");
+		}
+
+		threshold = newThreshold;
+	}
+
+	public double getThreshold()
+	{
+		return threshold;
+	}
+
+	/**
+	 * Compares a result to the baseline and appends it to the history.
+	 *
+	 * @param result The result of a benchmark.
+	 * @return The result with its baseline and regression flag.
+	 * @throws IOException If the history can't be read or written.
+	 */
+	public synchronized BenchmarkResult record(BenchmarkResult result) throws IOException
+	{
+		double baseline = getBaseline(result);
+		boolean regression = baseline > 0 && result.getHashRate() < baseline * (1 - threshold);
+		BenchmarkResult recorded = result.withBaseline(baseline, regression);
+
+		if (regression)
+		{
+			LOG.warning("POW hash rate regression: " + (long) result.getHashRate() + " h/s against a baseline of "
+					+ (long) baseline + " h/s");
+		}
+
+		boolean exists = file.isFile();
+		Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+
+		try
+		{
+			if (!exists)
+			{
+				out.write(HEADER + "\n");
+			}
+
+			out.write(format(recorded));
+		}
+		finally
+		{
+			out.close();
+		}
+
+		return recorded;
+	}
+
+	/**
+	 * Returns the baseline a result is compared to.
+	 *
+	 * @param result The result, only its settings are used.
+	 * @return The mean hash rate of the last comparable results that were not
+	 *         regressions, or 0 if there are none.
+	 * @throws IOException If the history can't be read.
+	 */
+	public synchronized double getBaseline(BenchmarkResult result) throws IOException
+	{
+		List<BenchmarkResult> results = getResults();
+		double sum = 0;
+		int count = 0;
+
+		for (int i = results.size() - 1; i >= 0 && count < BASELINE_RESULTS; i--)
+		{
+			BenchmarkResult r = results.get(i);
+
+			if (r.isComparable(result) && !r.isRegression())
+			{
+				sum += r.getHashRate();
+				count++;
+			}
+		}
+
+		return count == 0 ? 0 : sum / count;
+	}
+
+	/**
+	 * Returns all stored results, the oldest first. Damaged lines are skipped.
+	 *
+	 * @return The results.
+	 * @throws IOException If the history can't be read.
+	 */
+	public synchronized List<BenchmarkResult> getResults() throws IOException
+	{
+		List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+		BufferedReader in;
+
+		try
+		{
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		}
+		catch (FileNotFoundException e)
+		{
+			return results;
+		}
+
+		try
+		{
+			String line;
+
+			while ((line = in.readLine()) != null)
+			{
+				if (line.length() == 0 || line.startsWith("#"))
+				{
+					continue;
+				}
+
+				BenchmarkResult r = parse(line);
+
+				if (r == null)
+				{
+					LOG.warning("Skipping a damaged line of " + file);
+				}
+				else
+				{
+					results.add(r);
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		return results;
+	}
+
+	private static String format(BenchmarkResult r)
+	{
+		return r.getTime() + "\t" + r.getDevice().replace('\t', ' ').replace('\n', ' ') + "\t" + r.getCores()
+				+ "\t" + r.getThreads() + "\t" + r.getBackend() + "\t" + r.getSeed() + "\t"
+				+ r.getNonces() + "\t" + r.getRuns() + "\t" + r.getHashRate() + "\t" + r.getHashRateDeviation()
+				+ "\t" + r.getBaseline() + "\t" + r.isRegression() + "\n";
+	}
+
+	/**
+	 * Parses a line of the file.
+	 *
+	 * @return The result, or null if the line is damaged.
+	 */
+	private static BenchmarkResult parse(String line)
+	{
+		String[] f = line.split("\t");
+
+		if (f.length != FIELDS)
+		{
+			return null;
+		}
+
+		try
+		{
+			return new BenchmarkResult(Long.parseLong(f[0]), f[1], Integer.parseInt(f[2]), Integer.parseInt(f[3]),
+					f[4], Long.parseLong(f[5]), Long.parseLong(f[6]), Integer.parseInt(f[7]),
+					Double.parseDouble(f[8]), Double.parseDouble(f[9]), Double.parseDouble(f[10]),
+					Boolean.parseBoolean(f[11]));
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package sibbo.bitmessage.android;
+
+/**
+ * The result of a {@link PowBenchmark}: the settings it ran with and the hash
+ * rate it measured. Results are stored in a {@link BenchmarkHistory}, which
+ * also compares them to the results of earlier runs with the same settings.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class BenchmarkResult
+{
+	private final long time;
+	private final String device;
+	private final int cores;
+	private final int threads;
+	private final String backend;
+	private final long seed;
+	private final long nonces;
+	private final int runs;
+	private final double hashRate;
+	private final double hashRateDeviation;
+	private final double baseline;
+	private final boolean regression;
+
+	BenchmarkResult(long time, String device, int cores, int threads, String backend, long seed, long nonces,
+			int runs, double hashRate, double hashRateDeviation, double baseline, boolean regression)
+	{
+		this.time = time;
+		this.device = device;
+		this.cores = cores;
+		this.threads = threads;
+		this.backend = backend;
+		this.seed = seed;
+		this.nonces = nonces;
+		this.runs = runs;
+		this.hashRate = hashRate;
+		this.hashRateDeviation = hashRateDeviation;
+		this.baseline = baseline;
+		this.regression = regression;
+	}
+
+	/**
+	 * Returns a copy of this result that is compared to the given baseline.
+	 *
+	 * @param newBaseline The baseline hash rate, or 0 if there is none.
+	 * @param newRegression True if the hash rate is too far below it.
+	 * @return The result.
+	 */
+	BenchmarkResult withBaseline(double newBaseline, boolean newRegression)
+	{
+		return new BenchmarkResult(time, device, cores, threads, backend, seed, nonces, runs, hashRate, hashRateDeviation,
+				newBaseline, newRegression);
+	}
+
+	/**
+	 * Returns true if the other result was measured with the same settings on
+	 * the same device, so the hash rates can be compared.
+	 *
+	 * @param other The other result.
+	 * @return True if the results are comparable.
+	 */
+	public boolean isComparable(BenchmarkResult other)
+	{
+		return device.equals(other.device) && cores == other.cores && threads == other.threads
+				&& backend.equals(other.backend) && seed == other.seed && nonces == other.nonces;
+	}
+
+	/**
+	 * Returns the time the benchmark finished.
+	 *
+	 * @return The time in milliseconds since 1970.
+	 */
+	public long getTime()
+	{
+		return time;
+	}
+
+	public String getDevice()
+	{
+		return device;
+	}
+
+	public int getCores()
+	{
+		return cores;
+	}
+
+	public int getThreads()
+	{
+		return threads;
+	}
+
+	/**
+	 * Returns the name of the {@link Sha512Backend} that was used.
+	 *
+	 * @return The name of the backend. For another {@link ProofOfWorkFunction}
+	 *         than double SHA-512, its name and a slash come first.
+	 */
+	public String getBackend()
+	{
+		return backend;
+	}
+
+	public long getSeed()
+	{
+		return seed;
+	}
+
+	/**
+	 * Returns the number of nonces tried in every run.
+	 *
+	 * @return The number of nonces.
+	 */
+	public long getNonces()
+	{
+		return nonces;
+	}
+
+	/**
+	 * Returns the number of measured runs, without the warm-up.
+	 *
+	 * @return The number of runs.
+	 */
+	public int getRuns()
+	{
+		return runs;
+	}
+
+	/**
+	 * Returns the mean hash rate of the runs.
+	 *
+	 * @return The hashes per second, two per nonce.
+	 */
+	public double getHashRate()
+	{
+		return hashRate;
+	}
+
+	/**
+	 * Returns the standard deviation of the hash rates of the runs.
+	 *
+	 * @return The standard deviation in hashes per second.
+	 */
+	public double getHashRateDeviation()
+	{
+		return hashRateDeviation;
+	}
+
+	/**
+	 * Returns the hash rate this result was compared to.
+	 *
+	 * @return The baseline in hashes per second, or 0 if there was no earlier
+	 *         comparable result.
+	 */
+	public double getBaseline()
+	{
+		return baseline;
+	}
+
+	/**
+	 * Returns true if the hash rate dropped by more than the threshold of the
+	 * history against the baseline.
+	 *
+	 * @return True if this result is a regression.
+	 */
+	public boolean isRegression()
+	{
+		return regression;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BenchmarkResult[device=" + device + ", cores=" + cores + ", threads=" + threads + ", backend="
+				+ backend + ", nonces=" + nonces + ", runs=" + runs + ", hashRate=" + (long) hashRate
+				+ ", hashRateDeviation=" + (long) hashRateDeviation + ", baseline=" + (long) baseline
+				+ ", regression=" + regression + "]";
+	}
+}
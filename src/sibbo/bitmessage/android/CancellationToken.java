@@ -0,0 +1,206 @@
+package sibbo.bitmessage.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells POW workers when to stop. A token can be cancelled from any thread,
+ * and it can carry a timeout that starts counting when the token is started.<br />
+ * <br />
+ * Workers only look at the token between two chunks of nonces (see
+ * {@link NonceScheduler#CHUNK_TIME}), so the hot loop never reads the clock,
+ * while a cancellation still is noticed within about one chunk. Every worker
+ * acknowledges the token when it stops, which makes the time between the
+ * cancellation and the last worker stopping measurable with
+ * {@link #getStopLatency()}.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class CancellationToken
+{
+	/** The value of the deadline while the token is not started. */
+	private static final long NOT_STARTED = Long.MIN_VALUE;
+
+	/** Released when the token is cancelled. */
+	private final CountDownLatch cancelled = new CountDownLatch(1);
+
+	/** The timeout in nanoseconds, 0 if there is none. */
+	private final long timeout;
+
+	/** The deadline in terms of System.nanoTime(), set by {@link #start()}. */
+	private final AtomicLong deadline = new AtomicLong(NOT_STARTED);
+
+	/** The time at which the token was cancelled. */
+	private volatile long cancelTime;
+
+	/** The time at which the last worker acknowledged the token. */
+	private final AtomicLong lastAcknowledgement = new AtomicLong(NOT_STARTED);
+
+	/** Tokens that are cancelled together with this one. */
+	private final List<CancellationToken> children = new ArrayList<CancellationToken>();
+
+	/**
+	 * Creates a new CancellationToken without timeout.
+	 */
+	public CancellationToken()
+	{
+		this(0);
+	}
+
+	/**
+	 * Creates a new CancellationToken.
+	 *
+	 * @param timeoutMillis The time in milliseconds after {@link #start()} at
+	 *            which the token expires, or 0 for no timeout.
+	 */
+	public CancellationToken(long timeoutMillis)
+	{
+		if (timeoutMillis < 0)
+		{
+			throw new IllegalArgumentException("timeoutMillis must not be negative.");
+		}
+
+		this.timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * Creates a token that is cancelled whenever this one is cancelled, but
+	 * can also be cancelled on its own.
+	 *
+	 * @param timeoutMillis The timeout of the new token, or 0 for no timeout.
+	 * @return The new token.
+	 */
+	public CancellationToken newChild(long timeoutMillis)
+	{
+		CancellationToken child = new CancellationToken(timeoutMillis);
+
+		synchronized (children)
+		{
+			if (!isCancelled())
+			{
+				children.add(child);
+				return child;
+			}
+		}
+
+		child.cancel();
+		return child;
+	}
+
+	/**
+	 * Starts the timeout. Only the first call has an effect, so every worker
+	 * of a job may call this when it starts.
+	 */
+	public void start()
+	{
+		if (timeout > 0)
+		{
+			deadline.compareAndSet(NOT_STARTED, System.nanoTime() + timeout);
+		}
+	}
+
+	/**
+	 * Cancels the token and all its children.
+	 *
+	 * @return True if this call cancelled the token, false if it already was
+	 *         cancelled.
+	 */
+	public boolean cancel()
+	{
+		List<CancellationToken> toCancel;
+
+		synchronized (children)
+		{
+			if (isCancelled())
+			{
+				return false;
+			}
+
+			cancelTime = System.nanoTime();
+			cancelled.countDown();
+			toCancel = new ArrayList<CancellationToken>(children);
+			children.clear();
+		}
+
+		for (CancellationToken child : toCancel)
+		{
+			child.cancel();
+		}
+
+		return true;
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelled.getCount() == 0;
+	}
+
+	/**
+	 * Returns true if the timeout of this token has passed.
+	 *
+	 * @param now The current time in terms of System.nanoTime().
+	 * @return True if the timeout has passed.
+	 */
+	public boolean hasExpired(long now)
+	{
+		long d = deadline.get();
+
+		return d != NOT_STARTED && now - d >= 0;
+	}
+
+	/**
+	 * Sleeps for the given time, but wakes up as soon as the token is
+	 * cancelled.
+	 *
+	 * @param millis The time to sleep in milliseconds.
+	 * @return True if the token was cancelled.
+	 * @throws InterruptedException If the thread was interrupted.
+	 */
+	public boolean sleep(long millis) throws InterruptedException
+	{
+		return cancelled.await(millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Called by a worker when it stops.
+	 */
+	public void acknowledge()
+	{
+		long now = System.nanoTime();
+		long last;
+
+		do
+		{
+			last = lastAcknowledgement.get();
+
+			if (last != NOT_STARTED && last - now >= 0)
+			{
+				return;
+			}
+		}
+		while (!lastAcknowledgement.compareAndSet(last, now));
+	}
+
+	/**
+	 * Returns the time between the cancellation of this token and the moment
+	 * the last worker that uses it stopped.
+	 *
+	 * @return The stop latency in nanoseconds, or -1 if the token was not
+	 *         cancelled or no worker stopped yet.
+	 */
+	public long getStopLatency()
+	{
+		long last = lastAcknowledgement.get();
+
+		if (!isCancelled() || last == NOT_STARTED)
+		{
+			return -1;
+		}
+
+		return Math.max(0, last - cancelTime);
+	}
+}
@@ -0,0 +1,245 @@
+package sibbo.bitmessage.android;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Reads the CPU time used by threads or by the whole process.<br />
+ * <br />
+ * On a JVM the time of a thread comes from its ThreadMXBean. Android has no
+ * java.lang.management, so the bean is looked up by reflection and this class
+ * still compiles against android.jar. Without the bean the time of a thread is
+ * read from /proc/self/task/&lt;tid&gt;/stat on Linux, which needs the Linux
+ * thread id. Only the thread itself can find that out, so threads whose time
+ * is read must call {@link #registerThread()} first. The time of the whole
+ * process is read from /proc/self/stat. Both files count in clock ticks,
+ * which are 10 ms on Linux and Android.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+final class CpuClock
+{
+	/** The length of a clock tick of /proc/self/stat in nanoseconds. */
+	private static final long TICK = 10000000;
+
+	/** The statistics of this process. */
+	private static final String PROC_STAT = "/proc/self/stat";
+
+	/** The directory of the statistics of the threads of this process. */
+	private static final String PROC_TASKS = "/proc/self/task/";
+
+	/** The link to the directory of the calling thread, Linux 3.17 and newer. */
+	private static final String PROC_THREAD_SELF = "/proc/thread-self";
+
+	/** The thread bean, null until checked or if thread times are not measured. */
+	private static Object bean;
+
+	/** ThreadMXBean.getThreadCpuTime(long), set with the bean. */
+	private static Method beanThreadCpuTime;
+
+	/** android.os.Process.myTid(), or null if this is not Android. */
+	private static Method myTid;
+
+	/** True once the bean and myTid were checked. */
+	private static boolean checked;
+
+	/** The Linux thread ids of the registered threads. */
+	private static final Map<Thread, Integer> tids = new WeakHashMap<Thread, Integer>();
+
+	/** Utility class */
+	private CpuClock()
+	{
+
+	}
+
+	/**
+	 * Returns true if the CPU time of single threads can be read.
+	 *
+	 * @return True if {@link #getThreadCpuTime(Thread)} works for registered
+	 *         threads.
+	 */
+	static boolean isThreadTimeSupported()
+	{
+		check();
+
+		return bean != null || (new File(PROC_TASKS).isDirectory() && (myTid != null
+				|| new File(PROC_THREAD_SELF).isDirectory()));
+	}
+
+	/**
+	 * Remembers the Linux thread id of the calling thread, so its CPU time can
+	 * be read without a thread bean. Does nothing if the id can't be found.
+	 */
+	static void registerThread()
+	{
+		check();
+
+		if (bean != null)
+		{
+			return;
+		}
+
+		int tid = -1;
+
+		try
+		{
+			if (myTid != null)
+			{
+				tid = ((Integer) myTid.invoke(null)).intValue();
+			}
+			else
+			{
+				tid = Integer.parseInt(new File(PROC_THREAD_SELF).getCanonicalFile().getName());
+			}
+		}
+		catch (Exception e)
+		{
+			// Not Linux
+		}
+
+		if (tid > 0)
+		{
+			synchronized (tids)
+			{
+				tids.put(Thread.currentThread(), Integer.valueOf(tid));
+			}
+		}
+	}
+
+	/**
+	 * Returns the CPU time a thread has used so far.
+	 *
+	 * @param thread The thread.
+	 * @return The time in nanoseconds, or -1 if it can't be read, the thread
+	 *         is not alive or, without a thread bean, it is not registered.
+	 */
+	static long getThreadCpuTime(Thread thread)
+	{
+		check();
+
+		if (bean != null)
+		{
+			try
+			{
+				return ((Long) beanThreadCpuTime.invoke(bean, Long.valueOf(thread.getId()))).longValue();
+			}
+			catch (Exception e)
+			{
+				return -1;
+			}
+		}
+
+		Integer tid;
+
+		synchronized (tids)
+		{
+			tid = tids.get(thread);
+		}
+
+		return tid == null ? -1 : readStat(PROC_TASKS + tid + "/stat");
+	}
+
+	/**
+	 * Returns the CPU time this process has used so far, in user and kernel
+	 * mode.
+	 *
+	 * @return The time in nanoseconds, or -1 if it can't be read.
+	 */
+	static long getProcessCpuTime()
+	{
+		return readStat(PROC_STAT);
+	}
+
+	/**
+	 * Reads the user and kernel time of a stat file of /proc.
+	 *
+	 * @return The time in nanoseconds, or -1 if it can't be read.
+	 */
+	private static long readStat(String path)
+	{
+		try
+		{
+			BufferedReader in = new BufferedReader(new FileReader(path));
+
+			try
+			{
+				String line = in.readLine();
+
+				// The name in parentheses can contain spaces, the fields after
+				// it start with the state, utime and stime are the 12th and
+				// 13th.
+				String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+
+				return (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * TICK;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			return -1;
+		}
+		catch (RuntimeException e)
+		{
+			// No such line or fields, not Linux
+			return -1;
+		}
+	}
+
+	/**
+	 * Looks up the thread bean and android.os.Process.myTid() once.
+	 */
+	private static synchronized void check()
+	{
+		if (checked)
+		{
+			return;
+		}
+
+		checked = true;
+
+		try
+		{
+			Class<?> type = Class.forName("java.lang.management.ThreadMXBean");
+			Object b = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean")
+					.invoke(null);
+
+			if (Boolean.TRUE.equals(type.getMethod("isThreadCpuTimeSupported").invoke(b)))
+			{
+				if (!Boolean.TRUE.equals(type.getMethod("isThreadCpuTimeEnabled").invoke(b)))
+				{
+					type.getMethod("setThreadCpuTimeEnabled", boolean.class).invoke(b, Boolean.TRUE);
+				}
+
+				beanThreadCpuTime = type.getMethod("getThreadCpuTime", long.class);
+				bean = b;
+			}
+		}
+		catch (Exception e)
+		{
+			// No java.lang.management, e.g. on Android, or not allowed to
+			// enable the measurement
+		}
+		catch (LinkageError e)
+		{
+			// No java.lang.management
+		}
+
+		try
+		{
+			myTid = Class.forName("android.os.Process").getMethod("myTid");
+		}
+		catch (Exception e)
+		{
+			// Not Android
+		}
+	}
+}
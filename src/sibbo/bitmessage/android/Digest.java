@@ -1,14 +1,17 @@
 package sibbo.bitmessage.android;
 
+import java.io.File;
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Provides easy access for several hash functions.
+ * Provides easy access for several hash functions. SHA-512 is calculated by
+ * the backend selected by {@link Sha512Backends}.
  * 
- * @author Sebastian Schmidt
+ * @author Sebastian Schmidt, modified by Jonathan Coe
  * @version 1.0
  */
 public final class Digest 
@@ -32,27 +35,15 @@ public final class Digest
 	 */
 	public static byte[] sha512(byte[] bytes, int digestLength) 
 	{
-		MessageDigest sha512;
-
-		try 
-		{
-			sha512 = MessageDigest.getInstance("SHA-512");
-			byte[] sum = sha512.digest(bytes);
-			
-			byte[] result = new byte[Math.min(64, digestLength)];
-			for (int i = 0; i < result.length; i++)
-			{
-				result[i] = sum[i];
-			}
-			
-			return result;
-		} 
-		catch (NoSuchAlgorithmException e) 
+		byte[] sum = Sha512Backends.getDefault().newDigest().digest(bytes);
+		
+		byte[] result = new byte[Math.min(64, digestLength)];
+		for (int i = 0; i < result.length; i++)
 		{
-			LOG.log(Level.SEVERE, "SHA-512 not supported!", e);
-			System.exit(1);
-			return null;
+			result[i] = sum[i];
 		}
+		
+		return result;
 	}
 
 	/**
@@ -74,29 +65,32 @@ public final class Digest
 	 */
 	public static byte[] sha512(byte[]... data) 
 	{
-		MessageDigest sha512;
+		MessageDigest sha512 = Sha512Backends.getDefault().newDigest();
 
-		try 
+		for (byte[] bytes : data) 
 		{
-			sha512 = MessageDigest.getInstance("SHA-512");
+			sha512.update(bytes);
+		}
 
-			for (byte[] bytes : data) 
-			{
-				sha512.update(bytes);
-			}
+		return sha512.digest();
+	}
 
-			return sha512.digest();
-		} 
-		catch (NoSuchAlgorithmException e) 
-		{
-			LOG.log(Level.SEVERE, "SHA-512 not supported!", e);
-			System.exit(1);
-			return null;
-		}
+	/**
+	 * Returns the sha512 sum of a file, without loading it onto the heap.
+	 * 
+	 * @param file The file.
+	 * @return The sha512 sum of the file.
+	 * @throws IOException If the file can't be read.
+	 * @see PayloadHasher
+	 */
+	public static byte[] sha512(File file) throws IOException 
+	{
+		return PayloadHasher.sha512(file);
 	}
 
 	/**
-	 * Returns the ripemd160 sum of the given data.
+	 * Returns the ripemd160 sum of the given data. If the JVM does not provide
+	 * ripemd160, {@link Ripemd160} calculates it.
 	 * 
 	 * @param data The data.
 	 * @return The ripemd160 sum of the given data.
@@ -113,9 +107,8 @@ public final class Digest
 		} 
 		catch (NoSuchAlgorithmException e) 
 		{
-			LOG.log(Level.SEVERE, "ripemd160 not supported!", e);
-			System.exit(1);
-			return null;
+			LOG.log(Level.FINE, "ripemd160 not provided, using Ripemd160", e);
+			return Ripemd160.digest(data);
 		}
 	}
 
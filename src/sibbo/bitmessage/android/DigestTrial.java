@@ -0,0 +1,82 @@
+package sibbo.bitmessage.android;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * Does the POW trials with any SHA-512 {@link MessageDigest}. The buffers
+ * are reused, so a trial does not allocate anything as long as the digest
+ * itself doesn't.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+class DigestTrial implements Sha512Trial
+{
+	private final MessageDigest sha512;
+
+	/** The nonce followed by the initial hash. */
+	private final byte[] input = new byte[72];
+
+	private final byte[] hash = new byte[64];
+
+	/**
+	 * Creates a new DigestTrial.
+	 *
+	 * @param sha512 The digest to use.
+	 * @param initialHash The 64 byte hash of the message.
+	 */
+	DigestTrial(MessageDigest sha512, byte[] initialHash)
+	{
+		if (initialHash == null || initialHash.length != 64)
+		{
+			throw new IllegalArgumentException("initialHash must be 64 bytes long.");
+		}
+
+		this.sha512 = sha512;
+		System.arraycopy(initialHash, 0, input, 8, 64);
+	}
+
+	@Override
+	public long trial(long nonce)
+	{
+		for (int i = 7; i >= 0; i--)
+		{
+			input[i] = (byte) nonce;
+			nonce >>>= 8;
+		}
+
+		try
+		{
+			sha512.reset();
+			sha512.update(input);
+			sha512.digest(hash, 0, 64);
+			sha512.update(hash);
+			sha512.digest(hash, 0, 64);
+		}
+		catch (DigestException e)
+		{
+			throw new IllegalStateException("SHA-512 digest failed.", e);
+		}
+
+		return Sha512Kernel.readLong(hash, 0);
+	}
+
+	@Override
+	public long search(long from, int count, long target)
+	{
+		long end = from + count;
+
+		for (long n = from; n < end; n++)
+		{
+			long result = trial(n);
+
+			if (result <= target && result >= 0)
+			{
+				return n;
+			}
+		}
+
+		return -1;
+	}
+}
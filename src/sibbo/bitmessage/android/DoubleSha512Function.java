@@ -0,0 +1,27 @@
+package sibbo.bitmessage.android;
+
+/**
+ * The proof of work of the Bitmessage protocol:
+ * {@code sha512(sha512(nonce || initialHash))}. The trials are done by the
+ * default {@link Sha512Backend}.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class DoubleSha512Function implements ProofOfWorkFunction
+{
+	/** The name of this function. */
+	public static final String NAME = "double-sha512";
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public ProofOfWorkTrial newTrial(byte[] initialHash)
+	{
+		return Sha512Backends.getDefault().newTrial(initialHash);
+	}
+}
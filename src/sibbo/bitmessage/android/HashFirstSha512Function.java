@@ -0,0 +1,97 @@
+package sibbo.bitmessage.android;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * Double SHA-512 with the input in the other order:
+ * {@code sha512(sha512(initialHash || nonce))}. The 72 bytes of input and
+ * their padding fit into one 128-byte block in either order, so the ordering
+ * saves no work: every trial still hashes two blocks, and there is no first
+ * block to calculate once per initial hash. The trials go through a plain
+ * {@link java.security.MessageDigest} of the default {@link Sha512Backend},
+ * so this function shows what the specialised trial kernels are worth.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class HashFirstSha512Function implements ProofOfWorkFunction
+{
+	/** The name of this function. */
+	public static final String NAME = "double-sha512-hash-first";
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public ProofOfWorkTrial newTrial(byte[] initialHash)
+	{
+		return new Trial(Sha512Backends.getDefault().newDigest(), initialHash);
+	}
+
+	/** The trial, reuses its buffers. */
+	private static final class Trial implements ProofOfWorkTrial
+	{
+		private final MessageDigest sha512;
+
+		/** The initial hash followed by the nonce. */
+		private final byte[] input = new byte[72];
+
+		private final byte[] hash = new byte[64];
+
+		private Trial(MessageDigest sha512, byte[] initialHash)
+		{
+			if (initialHash == null || initialHash.length != 64)
+			{
+				throw new IllegalArgumentException("initialHash must be 64 bytes long.");
+			}
+
+			this.sha512 = sha512;
+			System.arraycopy(initialHash, 0, input, 0, 64);
+		}
+
+		@Override
+		public long trial(long nonce)
+		{
+			for (int i = 71; i >= 64; i--)
+			{
+				input[i] = (byte) nonce;
+				nonce >>>= 8;
+			}
+
+			try
+			{
+				sha512.reset();
+				sha512.update(input);
+				sha512.digest(hash, 0, 64);
+				sha512.update(hash);
+				sha512.digest(hash, 0, 64);
+			}
+			catch (DigestException e)
+			{
+				throw new IllegalStateException("SHA-512 digest failed.", e);
+			}
+
+			return Sha512Kernel.readLong(hash, 0);
+		}
+
+		@Override
+		public long search(long from, int count, long target)
+		{
+			long end = from + count;
+
+			for (long n = from; n < end; n++)
+			{
+				if (ProofOfWorkFunctions.isAcceptable(trial(n), target))
+				{
+					return n;
+				}
+			}
+
+			return -1;
+		}
+	}
+}
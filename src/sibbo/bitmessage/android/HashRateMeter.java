@@ -0,0 +1,221 @@
+package sibbo.bitmessage.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the nonce and hash rate of a POW calculation from its progress
+ * snapshots.<br />
+ * <br />
+ * Dividing the hashes of a whole calculation by its time mixes the start of
+ * the threads and the work of the JIT compiler into the rate. The meter
+ * ignores everything before the warm-up time has passed and then splits the
+ * calculation into windows: a window ends with the first snapshot that is at
+ * least the window length after its start. Each window gives one rate, from
+ * System.nanoTime() and the nonce counters, and {@link RateStatistics} turns
+ * them into a mean, a standard deviation and a confidence interval, without
+ * the outliers.<br />
+ * <br />
+ * Every nonce takes two hashes, so the hash rate is twice the nonce rate. The
+ * workers count their nonces after each chunk of about
+ * {@link NonceScheduler#CHUNK_TIME} milliseconds, which limits how short a
+ * window can be.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class HashRateMeter implements PowProgressListener
+{
+	/** The default time before the first window in milliseconds. */
+	public static final long DEFAULT_WARM_UP = 1000;
+
+	/** The default length of a window in milliseconds. */
+	public static final long DEFAULT_WINDOW = 1000;
+
+	/** The time before the first window in nanoseconds. */
+	private final long warmUp;
+
+	/** The minimum length of a window in nanoseconds. */
+	private final long window;
+
+	/** The listener the snapshots are handed on to, may be null. */
+	private final PowProgressListener listener;
+
+	/** The nonce rate of every finished window. */
+	private final List<Double> rates = new ArrayList<Double>();
+
+	/** The elapsed time at the start of the current window, or -1. */
+	private long windowStart = -1;
+
+	/** The nonces at the start of the current window. */
+	private long windowNonces;
+
+	/** The calculation {@link #measure(POWCalculator, int)} stops. */
+	private POWCalculator measured;
+
+	/** The number of windows after which the measured calculation is stopped. */
+	private int stopAfter;
+
+	/**
+	 * Creates a meter with the default warm-up and window length.
+	 */
+	public HashRateMeter()
+	{
+		this(DEFAULT_WARM_UP, DEFAULT_WINDOW, null);
+	}
+
+	/**
+	 * Creates a new HashRateMeter.
+	 *
+	 * @param warmUpMillis The time in milliseconds from the start of the
+	 *            calculation that is not measured.
+	 * @param windowMillis The minimum length of a window in milliseconds.
+	 * @param listener The listener the snapshots are handed on to, e.g. to
+	 *            show them, or null.
+	 */
+	public HashRateMeter(long warmUpMillis, long windowMillis, PowProgressListener listener)
+	{
+		if (warmUpMillis < 0 || windowMillis < 1)
+		{
+			throw new IllegalArgumentException("The warm-up must not be negative and a window at least 1 ms.");
+		}
+
+		this.warmUp = warmUpMillis * 1000000;
+		this.window = windowMillis * 1000000;
+		this.listener = listener;
+	}
+
+	@Override
+	public void progressUpdated(PowProgress progress)
+	{
+		POWCalculator stop = null;
+
+		synchronized (this)
+		{
+			long time = progress.getElapsedNanoTime();
+
+			if (time >= warmUp)
+			{
+				if (windowStart < 0)
+				{
+					windowStart = time;
+					windowNonces = progress.getNonces();
+				}
+				else if (time - windowStart >= window)
+				{
+					rates.add((progress.getNonces() - windowNonces) * 1e9 / (time - windowStart));
+					windowStart = time;
+					windowNonces = progress.getNonces();
+
+					if (measured != null && rates.size() >= stopAfter)
+					{
+						stop = measured;
+					}
+				}
+			}
+		}
+
+		if (stop != null)
+		{
+			stop.cancel();
+		}
+
+		if (listener != null)
+		{
+			listener.progressUpdated(progress);
+		}
+	}
+
+	/**
+	 * Runs a calculation until the given number of windows were measured. The
+	 * calculation should have a target no nonce fulfills, -1, so it does not
+	 * end before. Its progress listener is replaced by this meter, and the
+	 * measurements of earlier calculations are discarded.<br />
+	 * <b>WARNING: This takes the warm-up time plus the windows.</b>
+	 *
+	 * @param pow The calculation, with its initial hash and target set.
+	 * @param windows The number of windows to measure.
+	 * @return The nonce rate of the windows.
+	 */
+	public RateStatistics measure(POWCalculator pow, int windows)
+	{
+		if (windows < 1)
+		{
+			throw new IllegalArgumentException("windows must be at least 1.");
+		}
+
+		synchronized (this)
+		{
+			reset();
+			measured = pow;
+			stopAfter = windows;
+		}
+
+		// Four snapshots per window keep the windows close to their length.
+		pow.setProgressListener(this, Math.max(1, window / 4000000));
+		int maxTime = (int) ((warmUp + 2 * window * windows) / 1000000000) + 10;
+
+		try
+		{
+			pow.execute(maxTime);
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				measured = null;
+			}
+		}
+
+		return getNonceRate();
+	}
+
+	/**
+	 * Discards all measurements, e.g. before the meter listens to another
+	 * calculation.
+	 */
+	public synchronized void reset()
+	{
+		rates.clear();
+		windowStart = -1;
+	}
+
+	/**
+	 * Returns the number of windows measured so far.
+	 *
+	 * @return The number of windows.
+	 */
+	public synchronized int getWindows()
+	{
+		return rates.size();
+	}
+
+	/**
+	 * Returns the statistics of the nonce rates of the windows measured so
+	 * far.
+	 *
+	 * @return The nonces per second of all workers together.
+	 */
+	public synchronized RateStatistics getNonceRate()
+	{
+		double[] values = new double[rates.size()];
+
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] = rates.get(i);
+		}
+
+		return RateStatistics.of(values);
+	}
+
+	/**
+	 * Returns the statistics of the hash rates of the windows measured so far,
+	 * two hashes per nonce.
+	 *
+	 * @return The hashes per second of all workers together.
+	 */
+	public RateStatistics getHashRate()
+	{
+		return getNonceRate().scale(2);
+	}
+}
@@ -0,0 +1,268 @@
+package sibbo.bitmessage.android;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * A pure Java SHA-512 {@link MessageDigest}. It does not depend on the
+ * security providers of the platform, and its rounds are unrolled the same
+ * way as those of {@link Sha512Kernel}.<br />
+ * <br />
+ * Whole blocks are handed to {@link #compress(long[], byte[], int, int)},
+ * which subclasses can replace with a faster implementation.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class JavaSha512 extends MessageDigest implements Cloneable
+{
+	/** The block size in bytes. */
+	static final int BLOCK_SIZE = 128;
+
+	/** The digest length in bytes. */
+	static final int DIGEST_LENGTH = 64;
+
+	/** The current hash value. */
+	private long[] state = new long[8];
+
+	/** Holds the bytes of an incomplete block. */
+	private byte[] buffer = new byte[BLOCK_SIZE];
+
+	/** The number of bytes in the buffer. */
+	private int bufferLength;
+
+	/** The number of bytes hashed since the last reset. */
+	private long byteCount;
+
+	/** The message schedule, reused for every block. */
+	private long[] w = new long[80];
+
+	public JavaSha512()
+	{
+		super("SHA-512");
+		engineReset();
+	}
+
+	@Override
+	protected int engineGetDigestLength()
+	{
+		return DIGEST_LENGTH;
+	}
+
+	@Override
+	protected void engineReset()
+	{
+		System.arraycopy(Sha512Kernel.IV, 0, state, 0, 8);
+		bufferLength = 0;
+		byteCount = 0;
+	}
+
+	@Override
+	protected void engineUpdate(byte input)
+	{
+		buffer[bufferLength++] = input;
+		byteCount++;
+
+		if (bufferLength == BLOCK_SIZE)
+		{
+			compress(state, buffer, 0, 1);
+			bufferLength = 0;
+		}
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len)
+	{
+		byteCount += len;
+
+		if (bufferLength > 0)
+		{
+			int n = Math.min(len, BLOCK_SIZE - bufferLength);
+			System.arraycopy(input, offset, buffer, bufferLength, n);
+			bufferLength += n;
+			offset += n;
+			len -= n;
+
+			if (bufferLength < BLOCK_SIZE)
+			{
+				return;
+			}
+
+			compress(state, buffer, 0, 1);
+			bufferLength = 0;
+		}
+
+		// Whole blocks are hashed straight from the input.
+		int blocks = len / BLOCK_SIZE;
+
+		if (blocks > 0)
+		{
+			compress(state, input, offset, blocks);
+			offset += blocks * BLOCK_SIZE;
+			len -= blocks * BLOCK_SIZE;
+		}
+
+		System.arraycopy(input, offset, buffer, 0, len);
+		bufferLength = len;
+	}
+
+	@Override
+	protected byte[] engineDigest()
+	{
+		byte[] result = new byte[DIGEST_LENGTH];
+		finish(result, 0);
+
+		return result;
+	}
+
+	@Override
+	protected int engineDigest(byte[] buf, int offset, int len) throws DigestException
+	{
+		if (len < DIGEST_LENGTH || offset < 0 || buf.length - offset < DIGEST_LENGTH)
+		{
+			throw new DigestException("Not enough space for the digest.");
+		}
+
+		finish(buf, offset);
+
+		return DIGEST_LENGTH;
+	}
+
+	/**
+	 * Pads the message, writes the digest and resets this digest.
+	 */
+	private void finish(byte[] out, int offset)
+	{
+		long bits = byteCount << 3;
+
+		buffer[bufferLength++] = (byte) 0x80;
+
+		if (bufferLength > BLOCK_SIZE - 16)
+		{
+			fill(bufferLength, BLOCK_SIZE);
+			compress(state, buffer, 0, 1);
+			bufferLength = 0;
+		}
+
+		// The upper 64 bits of the 128 bit length.
+		fill(bufferLength, BLOCK_SIZE - 8);
+		buffer[BLOCK_SIZE - 9] = (byte) (byteCount >>> 61);
+		writeLong(bits, buffer, BLOCK_SIZE - 8);
+		compress(state, buffer, 0, 1);
+
+		for (int i = 0; i < 8; i++)
+		{
+			writeLong(state[i], out, offset + i * 8);
+		}
+
+		engineReset();
+	}
+
+	private void fill(int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			buffer[i] = 0;
+		}
+	}
+
+	private static void writeLong(long l, byte[] b, int offset)
+	{
+		for (int i = 7; i >= 0; i--)
+		{
+			b[offset + i] = (byte) l;
+			l >>>= 8;
+		}
+	}
+
+	/**
+	 * Hashes whole blocks into the state.
+	 *
+	 * @param state The hash value, updated in place.
+	 * @param data The blocks.
+	 * @param offset The position of the first block.
+	 * @param blocks The number of blocks.
+	 */
+	protected void compress(long[] state, byte[] data, int offset, int blocks)
+	{
+		long[] w = this.w;
+		long[] k = Sha512Kernel.K;
+
+		for (int block = 0; block < blocks; block++, offset += BLOCK_SIZE)
+		{
+			for (int t = 0; t < 16; t++)
+			{
+				w[t] = Sha512Kernel.readLong(data, offset + t * 8);
+			}
+
+			for (int t = 16; t < 80; t++)
+			{
+				w[t] = Sha512Kernel.sigma1(w[t - 2]) + w[t - 7] + Sha512Kernel.sigma0(w[t - 15]) + w[t - 16];
+			}
+
+			long a = state[0];
+			long b = state[1];
+			long c = state[2];
+			long d = state[3];
+			long e = state[4];
+			long f = state[5];
+			long g = state[6];
+			long h = state[7];
+
+			for (int t = 0; t < 80; t += 8)
+			{
+				h += Sha512Kernel.bigSigma1(e) + Sha512Kernel.ch(e, f, g) + k[t] + w[t];
+				d += h;
+				h += Sha512Kernel.bigSigma0(a) + Sha512Kernel.maj(a, b, c);
+
+				g += Sha512Kernel.bigSigma1(d) + Sha512Kernel.ch(d, e, f) + k[t + 1] + w[t + 1];
+				c += g;
+				g += Sha512Kernel.bigSigma0(h) + Sha512Kernel.maj(h, a, b);
+
+				f += Sha512Kernel.bigSigma1(c) + Sha512Kernel.ch(c, d, e) + k[t + 2] + w[t + 2];
+				b += f;
+				f += Sha512Kernel.bigSigma0(g) + Sha512Kernel.maj(g, h, a);
+
+				e += Sha512Kernel.bigSigma1(b) + Sha512Kernel.ch(b, c, d) + k[t + 3] + w[t + 3];
+				a += e;
+				e += Sha512Kernel.bigSigma0(f) + Sha512Kernel.maj(f, g, h);
+
+				d += Sha512Kernel.bigSigma1(a) + Sha512Kernel.ch(a, b, c) + k[t + 4] + w[t + 4];
+				h += d;
+				d += Sha512Kernel.bigSigma0(e) + Sha512Kernel.maj(e, f, g);
+
+				c += Sha512Kernel.bigSigma1(h) + Sha512Kernel.ch(h, a, b) + k[t + 5] + w[t + 5];
+				g += c;
+				c += Sha512Kernel.bigSigma0(d) + Sha512Kernel.maj(d, e, f);
+
+				b += Sha512Kernel.bigSigma1(g) + Sha512Kernel.ch(g, h, a) + k[t + 6] + w[t + 6];
+				f += b;
+				b += Sha512Kernel.bigSigma0(c) + Sha512Kernel.maj(c, d, e);
+
+				a += Sha512Kernel.bigSigma1(f) + Sha512Kernel.ch(f, g, h) + k[t + 7] + w[t + 7];
+				e += a;
+				a += Sha512Kernel.bigSigma0(b) + Sha512Kernel.maj(b, c, d);
+			}
+
+			state[0] += a;
+			state[1] += b;
+			state[2] += c;
+			state[3] += d;
+			state[4] += e;
+			state[5] += f;
+			state[6] += g;
+			state[7] += h;
+		}
+	}
+
+	@Override
+	public Object clone() throws CloneNotSupportedException
+	{
+		JavaSha512 copy = (JavaSha512) super.clone();
+		copy.state = state.clone();
+		copy.buffer = buffer.clone();
+		copy.w = new long[80];
+
+		return copy;
+	}
+}
@@ -0,0 +1,37 @@
+package sibbo.bitmessage.android;
+
+import java.security.MessageDigest;
+
+/**
+ * The pure Java backend. Digests are {@link JavaSha512}, POW trials are done
+ * by the specialised {@link Sha512Kernel}. It is always available.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class JavaSha512Backend implements Sha512Backend
+{
+	@Override
+	public String getName()
+	{
+		return "java";
+	}
+
+	@Override
+	public boolean isAvailable()
+	{
+		return true;
+	}
+
+	@Override
+	public MessageDigest newDigest()
+	{
+		return new JavaSha512();
+	}
+
+	@Override
+	public Sha512Trial newTrial(byte[] initialHash)
+	{
+		return new Sha512Kernel(initialHash);
+	}
+}
@@ -0,0 +1,90 @@
+package sibbo.bitmessage.android;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+/**
+ * Uses the SHA-512 implementation of the platform's security providers. On
+ * many JVMs it is backed by CPU instructions, on older Android versions it
+ * can be much slower than {@link JavaSha512Backend}.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class JcaSha512Backend implements Sha512Backend
+{
+	/** The provider to use, or null for the preferred one. */
+	private final String provider;
+
+	/**
+	 * Creates a backend that uses the preferred provider.
+	 */
+	public JcaSha512Backend()
+	{
+		this(null);
+	}
+
+	/**
+	 * Creates a backend that uses the given provider.
+	 *
+	 * @param provider The name of the provider, or null for the preferred one.
+	 */
+	public JcaSha512Backend(String provider)
+	{
+		this.provider = provider;
+	}
+
+	@Override
+	public String getName()
+	{
+		return provider == null ? "jca" : "jca:" + provider;
+	}
+
+	@Override
+	public boolean isAvailable()
+	{
+		try
+		{
+			getInstance();
+			return true;
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			return false;
+		}
+		catch (NoSuchProviderException e)
+		{
+			return false;
+		}
+	}
+
+	@Override
+	public MessageDigest newDigest()
+	{
+		try
+		{
+			return getInstance();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-512 not supported.", e);
+		}
+		catch (NoSuchProviderException e)
+		{
+			throw new IllegalStateException("Unknown provider: " + provider, e);
+		}
+	}
+
+	@Override
+	public Sha512Trial newTrial(byte[] initialHash)
+	{
+		return new DigestTrial(newDigest(), initialHash);
+	}
+
+	private MessageDigest getInstance() throws NoSuchAlgorithmException, NoSuchProviderException
+	{
+		return provider == null ? MessageDigest.getInstance("SHA-512") : MessageDigest.getInstance("SHA-512",
+				provider);
+	}
+}
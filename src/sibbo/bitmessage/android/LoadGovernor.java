@@ -0,0 +1,405 @@
+package sibbo.bitmessage.android;
+
+/**
+ * Holds the CPU share or the hash rate of a set of POW workers at a
+ * configured value.<br />
+ * <br />
+ * Every worker alternates between calculating and sleeping in rounds of 100
+ * milliseconds. The governor decides which part of a round is spent
+ * calculating (the duty cycle), the same for all workers that share it.
+ * Workers report their busy time and nonces after every round, and every
+ * {@link #CONTROL_INTERVAL} milliseconds a PI controller compares the measured
+ * value with the setpoint and corrects the duty cycle. The measured value is
+ * about proportional to the duty cycle, so the controller works on logarithms:
+ * its error is ln(setpoint / measured) and it corrects ln(duty). That makes its
+ * response the same for every setpoint and every device, and it settles in a
+ * few intervals. A CPU share starts at the duty cycle that equals the share and
+ * a hash rate at a low duty cycle, so there is no initial burst at full
+ * load.<br />
+ * <br />
+ * The governor measures itself: the overshoot after the last setpoint change
+ * and the time it took to settle within {@link #SETTLE_BAND} of the setpoint.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class LoadGovernor
+{
+	/**
+	 * Predefined settings for common situations.
+	 */
+	public enum Profile
+	{
+		/** All CPUs all the time, no throttling. */
+		MAX_THROUGHPUT(1f, Thread.NORM_PRIORITY),
+
+		/** Half of the CPU time of the device. */
+		BALANCED(0.5f, Thread.NORM_PRIORITY),
+
+		/**
+		 * A fifth of the CPU time at the lowest thread priority, so other
+		 * work on the device is hardly affected.
+		 */
+		BACKGROUND(0.2f, Thread.MIN_PRIORITY);
+
+		private final float cpuShare;
+		private final int priority;
+
+		private Profile(float cpuShare, int priority)
+		{
+			this.cpuShare = cpuShare;
+			this.priority = priority;
+		}
+
+		public float getCpuShare()
+		{
+			return cpuShare;
+		}
+
+		public int getPriority()
+		{
+			return priority;
+		}
+	}
+
+	/** The time in milliseconds between two control steps. */
+	public static final long CONTROL_INTERVAL = 300;
+
+	/** The relative deviation from the setpoint that counts as settled. */
+	public static final double SETTLE_BAND = 0.1;
+
+	/** The number of control steps within the band after which the governor counts as settled. */
+	private static final int SETTLE_STEPS = 3;
+
+	/** The proportional gain, on the change of the error. */
+	private static final double KP = 0.2;
+
+	/** The integral gain, on the error. */
+	private static final double KI = 0.6;
+
+	/**
+	 * The duty cycle at which a hash rate target starts. The rate the device
+	 * can reach is unknown, so it starts low and approaches the target from
+	 * below instead of overshooting.
+	 */
+	private static final double HASH_RATE_START_DUTY = 0.1;
+
+	/** The largest error of a single step, ln(4), for measurements near 0. */
+	private static final double MAX_ERROR = Math.log(4);
+
+	/** The smallest duty cycle, so the measurement never stops. */
+	private static final double MIN_DUTY = 0.01;
+
+	/** The number of CPUs the CPU share refers to. */
+	private final int cpus;
+
+	/** The target CPU share, from 0 to 1, or 0 if a hash rate is targeted. */
+	private float cpuShare;
+
+	/** The target hash rate per second, or 0 if a CPU share is targeted. */
+	private double hashRate;
+
+	/** The thread priority of the workers. */
+	private volatile int priority = Thread.NORM_PRIORITY;
+
+	/** The part of each round the workers calculate. */
+	private volatile double duty = 1;
+
+	/** The error of the last control step. */
+	private double lastError;
+
+	/** The busy time in nanoseconds reported since the last control step. */
+	private long busy;
+
+	/** The nonces reported since the last control step. */
+	private long nonces;
+
+	/** The time of the last control step, or 0 before the first report. */
+	private long lastStep;
+
+	/** The measured CPU share of the last control step. */
+	private volatile double measuredCpuShare;
+
+	/** The measured hash rate of the last control step. */
+	private volatile double measuredHashRate;
+
+	/** The time of the last setpoint change. */
+	private long changeTime;
+
+	/** The last time the measured value was outside of the band. */
+	private long lastOutside;
+
+	/** The number of control steps within the band since the last time outside. */
+	private int stepsInside;
+
+	/** The largest relative overshoot since the last setpoint change. */
+	private volatile double overshoot;
+
+	/** The settle time in nanoseconds, or -1 if not settled. */
+	private volatile long settleTime = -1;
+
+	/**
+	 * Creates a governor for the given profile, for all CPUs of the device.
+	 *
+	 * @param profile The profile.
+	 */
+	public LoadGovernor(Profile profile)
+	{
+		this(Runtime.getRuntime().availableProcessors());
+		setProfile(profile);
+	}
+
+	/**
+	 * Creates a governor that holds the given share of the CPU time of the
+	 * device.
+	 *
+	 * @param cpuShare The CPU share, greater than 0, 1 means no throttling.
+	 */
+	public LoadGovernor(float cpuShare)
+	{
+		this(cpuShare, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a governor that holds the given share of the CPU time of the
+	 * given number of CPUs.
+	 *
+	 * @param cpuShare The CPU share, greater than 0, 1 means no throttling.
+	 * @param cpus The number of CPUs the share refers to.
+	 */
+	public LoadGovernor(float cpuShare, int cpus)
+	{
+		this(cpus);
+		setCpuShare(cpuShare);
+	}
+
+	private LoadGovernor(int cpus)
+	{
+		if (cpus < 1)
+		{
+			throw new IllegalArgumentException("cpus must be at least 1.");
+		}
+
+		this.cpus = cpus;
+	}
+
+	/**
+	 * Applies a profile. Workers that are already running use its priority
+	 * from their next start on.
+	 *
+	 * @param profile The profile.
+	 */
+	public synchronized void setProfile(Profile profile)
+	{
+		setCpuShare(profile.getCpuShare());
+		priority = profile.getPriority();
+	}
+
+	/**
+	 * Holds the given share of the CPU time.
+	 *
+	 * @param newCpuShare The CPU share, greater than 0, 1 means no throttling.
+	 */
+	public synchronized void setCpuShare(float newCpuShare)
+	{
+		if (!(newCpuShare > 0))
+		{
+			throw new IllegalArgumentException("newCpuShare must be greater than 0.");
+		}
+
+		cpuShare = Math.min(1, newCpuShare);
+		hashRate = 0;
+		changed();
+	}
+
+	/**
+	 * Holds the given aggregate hash rate.
+	 *
+	 * @param newHashRate The hashes per second, two per nonce.
+	 */
+	public synchronized void setHashRate(double newHashRate)
+	{
+		if (!(newHashRate > 0))
+		{
+			throw new IllegalArgumentException("newHashRate must be greater than 0.");
+		}
+
+		hashRate = newHashRate;
+		cpuShare = 0;
+		changed();
+	}
+
+	private void changed()
+	{
+		duty = cpuShare > 0 ? Math.max(MIN_DUTY, cpuShare) : HASH_RATE_START_DUTY;
+
+		lastError = 0;
+		changeTime = System.nanoTime();
+		lastOutside = changeTime;
+		stepsInside = 0;
+		overshoot = 0;
+		settleTime = -1;
+	}
+
+	/**
+	 * Returns true if the workers are not throttled at all.
+	 *
+	 * @return True if the CPU share is 1.
+	 */
+	public synchronized boolean isUnlimited()
+	{
+		return cpuShare == 1;
+	}
+
+	/**
+	 * Returns the part of each round the workers should calculate.
+	 *
+	 * @return The duty cycle, from 0.01 to 1.
+	 */
+	public double getDuty()
+	{
+		return duty;
+	}
+
+	/**
+	 * Returns the thread priority for the workers.
+	 *
+	 * @return The thread priority.
+	 */
+	public int getPriority()
+	{
+		return priority;
+	}
+
+	/**
+	 * Called by every worker after each round.
+	 *
+	 * @param roundNonces The nonces tried in the round.
+	 * @param busyNanos The time spent calculating in the round.
+	 * @param now The current time in terms of System.nanoTime().
+	 */
+	public synchronized void report(long roundNonces, long busyNanos, long now)
+	{
+		busy += busyNanos;
+		nonces += roundNonces;
+
+		if (lastStep == 0)
+		{
+			// The first report only starts the measurement.
+			lastStep = now - busyNanos;
+		}
+
+		long interval = now - lastStep;
+
+		if (interval > 4 * CONTROL_INTERVAL * 1000000)
+		{
+			// Nothing ran for a while, e.g. between two jobs. That says
+			// nothing about the duty cycle, so the measurement starts over.
+			busy = busyNanos;
+			nonces = roundNonces;
+			lastStep = now - busyNanos;
+			return;
+		}
+
+		if (interval < CONTROL_INTERVAL * 1000000)
+		{
+			return;
+		}
+
+		// More workers than CPUs are busy longer than the CPUs can be.
+		measuredCpuShare = Math.min(1, busy / ((double) interval * cpus));
+		measuredHashRate = nonces * 2e9 / interval;
+		busy = 0;
+		nonces = 0;
+		lastStep = now;
+
+		double setpoint = cpuShare > 0 ? cpuShare : hashRate;
+		double measured = cpuShare > 0 ? measuredCpuShare : measuredHashRate;
+
+		measure((measured - setpoint) / setpoint, now);
+
+		if (cpuShare == 1)
+		{
+			return;
+		}
+
+		double error = Math.max(-MAX_ERROR, Math.min(MAX_ERROR, Math.log(setpoint / Math.max(measured, 1e-9))));
+
+		// Velocity form of the PI controller, the clamping of the duty cycle
+		// doubles as anti-windup.
+		double d = Math.exp(Math.log(duty) + KP * (error - lastError) + KI * error);
+		duty = Math.max(MIN_DUTY, Math.min(1, d));
+		lastError = error;
+	}
+
+	/**
+	 * Updates the overshoot and the settle time.
+	 */
+	private void measure(double deviation, long now)
+	{
+		overshoot = Math.max(overshoot, deviation);
+
+		if (Math.abs(deviation) > SETTLE_BAND)
+		{
+			lastOutside = now;
+			stepsInside = 0;
+			settleTime = -1;
+		}
+		else if (++stepsInside == SETTLE_STEPS)
+		{
+			settleTime = lastOutside - changeTime;
+		}
+	}
+
+	/**
+	 * Returns the CPU share measured in the last control interval.
+	 *
+	 * @return The CPU share, from 0 to 1.
+	 */
+	public double getCpuShare()
+	{
+		return measuredCpuShare;
+	}
+
+	/**
+	 * Returns the hash rate measured in the last control interval.
+	 *
+	 * @return The hashes per second.
+	 */
+	public double getHashRate()
+	{
+		return measuredHashRate;
+	}
+
+	/**
+	 * Returns the largest amount by which the measured value exceeded the
+	 * setpoint since the last setpoint change.
+	 *
+	 * @return The overshoot relative to the setpoint, e.g. 0.05 for 5%.
+	 */
+	public double getOvershoot()
+	{
+		return overshoot;
+	}
+
+	/**
+	 * Returns the time from the last setpoint change until the measured value
+	 * entered the band of {@link #SETTLE_BAND} around the setpoint for good.
+	 *
+	 * @return The settle time in milliseconds, or -1 if not settled yet.
+	 */
+	public long getSettleTime()
+	{
+		long t = settleTime;
+
+		return t < 0 ? -1 : t / 1000000;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "LoadGovernor[" + (cpuShare > 0 ? "cpuShare=" + cpuShare : "hashRate=" + (long) hashRate)
+				+ ", duty=" + duty + ", measuredCpuShare=" + measuredCpuShare + ", measuredHashRate="
+				+ (long) measuredHashRate + ", overshoot=" + overshoot + ", settleTime=" + getSettleTime() + "]";
+	}
+}
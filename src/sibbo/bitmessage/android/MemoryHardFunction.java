@@ -0,0 +1,175 @@
+package sibbo.bitmessage.android;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * A memory-hard candidate in the style of scrypt's ROMix, with SHA-512 as the
+ * mixing function. A trial fills a scratchpad of blocks with a chain of hashes
+ * seeded by {@code sha512(nonce || initialHash)}, then walks it in an order
+ * that depends on the data, so a trial needs the whole scratchpad or has to
+ * calculate blocks again. The trial value is the first 8 bytes of a final hash
+ * of the mixed block.<br />
+ * <br />
+ * A trial takes about twice as many hashes as the scratchpad has blocks, and
+ * every worker keeps its own scratchpad.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class MemoryHardFunction implements ProofOfWorkFunction
+{
+	/** The name of this function with the default scratchpad. */
+	public static final String NAME = "memory-hard";
+
+	/** The default number of 64 byte blocks of the scratchpad, 64 KiB. */
+	public static final int DEFAULT_BLOCKS = 1024;
+
+	/** The smallest number of blocks, 1 KiB, so every scratchpad has its own name. */
+	public static final int MIN_BLOCKS = 16;
+
+	private final int blocks;
+
+	/**
+	 * Creates a MemoryHardFunction with a scratchpad of
+	 * {@link #DEFAULT_BLOCKS} blocks.
+	 */
+	public MemoryHardFunction()
+	{
+		this(DEFAULT_BLOCKS);
+	}
+
+	/**
+	 * Creates a new MemoryHardFunction.
+	 *
+	 * @param blocks The number of 64 byte blocks of the scratchpad, a power
+	 *            of two and at least {@link #MIN_BLOCKS}.
+	 */
+	public MemoryHardFunction(int blocks)
+	{
+		if (blocks < MIN_BLOCKS || Integer.bitCount(blocks) != 1)
+		{
+			throw new IllegalArgumentException("blocks must be a power of two and at least " + MIN_BLOCKS + ".");
+		}
+
+		this.blocks = blocks;
+	}
+
+	/**
+	 * Returns the name of this function, {@value #NAME} followed by the size
+	 * of the scratchpad in KiB unless it is the default.
+	 *
+	 * @return The name.
+	 */
+	@Override
+	public String getName()
+	{
+		return blocks == DEFAULT_BLOCKS ? NAME : NAME + "-" + blocks / MIN_BLOCKS;
+	}
+
+	public int getBlocks()
+	{
+		return blocks;
+	}
+
+	@Override
+	public ProofOfWorkTrial newTrial(byte[] initialHash)
+	{
+		return new Trial(Sha512Backends.getDefault().newDigest(), initialHash, blocks);
+	}
+
+	/** The trial, reuses its scratchpad. */
+	private static final class Trial implements ProofOfWorkTrial
+	{
+		private final MessageDigest sha512;
+
+		/** The nonce followed by the initial hash. */
+		private final byte[] input = new byte[72];
+
+		/** The blocks one after the other. */
+		private final byte[] scratchpad;
+
+		/** The block that is mixed. */
+		private final byte[] x = new byte[64];
+
+		private final int mask;
+
+		private Trial(MessageDigest sha512, byte[] initialHash, int blocks)
+		{
+			if (initialHash == null || initialHash.length != 64)
+			{
+				throw new IllegalArgumentException("initialHash must be 64 bytes long.");
+			}
+
+			this.sha512 = sha512;
+			this.scratchpad = new byte[blocks * 64];
+			this.mask = blocks - 1;
+			System.arraycopy(initialHash, 0, input, 8, 64);
+		}
+
+		@Override
+		public long trial(long nonce)
+		{
+			for (int i = 7; i >= 0; i--)
+			{
+				input[i] = (byte) nonce;
+				nonce >>>= 8;
+			}
+
+			try
+			{
+				sha512.reset();
+				sha512.update(input);
+				sha512.digest(scratchpad, 0, 64);
+
+				// Fill: every block is the hash of the one before.
+				for (int off = 64; off < scratchpad.length; off += 64)
+				{
+					sha512.update(scratchpad, off - 64, 64);
+					sha512.digest(scratchpad, off, 64);
+				}
+
+				System.arraycopy(scratchpad, scratchpad.length - 64, x, 0, 64);
+
+				// Walk: the next block to read depends on the current one.
+				for (int i = 0; i <= mask; i++)
+				{
+					int off = ((int) Sha512Kernel.readLong(x, 56) & mask) * 64;
+
+					for (int j = 0; j < 64; j++)
+					{
+						x[j] ^= scratchpad[off + j];
+					}
+
+					sha512.update(x);
+					sha512.digest(x, 0, 64);
+				}
+
+				sha512.update(x);
+				sha512.digest(x, 0, 64);
+			}
+			catch (DigestException e)
+			{
+				throw new IllegalStateException("SHA-512 digest failed.", e);
+			}
+
+			return Sha512Kernel.readLong(x, 0);
+		}
+
+		@Override
+		public long search(long from, int count, long target)
+		{
+			long end = from + count;
+
+			for (long n = from; n < end; n++)
+			{
+				if (ProofOfWorkFunctions.isAcceptable(trial(n), target))
+				{
+					return n;
+				}
+			}
+
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package sibbo.bitmessage.android;
+
+import java.security.MessageDigest;
+import java.util.logging.Logger;
+
+/**
+ * A backend that does the hashing in C, see jni/sha512pow.c. The library is
+ * built with the NDK for the app and with any C compiler for desktop JVMs. If
+ * it can't be loaded, the backend is not available.<br />
+ * <br />
+ * A POW search runs a whole chunk of nonces in one native call, so the cost of
+ * the JNI transition is spread over many trials.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class NativeSha512Backend implements Sha512Backend
+{
+	private static final Logger LOG = Logger.getLogger(NativeSha512Backend.class.getName());
+
+	/** The name of the native library. */
+	public static final String LIBRARY = "sha512pow";
+
+	/** True if the library was loaded. */
+	private static final boolean LOADED = load();
+
+	private static boolean load()
+	{
+		try
+		{
+			System.loadLibrary(LIBRARY);
+			return true;
+		}
+		catch (UnsatisfiedLinkError e)
+		{
+			LOG.fine("Native SHA-512 library not available: " + e.getMessage());
+			return false;
+		}
+		catch (SecurityException e)
+		{
+			LOG.fine("Native SHA-512 library not allowed: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Hashes whole 128 byte blocks into the state.
+	 */
+	static native void compress(long[] state, byte[] data, int offset, int blocks);
+
+	/**
+	 * Does a single POW trial.
+	 *
+	 * @return The first 8 bytes of {@code sha512(sha512(nonce || initialHash))}
+	 *         as big endian long.
+	 */
+	static native long trial(byte[] initialHash, long nonce);
+
+	/**
+	 * Does the POW trials for {@code count} consecutive nonces.
+	 *
+	 * @return The first nonce whose trial value is between 0 and the target,
+	 *         or -1 if there is none.
+	 */
+	static native long search(byte[] initialHash, long from, int count, long target);
+
+	@Override
+	public String getName()
+	{
+		return "native";
+	}
+
+	@Override
+	public boolean isAvailable()
+	{
+		return LOADED;
+	}
+
+	@Override
+	public MessageDigest newDigest()
+	{
+		return new JavaSha512()
+		{
+			@Override
+			protected void compress(long[] state, byte[] data, int offset, int blocks)
+			{
+				NativeSha512Backend.compress(state, data, offset, blocks);
+			}
+		};
+	}
+
+	@Override
+	public Sha512Trial newTrial(final byte[] initialHash)
+	{
+		if (initialHash == null || initialHash.length != 64)
+		{
+			throw new IllegalArgumentException("initialHash must be 64 bytes long.");
+		}
+
+		return new Sha512Trial()
+		{
+			private final byte[] hash = initialHash.clone();
+
+			@Override
+			public long trial(long nonce)
+			{
+				return NativeSha512Backend.trial(hash, nonce);
+			}
+
+			@Override
+			public long search(long from, int count, long target)
+			{
+				return NativeSha512Backend.search(hash, from, count, target);
+			}
+		};
+	}
+}
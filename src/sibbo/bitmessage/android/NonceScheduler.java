@@ -0,0 +1,145 @@
+package sibbo.bitmessage.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out contiguous chunks of the nonce space to POW workers.<br />
+ * <br />
+ * All workers of a job take their chunks from one shared cursor, so a fast
+ * worker simply comes back more often than a slow one and the searched nonces
+ * stay dense from the start nonce on. Every worker sizes its chunks with
+ * {@link #adaptChunkSize(int, long)} so that a chunk takes about
+ * {@link #CHUNK_TIME} milliseconds on that worker, whatever the speed of its
+ * core.<br />
+ * <br />
+ * A scheduler can be limited to a range of nonces, e.g. for benchmarks that
+ * must try exactly the same nonces every time. Chunks are then cut off at the
+ * end of the range.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class NonceScheduler
+{
+	/** The time in milliseconds a worker should spend on one chunk. */
+	public static final int CHUNK_TIME = 10;
+
+	/** The smallest chunk size, also the size of the first chunk of every worker. */
+	public static final int MIN_CHUNK_SIZE = 256;
+
+	/** The largest chunk size. */
+	public static final int MAX_CHUNK_SIZE = 1 << 22;
+
+	/** The next nonce that has not been handed out yet. */
+	private final AtomicLong cursor;
+
+	/** The first nonce after the range. */
+	private final long end;
+
+	/**
+	 * Creates a new NonceScheduler that starts at nonce 0.
+	 */
+	public NonceScheduler()
+	{
+		this(0);
+	}
+
+	/**
+	 * Creates a new NonceScheduler.
+	 *
+	 * @param startNonce The first nonce to hand out.
+	 */
+	public NonceScheduler(long startNonce)
+	{
+		this(startNonce, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a NonceScheduler for a limited range of nonces.
+	 *
+	 * @param startNonce The first nonce to hand out.
+	 * @param endNonce The first nonce after the range.
+	 */
+	public NonceScheduler(long startNonce, long endNonce)
+	{
+		cursor = new AtomicLong(startNonce);
+		end = endNonce;
+	}
+
+	/**
+	 * Reserves the next chunk of nonces.
+	 *
+	 * @param size The number of nonces in the chunk.
+	 * @return The first nonce of the chunk. The chunk contains the nonces from
+	 *         the returned value to the returned value + size - 1.
+	 */
+	public long nextChunk(int size)
+	{
+		return cursor.getAndAdd(size);
+	}
+
+	/**
+	 * Returns the end of the range. A chunk that starts at or after it is
+	 * empty.
+	 *
+	 * @return The first nonce after the range, Long.MAX_VALUE if it is not
+	 *         limited.
+	 */
+	public long getEnd()
+	{
+		return end;
+	}
+
+	/**
+	 * Returns the end of a chunk, cut off at the end of the range.
+	 *
+	 * @param start The first nonce of the chunk.
+	 * @param size The size of the chunk.
+	 * @return The first nonce after the chunk, start if it is empty.
+	 */
+	public long getChunkEnd(long start, int size)
+	{
+		return start >= end ? start : Math.min(start + size, end);
+	}
+
+	/**
+	 * Returns the first nonce that has not been handed out yet.
+	 *
+	 * @return The first nonce that has not been handed out yet.
+	 */
+	public long getCursor()
+	{
+		return cursor.get();
+	}
+
+	/**
+	 * Calculates the size of the next chunk of a worker from the time it needed
+	 * for its last chunk.
+	 *
+	 * @param size The size of the last chunk.
+	 * @param elapsedNanos The time the worker needed for the last chunk.
+	 * @return The size of the next chunk.
+	 */
+	public static int adaptChunkSize(int size, long elapsedNanos)
+	{
+		long target = CHUNK_TIME * 1000000L;
+		long next;
+
+		if (elapsedNanos <= 0)
+		{
+			next = (long) size * 2;
+		}
+		else
+		{
+			next = (long) size * target / elapsedNanos;
+
+			// Move half way only, so single slow chunks (e.g. because of a
+			// context switch) do not make the size jump around.
+			next = (size + next) / 2;
+		}
+
+		next = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, next));
+
+		return (int) next;
+	}
+}
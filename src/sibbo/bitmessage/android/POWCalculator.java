@@ -1,8 +1,10 @@
 package sibbo.bitmessage.android;
 
-import java.math.BigInteger;
-
-import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
 /**
  * Does the POW calculation, uses multiple threads.
@@ -12,10 +14,7 @@ import android.util.Log;
  */
 public class POWCalculator implements POWListener 
 {
-	private static final String TAG = "POW_CALCULATOR";
-
-	/** The amount of threads to use per CPU. */
-	private static final int THREADS_PER_CPU = 1;
+	private static final Logger LOG = Logger.getLogger(POWCalculator.class.getName());
 
 	/** The target collision quality. */
 	private long target;
@@ -24,22 +23,70 @@ public class POWCalculator implements POWListener
 	private byte[] initialHash;
 
 	/** The target system load created by the calculation. (Per CPU) */
-	private float targetLoad;
+	private float targetLoad = 1;
+	
+	/** Controls the load of the workers, or null to create one from the target load. */
+	private LoadGovernor governor;
+	
+	/** The governor of the running or last calculation, or null. */
+	private volatile LoadGovernor usedGovernor;
+	
+	/** The nonces found earlier, or null. */
+	private PowResultCache resultCache;
 
-	/** The worker that found a valid nonce. */
-	private POWWorker finishedWorker;
+	/** Runs the workers of the running or last calculation. */
+	private volatile WorkerGroup<POWWorker> group;
+	
+	/** The number of calls of {@link #execute(int)}, numbers the calculations. */
+	private final AtomicLong calculations = new AtomicLong();
+	
+	/** The number of the last calculation {@link #cancel()} applies to, 0 for none. */
+	private volatile long cancelledCalculation;
+	
+	/** How the last calculation ended. */
+	private volatile PowOutcome outcome;
 	
 	/** Indicates whether or not a valid nonce has been found. */
 	private boolean POWSuccessful;
 	
-	/** A value used in the Bitmessage protocol for determining the difficulty required for proof of work calculations. */
-	private static int averageProofOfWorkNonceTrialsPerByte = 320;
-	
-	/** A value used in the Bitmessage protocol for determining the difficulty required for proof of work calculations. */
-	private static int payloadLengthExtraBytes = 14000;
+	/** The values that determine the target, carried by this calculation only. */
+	private PowParameters parameters = PowParameters.NETWORK_MINIMUM;
 	
 	/** The number of hashes calculated so far. */
-	private int hashesCalculated = 0;
+	private long hashesCalculated = 0;
+	
+	/** The function the trials are done with. */
+	private ProofOfWorkFunction function = ProofOfWorkFunctions.DOUBLE_SHA512;
+	
+	/** The progress counters of the running calculation. */
+	private volatile PowCounters counters;
+	
+	/** Receives the progress of the calculations, or null. */
+	private PowProgressListener progressListener;
+	
+	/** The time between two progress updates in milliseconds. */
+	private long progressInterval;
+	
+	/** The directory of the checkpoint files, or null if there are none. */
+	private File checkpointDirectory;
+	
+	/** The nonce calculations start at if they do not continue from a checkpoint. */
+	private long firstNonce;
+	
+	/** The nonce the last calculation started at. */
+	private long startNonce;
+	
+	/** The number of nonces a calculation may try, or 0 for no limit. */
+	private long maxNonces;
+	
+	/** The number of workers of the running calculation that used up their range. */
+	private final AtomicInteger exhaustedWorkers = new AtomicInteger();
+	
+	/** The number of workers of the running calculation. */
+	private volatile int workerCount;
+	
+	/** The number of worker threads, or 0 to ask the default {@link ThreadTuner}. */
+	private int threadCount;
 
 	/**
 	 * Creates a new POWCalculator.
@@ -66,64 +113,451 @@ public class POWCalculator implements POWListener
 		initialHash = newInitialHash;
 	}
 	
-	public void setTargetLoad(long newTargetLoad)
+	/**
+	 * Sets the share of the CPU time the calculation may use, held by a
+	 * {@link LoadGovernor} across all workers. Ignored if a governor was set
+	 * with {@link #setLoadGovernor(LoadGovernor)}.
+	 * 
+	 * @param newTargetLoad The CPU share, greater than 0, 1 means no
+	 *            throttling.
+	 */
+	public void setTargetLoad(float newTargetLoad)
 	{
+		if (!(newTargetLoad > 0))
+		{
+			throw new IllegalArgumentException("newTargetLoad must be greater than 0.");
+		}
+		
 		targetLoad = newTargetLoad;
 	}
+	
+	/**
+	 * Sets the governor that controls the load of the workers, e.g. one with a
+	 * {@link LoadGovernor.Profile} or a target hash rate. It can be shared
+	 * with other calculations to control them together.
+	 * 
+	 * @param newGovernor The governor, or null to use the target load.
+	 */
+	public void setLoadGovernor(LoadGovernor newGovernor)
+	{
+		governor = newGovernor;
+	}
+	
+	/**
+	 * Makes the calculations look up their initial hash and target in a cache
+	 * first, and store the nonces they find in it. The cache holds double
+	 * SHA-512 results, it is not used with another function.
+	 * 
+	 * @param cache The cache, or null to always calculate.
+	 */
+	public void setResultCache(PowResultCache cache)
+	{
+		resultCache = cache;
+	}
+	
+	/**
+	 * Returns the governor of the running or last calculation, the one that
+	 * was set or the one created from the target load.
+	 * 
+	 * @return The governor; before the first calculation the one that was
+	 *         set, or null.
+	 */
+	public LoadGovernor getLoadGovernor()
+	{
+		LoadGovernor g = usedGovernor;
+		
+		return g != null ? g : governor;
+	}
+	
+	/**
+	 * Sets the function the trials are done with. The default is
+	 * {@link ProofOfWorkFunctions#DOUBLE_SHA512}, the function of the
+	 * protocol; others are meant for comparisons.
+	 * 
+	 * @param newFunction The function.
+	 */
+	public void setFunction(ProofOfWorkFunction newFunction)
+	{
+		if (newFunction == null)
+		{
+			throw new NullPointerException("newFunction must not be null.");
+		}
+		
+		function = newFunction;
+	}
+	
+	public ProofOfWorkFunction getFunction()
+	{
+		return function;
+	}
+
+	/**
+	 * Sets a listener that receives the progress of every calculation at a
+	 * fixed interval, and once more at its end.
+	 * 
+	 * @param listener The listener, or null to remove it.
+	 * @param intervalMillis The time between two updates in milliseconds, at
+	 *            least 1 if there is a listener.
+	 */
+	public void setProgressListener(PowProgressListener listener, long intervalMillis)
+	{
+		if (listener != null && intervalMillis < 1)
+		{
+			throw new IllegalArgumentException("intervalMillis must be at least 1.");
+		}
+		
+		progressListener = listener;
+		progressInterval = intervalMillis;
+	}
+	
+	/**
+	 * Returns the progress of the running or last calculation, with rates
+	 * averaged over the whole calculation. Can be called from any thread.
+	 * 
+	 * @return The progress, or null if no calculation was started yet.
+	 */
+	public PowProgress getProgress()
+	{
+		PowCounters c = counters;
+		
+		return c == null ? null : PowProgress.sample(c, target, null);
+	}
+	
+	/**
+	 * Makes the calculations record their progress in checkpoint files, so
+	 * that a calculation for the same initial hash and target that ran out of
+	 * time, was cancelled or was killed can be continued by a new one.
+	 * 
+	 * @param directory The directory of the checkpoint files, or null to not
+	 *            record any progress.
+	 */
+	public void setCheckpointDirectory(File directory)
+	{
+		checkpointDirectory = directory;
+	}
+	
+	/**
+	 * Sets the nonce calculations start at, e.g. to search one part of the
+	 * nonce space while other machines search the rest. Together with
+	 * {@link #setMaxNonces(long)} this limits a calculation to a range. A
+	 * calculation that continues from a checkpoint starts at its frontier
+	 * instead.
+	 * 
+	 * @param newFirstNonce The first nonce, 0 by default.
+	 */
+	public void setFirstNonce(long newFirstNonce)
+	{
+		if (newFirstNonce < 0)
+		{
+			throw new IllegalArgumentException("newFirstNonce must not be negative.");
+		}
+		
+		firstNonce = newFirstNonce;
+	}
+	
+	/**
+	 * Returns the nonce the last calculation started at. It is not the first
+	 * nonce if the calculation continued from a checkpoint.
+	 * 
+	 * @return The first nonce of the last calculation.
+	 */
+	public long getStartNonce()
+	{
+		return startNonce;
+	}
+	
+	/**
+	 * Limits the calculations to a fixed number of nonces from their start
+	 * nonce on. A calculation that tries them all without finding a valid one
+	 * ends with {@link PowOutcome#EXHAUSTED}, after every nonce of the range
+	 * was tried. Together with a target of -1, which no nonce fulfills, this
+	 * makes a calculation do exactly the same work every time.
+	 * 
+	 * @param newMaxNonces The number of nonces, or 0 for no limit.
+	 */
+	public void setMaxNonces(long newMaxNonces)
+	{
+		if (newMaxNonces < 0)
+		{
+			throw new IllegalArgumentException("newMaxNonces must not be negative.");
+		}
+		
+		maxNonces = newMaxNonces;
+	}
+	
+	public long getMaxNonces()
+	{
+		return maxNonces;
+	}
+	
+	/**
+	 * Sets the number of worker threads. The default is the count of
+	 * {@link ThreadTuner#getDefault()}.
+	 * 
+	 * @param newThreadCount The number of worker threads.
+	 */
+	public void setThreadCount(int newThreadCount)
+	{
+		if (newThreadCount < 1)
+		{
+			throw new IllegalArgumentException("newThreadCount must be at least 1.");
+		}
+		
+		threadCount = newThreadCount;
+	}
+	
+	/**
+	 * Returns the worker threads of the running or last calculation. Can be
+	 * called from any thread, the threads that are not created yet are null.
+	 * 
+	 * @return The threads, empty if no calculation was started yet.
+	 */
+	Thread[] getWorkerThreads()
+	{
+		WorkerGroup<POWWorker> g = group;
+		
+		return g == null ? new Thread[0] : g.getThreads();
+	}
+	
+	/**
+	 * Returns the number of worker threads.
+	 * 
+	 * @return The number set, or the tuned count if none was set.
+	 */
+	public int getThreadCount()
+	{
+		return threadCount > 0 ? threadCount : ThreadTuner.getDefault().getThreadCount();
+	}
 
 	/**
 	 * Calculate the POW.<br />
 	 * <b>WARNING: This can take a long time.</b>
 	 * 
-	 * @return A byte[] containing a nonce that fulfills the collision quality condition.
+	 * @param maxTime The maximum time in seconds the calculation may take.
+	 * @return A byte[] containing a nonce that fulfills the collision quality
+	 *         condition, the last nonce tried if the time or the range ran
+	 *         out, or null if the calculation was cancelled or its workers
+	 *         failed. See {@link #getOutcome()}.
 	 */
-	public synchronized byte[] execute(int maxTime) 
+	public byte[] execute(int maxTime) 
 	{
-		POWWorker[] workers = new POWWorker[Runtime.getRuntime().availableProcessors() * THREADS_PER_CPU];
-
-		for (int i = 0; i < workers.length; i++) 
+		// Numbered before waiting for the lock, so a cancel() from now on
+		// applies to this calculation.
+		return execute(maxTime, calculations.incrementAndGet());
+	}
+	
+	private synchronized byte[] execute(int maxTime, long calculation) 
+	{
+		PowResultCache cache = function instanceof DoubleSha512Function ? resultCache : null;
+		long cached = cache == null || isCancelled(calculation) ? -1 : cache.get(initialHash, target);
+		
+		if (cached >= 0)
 		{
-			workers[i] = new POWWorker(target, i, workers.length, initialHash, this, targetLoad / THREADS_PER_CPU, maxTime);
-			new Thread(workers[i], "POW Worker No. " + i).start();
+			LOG.info("Found a valid nonce in the result cache");
+			POWSuccessful = true;
+			outcome = PowOutcome.FOUND;
+			
+			return Util.getBytes(cached);
 		}
-
-		try 
+		
+		POWWorker[] workers = new POWWorker[getThreadCount()];
+		PowCheckpoint checkpoint = openCheckpoint(workers.length);
+		startNonce = checkpoint == null ? firstNonce : checkpoint.getFrontier();
+		NonceScheduler scheduler = new NonceScheduler(startNonce, getEndNonce());
+		counters = new PowCounters(workers.length);
+		PowProgressSampler sampler = new PowProgressSampler(counters, target, progressListener);
+		LoadGovernor loadGovernor = governor != null ? governor : new LoadGovernor(targetLoad,
+				workers.length);
+		usedGovernor = loadGovernor;
+		
+		exhaustedWorkers.set(0);
+		workerCount = workers.length;
+		WorkerGroup<POWWorker> g = new WorkerGroup<POWWorker>(maxTime);
+		group = g;
+		
+		if (isCancelled(calculation))
 		{
-			wait();
+			// cancel() was called before the calculation started.
+			g.cancel();
 		}
-		catch (InterruptedException e) 
+
+		for (int i = 0; i < workers.length; i++) 
 		{
-			Log.i(TAG, "Waiting interrupted!");
+			workers[i] = new POWWorker(target, scheduler, initialHash, this, loadGovernor, g.getToken());
+			workers[i].setFunction(function);
+			workers[i].setCounters(counters, i);
+			
+			if (checkpoint != null)
+			{
+				workers[i].setCheckpoint(checkpoint, i);
+			}
 		}
 
+		// The sampler starts first, so nothing can fail once the workers run.
+		sampler.start(progressInterval);
+		g.start(workers, "POW Worker");
+		g.await();
+
 		for (POWWorker w : workers) 
 		{
-			w.stop();
-			
 			hashesCalculated = hashesCalculated + w.getHashesCalculated();
 		}
 		
-		if (finishedWorker.getSuccessResult() == true)
+		sampler.stop();
+		
+		POWWorker winner = g.getWinner();
+		
+		if (checkpoint != null)
+		{
+			if (winner != null && winner.getSuccessResult() == true)
+			{
+				checkpoint.delete();
+			}
+			else
+			{
+				checkpoint.close();
+			}
+		}
+		
+		if (winner != null && winner.getSuccessResult() == true)
 		{
 			POWSuccessful = true;
+			outcome = PowOutcome.FOUND;
+			
+			if (cache != null)
+			{
+				cache.put(initialHash, winner.getNonce(), winner.getTrialValue());
+			}
+		}
+		else if (winner != null && winner.isExhausted())
+		{
+			outcome = PowOutcome.EXHAUSTED;
 		}
+		else if (winner != null && !g.isCancelled())
+		{
+			outcome = PowOutcome.TIMED_OUT;
+		}
+		else
+		{
+			// Every worker stopped without ending the calculation, so they
+			// failed, unless it was cancelled.
+			outcome = g.isCancelled() ? PowOutcome.CANCELLED : PowOutcome.FAILED;
+			
+			return null;
+		}
+		
+		LOG.fine("Workers stopped " + (g.getToken().getStopLatency() / 1000) + " microseconds after the end of the calculation");
 
-		return Util.getBytes(finishedWorker.getNonce());
+		return Util.getBytes(winner.getNonce());
+	}
+	
+	/**
+	 * Returns the first nonce after the range of the next calculation.
+	 */
+	private long getEndNonce()
+	{
+		if (maxNonces == 0 || maxNonces > Long.MAX_VALUE - startNonce)
+		{
+			return Long.MAX_VALUE;
+		}
+		
+		return startNonce + maxNonces;
+	}
+	
+	/**
+	 * Opens the checkpoint of the next calculation.
+	 * 
+	 * @param workers The number of workers.
+	 * @return The checkpoint, or null if there is no checkpoint directory or
+	 *         the checkpoint could not be opened.
+	 */
+	private PowCheckpoint openCheckpoint(int workers)
+	{
+		if (checkpointDirectory == null)
+		{
+			return null;
+		}
+		
+		try
+		{
+			return PowCheckpoint.open(checkpointDirectory, function.getName(), initialHash, target, workers);
+		}
+		catch (IOException e)
+		{
+			LOG.warning("Calculating without checkpoint: " + e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns true if {@link #cancel()} was called after a calculation was
+	 * numbered.
+	 */
+	private boolean isCancelled(long calculation)
+	{
+		return cancelledCalculation >= calculation;
+	}
+	
+	/**
+	 * Cancels the running calculation, and those that {@link #execute(int)}
+	 * was already called for. Can be called from any thread, execute then
+	 * returns within about one chunk of nonces (see
+	 * {@link NonceScheduler#CHUNK_TIME}). Calculations that are started
+	 * later are not affected.
+	 */
+	public void cancel()
+	{
+		cancelledCalculation = calculations.get();
+		
+		WorkerGroup<POWWorker> g = group;
+		
+		if (g != null)
+		{
+			g.cancel();
+		}
 	}
 
 	@Override
-	public synchronized void powFinished(POWWorker powWorker) 
+	public void powFinished(POWWorker powWorker) 
 	{
-		if (finishedWorker == null) 
+		// A used up range only ends the calculation once the other workers
+		// finished their last chunks, so that every nonce of it is tried.
+		if (powWorker.isExhausted() && exhaustedWorkers.incrementAndGet() < workerCount)
 		{
-			finishedWorker = powWorker;
+			return;
 		}
-
-		notifyAll();
+		
+		// Only the first worker is published, no matter how many finish at once.
+		group.end(powWorker);
+	}
+	
+	/**
+	 * Returns how the last calculation ended.
+	 * 
+	 * @return The outcome, or null if no calculation was finished yet.
+	 */
+	public PowOutcome getOutcome()
+	{
+		return outcome;
+	}
+	
+	/**
+	 * Returns the time between the end of the last calculation (a valid nonce
+	 * found, time ran out or cancelled) and the moment the last worker
+	 * stopped.
+	 * 
+	 * @return The stop latency in nanoseconds, or -1 if it is not known.
+	 */
+	public long getStopLatency()
+	{
+		WorkerGroup<POWWorker> g = group;
+		
+		return g == null ? -1 : g.getToken().getStopLatency();
 	}
 
 	/**
-	 * Returns the POW target for a message with the given length.
+	 * Returns the POW target for a message with the given length at the
+	 * network minimum difficulty.
 	 * 
 	 * @param length
 	 *            The message length.
@@ -131,15 +565,22 @@ public class POWCalculator implements POWListener
 	 */
 	public static long getPOWTarget(int length) 
 	{
-		BigInteger powTarget = BigInteger.valueOf(2);
-		powTarget = powTarget.pow(64);
-		Log.i(TAG, "Using a payloadLengthExtraBytes value of " + payloadLengthExtraBytes);
-		Log.i(TAG, "Using an averageProofOfWorkNonceTrialsPerByte value of " + averageProofOfWorkNonceTrialsPerByte);
-		powTarget = powTarget.divide(BigInteger.valueOf((length + payloadLengthExtraBytes + 8) * averageProofOfWorkNonceTrialsPerByte));
-		
-		// Note that we are dividing through at least 8, so that the value is
-		// smaller than 2^61 and fits perfectly into a long.
-		return powTarget.longValue();
+		return PowParameters.NETWORK_MINIMUM.getTarget(length);
+	}
+	
+	/**
+	 * Returns the POW target for a message with the given length and
+	 * difficulty factor.
+	 * 
+	 * @param length
+	 *            The message length.
+	 * @param difficultyFactor
+	 *            The difficulty factor, 1 is the network minimum.
+	 * @return The POW target for a message with the given length.
+	 */
+	public static long getPOWTarget(int length, int difficultyFactor) 
+	{
+		return PowParameters.forDifficulty(difficultyFactor).getTarget(length);
 	}
 	
 	public boolean getPOWSuccessfulResult()
@@ -147,13 +588,45 @@ public class POWCalculator implements POWListener
 		return POWSuccessful;
 	}
 	
+	/**
+	 * Sets the POW parameters of this calculation. Other calculations are not
+	 * affected.
+	 * 
+	 * @param newParameters The parameters.
+	 */
+	public void setParameters(PowParameters newParameters)
+	{
+		parameters = newParameters;
+	}
+	
+	public PowParameters getParameters()
+	{
+		return parameters;
+	}
+	
+	/**
+	 * Sets the difficulty of this calculation to a multiple of the network
+	 * minimum. Other calculations are not affected.
+	 * 
+	 * @param difficultyFactor The difficulty factor, 1 is the network minimum.
+	 */
 	public void setDifficulty(int difficultyFactor)
 	{
-		averageProofOfWorkNonceTrialsPerByte = 320 * difficultyFactor;
-		payloadLengthExtraBytes = 14000 * difficultyFactor;
+		parameters = PowParameters.forDifficulty(difficultyFactor);
+	}
+	
+	/**
+	 * Sets the target for a message with the given length from the POW
+	 * parameters of this calculation.
+	 * 
+	 * @param payloadLength The length of the message.
+	 */
+	public void setPayloadLength(int payloadLength)
+	{
+		target = parameters.getTarget(payloadLength);
 	}
 	
-	public int getHashesCalculated()
+	public long getHashesCalculated()
 	{
 		return hashesCalculated;
 	}
@@ -1,12 +1,7 @@
 package sibbo.bitmessage.android;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import android.util.Log;
-
 /**
  * A worker class to parallelize POW calculation.
  * 
@@ -15,15 +10,20 @@ import android.util.Log;
  */
 public class POWWorker implements Runnable 
 {
-	private static final String TAG = "POW_WORKER";
 	private static final Logger LOG = Logger.getLogger(POWWorker.class.getName());
 
 	/**
-	 * The time period in milliseconds to check if the pow calculation should be
-	 * aborted.
+	 * The time period in milliseconds over which the system load is
+	 * controlled.
 	 */
 	private static final int ROUND_TIME = 100;
 
+	/** The smallest number of nonces of a round. */
+	private static final int MIN_ITERATIONS = 64;
+
+	/** The largest number of nonces of a round. */
+	private static final int MAX_ITERATIONS = 1 << 26;
+
 	/** The collision quality that should be achieved. */
 	private long target;
 
@@ -42,46 +42,99 @@ public class POWWorker implements Runnable
 	/** The listener to inform if we found the result. */
 	private POWListener listener;
 
-	/** The system load that should be created by this worker. */
-	private float targetLoad;
+	/** Decides which part of each round this worker calculates. */
+	private LoadGovernor governor;
 
-	/** The increment that should be used for finding the next nonce. */
-	private long increment;
-	
-	/** The maximum time allowed for the worker to do its calculations. */
-	private long maxTime; 
+	/** Hands out the chunks of nonces this worker should try. */
+	private NonceScheduler scheduler;
 	
-	/** The time at which the worker starts working. */
-	private long startTime;
+	/** Tells the worker when to stop, also carries the time allowed. */
+	private CancellationToken token;
 	
 	/** Indicates whether or not a valid nonce has been found. */
-	private boolean POWSuccessful;
+	private volatile boolean POWSuccessful;
+	
+	/** Set when the range of the scheduler is used up. */
+	private volatile boolean exhausted;
+	
+	/** The trial value of the valid nonce, -1 until one is found. */
+	private volatile long trialValue = -1;
 	
 	/** The number of hashes calculated so far. */
-	private int hashesCalculated = 0;
+	private volatile long hashesCalculated = 0;
+	
+	/** The counters to publish the progress to, or null. */
+	private PowCounters counters;
+	
+	/** The slot of this worker in the counters. */
+	private int counterSlot;
 	
-	private MessageDigest sha512;
+	/** Records the progress of this worker for a later run, or null. */
+	private PowCheckpoint checkpoint;
 	
+	/** The slot of this worker in the checkpoint. */
+	private int checkpointSlot;
+	
+	/** Does the trials, provided by the selected SHA-512 backend unless another function is set. */
+	private ProofOfWorkTrial trial;
+	
+	/** The time in milliseconds after which run() returns, or 0 to run until stopped. */
+	private long timeSlice;
+	
+	/** Set if the last run() returned because its time slice was used up. */
+	private volatile boolean yielded;
+	
+	/** The chunk size a worker continues with after its time slice. */
+	private int resumeChunkSize = NonceScheduler.MIN_CHUNK_SIZE;
+	
+	/** The batch size a worker continues with after its time slice. */
+	private int resumeIterations = MIN_ITERATIONS;
 
 	/**
 	 * Creates a new POWWorker.
 	 * 
 	 * @param target
 	 *            The target collision quality.
-	 * @param startNonce
-	 *            The nonce to start with.
-	 * @param increment
-	 *            The step size. A POW worker calculates with: startNonce,
-	 *            startNonce + increment, startNonce + 2 * increment...
+	 * @param scheduler
+	 *            Hands out the chunks of nonces to try. All workers of a
+	 *            calculation share the same scheduler.
 	 * @param initialHash
 	 *            The hash of the message.
 	 * @param listener
 	 *            The listener to inform if a result was found.
 	 * @param targetLoad
 	 *            The system load that should be created by this worker.
+	 * @param token
+	 *            Tells the worker when to stop. All workers of a calculation
+	 *            share the same token.
+	 */
+	public POWWorker(long target, NonceScheduler scheduler, byte[] initialHash, POWListener listener,
+			float targetLoad, CancellationToken token) 
+	{
+		this(target, scheduler, initialHash, listener, new LoadGovernor(targetLoad, 1), token);
+	}
+
+	/**
+	 * Creates a new POWWorker.
+	 * 
+	 * @param target
+	 *            The target collision quality.
+	 * @param scheduler
+	 *            Hands out the chunks of nonces to try. All workers of a
+	 *            calculation share the same scheduler.
+	 * @param initialHash
+	 *            The hash of the message.
+	 * @param listener
+	 *            The listener to inform if a result was found.
+	 * @param governor
+	 *            Controls the load. Workers that share a governor are
+	 *            controlled together.
+	 * @param token
+	 *            Tells the worker when to stop. All workers of a calculation
+	 *            share the same token.
 	 */
-	public POWWorker(long target, long startNonce, long increment, byte[] initialHash, POWListener listener,
-			float targetLoad, long maxTime) 
+	public POWWorker(long target, NonceScheduler scheduler, byte[] initialHash, POWListener listener,
+			LoadGovernor governor, CancellationToken token) 
 	{
 		if (listener == null) 
 		{
@@ -89,21 +142,12 @@ public class POWWorker implements Runnable
 		}
 
 		this.target = target;
-		this.nonce = startNonce;
+		this.scheduler = scheduler;
 		this.initialHash = initialHash;
 		this.listener = listener;
-		this.targetLoad = targetLoad;
-		this.increment = increment;
-		this.maxTime = maxTime;
-		
-		try 
-		{
-			sha512 = MessageDigest.getInstance("SHA-512");
-		} 
-		catch (NoSuchAlgorithmException e) 
-		{
-			throw new RuntimeException("SHA-512 not supported!", e);
-		}
+		this.governor = governor;
+		this.token = token;
+		this.trial = Sha512Backends.getDefault().newTrial(initialHash);
 	}
 
 	/**
@@ -135,15 +179,137 @@ public class POWWorker implements Runnable
 		return nonce;
 	}
 	
+	/**
+	 * Returns the trial value of the valid nonce, the number the POW compares
+	 * to the target.
+	 * 
+	 * @return The trial value, or -1 if no success was reported.
+	 */
+	public long getTrialValue()
+	{
+		return trialValue;
+	}
+	
 	public boolean getSuccessResult()
 	{
 		return POWSuccessful;
 	}
 	
-	public int getHashesCalculated()
+	/**
+	 * Returns true if the worker stopped because all nonces of the range of
+	 * its scheduler were handed out.
+	 * 
+	 * @return True if the range is used up.
+	 */
+	public boolean isExhausted()
+	{
+		return exhausted;
+	}
+	
+	/**
+	 * Returns the number of hashes calculated so far. Updated after every
+	 * batch of nonces, so it can also be read while the worker is running.
+	 * 
+	 * @return The number of hashes calculated so far.
+	 */
+	public long getHashesCalculated()
 	{
 		return hashesCalculated;
 	}
+	
+	/**
+	 * Makes the worker publish its progress to the given counters. Must be
+	 * called before the worker is started.
+	 * 
+	 * @param newCounters The counters.
+	 * @param slot The slot of this worker in the counters.
+	 */
+	public void setCounters(PowCounters newCounters, int slot)
+	{
+		counters = newCounters;
+		counterSlot = slot;
+	}
+	
+	/**
+	 * Makes the worker do the trials of the given function instead of double
+	 * SHA-512. Must be called before the worker is started.
+	 * 
+	 * @param function The function.
+	 */
+	public void setFunction(ProofOfWorkFunction function)
+	{
+		if (!(function instanceof DoubleSha512Function))
+		{
+			trial = function.newTrial(initialHash);
+		}
+	}
+	
+	/**
+	 * Makes the worker record its progress in the given checkpoint. Must be
+	 * called before the worker is started.
+	 * 
+	 * @param newCheckpoint The checkpoint.
+	 * @param slot The slot of this worker in the checkpoint.
+	 */
+	public void setCheckpoint(PowCheckpoint newCheckpoint, int slot)
+	{
+		checkpoint = newCheckpoint;
+		checkpointSlot = slot;
+	}
+	
+	/**
+	 * Makes run() return after the given time, at the end of a chunk, so the
+	 * thread can run other work in between. A later run() continues with a
+	 * new chunk. Must be called before the worker is started.
+	 * 
+	 * @param millis The time slice in milliseconds, or 0 to run until the
+	 *            worker is stopped.
+	 */
+	public void setTimeSlice(long millis)
+	{
+		timeSlice = millis;
+	}
+	
+	/**
+	 * Returns true if the last run() returned because its time slice was used
+	 * up, and not because the worker stopped.
+	 * 
+	 * @return True if run() should be called again.
+	 */
+	public boolean hasYielded()
+	{
+		return yielded;
+	}
+	
+	/**
+	 * Takes the next chunk from the scheduler and records it in the
+	 * checkpoint, if there is one.
+	 * 
+	 * @param size The size of the chunk.
+	 * @return The first nonce of the chunk.
+	 */
+	private long nextChunk(int size)
+	{
+		long start = scheduler.nextChunk(size);
+		
+		if (checkpoint != null)
+		{
+			checkpoint.record(checkpointSlot, start);
+			checkpoint.recordCursor(scheduler.getCursor());
+		}
+		
+		return start;
+	}
+	
+	/**
+	 * Returns true if the worker should stop before the next chunk.
+	 * 
+	 * @return True if the worker should stop.
+	 */
+	private boolean isStopped()
+	{
+		return stop || token.isCancelled();
+	}
 
 	/**
 	 * Calculates the POW.
@@ -152,88 +318,171 @@ public class POWWorker implements Runnable
 	public void run() 
 	{
 		running = true;
+		yielded = false;
+		
+		token.start();
 		
-		startTime = System.currentTimeMillis();
+		Thread thread = Thread.currentThread();
+		int priority = thread.getPriority();
+		thread.setPriority(governor.getPriority());
 
-		int iterations = 100 * ROUND_TIME;
-		long sleepTime = (long) (ROUND_TIME * (1 - targetLoad));
-		long result = Long.MAX_VALUE;
-		long nonce = this.nonce;
+		// The first round is short, it only measures the nonce rate. After a
+		// time slice the sizes of the last one are kept.
+		int iterations = resumeIterations;
+		int chunkSize = resumeChunkSize;
+		long nonce = nextChunk(chunkSize);
+		long chunkEnd = scheduler.getChunkEnd(nonce, chunkSize);
+		long chunkStart = System.nanoTime();
+		long sliceEnd = chunkStart + timeSlice * 1000000;
 
-		float topLoad = targetLoad * 1.1f;
-		float bottomLoad = targetLoad * 0.9f;
-		
-		while (!stop) 
+		while (!isStopped() && !yielded) 
 		{
+			double duty = governor.getDuty();
 			long ls = System.nanoTime();
-			byte[] hash;
+			int remaining = iterations;
+			long done = 0;
 
-			for (int i = 0; i < iterations; i++) 
+			// The stop request and the deadline are only checked between
+			// batches, a batch never exceeds the current chunk.
+			while (remaining > 0 && !isStopped())
 			{
-				sha512.reset();
-				sha512.update(Util.getBytes(nonce));
-				hash = sha512.digest(initialHash);
-				sha512.reset();
-				hash = sha512.digest(hash);
+				if (nonce == chunkEnd)
+				{
+					long now = System.nanoTime();
+					
+					if (token.hasExpired(now))
+					{
+						LOG.info("Failed to find a valid nonce in the time allowed");
+						stop();
+						this.nonce = nonce;
+						listener.powFinished(this);
+						break;
+					}
+					
+					if (timeSlice > 0 && now - sliceEnd >= 0)
+					{
+						// Between chunks nothing is lost, the next run
+						// takes a new one.
+						yielded = true;
+						break;
+					}
+					
+					if (chunkEnd < scheduler.getEnd())
+					{
+						chunkSize = NonceScheduler.adaptChunkSize(chunkSize, now - chunkStart);
+						nonce = nextChunk(chunkSize);
+						chunkEnd = scheduler.getChunkEnd(nonce, chunkSize);
+						chunkStart = now;
+					}
+					
+					if (nonce == chunkEnd)
+					{
+						// The range is used up, later chunks would start even
+						// further behind its end.
+						stop();
+						exhausted = true;
+						this.nonce = nonce - 1;
+						listener.powFinished(this);
+						break;
+					}
+				}
 				
-				hashesCalculated = hashesCalculated + 2;
-								
-				result = Util.getLong(hash);
-
-				if (result <= target && result >= 0) 
+				int count = (int) Math.min(remaining, chunkEnd - nonce);
+				
+				long found = search(nonce, count);
+				
+				if (found >= 0)
 				{
-					Log.i(TAG, "Found a valid nonce!");
+					publish(found - nonce + 1);
+					done += found - nonce + 1;
+					
+					LOG.info("Found a valid nonce!");
 					stop();
-					this.nonce = nonce;
+					this.nonce = found;
+					trialValue = trial.trial(found);
 					POWSuccessful = true;
 					listener.powFinished(this);
 					break;
 				}
 				
-				if (startTime + (maxTime * 1000) < System.currentTimeMillis())
+				publish(count);
+				done += count;
+				nonce += count;
+				remaining -= count;
+				
+				if (checkpoint != null)
 				{
-					Log.i(TAG, "Failed to find a valid nonce in the time allowed");
-					stop();
-					this.nonce = nonce;
-					listener.powFinished(this);
-					break;
+					checkpoint.record(checkpointSlot, nonce);
 				}
-
-				nonce += increment;
 			}
 
 			long lh = System.nanoTime();
+			long sleepTime = (long) (ROUND_TIME * (1 - duty));
 
-			if (sleepTime > 0) 
+			if (sleepTime > 0 && !isStopped() && !yielded) 
 			{
 				try 
 				{
-					Thread.sleep(sleepTime);
+					token.sleep(sleepTime);
 				} 
 				catch (InterruptedException e) 
 				{
-					LOG.log(Level.SEVERE, "Sleeping interrupted.", e);
-					System.exit(1);
+					// Being interrupted means the owner of this thread wants it back.
+					LOG.info("Sleeping interrupted, stopping.");
+					stop();
+					Thread.currentThread().interrupt();
 				}
 			}
 
 			long lf = System.nanoTime();
+			governor.report(done, lh - ls, lf);
 
-			float load = ((float) (lh - ls) / (float) (lf - ls));
-			//System.out.println("Load: " + load);
-
-			if (load > topLoad) 
-			{
-				iterations -= iterations >> 8;
-				System.out.println("iterations: " + iterations);
-			} 
-			else if (load < bottomLoad) 
+			// The next round calculates for its part of the round time at the
+			// nonce rate of this round.
+			if (done > 0 && lh > ls)
 			{
-				iterations += iterations >> 8;
-				System.out.println("iterations: " + iterations);
+				double nonces = done * governor.getDuty() * ROUND_TIME * 1000000 / (lh - ls);
+				iterations = (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, nonces));
 			}
 		}
 
+		resumeChunkSize = chunkSize;
+		resumeIterations = iterations;
+		thread.setPriority(priority);
+		
+		if (!yielded)
+		{
+			token.acknowledge();
+		}
+		
 		running = false;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Publishes the progress of a batch. Only this worker writes the
+	 * counters, so there is no contention.
+	 * 
+	 * @param nonces The number of nonces tried in the batch.
+	 */
+	private void publish(long nonces)
+	{
+		hashesCalculated = hashesCalculated + 2 * nonces;
+		
+		if (counters != null)
+		{
+			counters.add(counterSlot, nonces, System.nanoTime());
+		}
+	}
+	
+	/**
+	 * Does the trials for {@code count} consecutive nonces.
+	 * 
+	 * @param from The first nonce.
+	 * @param count The number of nonces.
+	 * @return The first nonce that fulfills the target, or -1 if there is none.
+	 */
+	long search(long from, int count)
+	{
+		return trial.search(from, count, target);
+	}
+}
@@ -0,0 +1,281 @@
+package sibbo.bitmessage.android;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calculates the initial hash of payloads that are stored in files, without
+ * loading them onto the heap.<br />
+ * <br />
+ * The file is read in pieces of {@link #BUFFER_SIZE} bytes into a direct
+ * buffer, and every piece is fed to the digest before the next one is read.
+ * Each thread has one such buffer and reuses it for every file it hashes, so
+ * the memory used stays the same whatever the size and the number of the
+ * payloads. Unlike mapped windows, which are only unmapped by the garbage
+ * collector, the buffer takes no address space beyond its own.<br />
+ * <br />
+ * Several payloads are hashed in parallel by the threads of a pool, each with
+ * its own digest.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PayloadHasher
+{
+	/** The number of bytes read at a time. */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/** The read buffer of each thread. */
+	private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>()
+	{
+		@Override
+		protected ByteBuffer initialValue()
+		{
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private final ExecutorService pool;
+
+	private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>()
+	{
+		@Override
+		protected MessageDigest initialValue()
+		{
+			return Sha512Backends.getDefault().newDigest();
+		}
+	};
+
+	private final AtomicLong hashedBytes = new AtomicLong();
+	private final AtomicLong hashingNanos = new AtomicLong();
+
+	/**
+	 * Creates a hasher with one thread per CPU.
+	 */
+	public PayloadHasher()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a new PayloadHasher.
+	 *
+	 * @param threads The number of threads that hash payloads in parallel.
+	 */
+	public PayloadHasher(int threads)
+	{
+		if (threads < 1)
+		{
+			throw new IllegalArgumentException("threads must be at least 1.");
+		}
+
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Payload Hasher No. " + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Returns the sha512 sum of a file.
+	 *
+	 * @param file The file.
+	 * @return The sha512 sum of the whole file.
+	 * @throws IOException If the file can't be read.
+	 */
+	public static byte[] sha512(File file) throws IOException
+	{
+		return sha512(Sha512Backends.getDefault().newDigest(), file);
+	}
+
+	/**
+	 * Returns the sha512 sum of a region of a file.
+	 *
+	 * @param channel The channel of the file. Its position is not changed.
+	 * @param position The position of the first byte.
+	 * @param length The number of bytes.
+	 * @return The sha512 sum of the region.
+	 * @throws IOException If the file can't be read.
+	 */
+	public static byte[] sha512(FileChannel channel, long position, long length) throws IOException
+	{
+		return sha512(Sha512Backends.getDefault().newDigest(), channel, position, length);
+	}
+
+	private static byte[] sha512(MessageDigest sha512, File file) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+
+		try
+		{
+			FileChannel channel = in.getChannel();
+
+			return sha512(sha512, channel, 0, channel.size());
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static byte[] sha512(MessageDigest sha512, FileChannel channel, long position, long length)
+			throws IOException
+	{
+		if (position < 0 || length < 0 || position + length > channel.size())
+		{
+			throw new IllegalArgumentException("The region is not inside the file.");
+		}
+
+		sha512.reset();
+
+		ByteBuffer buffer = BUFFERS.get();
+		long done = 0;
+
+		while (done < length)
+		{
+			buffer.clear();
+			buffer.limit((int) Math.min(BUFFER_SIZE, length - done));
+
+			int read = channel.read(buffer, position + done);
+
+			if (read < 0)
+			{
+				throw new EOFException("The file ended within the region.");
+			}
+
+			buffer.flip();
+			sha512.update(buffer);
+			done += read;
+		}
+
+		return sha512.digest();
+	}
+
+	/**
+	 * Hashes a file in the background.
+	 *
+	 * @param file The file.
+	 * @return The future sha512 sum of the file.
+	 */
+	public Future<byte[]> submit(final File file)
+	{
+		return pool.submit(new Callable<byte[]>()
+		{
+			@Override
+			public byte[] call() throws IOException
+			{
+				return hash(file);
+			}
+		});
+	}
+
+	/**
+	 * Hashes several files in parallel and waits until all are done.
+	 *
+	 * @param files The files.
+	 * @return The sha512 sums, in the order of the files.
+	 * @throws IOException If a file can't be read.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public List<byte[]> hashAll(List<File> files) throws IOException, InterruptedException
+	{
+		List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(files.size());
+
+		for (File file : files)
+		{
+			futures.add(submit(file));
+		}
+
+		List<byte[]> result = new ArrayList<byte[]>(files.size());
+
+		try
+		{
+			for (Future<byte[]> future : futures)
+			{
+				result.add(future.get());
+			}
+		}
+		catch (ExecutionException e)
+		{
+			for (Future<byte[]> future : futures)
+			{
+				future.cancel(false);
+			}
+
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException) e.getCause();
+			}
+
+			throw new IllegalStateException("Hashing failed.", e.getCause());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Hashes a file in the calling thread, with the digest of the thread.
+	 *
+	 * @param file The file.
+	 * @return The sha512 sum of the file.
+	 * @throws IOException If the file can't be read.
+	 */
+	public byte[] hash(File file) throws IOException
+	{
+		long start = System.nanoTime();
+		byte[] result = sha512(digests.get(), file);
+
+		hashingNanos.addAndGet(System.nanoTime() - start);
+		hashedBytes.addAndGet(file.length());
+
+		return result;
+	}
+
+	/**
+	 * Returns the number of bytes one thread hashes per second, measured over
+	 * the time the threads spent hashing.
+	 *
+	 * @return The bytes per second per thread.
+	 */
+	public double getBytesPerSecond()
+	{
+		long nanos = hashingNanos.get();
+
+		return nanos == 0 ? 0 : hashedBytes.get() * 1e9 / nanos;
+	}
+
+	public long getHashedBytes()
+	{
+		return hashedBytes.get();
+	}
+
+	/**
+	 * Stops the hashing threads.
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,235 @@
+package sibbo.bitmessage.android;
+
+/**
+ * Measures the POW hash rate in a way that makes runs comparable.<br />
+ * <br />
+ * Every run hashes the same initial hash, derived from a seed, with the same
+ * number of threads, and tries exactly the same number of nonces: the target is
+ * one no nonce can fulfill, and the nonce range is limited (see
+ * {@link POWCalculator#setMaxNonces(long)}). A warm-up run that is not counted
+ * comes first, so the JIT compiler has compiled the hash code before the
+ * measurement. The mean and the standard deviation of the hash rates of the
+ * runs are reported.<br />
+ * <br />
+ * Any {@link ProofOfWorkFunction} can be benchmarked. Results of another
+ * function than double SHA-512 are stored under its name in front of the
+ * backend name, so they are only compared with results of the same function.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowBenchmark
+{
+	/** The default number of nonces of every run. */
+	public static final long DEFAULT_NONCES = 1 << 20;
+
+	/** The default number of measured runs. */
+	public static final int DEFAULT_RUNS = 5;
+
+	/** The target no nonce fulfills, so every run tries all nonces. */
+	private static final long NO_TARGET = -1;
+
+	private long seed;
+	private long nonces = DEFAULT_NONCES;
+	private int runs = DEFAULT_RUNS;
+	private int warmUpRuns = 1;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private ProofOfWorkFunction function = ProofOfWorkFunctions.DOUBLE_SHA512;
+	private int maxTime = 600;
+	private String device = System.getProperty("os.name") + " " + System.getProperty("os.arch");
+
+	/** The calculator of the running run, used to cancel it. */
+	private volatile POWCalculator running;
+
+	/** Set by {@link #cancel()}. */
+	private volatile boolean cancelled;
+
+	/**
+	 * Sets the seed the initial hash is derived from.
+	 *
+	 * @param newSeed The seed.
+	 */
+	public void setSeed(long newSeed)
+	{
+		seed = newSeed;
+	}
+
+	/**
+	 * Sets the number of nonces every run tries.
+	 *
+	 * @param newNonces The number of nonces.
+	 */
+	public void setNonces(long newNonces)
+	{
+		if (newNonces < 1)
+		{
+			throw new IllegalArgumentException("newNonces must be at least 1.");
+		}
+
+		nonces = newNonces;
+	}
+
+	/**
+	 * Sets the number of measured runs, and of the warm-up runs before them.
+	 *
+	 * @param newRuns The number of measured runs.
+	 * @param newWarmUpRuns The number of warm-up runs.
+	 */
+	public void setRuns(int newRuns, int newWarmUpRuns)
+	{
+		if (newRuns < 1 || newWarmUpRuns < 0)
+		{
+			throw new IllegalArgumentException("At least one run is needed.");
+		}
+
+		runs = newRuns;
+		warmUpRuns = newWarmUpRuns;
+	}
+
+	/**
+	 * Sets the number of worker threads. The default is one per CPU.
+	 *
+	 * @param newThreads The number of threads.
+	 */
+	public void setThreads(int newThreads)
+	{
+		if (newThreads < 1)
+		{
+			throw new IllegalArgumentException("newThreads must be at least 1.");
+		}
+
+		threads = newThreads;
+	}
+
+	/**
+	 * Sets the function that is benchmarked. The default is
+	 * {@link ProofOfWorkFunctions#DOUBLE_SHA512}.
+	 *
+	 * @param newFunction The function.
+	 */
+	public void setFunction(ProofOfWorkFunction newFunction)
+	{
+		function = newFunction;
+	}
+
+	/**
+	 * Sets the time after which a run is given up.
+	 *
+	 * @param newMaxTime The maximum time of a run in seconds.
+	 */
+	public void setMaxTime(int newMaxTime)
+	{
+		maxTime = newMaxTime;
+	}
+
+	/**
+	 * Sets the name the device is stored under in the history. The default is
+	 * the operating system and architecture.
+	 *
+	 * @param newDevice The name of the device.
+	 */
+	public void setDevice(String newDevice)
+	{
+		device = newDevice;
+	}
+
+	/**
+	 * Returns the initial hash the benchmark uses for a seed.
+	 *
+	 * @param seed The seed.
+	 * @return The initial hash.
+	 */
+	public static byte[] getInitialHash(long seed)
+	{
+		return Digest.sha512(Util.getBytes(seed));
+	}
+
+	/**
+	 * Runs the benchmark.<br />
+	 * <b>WARNING: This can take a long time.</b>
+	 *
+	 * @return The result, or null if the benchmark was cancelled or a run did
+	 *         not finish in time.
+	 */
+	public BenchmarkResult run()
+	{
+		cancelled = false;
+
+		byte[] initialHash = getInitialHash(seed);
+		double[] rates = new double[runs];
+
+		for (int i = -warmUpRuns; i < runs; i++)
+		{
+			POWCalculator pow = new POWCalculator();
+			pow.setThreadCount(threads);
+			pow.setFunction(function);
+			pow.setTarget(NO_TARGET);
+			pow.setInitialHash(initialHash);
+			pow.setMaxNonces(nonces);
+			pow.setLoadGovernor(new LoadGovernor(LoadGovernor.Profile.MAX_THROUGHPUT));
+			running = pow;
+
+			if (cancelled)
+			{
+				return null;
+			}
+
+			long start = System.nanoTime();
+			pow.execute(maxTime);
+			long end = System.nanoTime();
+
+			running = null;
+
+			if (pow.getOutcome() != PowOutcome.EXHAUSTED)
+			{
+				return null;
+			}
+
+			if (i >= 0)
+			{
+				rates[i] = pow.getHashesCalculated() * 1e9 / (end - start);
+			}
+		}
+
+		double mean = 0;
+
+		for (double rate : rates)
+		{
+			mean += rate / runs;
+		}
+
+		double variance = 0;
+
+		for (double rate : rates)
+		{
+			variance += (rate - mean) * (rate - mean);
+		}
+
+		double deviation = runs > 1 ? Math.sqrt(variance / (runs - 1)) : 0;
+		String backend = Sha512Backends.getDefault().getName();
+
+		if (!(function instanceof DoubleSha512Function))
+		{
+			backend = function.getName() + "/" + backend;
+		}
+
+		return new BenchmarkResult(System.currentTimeMillis(), device, Runtime.getRuntime().availableProcessors(),
+				threads, backend, seed, nonces, runs, mean, deviation, 0, false);
+	}
+
+	/**
+	 * Cancels the benchmark. Can be called from any thread, {@link #run()}
+	 * then returns null.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+
+		POWCalculator pow = running;
+
+		if (pow != null)
+		{
+			pow.cancel();
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package sibbo.bitmessage.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Records how far the workers of a POW job got, so a new run of the same job
+ * can continue where the last one stopped instead of starting at nonce 0
+ * again.<br />
+ * <br />
+ * The record is a small memory-mapped file per job, named after its function,
+ * initial hash and target. Every worker owns one slot in it and writes the next
+ * nonce it is going to try after every batch. That is a plain memory write, no
+ * system call, and the page cache keeps it even if the process is killed.
+ * Only a crash of the whole device can lose the writes since the last
+ * {@link #close()}.<br />
+ * <br />
+ * Workers take their chunks in ascending order from a shared cursor, so all
+ * nonces below the smallest slot have been tried. That smallest slot is the
+ * frontier a new run resumes from. Nonces above it that were already tried by
+ * faster workers are tried again, which is at most a few chunks per worker.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowCheckpoint
+{
+	private static final Logger LOG = Logger.getLogger(PowCheckpoint.class.getName());
+
+	/** Identifies checkpoint files, "POWC". */
+	private static final int MAGIC = 0x504f5743;
+
+	private static final int VERSION = 2;
+
+	private static final int INITIAL_HASH_POSITION = 8;
+	private static final int TARGET_POSITION = 72;
+	private static final int SLOTS_POSITION = 80;
+	private static final int CURSOR_POSITION = 88;
+
+	/** The first 8 bytes of the SHA-512 of the function name. */
+	private static final int FUNCTION_POSITION = 96;
+
+	/** The position of the first slot. */
+	private static final int FIRST_SLOT = 128;
+
+	/** The distance between two slots, one cache line, so workers don't slow each other down. */
+	private static final int SLOT_STRIDE = 64;
+
+	/** The value of a slot whose worker has not taken a chunk yet. */
+	private static final long UNUSED = -1;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer buffer;
+	private final int slots;
+	private final long frontier;
+
+	private PowCheckpoint(File file, RandomAccessFile raf, MappedByteBuffer buffer, int slots, long frontier)
+	{
+		this.file = file;
+		this.raf = raf;
+		this.buffer = buffer;
+		this.slots = slots;
+		this.frontier = frontier;
+	}
+
+	/**
+	 * Opens the checkpoint of a job, or creates it if there is none yet.
+	 *
+	 * @param directory The directory of the checkpoint files.
+	 * @param function The name of the function the trials are done with, see
+	 *            {@link ProofOfWorkFunction#getName()}.
+	 * @param initialHash The hash of the message.
+	 * @param target The target collision quality.
+	 * @param workers The number of workers of the new run.
+	 * @return The checkpoint, prepared for the new run.
+	 * @throws IOException If the file can't be read or written.
+	 */
+	public static PowCheckpoint open(File directory, String function, byte[] initialHash, long target,
+			int workers) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Could not create " + directory);
+		}
+
+		byte[] name = function.getBytes("UTF-8");
+		long functionKey = Util.getLong(Digest.sha512(name));
+		File file = getFile(directory, name, initialHash, target);
+		long frontier = 0;
+
+		if (file.isFile())
+		{
+			frontier = readFrontier(file, functionKey, initialHash, target);
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try
+		{
+			int size = FIRST_SLOT + workers * SLOT_STRIDE;
+			raf.setLength(size);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+			// The cursor is written before the slots are cleared, so the
+			// frontier is never lost, even if this is interrupted.
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+
+			for (int i = 0; i < 64; i++)
+			{
+				buffer.put(INITIAL_HASH_POSITION + i, initialHash[i]);
+			}
+
+			buffer.putLong(TARGET_POSITION, target);
+			buffer.putLong(CURSOR_POSITION, frontier);
+			buffer.putLong(FUNCTION_POSITION, functionKey);
+			buffer.putInt(SLOTS_POSITION, workers);
+
+			for (int i = 0; i < workers; i++)
+			{
+				buffer.putLong(FIRST_SLOT + i * SLOT_STRIDE, UNUSED);
+			}
+
+			if (frontier > 0)
+			{
+				LOG.info("Resuming POW at nonce " + frontier);
+			}
+
+			return new PowCheckpoint(file, raf, buffer, workers, frontier);
+		}
+		catch (IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the file of a job's checkpoint.
+	 */
+	private static File getFile(File directory, byte[] function, byte[] initialHash, long target)
+	{
+		// The name has any length, the fields after it don't.
+		byte[] key = Digest.sha512(function, initialHash, Util.getBytes(target));
+		StringBuilder name = new StringBuilder("pow-");
+
+		for (int i = 0; i < 16; i++)
+		{
+			name.append(Character.forDigit(key[i] >> 4 & 0xF, 16));
+			name.append(Character.forDigit(key[i] & 0xF, 16));
+		}
+
+		return new File(directory, name.append(".ckpt").toString());
+	}
+
+	/**
+	 * Reads the frontier of an existing checkpoint file.
+	 *
+	 * @return The frontier, or 0 if the file does not belong to the job or is
+	 *         damaged.
+	 */
+	private static long readFrontier(File file, long functionKey, byte[] initialHash, long target)
+			throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try
+		{
+			if (raf.length() < FIRST_SLOT || raf.readInt() != MAGIC || raf.readInt() != VERSION)
+			{
+				return 0;
+			}
+
+			byte[] hash = new byte[64];
+			raf.readFully(hash);
+
+			if (!Arrays.equals(hash, initialHash) || raf.readLong() != target)
+			{
+				return 0;
+			}
+
+			int slots = raf.readInt();
+			raf.seek(CURSOR_POSITION);
+			long frontier = raf.readLong();
+
+			if (raf.readLong() != functionKey)
+			{
+				return 0;
+			}
+
+			if (slots < 0 || raf.length() < FIRST_SLOT + (long) slots * SLOT_STRIDE)
+			{
+				return 0;
+			}
+
+			for (int i = 0; i < slots; i++)
+			{
+				raf.seek(FIRST_SLOT + i * SLOT_STRIDE);
+				long slot = raf.readLong();
+
+				if (slot != UNUSED)
+				{
+					frontier = Math.min(frontier, slot);
+				}
+			}
+
+			return Math.max(0, frontier);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the nonce the new run starts at. All nonces below it were tried
+	 * by earlier runs.
+	 *
+	 * @return The first nonce to try.
+	 */
+	public long getFrontier()
+	{
+		return frontier;
+	}
+
+	public int getSlots()
+	{
+		return slots;
+	}
+
+	/**
+	 * Records the next nonce a worker is going to try. A worker must only call
+	 * this for its own slot, and only with nonces of the chunk it is working
+	 * on or just took.
+	 *
+	 * @param slot The slot of the worker.
+	 * @param nonce The next nonce the worker tries.
+	 */
+	public void record(int slot, long nonce)
+	{
+		buffer.putLong(FIRST_SLOT + slot * SLOT_STRIDE, nonce);
+	}
+
+	/**
+	 * Records the cursor of the scheduler, which is the frontier as long as no
+	 * worker holds a chunk. Values written by workers in the wrong order only
+	 * make the frontier smaller, which is safe.
+	 *
+	 * @param cursor The first nonce that was not handed out yet.
+	 */
+	public void recordCursor(long cursor)
+	{
+		buffer.putLong(CURSOR_POSITION, cursor);
+	}
+
+	/**
+	 * Writes the checkpoint to the device and closes the file. Workers that
+	 * still record afterwards don't cause any harm.
+	 */
+	public void close()
+	{
+		try
+		{
+			buffer.force();
+			raf.close();
+		}
+		catch (IOException e)
+		{
+			LOG.warning("Could not close the checkpoint " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * Deletes the checkpoint, e.g. because a valid nonce was found and the
+	 * job will never run again.
+	 */
+	public void delete()
+	{
+		close();
+
+		if (!file.delete())
+		{
+			LOG.warning("Could not delete the checkpoint " + file);
+		}
+	}
+}
@@ -0,0 +1,709 @@
+package sibbo.bitmessage.android;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Distributes the POW of one job at a time over {@link PowNode}s, worker
+ * processes that connect over TCP, e.g. on a pool of build machines.<br />
+ * <br />
+ * The nonce space of a job is handed out in leases, ranges of nonces that take
+ * a node about {@link #setLeaseTime(long) the lease time}. Nodes report their
+ * progress every {@link PowNode#PROGRESS_INTERVAL} milliseconds. A lease whose
+ * node did not report for the stall timeout, or whose node disconnected, is
+ * handed out again, whole, to the next node that asks. The first valid nonce
+ * a node reports ends the job: the coordinator checks it itself and tells all
+ * nodes to stop.<br />
+ * <br />
+ * The protocol is line based ASCII, numbers are decimal and hashes
+ * hexadecimal:
+ *
+ * <pre>
+ * node:        HELLO &lt;name&gt; &lt;threads&gt;
+ * coordinator: JOB &lt;job&gt; &lt;initial hash&gt; &lt;target&gt;
+ * node:        LEASE &lt;job&gt;
+ * coordinator: LEASE &lt;job&gt; &lt;lease&gt; &lt;first nonce&gt; &lt;end nonce&gt;
+ * node:        PROGRESS &lt;lease&gt; &lt;nonces tried&gt;
+ * node:        DONE &lt;lease&gt; &lt;nonces tried&gt;
+ * node:        FOUND &lt;lease&gt; &lt;nonce&gt;
+ * coordinator: REJECT &lt;lease&gt;       the nonce was not valid
+ * coordinator: CANCEL &lt;lease&gt;       the lease was handed out again
+ * coordinator: STOP &lt;job&gt;           the job is over
+ * </pre>
+ *
+ * A node asks for the next lease after DONE, REJECT and CANCEL. There is no
+ * authentication, so the port must only be reachable by trusted machines.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowCoordinator
+{
+	private static final Logger LOG = Logger.getLogger(PowCoordinator.class.getName());
+
+	/** The default time a lease should take a node in milliseconds. */
+	public static final long DEFAULT_LEASE_TIME = 10000;
+
+	/** The default time without progress after which a lease is handed out again. */
+	public static final long DEFAULT_STALL_TIMEOUT = 5000;
+
+	/** The smallest lease. */
+	public static final long MIN_LEASE_SIZE = 1 << 16;
+
+	/** The nonces per thread and second assumed until a node reported. */
+	private static final long INITIAL_THREAD_RATE = 1 << 18;
+
+	/** A range of nonces handed out to a node. */
+	private static final class Lease
+	{
+		private final long id;
+		private final long first;
+		private final long end;
+		private final Connection connection;
+		private long lastProgress = System.nanoTime();
+		private long tried;
+
+		private Lease(long id, long first, long end, Connection connection)
+		{
+			this.id = id;
+			this.first = first;
+			this.end = end;
+			this.connection = connection;
+		}
+	}
+
+	/** The state of the job that is being solved. */
+	private static final class Job
+	{
+		private final int id;
+		private final byte[] initialHash;
+		private final long target;
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		/** The first nonce that was never handed out. */
+		private long frontier;
+
+		/** Ranges of leases that were given up, handed out before the frontier. */
+		private final LinkedList<long[]> returned = new LinkedList<long[]>();
+
+		private final Map<Long, Lease> leases = new HashMap<Long, Lease>();
+		private long nextLease;
+		private long doneNonces;
+		private volatile long nonce = -1;
+
+		private Job(int id, byte[] initialHash, long target)
+		{
+			this.id = id;
+			this.initialHash = initialHash;
+			this.target = target;
+		}
+	}
+
+	/** The connection to one node. */
+	private final class Connection implements Runnable
+	{
+		private final Socket socket;
+		private final Writer out;
+		private String name;
+		private int threads = 1;
+
+		/** The nonces per second the node reported, or 0. */
+		private double rate;
+
+		private Connection(Socket socket) throws IOException
+		{
+			this.socket = socket;
+			this.out = new OutputStreamWriter(socket.getOutputStream(), "US-ASCII");
+			this.name = socket.getRemoteSocketAddress().toString();
+		}
+
+		/** Sends a line, a failure closes the connection. */
+		private void send(String line)
+		{
+			synchronized (out)
+			{
+				try
+				{
+					out.write(line + "\n");
+					out.flush();
+				}
+				catch (IOException e)
+				{
+					close();
+				}
+			}
+		}
+
+		private void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// Closed anyway
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+				String line;
+
+				while ((line = in.readLine()) != null)
+				{
+					try
+					{
+						handle(this, line.trim().split(" "));
+					}
+					catch (RuntimeException e)
+					{
+						LOG.warning("Ignoring a bad message from " + name + ": " + line);
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				LOG.fine("Connection to " + name + " failed: " + e);
+			}
+			finally
+			{
+				close();
+				disconnected(this);
+			}
+		}
+	}
+
+	private final ServerSocket server;
+	private final List<Connection> connections = new ArrayList<Connection>();
+	private long leaseTime = DEFAULT_LEASE_TIME;
+	private long stallTimeout = DEFAULT_STALL_TIMEOUT;
+
+	/** The job being solved, or null. */
+	private Job job;
+	private int nextJob = 1;
+
+	/** How the last job ended. */
+	private volatile PowOutcome outcome;
+
+	/** The number of leases that were handed out again. */
+	private volatile int reassignedLeases;
+
+	/** The number of nonces the last job tried. */
+	private volatile long noncesTried;
+
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new PowCoordinator and starts accepting nodes.
+	 *
+	 * @param port The port to listen on, 0 for any free port.
+	 * @throws IOException If the port can't be opened.
+	 */
+	public PowCoordinator(int port) throws IOException
+	{
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(port));
+
+		Thread acceptor = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				accept();
+			}
+		}, "POW Coordinator");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		Thread monitor = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				monitor();
+			}
+		}, "POW Coordinator Monitor");
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+	public int getPort()
+	{
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Sets the time a lease should take a node. Shorter leases lose less work
+	 * when a node fails, longer ones cause less traffic.
+	 *
+	 * @param newLeaseTime The time in milliseconds.
+	 */
+	public synchronized void setLeaseTime(long newLeaseTime)
+	{
+		if (newLeaseTime < 1)
+		{
+			throw new IllegalArgumentException("newLeaseTime must be at least 1.");
+		}
+
+		leaseTime = newLeaseTime;
+	}
+
+	/**
+	 * Sets the time without progress after which a lease is handed out again.
+	 *
+	 * @param newStallTimeout The timeout in milliseconds, more than
+	 *            {@link PowNode#PROGRESS_INTERVAL}.
+	 */
+	public synchronized void setStallTimeout(long newStallTimeout)
+	{
+		if (newStallTimeout <= PowNode.PROGRESS_INTERVAL)
+		{
+			throw new IllegalArgumentException("newStallTimeout must be more than the progress interval.");
+		}
+
+		stallTimeout = newStallTimeout;
+	}
+
+	/**
+	 * Returns the number of connected nodes.
+	 *
+	 * @return The number of nodes.
+	 */
+	public synchronized int getNodes()
+	{
+		return connections.size();
+	}
+
+	/**
+	 * Waits until the given number of nodes are connected.
+	 *
+	 * @param nodes The number of nodes.
+	 * @param timeoutMillis The maximum time to wait.
+	 * @return True if the nodes are connected.
+	 * @throws InterruptedException If the thread was interrupted.
+	 */
+	public synchronized boolean awaitNodes(int nodes, long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		while (connections.size() < nodes)
+		{
+			long wait = deadline - System.currentTimeMillis();
+
+			if (wait <= 0)
+			{
+				return false;
+			}
+
+			wait(wait);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Solves a POW with the connected nodes and those that connect while it
+	 * runs.<br />
+	 * <b>WARNING: This can take a long time.</b>
+	 *
+	 * @param initialHash The 64 byte hash of the message.
+	 * @param target The target.
+	 * @param maxTime The maximum time in seconds.
+	 * @return The valid nonce as 8 bytes, or null if the time ran out or the
+	 *         job was cancelled. See {@link #getOutcome()}.
+	 */
+	public byte[] solve(byte[] initialHash, long target, int maxTime)
+	{
+		if (initialHash == null || initialHash.length != 64)
+		{
+			throw new IllegalArgumentException("initialHash must be 64 bytes long.");
+		}
+
+		Job j;
+
+		synchronized (this)
+		{
+			if (job != null)
+			{
+				throw new IllegalStateException("A job is already running.");
+			}
+
+			j = new Job(nextJob++, initialHash.clone(), target);
+			job = j;
+
+			for (Connection c : connections)
+			{
+				c.send(getJobMessage(j));
+			}
+		}
+
+		boolean found = false;
+
+		try
+		{
+			found = j.finished.await(maxTime, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this)
+		{
+			job = null;
+
+			for (Connection c : connections)
+			{
+				c.send("STOP " + j.id);
+			}
+
+			long tried = j.doneNonces;
+
+			for (Lease l : j.leases.values())
+			{
+				tried += l.tried;
+			}
+
+			noncesTried = tried;
+		}
+
+		if (j.nonce >= 0)
+		{
+			outcome = PowOutcome.FOUND;
+			return Util.getBytes(j.nonce);
+		}
+
+		outcome = found || closed || Thread.currentThread().isInterrupted() ? PowOutcome.CANCELLED
+				: PowOutcome.TIMED_OUT;
+
+		return null;
+	}
+
+	/**
+	 * Cancels the running job. Can be called from any thread.
+	 */
+	public synchronized void cancel()
+	{
+		if (job != null)
+		{
+			job.finished.countDown();
+		}
+	}
+
+	/**
+	 * Returns how the last job ended.
+	 *
+	 * @return FOUND, TIMED_OUT or CANCELLED, or null if no job ran yet.
+	 */
+	public PowOutcome getOutcome()
+	{
+		return outcome;
+	}
+
+	/**
+	 * Returns the number of nonces the nodes reported for the last job.
+	 *
+	 * @return The number of nonces.
+	 */
+	public long getNoncesTried()
+	{
+		return noncesTried;
+	}
+
+	/**
+	 * Returns the number of leases that were handed out again because their
+	 * node stalled or disconnected.
+	 *
+	 * @return The number of leases.
+	 */
+	public int getReassignedLeases()
+	{
+		return reassignedLeases;
+	}
+
+	/**
+	 * Stops accepting nodes and disconnects all of them. A running job is
+	 * cancelled.
+	 */
+	public void close()
+	{
+		closed = true;
+		cancel();
+
+		try
+		{
+			server.close();
+		}
+		catch (IOException e)
+		{
+			// Closed anyway
+		}
+
+		List<Connection> all;
+
+		synchronized (this)
+		{
+			all = new ArrayList<Connection>(connections);
+			notifyAll();
+		}
+
+		for (Connection c : all)
+		{
+			c.close();
+		}
+	}
+
+	private void accept()
+	{
+		while (!closed)
+		{
+			try
+			{
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Connection c = new Connection(socket);
+				Thread t = new Thread(c, "POW Coordinator Connection " + c.name);
+				t.setDaemon(true);
+				t.start();
+			}
+			catch (IOException e)
+			{
+				if (!closed)
+				{
+					LOG.log(Level.WARNING, "Accepting a node failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands out the leases of stalled nodes again.
+	 */
+	private void monitor()
+	{
+		while (!closed)
+		{
+			try
+			{
+				Thread.sleep(PowNode.PROGRESS_INTERVAL);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+
+			synchronized (this)
+			{
+				if (job == null)
+				{
+					continue;
+				}
+
+				long now = System.nanoTime();
+				Iterator<Lease> i = job.leases.values().iterator();
+
+				while (i.hasNext())
+				{
+					Lease l = i.next();
+
+					if (now - l.lastProgress > stallTimeout * 1000000)
+					{
+						LOG.info("Node " + l.connection.name + " stalled, handing out lease " + l.id + " again");
+						i.remove();
+						giveUp(job, l);
+						l.connection.send("CANCEL " + l.id);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the range of a lease that is no longer worked on to the job. The
+	 * whole range is searched again, so the nonces the node reported for it
+	 * are not counted.
+	 */
+	private void giveUp(Job j, Lease l)
+	{
+		j.returned.add(new long[] { l.first, l.end });
+		reassignedLeases++;
+	}
+
+	private static String getJobMessage(Job j)
+	{
+		StringBuilder hex = new StringBuilder();
+
+		for (byte b : j.initialHash)
+		{
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+
+		return "JOB " + j.id + " " + hex + " " + j.target;
+	}
+
+	private synchronized void disconnected(Connection c)
+	{
+		if (!connections.remove(c))
+		{
+			return;
+		}
+
+		LOG.info("Node " + c.name + " disconnected");
+
+		if (job != null)
+		{
+			Iterator<Lease> i = job.leases.values().iterator();
+
+			while (i.hasNext())
+			{
+				Lease l = i.next();
+
+				if (l.connection == c)
+				{
+					i.remove();
+					giveUp(job, l);
+				}
+			}
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Handles a message of a node.
+	 */
+	private synchronized void handle(Connection c, String[] message)
+	{
+		String type = message[0];
+
+		if (type.equals("HELLO"))
+		{
+			c.name = message[1];
+			c.threads = Math.max(1, Integer.parseInt(message[2]));
+			connections.add(c);
+			LOG.info("Node " + c.name + " connected with " + c.threads + " threads");
+			notifyAll();
+
+			if (job != null)
+			{
+				c.send(getJobMessage(job));
+			}
+
+			return;
+		}
+
+		if (job == null)
+		{
+			return;
+		}
+
+		if (type.equals("LEASE"))
+		{
+			if (Integer.parseInt(message[1]) == job.id)
+			{
+				Lease l = newLease(job, c);
+				c.send("LEASE " + job.id + " " + l.id + " " + l.first + " " + l.end);
+			}
+
+			return;
+		}
+
+		Lease l = job.leases.get(Long.valueOf(Long.parseLong(message[1])));
+
+		if (type.equals("FOUND"))
+		{
+			long nonce = Long.parseLong(message[2]);
+			long value = Sha512Backends.getDefault().newTrial(job.initialHash).trial(nonce);
+
+			// Also a nonce of a lease that was handed out again is valid.
+			if (value >= 0 && value <= job.target)
+			{
+				LOG.info("Node " + c.name + " found a valid nonce: " + nonce);
+				job.nonce = nonce;
+				job.finished.countDown();
+			}
+			else
+			{
+				LOG.warning("Node " + c.name + " reported an invalid nonce: " + nonce);
+
+				if (l != null)
+				{
+					job.leases.remove(Long.valueOf(l.id));
+					giveUp(job, l);
+				}
+
+				c.send("REJECT " + message[1]);
+			}
+		}
+		else if (l != null && l.connection == c)
+		{
+			long tried = Long.parseLong(message[2]);
+			long now = System.nanoTime();
+
+			if (tried > l.tried)
+			{
+				c.rate = (tried - l.tried) * 1e9 / Math.max(1, now - l.lastProgress);
+			}
+
+			l.tried = tried;
+			l.lastProgress = now;
+
+			if (type.equals("DONE"))
+			{
+				job.leases.remove(Long.valueOf(l.id));
+				job.doneNonces += tried;
+			}
+		}
+	}
+
+	/**
+	 * Hands out a lease, from a given up range if there is one.
+	 */
+	private Lease newLease(Job j, Connection c)
+	{
+		long first;
+		long end;
+		long[] range = j.returned.poll();
+
+		if (range != null)
+		{
+			first = range[0];
+			end = range[1];
+		}
+		else
+		{
+			double rate = c.rate > 0 ? c.rate : c.threads * INITIAL_THREAD_RATE;
+			long size = Math.max(MIN_LEASE_SIZE, (long) (rate * leaseTime / 1000));
+			first = j.frontier;
+			end = first + size;
+			j.frontier = end;
+		}
+
+		Lease l = new Lease(j.nextLease++, first, end, c);
+		j.leases.put(Long.valueOf(l.id), l);
+
+		return l;
+	}
+}
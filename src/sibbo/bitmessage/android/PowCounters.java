@@ -0,0 +1,110 @@
+package sibbo.bitmessage.android;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Progress counters of the workers of one calculation.<br />
+ * <br />
+ * Every worker has its own slot, which only it writes, so updates never
+ * contend. The slots are {@link #STRIDE} longs apart, which puts them on
+ * different cache lines, and workers only publish once per batch of nonces.
+ * Readers on other threads see the values of the last finished batch.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowCounters
+{
+	/** The distance between two slots in longs (128 bytes, two cache lines). */
+	private static final int STRIDE = 16;
+
+	/** Offset of the number of nonces tried within a slot. */
+	private static final int NONCES = 0;
+
+	/** Offset of the time of the last update within a slot. */
+	private static final int LAST_UPDATE = 1;
+
+	/** The slots. */
+	private final AtomicLongArray values;
+
+	/** The number of slots. */
+	private final int workers;
+
+	/** The time at which the counters were created, in terms of System.nanoTime(). */
+	private final long startTime;
+
+	/**
+	 * Creates new counters.
+	 *
+	 * @param workers The number of workers.
+	 */
+	public PowCounters(int workers)
+	{
+		this.workers = workers;
+		this.values = new AtomicLongArray((workers + 1) * STRIDE);
+		this.startTime = System.nanoTime();
+
+		for (int i = 0; i < workers; i++)
+		{
+			values.set(index(i, LAST_UPDATE), startTime);
+		}
+	}
+
+	private static int index(int worker, int offset)
+	{
+		// Slot 0 is left empty so that the first used slot does not share a
+		// cache line with the array header.
+		return (worker + 1) * STRIDE + offset;
+	}
+
+	/**
+	 * Adds nonces to the counter of a worker. Must only be called by the
+	 * worker that owns the slot.
+	 *
+	 * @param worker The slot of the worker.
+	 * @param nonces The number of nonces the worker tried since the last call.
+	 * @param now The current time in terms of System.nanoTime().
+	 */
+	public void add(int worker, long nonces, long now)
+	{
+		int i = index(worker, NONCES);
+
+		// Only the owner writes, so a read and a write suffice, no CAS is
+		// needed. lazySet would be cheaper but is not available before API
+		// level 9.
+		values.set(i, values.get(i) + nonces);
+		values.set(index(worker, LAST_UPDATE), now);
+	}
+
+	public int getWorkers()
+	{
+		return workers;
+	}
+
+	public long getStartTime()
+	{
+		return startTime;
+	}
+
+	/**
+	 * Returns the number of nonces the given worker tried.
+	 *
+	 * @param worker The slot of the worker.
+	 * @return The number of nonces.
+	 */
+	public long getNonces(int worker)
+	{
+		return values.get(index(worker, NONCES));
+	}
+
+	/**
+	 * Returns the time of the last update of the given worker.
+	 *
+	 * @param worker The slot of the worker.
+	 * @return The time in terms of System.nanoTime().
+	 */
+	public long getLastUpdate(int worker)
+	{
+		return values.get(index(worker, LAST_UPDATE));
+	}
+}
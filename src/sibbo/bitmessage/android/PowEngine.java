@@ -0,0 +1,339 @@
+package sibbo.bitmessage.android;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-lived POW engine that owns a fixed pool of worker threads and accepts
+ * many jobs at once.<br />
+ * <br />
+ * Every job is split into a number of {@link POWWorker}s that is chosen by the
+ * {@link Policy} of the engine. The workers are queued on the pool in
+ * submission order, so jobs that do not fit onto the pool right now start as
+ * soon as threads become free. With {@link Policy#FAIR_SHARE} the workers
+ * run in time slices and queue up again after each, so the jobs take turns on
+ * the threads.<br />
+ * <br />
+ * A worker that throws is logged, and a job whose workers have all stopped
+ * without a result is finished as {@link PowOutcome#FAILED}.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowEngine
+{
+	/**
+	 * Determines how the threads of the pool are shared between jobs.
+	 */
+	public enum Policy
+	{
+		/** Every job uses all threads, jobs are calculated one after another. */
+		EXCLUSIVE,
+
+		/**
+		 * Every job uses all threads, but its workers only run for
+		 * {@link PowEngine#TIME_SLICE} milliseconds at a time and then queue
+		 * up behind the workers of the other jobs. The threads are shared
+		 * evenly between the running jobs, also with jobs submitted later.
+		 */
+		FAIR_SHARE,
+
+		/** Every job uses a single thread, up to pool size jobs run at once. */
+		SINGLE_THREAD
+	}
+
+	/** The time in milliseconds a worker of a {@link Policy#FAIR_SHARE} engine runs at a time. */
+	public static final long TIME_SLICE = 100;
+
+	/** The pool that runs the workers. */
+	private final ExecutorService pool;
+
+	/** The number of threads in the pool. */
+	private final int poolSize;
+
+	/** How the threads are shared between jobs. */
+	private final Policy policy;
+
+	/** The number of jobs that are not finished yet. */
+	private final AtomicInteger pendingJobs = new AtomicInteger();
+
+	/** Controls the load of all workers of all jobs together. */
+	private final LoadGovernor governor;
+
+	/** The function the trials of new jobs are done with. */
+	private volatile ProofOfWorkFunction function = ProofOfWorkFunctions.DOUBLE_SHA512;
+
+	/** The directory of the checkpoint files, or null if there are none. */
+	private volatile File checkpointDirectory;
+
+	/** The nonces found earlier, or null. */
+	private volatile PowResultCache resultCache;
+
+	/** Set by {@link #shutdown()}, guarded by this. */
+	private boolean shutdown;
+
+	/**
+	 * Creates a new PowEngine with the thread count of
+	 * {@link ThreadTuner#getDefault()} and the {@link Policy#FAIR_SHARE}
+	 * policy.
+	 */
+	public PowEngine()
+	{
+		this(ThreadTuner.getDefault().getThreadCount(), Policy.FAIR_SHARE);
+	}
+
+	/**
+	 * Creates a new PowEngine.
+	 *
+	 * @param poolSize The number of worker threads.
+	 * @param policy How the threads are shared between jobs.
+	 */
+	public PowEngine(int poolSize, Policy policy)
+	{
+		if (poolSize < 1)
+		{
+			throw new IllegalArgumentException("poolSize must be at least 1.");
+		}
+
+		if (policy == null)
+		{
+			throw new NullPointerException("policy must not be null.");
+		}
+
+		this.poolSize = poolSize;
+		this.policy = policy;
+		this.governor = new LoadGovernor(1, poolSize);
+		this.pool = Executors.newFixedThreadPool(poolSize, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "POW Engine Worker No. " + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Sets the share of the CPU time of the pool threads that all jobs
+	 * together may use.
+	 *
+	 * @param newTargetLoad The CPU share, greater than 0, 1 means no
+	 *            throttling.
+	 */
+	public void setTargetLoad(float newTargetLoad)
+	{
+		governor.setCpuShare(newTargetLoad);
+	}
+
+	/**
+	 * Applies a load profile to all jobs, including the running ones.
+	 *
+	 * @param profile The profile.
+	 */
+	public void setLoadProfile(LoadGovernor.Profile profile)
+	{
+		governor.setProfile(profile);
+	}
+
+	/**
+	 * Returns the governor that controls the load of all jobs. It can be used
+	 * to target a hash rate instead of a CPU share, and to monitor the load.
+	 *
+	 * @return The governor.
+	 */
+	public LoadGovernor getLoadGovernor()
+	{
+		return governor;
+	}
+
+	/**
+	 * Sets the function the trials of the jobs submitted from now on are done
+	 * with. The default is {@link ProofOfWorkFunctions#DOUBLE_SHA512}.
+	 *
+	 * @param newFunction The function.
+	 */
+	public void setFunction(ProofOfWorkFunction newFunction)
+	{
+		if (newFunction == null)
+		{
+			throw new NullPointerException("newFunction must not be null.");
+		}
+
+		function = newFunction;
+	}
+
+	public ProofOfWorkFunction getFunction()
+	{
+		return function;
+	}
+
+	/**
+	 * Makes the jobs record their progress in checkpoint files, so that a job
+	 * for the same initial hash and target that ran out of time, was
+	 * cancelled or was killed is continued where it stopped.
+	 *
+	 * @param directory The directory of the checkpoint files, or null to not
+	 *            record any progress.
+	 */
+	public void setCheckpointDirectory(File directory)
+	{
+		checkpointDirectory = directory;
+	}
+
+	/**
+	 * Makes the engine look up submitted jobs in a cache first, and store the
+	 * nonces its jobs find in it. A job that is found in the cache is finished
+	 * right away, without workers. The cache holds double SHA-512 results, it
+	 * is not used for jobs with another function.
+	 *
+	 * @param cache The cache, or null to always calculate.
+	 */
+	public void setResultCache(PowResultCache cache)
+	{
+		resultCache = cache;
+	}
+
+	public int getPoolSize()
+	{
+		return poolSize;
+	}
+
+	public Policy getPolicy()
+	{
+		return policy;
+	}
+
+	/**
+	 * Returns the number of submitted jobs that are not finished yet.
+	 *
+	 * @return The number of submitted jobs that are not finished yet.
+	 */
+	public int getPendingJobs()
+	{
+		return pendingJobs.get();
+	}
+
+	/**
+	 * Submits a new POW job.
+	 *
+	 * @param initialHash The hash of the message.
+	 * @param target The target collision quality.
+	 * @param maxTime The maximum time in seconds the job may calculate once
+	 *            it has started.
+	 * @return The job, which also is the future of its result.
+	 * @throws RejectedExecutionException If the engine is shut down.
+	 */
+	public PowJob submit(byte[] initialHash, long target, int maxTime)
+	{
+		PowJob job = new PowJob(initialHash, target, maxTime);
+		ProofOfWorkFunction f = function;
+		final PowResultCache cache = f instanceof DoubleSha512Function ? resultCache : null;
+		long cached = cache == null ? -1 : cache.get(initialHash, target);
+
+		synchronized (this)
+		{
+			if (shutdown)
+			{
+				throw new RejectedExecutionException("The engine is shut down.");
+			}
+
+			if (cached >= 0)
+			{
+				job.complete(cached);
+				return job;
+			}
+
+			pendingJobs.incrementAndGet();
+		}
+
+		job.addListener(new PowJobListener()
+		{
+			@Override
+			public void jobFinished(PowJob job)
+			{
+				jobDone();
+
+				PowResult result = job.getFinishedResult();
+
+				if (cache != null && result != null && result.isSuccessful())
+				{
+					cache.put(job.getInitialHash(), result.getNonce(), job.getTrialValue());
+				}
+			}
+		});
+
+		for (POWWorker w : job.createWorkers(policy == Policy.SINGLE_THREAD ? 1 : poolSize, governor, f,
+				checkpointDirectory))
+		{
+			if (policy == Policy.FAIR_SHARE)
+			{
+				w.setTimeSlice(TIME_SLICE);
+			}
+
+			execute(job, w);
+		}
+
+		return job;
+	}
+
+	/**
+	 * Queues a worker on the pool. A worker whose time slice is used up is
+	 * queued again, behind the workers that are waiting.
+	 */
+	private void execute(final PowJob job, final POWWorker worker)
+	{
+		pool.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (job.runWorker(worker))
+				{
+					try
+					{
+						pool.execute(this);
+					}
+					catch (RejectedExecutionException e)
+					{
+						// The pool is only shut down once all jobs are
+						// finished, so is this one.
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Counts a finished job, and shuts the pool down after the last one if
+	 * the engine is shut down.
+	 */
+	private synchronized void jobDone()
+	{
+		if (pendingJobs.decrementAndGet() == 0 && shutdown)
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Stops accepting new jobs. Jobs that were already submitted are still
+	 * calculated, then the threads of the pool end.
+	 */
+	public synchronized void shutdown()
+	{
+		shutdown = true;
+
+		if (pendingJobs.get() == 0)
+		{
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package sibbo.bitmessage.android;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Predicts how long a POW calculation takes on this device.<br />
+ * <br />
+ * Every nonce succeeds independently with probability p = (target + 1) /
+ * 2^64, so the number of nonces until the first success is geometrically
+ * distributed with mean 1 / p. Dividing by the nonce rate of the device gives
+ * the solve time. The nonce rate of one thread is measured by a short
+ * calibration and can be stored in a file, so it only has to be measured once.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowEstimator
+{
+	private static final Logger LOG = Logger.getLogger(PowEstimator.class.getName());
+
+	/** 2^64 as double. */
+	private static final double TWO_POW_64 = 18446744073709551616.0;
+
+	/** The time in milliseconds the default calibration takes. */
+	public static final long CALIBRATION_TIME = 250;
+
+	/** The time in milliseconds after which a stored calibration is repeated. */
+	public static final long CALIBRATION_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+	private static final String KEY_NONCE_RATE = "nonceRate";
+	private static final String KEY_CALIBRATION_TIME = "calibrationTime";
+	private static final String KEY_CORES = "cores";
+
+	/** The file the calibration is stored in, or null. */
+	private final File store;
+
+	/** The number of nonces one thread tries per second, 0 if unknown. */
+	private volatile double nonceRate;
+
+	/**
+	 * Creates a new PowEstimator that does not store its calibration.
+	 */
+	public PowEstimator()
+	{
+		this(null);
+	}
+
+	/**
+	 * Creates a new PowEstimator.
+	 *
+	 * @param store The file the calibration is loaded from and stored in, or
+	 *            null if it should not be stored.
+	 */
+	public PowEstimator(File store)
+	{
+		this.store = store;
+	}
+
+	/**
+	 * Returns the number of nonces one thread tries per second. Uses the
+	 * stored calibration if there is a recent one for this device, otherwise
+	 * calibrates.
+	 *
+	 * @return The nonce rate of one thread.
+	 */
+	public double getNonceRate()
+	{
+		if (nonceRate == 0)
+		{
+			synchronized (this)
+			{
+				if (nonceRate == 0 && !load())
+				{
+					calibrate(CALIBRATION_TIME);
+				}
+			}
+		}
+
+		return nonceRate;
+	}
+
+	/**
+	 * Sets the nonce rate of one thread, e.g. a rate measured with
+	 * {@link PowProgress#getAverageNonceRate()} divided by the number of
+	 * workers. It is stored like a calibration.
+	 *
+	 * @param nonceRate The nonce rate of one thread.
+	 */
+	public synchronized void setNonceRate(double nonceRate)
+	{
+		if (!(nonceRate > 0))
+		{
+			throw new IllegalArgumentException("nonceRate must be positive.");
+		}
+
+		this.nonceRate = nonceRate;
+		save();
+	}
+
+	/**
+	 * Measures the nonce rate of one thread with the default
+	 * {@link Sha512Backend} and stores it. The first fifth of the time is
+	 * used to warm up the JIT compiler and not measured.
+	 *
+	 * @param millis The time the calibration should take in milliseconds.
+	 * @return The nonce rate of one thread.
+	 */
+	public synchronized double calibrate(long millis)
+	{
+		byte[] initialHash = new byte[64];
+		new Random().nextBytes(initialHash);
+		Sha512Trial trial = Sha512Backends.getDefault().newTrial(initialHash);
+
+		long start = System.nanoTime();
+		long warmupEnd = start + millis * 200000;
+		long end = start + millis * 1000000;
+		long nonce = 0;
+		long measureStart = 0;
+		long measureNonce = 0;
+		long now;
+
+		do
+		{
+			trial.search(nonce, 1024, -1);
+			nonce += 1024;
+
+			now = System.nanoTime();
+
+			if (measureStart == 0 && now - warmupEnd >= 0)
+			{
+				measureStart = now;
+				measureNonce = nonce;
+			}
+		}
+		while (now - end < 0 || measureStart == now);
+
+		nonceRate = (nonce - measureNonce) * 1e9 / (now - measureStart);
+		LOG.fine("Calibrated nonce rate: " + (long) nonceRate + "/s");
+		save();
+
+		return nonceRate;
+	}
+
+	/**
+	 * Loads the calibration from the store if it was done on a device with
+	 * the same number of cores and is not too old.
+	 *
+	 * @return True if a calibration was loaded.
+	 */
+	private boolean load()
+	{
+		if (store == null || !store.isFile())
+		{
+			return false;
+		}
+
+		Properties p = new Properties();
+		InputStream in = null;
+
+		try
+		{
+			in = new FileInputStream(store);
+			p.load(in);
+
+			double rate = Double.parseDouble(p.getProperty(KEY_NONCE_RATE, "0"));
+			long time = Long.parseLong(p.getProperty(KEY_CALIBRATION_TIME, "0"));
+			int cores = Integer.parseInt(p.getProperty(KEY_CORES, "0"));
+
+			if (rate > 0 && cores == Runtime.getRuntime().availableProcessors()
+					&& System.currentTimeMillis() - time < CALIBRATION_MAX_AGE)
+			{
+				nonceRate = rate;
+				return true;
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.log(Level.WARNING, "Could not load the calibration from " + store, e);
+		}
+		catch (NumberFormatException e)
+		{
+			LOG.log(Level.WARNING, "Invalid calibration in " + store, e);
+		}
+		finally
+		{
+			close(in);
+		}
+
+		return false;
+	}
+
+	private void save()
+	{
+		if (store == null)
+		{
+			return;
+		}
+
+		Properties p = new Properties();
+		p.setProperty(KEY_NONCE_RATE, Double.toString(nonceRate));
+		p.setProperty(KEY_CALIBRATION_TIME, Long.toString(System.currentTimeMillis()));
+		p.setProperty(KEY_CORES, Integer.toString(Runtime.getRuntime().availableProcessors()));
+		OutputStream out = null;
+
+		try
+		{
+			out = new FileOutputStream(store);
+			p.store(out, "POW hash rate calibration");
+		}
+		catch (IOException e)
+		{
+			LOG.log(Level.WARNING, "Could not store the calibration in " + store, e);
+		}
+		finally
+		{
+			close(out);
+		}
+	}
+
+	private static void close(Closeable c)
+	{
+		if (c != null)
+		{
+			try
+			{
+				c.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing left to do.
+			}
+		}
+	}
+
+	/**
+	 * Returns the expected number of nonces that have to be tried to reach
+	 * the given target.
+	 *
+	 * @param target The target.
+	 * @return The expected number of trials.
+	 */
+	public static double getExpectedTrials(long target)
+	{
+		return TWO_POW_64 / (target + 1.0);
+	}
+
+	/**
+	 * Returns the number of nonces the given number of threads try per
+	 * second. Threads beyond the number of CPUs this process may use (see
+	 * {@link ThreadTuner#getCpuLimit()}) don't add anything.
+	 *
+	 * @param threads The number of worker threads.
+	 * @return The nonce rate of all threads together.
+	 */
+	public double getNonceRate(int threads)
+	{
+		return getNonceRate() * Math.max(1, Math.min(threads, ThreadTuner.getCpuLimit()));
+	}
+
+	/**
+	 * Returns the expected time to reach the given target.
+	 *
+	 * @param target The target.
+	 * @param threads The number of worker threads.
+	 * @return The expected time in milliseconds.
+	 */
+	public double getExpectedTime(long target, int threads)
+	{
+		return getExpectedTrials(target) / getNonceRate(threads) * 1000;
+	}
+
+	/**
+	 * Returns the expected time of the POW for a payload.
+	 *
+	 * @param payloadLength The length of the payload.
+	 * @param difficultyFactor The difficulty factor, 1 is the network minimum.
+	 * @param threads The number of worker threads.
+	 * @return The expected time in milliseconds.
+	 */
+	public double getExpectedTime(int payloadLength, int difficultyFactor, int threads)
+	{
+		return getExpectedTime(PowParameters.forDifficulty(difficultyFactor).getTarget(payloadLength), threads);
+	}
+
+	/**
+	 * Returns the time within which the given target is reached with the given
+	 * probability. With mean m, the solve time is exponentially distributed
+	 * for all practical targets, so the percentile is -m * ln(1 - q). The
+	 * median is about 0.69 m, the 99th percentile about 4.6 m.
+	 *
+	 * @param target The target.
+	 * @param threads The number of worker threads.
+	 * @param probability The probability, greater than 0 and less than 1.
+	 * @return The time in milliseconds.
+	 */
+	public double getTimePercentile(long target, int threads, double probability)
+	{
+		if (!(probability > 0 && probability < 1))
+		{
+			throw new IllegalArgumentException("probability must be between 0 and 1.");
+		}
+
+		// Number of trials n with 1 - (1 - p)^n = q, exact for the geometric
+		// distribution.
+		double p = (target + 1.0) / TWO_POW_64;
+		double trials = Math.log1p(-probability) / Math.log1p(-p);
+
+		return trials / getNonceRate(threads) * 1000;
+	}
+
+	/**
+	 * Returns the time within which the POW for a payload is finished with
+	 * the given probability.
+	 *
+	 * @param payloadLength The length of the payload.
+	 * @param difficultyFactor The difficulty factor, 1 is the network minimum.
+	 * @param threads The number of worker threads.
+	 * @param probability The probability, greater than 0 and less than 1.
+	 * @return The time in milliseconds.
+	 */
+	public double getTimePercentile(int payloadLength, int difficultyFactor, int threads, double probability)
+	{
+		return getTimePercentile(PowParameters.forDifficulty(difficultyFactor).getTarget(payloadLength), threads, probability);
+	}
+
+	/**
+	 * Returns a maxTime for {@link POWCalculator#execute(int)} or
+	 * {@link PowEngine#submit(byte[], long, int)} within which the target is
+	 * reached with the given probability.
+	 *
+	 * @param target The target.
+	 * @param threads The number of worker threads.
+	 * @param probability The probability, e.g. 0.99.
+	 * @return The maximum time in seconds, at least 1.
+	 */
+	public int getMaxTime(long target, int threads, double probability)
+	{
+		double seconds = Math.ceil(getTimePercentile(target, threads, probability) / 1000);
+
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, seconds));
+	}
+
+	/**
+	 * Returns true if the target is reached before the deadline with at least
+	 * the given probability. Jobs for which this is false can be rejected
+	 * before any CPU time is spent on them.
+	 *
+	 * @param target The target.
+	 * @param threads The number of worker threads.
+	 * @param deadlineMillis The time available in milliseconds.
+	 * @param probability The required probability, e.g. 0.9.
+	 * @return True if the deadline can be met.
+	 */
+	public boolean canMeetDeadline(long target, int threads, long deadlineMillis, double probability)
+	{
+		return getTimePercentile(target, threads, probability) <= deadlineMillis;
+	}
+
+	/**
+	 * Returns the probability that the target is reached before the deadline.
+	 *
+	 * @param target The target.
+	 * @param threads The number of worker threads.
+	 * @param deadlineMillis The time available in milliseconds.
+	 * @return The probability, from 0 to 1.
+	 */
+	public double getSuccessProbability(long target, int threads, long deadlineMillis)
+	{
+		long trials = (long) Math.min(Long.MAX_VALUE, getNonceRate(threads) * deadlineMillis / 1000);
+
+		return PowProgress.getSuccessProbability(target, trials);
+	}
+}
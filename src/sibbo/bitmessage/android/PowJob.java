@@ -0,0 +1,413 @@
+package sibbo.bitmessage.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A POW job that was submitted to a {@link PowEngine}. It can be used to wait
+ * for the result, to cancel the calculation, or to get notified when it is
+ * finished.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowJob implements Future<PowResult>, POWListener
+{
+	private static final Logger LOG = Logger.getLogger(PowJob.class.getName());
+
+	/** The target collision quality. */
+	private final long target;
+
+	/** The hash of the message. */
+	private final byte[] initialHash;
+
+	/** Stops the workers, also carries the time allowed. */
+	private final CancellationToken token;
+
+	/** The time at which the job was submitted. */
+	private final long submitTime;
+
+	/** The progress counters of the workers, set when it is started. */
+	private volatile PowCounters counters;
+
+	/** Records the progress of the workers, or null. */
+	private PowCheckpoint checkpoint;
+
+	/** The workers of this job, set when it is started. */
+	private POWWorker[] workers;
+
+	/** The number of workers that have not stopped yet. */
+	private final AtomicInteger running = new AtomicInteger();
+
+	/** The result, set when the job is finished. */
+	private volatile PowResult result;
+
+	/** The trial value of the valid nonce, -1 if none was found by a worker. */
+	private volatile long trialValue = -1;
+
+	/** Indicates whether or not the job was cancelled. */
+	private volatile boolean cancelled;
+
+	/** Released when the job is finished. */
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	/** The listeners to inform when the job is finished. */
+	private final List<PowJobListener> listeners = new ArrayList<PowJobListener>();
+
+	/**
+	 * Creates a new PowJob.
+	 *
+	 * @param initialHash The hash of the message.
+	 * @param target The target collision quality.
+	 * @param maxTime The maximum time in seconds the workers may calculate,
+	 *            measured from the start of the workers.
+	 */
+	PowJob(byte[] initialHash, long target, int maxTime)
+	{
+		this.initialHash = initialHash;
+		this.target = target;
+		this.token = new CancellationToken(maxTime * 1000L);
+		this.submitTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Creates the workers of this job. They all share one nonce scheduler.
+	 *
+	 * @param threads The number of workers.
+	 * @param governor Controls the load of the workers.
+	 * @param function The function the trials are done with.
+	 * @param checkpointDirectory The directory of the checkpoint files, or
+	 *            null if the progress should not be recorded.
+	 * @return The workers.
+	 */
+	synchronized POWWorker[] createWorkers(int threads, LoadGovernor governor, ProofOfWorkFunction function,
+			File checkpointDirectory)
+	{
+		if (checkpointDirectory != null)
+		{
+			try
+			{
+				checkpoint = PowCheckpoint.open(checkpointDirectory, function.getName(), initialHash, target, threads);
+			}
+			catch (IOException e)
+			{
+				LOG.warning("Calculating without checkpoint: " + e);
+			}
+		}
+
+		NonceScheduler scheduler = new NonceScheduler(checkpoint == null ? 0 : checkpoint.getFrontier());
+		counters = new PowCounters(threads);
+		workers = new POWWorker[threads];
+		running.set(threads);
+
+		for (int i = 0; i < threads; i++)
+		{
+			workers[i] = new POWWorker(target, scheduler, initialHash, this, governor, token);
+			workers[i].setFunction(function);
+			workers[i].setCounters(counters, i);
+
+			if (checkpoint != null)
+			{
+				workers[i].setCheckpoint(checkpoint, i);
+			}
+		}
+
+		return workers;
+	}
+
+	public byte[] getInitialHash()
+	{
+		return initialHash;
+	}
+
+	public long getTarget()
+	{
+		return target;
+	}
+
+	/**
+	 * Returns the progress of this job, with rates averaged over the time
+	 * since its workers were created. Can be called from any thread, e.g.
+	 * periodically to drive a dashboard.
+	 *
+	 * @return The progress.
+	 */
+	public PowProgress getProgress()
+	{
+		return PowProgress.sample(counters, target, null);
+	}
+
+	/**
+	 * Returns the token that stops the workers of this job. It can be used to
+	 * measure how quickly the workers stopped after the job was finished.
+	 *
+	 * @return The token of this job.
+	 */
+	public CancellationToken getToken()
+	{
+		return token;
+	}
+
+	/**
+	 * Runs a worker of this job once. A worker that throws is logged and
+	 * stopped, the others go on. Once all workers have stopped without
+	 * finishing the job, it is finished as {@link PowOutcome#FAILED}.
+	 *
+	 * @param worker The worker.
+	 * @return True if the worker used up its time slice and must be run
+	 *         again.
+	 */
+	boolean runWorker(POWWorker worker)
+	{
+		boolean yielded = false;
+
+		try
+		{
+			worker.run();
+			yielded = worker.hasYielded() && !token.isCancelled();
+		}
+		catch (RuntimeException e)
+		{
+			LOG.log(Level.SEVERE, Thread.currentThread().getName() + " failed", e);
+		}
+		finally
+		{
+			if (!yielded && running.decrementAndGet() == 0)
+			{
+				fail();
+			}
+		}
+
+		return yielded;
+	}
+
+	/**
+	 * Finishes the job as failed, unless it is already finished.
+	 */
+	private void fail()
+	{
+		long hashes = 0;
+
+		synchronized (this)
+		{
+			if (isDone())
+			{
+				return;
+			}
+
+			LOG.warning("All workers stopped without a result");
+			token.cancel();
+
+			for (POWWorker w : workers)
+			{
+				hashes += w.getHashesCalculated();
+			}
+
+			result = new PowResult(-1, PowOutcome.FAILED, hashes, System.currentTimeMillis() - submitTime);
+			closeCheckpoint(false);
+		}
+
+		finish();
+	}
+
+	/**
+	 * Adds a listener that is informed when this job is finished. If it is
+	 * already finished, the listener is informed immediately.
+	 *
+	 * @param listener The listener.
+	 */
+	public void addListener(PowJobListener listener)
+	{
+		synchronized (listeners)
+		{
+			if (!isDone())
+			{
+				listeners.add(listener);
+				return;
+			}
+		}
+
+		listener.jobFinished(this);
+	}
+
+	@Override
+	public void powFinished(POWWorker powWorker)
+	{
+		long hashes = 0;
+
+		synchronized (this)
+		{
+			if (isDone())
+			{
+				return;
+			}
+
+			token.cancel();
+
+			for (POWWorker w : workers)
+			{
+				hashes += w.getHashesCalculated();
+			}
+
+			result = new PowResult(powWorker.getNonce(), powWorker.getSuccessResult() ? PowOutcome.FOUND
+					: PowOutcome.TIMED_OUT, hashes, System.currentTimeMillis() - submitTime);
+			trialValue = powWorker.getTrialValue();
+			closeCheckpoint(result.isSuccessful());
+		}
+
+		finish();
+	}
+
+	/**
+	 * Finishes the job with a nonce that is already known, e.g. from a
+	 * {@link PowResultCache}, before any workers were created.
+	 *
+	 * @param nonce The valid nonce.
+	 */
+	void complete(long nonce)
+	{
+		synchronized (this)
+		{
+			token.cancel();
+			counters = new PowCounters(0);
+			result = new PowResult(nonce, PowOutcome.FOUND, 0, System.currentTimeMillis() - submitTime);
+		}
+
+		finish();
+	}
+
+	/**
+	 * Returns the result without waiting.
+	 *
+	 * @return The result, or null if the job is not finished or was cancelled.
+	 */
+	PowResult getFinishedResult()
+	{
+		return cancelled ? null : result;
+	}
+
+	/**
+	 * Returns the trial value of the nonce the workers found.
+	 *
+	 * @return The trial value, or -1 if no worker found a valid nonce.
+	 */
+	long getTrialValue()
+	{
+		return trialValue;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+		synchronized (this)
+		{
+			if (isDone())
+			{
+				return false;
+			}
+
+			cancelled = true;
+			token.cancel();
+			closeCheckpoint(false);
+		}
+
+		finish();
+
+		return true;
+	}
+
+	/**
+	 * Closes the checkpoint, or deletes it if the job will never run again.
+	 *
+	 * @param found True if a valid nonce was found.
+	 */
+	private void closeCheckpoint(boolean found)
+	{
+		if (checkpoint != null)
+		{
+			if (found)
+			{
+				checkpoint.delete();
+			}
+			else
+			{
+				checkpoint.close();
+			}
+		}
+	}
+
+	/**
+	 * Informs the listeners and releases the waiting threads.
+	 */
+	private void finish()
+	{
+		List<PowJobListener> toInform;
+
+		synchronized (listeners)
+		{
+			toInform = new ArrayList<PowJobListener>(listeners);
+			listeners.clear();
+		}
+
+		for (PowJobListener l : toInform)
+		{
+			l.jobFinished(this);
+		}
+
+		finished.countDown();
+	}
+
+	@Override
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone()
+	{
+		return cancelled || result != null;
+	}
+
+	@Override
+	public PowResult get() throws InterruptedException
+	{
+		if (!isDone())
+		{
+			finished.await();
+		}
+
+		return getResult();
+	}
+
+	@Override
+	public PowResult get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+	{
+		if (!isDone() && !finished.await(timeout, unit))
+		{
+			throw new TimeoutException("POW job not finished in time.");
+		}
+
+		return getResult();
+	}
+
+	private PowResult getResult()
+	{
+		if (cancelled)
+		{
+			throw new CancellationException("POW job was cancelled.");
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,19 @@
+package sibbo.bitmessage.android;
+
+/**
+ * Interface to notify objects if a job of a {@link PowEngine} is finished.
+ * 
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public interface PowJobListener 
+{
+	/**
+	 * Informs the listener that the given job is finished, either with a
+	 * result or because it was cancelled. The call is made from the thread
+	 * that finished the job.
+	 * 
+	 * @param job The job that is finished.
+	 */
+	void jobFinished(PowJob job);
+}
@@ -0,0 +1,331 @@
+package sibbo.bitmessage.android;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+/**
+ * A worker process of a {@link PowCoordinator}. It connects to the
+ * coordinator, calculates the leases it is given with a
+ * {@link POWCalculator} on all its threads and reports its progress, until the
+ * coordinator closes the connection or {@link #stop()} is called.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowNode implements Runnable
+{
+	private static final Logger LOG = Logger.getLogger(PowNode.class.getName());
+
+	/** The time between two progress reports in milliseconds. */
+	public static final long PROGRESS_INTERVAL = 1000;
+
+	/** The time a single lease may take at most, in seconds. */
+	private static final int MAX_LEASE_TIME = 24 * 60 * 60;
+
+	private final String host;
+	private final int port;
+	private String name;
+	private int threadCount;
+
+	private Socket socket;
+	private Writer out;
+
+	/** The job the node works on, or 0 if it has none. */
+	private volatile int job;
+	private volatile byte[] initialHash;
+	private volatile long target;
+
+	/** The calculation of the running lease, or null. */
+	private volatile POWCalculator running;
+
+	/** The id of the running lease. */
+	private volatile long runningLease = -1;
+
+	private volatile boolean stopped;
+
+	/** The number of leases this node calculated. */
+	private volatile int leases;
+
+	/**
+	 * Creates a new PowNode.
+	 *
+	 * @param host The host of the coordinator.
+	 * @param port The port of the coordinator.
+	 */
+	public PowNode(String host, int port)
+	{
+		this.host = host;
+		this.port = port;
+		this.name = System.getProperty("os.name").replace(' ', '_') + "-" + Long.toHexString(System.nanoTime());
+	}
+
+	/**
+	 * Sets the name the coordinator logs this node under.
+	 *
+	 * @param newName The name, without spaces.
+	 */
+	public void setName(String newName)
+	{
+		if (newName.length() == 0 || newName.indexOf(' ') >= 0)
+		{
+			throw new IllegalArgumentException("The name must not be empty or contain spaces.");
+		}
+
+		name = newName;
+	}
+
+	/**
+	 * Sets the number of worker threads. The default is the count of
+	 * {@link ThreadTuner#getDefault()}.
+	 *
+	 * @param newThreadCount The number of worker threads.
+	 */
+	public void setThreadCount(int newThreadCount)
+	{
+		if (newThreadCount < 1)
+		{
+			throw new IllegalArgumentException("newThreadCount must be at least 1.");
+		}
+
+		threadCount = newThreadCount;
+	}
+
+	/**
+	 * Returns the number of leases this node calculated.
+	 *
+	 * @return The number of leases.
+	 */
+	public int getLeases()
+	{
+		return leases;
+	}
+
+	/**
+	 * Works for the coordinator until it closes the connection or
+	 * {@link #stop()} is called.
+	 */
+	@Override
+	public void run()
+	{
+		int threads = threadCount > 0 ? threadCount : ThreadTuner.getDefault().getThreadCount();
+
+		try
+		{
+			synchronized (this)
+			{
+				if (stopped)
+				{
+					return;
+				}
+
+				socket = new Socket(host, port);
+			}
+
+			socket.setTcpNoDelay(true);
+			out = new OutputStreamWriter(socket.getOutputStream(), "US-ASCII");
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+			send("HELLO " + name + " " + threads);
+
+			String line;
+
+			while ((line = in.readLine()) != null)
+			{
+				try
+				{
+					handle(line.trim().split(" "), threads);
+				}
+				catch (RuntimeException e)
+				{
+					LOG.warning("Ignoring a bad message from the coordinator: " + line);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			if (!stopped)
+			{
+				LOG.warning("Connection to the coordinator " + host + ":" + port + " failed: " + e);
+			}
+		}
+		finally
+		{
+			stop();
+		}
+	}
+
+	/**
+	 * Disconnects from the coordinator and stops the running lease. Can be
+	 * called from any thread.
+	 */
+	public void stop()
+	{
+		Socket s;
+
+		synchronized (this)
+		{
+			stopped = true;
+			job = 0;
+			s = socket;
+		}
+
+		cancelLease();
+
+		if (s != null)
+		{
+			try
+			{
+				s.close();
+			}
+			catch (IOException e)
+			{
+				// Closed anyway
+			}
+		}
+	}
+
+	private void handle(String[] message, int threads)
+	{
+		String type = message[0];
+
+		if (type.equals("JOB"))
+		{
+			cancelLease();
+			initialHash = fromHex(message[2]);
+			target = Long.parseLong(message[3]);
+			job = Integer.parseInt(message[1]);
+			send("LEASE " + job);
+		}
+		else if (type.equals("LEASE") && Integer.parseInt(message[1]) == job)
+		{
+			startLease(job, Long.parseLong(message[2]), Long.parseLong(message[3]), Long.parseLong(message[4]),
+					threads);
+		}
+		else if (type.equals("STOP") && Integer.parseInt(message[1]) == job)
+		{
+			job = 0;
+			cancelLease();
+		}
+		else if (type.equals("CANCEL") && Long.parseLong(message[1]) == runningLease)
+		{
+			// The lease ends as cancelled, and the next one is requested.
+			cancelLease();
+		}
+		else if (type.equals("REJECT") && job != 0)
+		{
+			send("LEASE " + job);
+		}
+	}
+
+	/**
+	 * Calculates a lease on its own thread, so the node keeps reading
+	 * messages.
+	 */
+	private void startLease(final int leaseJob, final long lease, final long first, final long end,
+			final int threads)
+	{
+		final POWCalculator pow = new POWCalculator();
+		pow.setThreadCount(threads);
+		pow.setInitialHash(initialHash);
+		pow.setTarget(target);
+		pow.setFirstNonce(first);
+		pow.setMaxNonces(end - first);
+		pow.setLoadGovernor(new LoadGovernor(LoadGovernor.Profile.MAX_THROUGHPUT));
+		pow.setProgressListener(new PowProgressListener()
+		{
+			@Override
+			public void progressUpdated(PowProgress progress)
+			{
+				if (runningLease == lease)
+				{
+					send("PROGRESS " + lease + " " + progress.getNonces());
+				}
+			}
+		}, PROGRESS_INTERVAL);
+
+		running = pow;
+		runningLease = lease;
+
+		Thread t = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				byte[] result = pow.execute(MAX_LEASE_TIME);
+				PowOutcome outcome = pow.getOutcome();
+				leases++;
+
+				if (runningLease == lease)
+				{
+					running = null;
+					runningLease = -1;
+				}
+
+				if (outcome == PowOutcome.FOUND)
+				{
+					send("FOUND " + lease + " " + Util.getLong(result));
+				}
+				else if (job == leaseJob)
+				{
+					if (outcome == PowOutcome.EXHAUSTED)
+					{
+						send("DONE " + lease + " " + pow.getHashesCalculated() / 2);
+					}
+
+					send("LEASE " + leaseJob);
+				}
+			}
+		}, "POW Node Lease " + lease);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void cancelLease()
+	{
+		POWCalculator pow = running;
+
+		if (pow != null)
+		{
+			pow.cancel();
+		}
+	}
+
+	private void send(String line)
+	{
+		Writer w = out;
+
+		if (w == null)
+		{
+			return;
+		}
+
+		synchronized (w)
+		{
+			try
+			{
+				w.write(line + "\n");
+				w.flush();
+			}
+			catch (IOException e)
+			{
+				LOG.fine("Sending to the coordinator failed: " + e);
+			}
+		}
+	}
+
+	private static byte[] fromHex(String hex)
+	{
+		byte[] bytes = new byte[hex.length() / 2];
+
+		for (int i = 0; i < bytes.length; i++)
+		{
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+
+		return bytes;
+	}
+}
@@ -0,0 +1,28 @@
+package sibbo.bitmessage.android;
+
+/**
+ * The ways a POW calculation can end.
+ * 
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public enum PowOutcome 
+{
+	/** A nonce that fulfills the target was found. */
+	FOUND,
+	
+	/** The time allowed ran out before a valid nonce was found. */
+	TIMED_OUT,
+	
+	/** All nonces of a limited range were tried without a valid one. */
+	EXHAUSTED,
+	
+	/** The calculation was cancelled. */
+	CANCELLED,
+	
+	/**
+	 * The calculation ended without a result because its workers failed, or
+	 * the result did not pass its check.
+	 */
+	FAILED
+}
@@ -0,0 +1,204 @@
+package sibbo.bitmessage.android;
+
+import java.math.BigInteger;
+
+/**
+ * The values that determine the POW target of an object: the nonce trials per
+ * byte, the payload length extra bytes and the time to live. Instances are
+ * immutable, so every job carries its own and jobs with different
+ * difficulties can run at the same time.<br />
+ * <br />
+ * The target is<br />
+ * {@code 2^64 / (nonceTrialsPerByte * (l + ttl * l / 2^16))} with
+ * {@code l = payloadLength + 8 + extraBytes},<br />
+ * where the 8 bytes are the nonce. A time to live of 0 gives the target of
+ * objects without one. It is calculated with exact integer arithmetic on
+ * longs; {@link BigInteger} is only used if the denominator does not fit into
+ * a long, which no real object comes close to.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class PowParameters
+{
+	/** The nonce trials per byte of the network minimum difficulty. */
+	public static final int NETWORK_NONCE_TRIALS_PER_BYTE = 320;
+
+	/** The payload length extra bytes of the network minimum difficulty. */
+	public static final int NETWORK_EXTRA_BYTES = 14000;
+
+	/** The network minimum difficulty without time to live. */
+	public static final PowParameters NETWORK_MINIMUM = new PowParameters(NETWORK_NONCE_TRIALS_PER_BYTE,
+			NETWORK_EXTRA_BYTES, 0);
+
+	/** The divisor of the time to live term, 2^16. */
+	private static final long TTL_DIVISOR = 1 << 16;
+
+	private final long nonceTrialsPerByte;
+	private final long extraBytes;
+	private final long ttl;
+
+	/**
+	 * Creates new PowParameters.
+	 *
+	 * @param nonceTrialsPerByte The average number of nonce trials per byte.
+	 * @param extraBytes The payload length extra bytes.
+	 * @param ttl The time to live of the object in seconds, 0 if it has none.
+	 */
+	public PowParameters(long nonceTrialsPerByte, long extraBytes, long ttl)
+	{
+		if (nonceTrialsPerByte < 1)
+		{
+			throw new IllegalArgumentException("nonceTrialsPerByte must be at least 1.");
+		}
+
+		if (extraBytes < 0 || ttl < 0)
+		{
+			throw new IllegalArgumentException("extraBytes and ttl must not be negative.");
+		}
+
+		this.nonceTrialsPerByte = nonceTrialsPerByte;
+		this.extraBytes = extraBytes;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Returns the parameters for a multiple of the network minimum difficulty.
+	 *
+	 * @param difficultyFactor The difficulty factor, 1 is the network minimum.
+	 * @return The parameters.
+	 */
+	public static PowParameters forDifficulty(int difficultyFactor)
+	{
+		if (difficultyFactor == 1)
+		{
+			return NETWORK_MINIMUM;
+		}
+
+		if (difficultyFactor < 1)
+		{
+			throw new IllegalArgumentException("difficultyFactor must be at least 1.");
+		}
+
+		return new PowParameters((long) NETWORK_NONCE_TRIALS_PER_BYTE * difficultyFactor,
+				(long) NETWORK_EXTRA_BYTES * difficultyFactor, 0);
+	}
+
+	/**
+	 * Returns parameters that only differ in the time to live.
+	 *
+	 * @param newTtl The time to live in seconds.
+	 * @return The parameters.
+	 */
+	public PowParameters withTtl(long newTtl)
+	{
+		return newTtl == ttl ? this : new PowParameters(nonceTrialsPerByte, extraBytes, newTtl);
+	}
+
+	public long getNonceTrialsPerByte()
+	{
+		return nonceTrialsPerByte;
+	}
+
+	public long getExtraBytes()
+	{
+		return extraBytes;
+	}
+
+	public long getTtl()
+	{
+		return ttl;
+	}
+
+	/**
+	 * Returns the POW target for a payload of the given length.
+	 *
+	 * @param payloadLength The length of the payload, without the nonce.
+	 * @return The target.
+	 */
+	public long getTarget(long payloadLength)
+	{
+		if (payloadLength < 0)
+		{
+			throw new IllegalArgumentException("payloadLength must not be negative.");
+		}
+
+		long length = payloadLength + 8 + extraBytes;
+
+		// Every product is checked, so the long result is exact or BigInteger
+		// takes over.
+		if (length < 0 || (ttl != 0 && length > Long.MAX_VALUE / ttl))
+		{
+			return getTargetBig(payloadLength);
+		}
+
+		long weighted = length + ttl * length / TTL_DIVISOR;
+
+		if (weighted < 0 || weighted > Long.MAX_VALUE / nonceTrialsPerByte)
+		{
+			return getTargetBig(payloadLength);
+		}
+
+		return divideTwoPow64(nonceTrialsPerByte * weighted);
+	}
+
+	/**
+	 * Calculates floor(2^64 / divisor) without leaving the range of long.
+	 *
+	 * @param divisor The divisor, at least 1.
+	 * @return The quotient, at most Long.MAX_VALUE.
+	 */
+	static long divideTwoPow64(long divisor)
+	{
+		if (divisor <= 2)
+		{
+			// 2^63 and more do not fit, no hash is larger anyway.
+			return Long.MAX_VALUE;
+		}
+
+		// 2^64 = 2 * Long.MAX_VALUE + 2 = 2 * q * d + 2 * t with t = r + 1,
+		// 1 <= t <= d. 2 * t overflows for divisors from 2^62 on, so it is
+		// compared to d without being calculated.
+		long q = Long.MAX_VALUE / divisor;
+		long t = Long.MAX_VALUE % divisor + 1;
+
+		return 2 * q + (t == divisor ? 2 : t >= divisor - t ? 1 : 0);
+	}
+
+	private long getTargetBig(long payloadLength)
+	{
+		BigInteger length = BigInteger.valueOf(payloadLength).add(BigInteger.valueOf(8 + extraBytes));
+		BigInteger weighted = length.add(length.multiply(BigInteger.valueOf(ttl)).shiftRight(16));
+		BigInteger divisor = weighted.multiply(BigInteger.valueOf(nonceTrialsPerByte));
+
+		return BigInteger.ONE.shiftLeft(64).divide(divisor).min(BigInteger.valueOf(Long.MAX_VALUE)).longValue();
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof PowParameters))
+		{
+			return false;
+		}
+
+		PowParameters p = (PowParameters) o;
+
+		return nonceTrialsPerByte == p.nonceTrialsPerByte && extraBytes == p.extraBytes && ttl == p.ttl;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		long h = nonceTrialsPerByte * 31 * 31 + extraBytes * 31 + ttl;
+
+		return (int) (h ^ (h >>> 32));
+	}
+
+	@Override
+	public String toString()
+	{
+		return "PowParameters[nonceTrialsPerByte=" + nonceTrialsPerByte + ", extraBytes=" + extraBytes + ", ttl="
+				+ ttl + "]";
+	}
+}
@@ -0,0 +1,430 @@
+package sibbo.bitmessage.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A two stage pipeline that does the POW for a stream of outbound objects.<br />
+ * <br />
+ * The first stage calculates the initial hash and the target of every
+ * payload, the second stage searches the nonce on a {@link PowEngine}. While
+ * the engine works on the current objects, the next ones are already being
+ * prepared. Finished objects are emitted in the order in which they are
+ * finished, not in the order in which they were submitted.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowPipeline
+{
+	/**
+	 * An object that goes through the pipeline.
+	 */
+	public static final class Item
+	{
+		private final byte[] payload;
+		private final File payloadFile;
+		private final PowParameters parameters;
+		private final long submitTime;
+		private volatile byte[] initialHash;
+		private volatile long target;
+		private volatile PowResult result;
+		private volatile long finishTime;
+		private volatile Exception error;
+
+		private Item(byte[] payload, File payloadFile, PowParameters parameters)
+		{
+			this.payload = payload;
+			this.payloadFile = payloadFile;
+			this.parameters = parameters;
+			this.submitTime = System.nanoTime();
+		}
+
+		/**
+		 * Returns the payload, or null if it was submitted as a file.
+		 *
+		 * @return The payload.
+		 */
+		public byte[] getPayload()
+		{
+			return payload;
+		}
+
+		/**
+		 * Returns the file of the payload, or null if it was submitted as an
+		 * array.
+		 *
+		 * @return The payload file.
+		 */
+		public File getPayloadFile()
+		{
+			return payloadFile;
+		}
+
+		public PowParameters getParameters()
+		{
+			return parameters;
+		}
+
+		public byte[] getInitialHash()
+		{
+			return initialHash;
+		}
+
+		public long getTarget()
+		{
+			return target;
+		}
+
+		/**
+		 * Returns the POW result, or null if the object is not finished yet or
+		 * its job was cancelled.
+		 *
+		 * @return The POW result.
+		 */
+		public PowResult getResult()
+		{
+			return result;
+		}
+
+		/**
+		 * Returns the error that stopped the preparation of this object, e.g.
+		 * an IOException because its payload file could not be read.
+		 *
+		 * @return The error, or null.
+		 */
+		public Exception getError()
+		{
+			return error;
+		}
+
+		/**
+		 * Returns the time in milliseconds from the submission of this object
+		 * to the end of its POW.
+		 *
+		 * @return The end-to-end latency in milliseconds.
+		 */
+		public long getLatency()
+		{
+			return (finishTime - submitTime) / 1000000;
+		}
+	}
+
+	/** Prepares the objects, the first stage. */
+	private final ExecutorService preparation;
+
+	/** Searches the nonces, the second stage. */
+	private final PowEngine engine;
+
+	/** The maximum time in seconds for the POW of one object. */
+	private final int maxTime;
+
+	/** The finished objects, in the order in which they were finished. */
+	private final BlockingQueue<Item> finished = new LinkedBlockingQueue<Item>();
+
+	/** The number of objects waiting for or in preparation. */
+	private final AtomicInteger preparing = new AtomicInteger();
+
+	/** The number of objects waiting for or in the POW stage. */
+	private final AtomicInteger calculating = new AtomicInteger();
+
+	/** The number of prepared objects. */
+	private final AtomicLong preparedCount = new AtomicLong();
+
+	/** The time in nanoseconds spent on preparation. */
+	private final AtomicLong preparationNanos = new AtomicLong();
+
+	/** The number of objects that went through the POW stage. */
+	private final AtomicLong finishedCount = new AtomicLong();
+
+	/** The sum of the end-to-end latencies of the finished objects in nanoseconds. */
+	private final AtomicLong latencyNanos = new AtomicLong();
+
+	/** The time at which the pipeline was created. */
+	private final long startTime = System.nanoTime();
+
+	/**
+	 * Creates a new PowPipeline.
+	 *
+	 * @param engine The engine that does the nonce search.
+	 * @param preparationThreads The number of threads that prepare objects.
+	 * @param maxTime The maximum time in seconds for the POW of one object.
+	 */
+	public PowPipeline(PowEngine engine, int preparationThreads, int maxTime)
+	{
+		this.engine = engine;
+		this.maxTime = maxTime;
+		this.preparation = Executors.newFixedThreadPool(preparationThreads, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "POW Preparation No. " + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Submits an object to the pipeline.
+	 *
+	 * @param payload The object payload the POW is done for.
+	 * @param difficultyFactor The difficulty factor, 1 is the network minimum.
+	 * @return The item that represents the object in the pipeline.
+	 */
+	public Item submit(byte[] payload, int difficultyFactor)
+	{
+		return submit(payload, PowParameters.forDifficulty(difficultyFactor));
+	}
+
+	/**
+	 * Submits an object with the given POW parameters to the pipeline.
+	 *
+	 * @param payload The object payload the POW is done for.
+	 * @param parameters The POW parameters of the object.
+	 * @return The item that represents the object in the pipeline.
+	 */
+	public Item submit(byte[] payload, PowParameters parameters)
+	{
+		return submit(new Item(payload, null, parameters));
+	}
+
+	/**
+	 * Submits an object whose payload is stored in a file to the pipeline. The
+	 * payload is hashed straight from the file and never loaded onto the
+	 * heap, see {@link PayloadHasher}.
+	 *
+	 * @param payloadFile The file that contains exactly the payload.
+	 * @param parameters The POW parameters of the object.
+	 * @return The item that represents the object in the pipeline.
+	 */
+	public Item submit(File payloadFile, PowParameters parameters)
+	{
+		return submit(new Item(null, payloadFile, parameters));
+	}
+
+	private Item submit(final Item item)
+	{
+		preparing.incrementAndGet();
+		preparation.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				prepare(item);
+			}
+		});
+
+		return item;
+	}
+
+	/**
+	 * Submits several objects with the same difficulty to the pipeline.
+	 *
+	 * @param payloads The object payloads.
+	 * @param difficultyFactor The difficulty factor, 1 is the network minimum.
+	 */
+	public void submitAll(Iterable<byte[]> payloads, int difficultyFactor)
+	{
+		PowParameters parameters = PowParameters.forDifficulty(difficultyFactor);
+
+		for (byte[] payload : payloads)
+		{
+			submit(payload, parameters);
+		}
+	}
+
+	/**
+	 * The first stage: calculates the initial hash and the target, then hands
+	 * the object to the engine.
+	 */
+	private void prepare(final Item item)
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			if (item.payload != null)
+			{
+				item.initialHash = Digest.sha512(item.payload);
+				item.target = item.parameters.getTarget(item.payload.length);
+			}
+			else
+			{
+				item.initialHash = PayloadHasher.sha512(item.payloadFile);
+				item.target = item.parameters.getTarget(item.payloadFile.length());
+			}
+		}
+		catch (IOException e)
+		{
+			fail(item, e);
+			return;
+		}
+		catch (RuntimeException e)
+		{
+			// E.g. a bad difficulty. The item is still emitted, so callers
+			// that wait for every item don't hang.
+			fail(item, e);
+			return;
+		}
+
+		long end = System.nanoTime();
+		preparationNanos.addAndGet(end - start);
+		preparedCount.incrementAndGet();
+
+		// Counted before the job can finish, e.g. from the result cache.
+		calculating.incrementAndGet();
+		PowJob job;
+
+		try
+		{
+			job = engine.submit(item.initialHash, item.target, maxTime);
+		}
+		catch (RuntimeException e)
+		{
+			// E.g. the engine is shut down.
+			calculating.decrementAndGet();
+			fail(item, e);
+			return;
+		}
+
+		preparing.decrementAndGet();
+
+		job.addListener(new PowJobListener()
+		{
+			@Override
+			public void jobFinished(PowJob job)
+			{
+				if (!job.isCancelled())
+				{
+					try
+					{
+						item.result = job.get();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+
+				item.finishTime = System.nanoTime();
+				latencyNanos.addAndGet(item.finishTime - item.submitTime);
+				finishedCount.incrementAndGet();
+				calculating.decrementAndGet();
+				finished.add(item);
+			}
+		});
+	}
+
+	/**
+	 * Ends the preparation of an object with an error and emits it.
+	 */
+	private void fail(Item item, Exception e)
+	{
+		item.error = e;
+		item.finishTime = System.nanoTime();
+		preparing.decrementAndGet();
+		finished.add(item);
+	}
+
+	/**
+	 * Returns the next finished object, waiting if necessary.
+	 *
+	 * @return The next finished object.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public Item take() throws InterruptedException
+	{
+		return finished.take();
+	}
+
+	/**
+	 * Returns the next finished object, waiting up to the given time.
+	 *
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return The next finished object, or null if none was finished in time.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public Item poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return finished.poll(timeout, unit);
+	}
+
+	/**
+	 * Returns the number of objects waiting for or in preparation.
+	 *
+	 * @return The queue depth of the first stage.
+	 */
+	public int getPreparationQueueDepth()
+	{
+		return preparing.get();
+	}
+
+	/**
+	 * Returns the number of prepared objects waiting for or in the POW stage.
+	 *
+	 * @return The queue depth of the second stage.
+	 */
+	public int getPowQueueDepth()
+	{
+		return calculating.get();
+	}
+
+	/**
+	 * Returns the number of objects one preparation thread prepares per
+	 * second, measured over the time it actually spent on preparation.
+	 *
+	 * @return The throughput of the first stage in objects per second.
+	 */
+	public double getPreparationThroughput()
+	{
+		long nanos = preparationNanos.get();
+
+		return nanos == 0 ? 0 : preparedCount.get() * 1e9 / nanos;
+	}
+
+	/**
+	 * Returns the number of objects that finished the POW stage per second
+	 * since the pipeline was created.
+	 *
+	 * @return The throughput of the second stage in objects per second.
+	 */
+	public double getPowThroughput()
+	{
+		return finishedCount.get() * 1e9 / (System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Returns the average time from the submission of an object to the end of
+	 * its POW.
+	 *
+	 * @return The average end-to-end latency in milliseconds.
+	 */
+	public double getAverageLatency()
+	{
+		long count = finishedCount.get();
+
+		return count == 0 ? 0 : latencyNanos.get() / 1e6 / count;
+	}
+
+	/**
+	 * Stops accepting new objects. Objects that were already submitted are
+	 * still prepared.
+	 */
+	public void shutdown()
+	{
+		preparation.shutdown();
+	}
+}
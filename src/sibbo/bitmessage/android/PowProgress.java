@@ -0,0 +1,216 @@
+package sibbo.bitmessage.android;
+
+/**
+ * A snapshot of the progress of a running POW calculation.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class PowProgress
+{
+	/** 2^64 as double. */
+	private static final double TWO_POW_64 = 18446744073709551616.0;
+
+	/** The time of the snapshot, in terms of System.nanoTime(). */
+	private final long time;
+
+	/** The time since the start of the calculation in nanoseconds. */
+	private final long elapsed;
+
+	/** The nonces tried by each worker. */
+	private final long[] workerNonces;
+
+	/** The nonce rate of each worker since the previous snapshot, per second. */
+	private final double[] workerRates;
+
+	/** The time since the last update of each worker in nanoseconds. */
+	private final long[] workerIdle;
+
+	/** The nonces tried by all workers. */
+	private final long nonces;
+
+	/** The aggregate nonce rate since the previous snapshot, per second. */
+	private final double nonceRate;
+
+	/** The probability that a valid nonce would have been found by now. */
+	private final double successProbability;
+
+	private PowProgress(long time, long elapsed, long[] workerNonces, double[] workerRates, long[] workerIdle,
+			long nonces, double nonceRate, double successProbability)
+	{
+		this.time = time;
+		this.elapsed = elapsed;
+		this.workerNonces = workerNonces;
+		this.workerRates = workerRates;
+		this.workerIdle = workerIdle;
+		this.nonces = nonces;
+		this.nonceRate = nonceRate;
+		this.successProbability = successProbability;
+	}
+
+	/**
+	 * Takes a snapshot of the given counters.
+	 *
+	 * @param counters The counters of the calculation.
+	 * @param target The target of the calculation.
+	 * @param previous The previous snapshot of the same counters, or null. The
+	 *            rates are calculated over the time since that snapshot.
+	 * @return The snapshot.
+	 */
+	public static PowProgress sample(PowCounters counters, long target, PowProgress previous)
+	{
+		long now = System.nanoTime();
+		int workers = counters.getWorkers();
+		long[] workerNonces = new long[workers];
+		double[] workerRates = new double[workers];
+		long[] workerIdle = new long[workers];
+		long since = previous == null ? counters.getStartTime() : previous.time;
+		double seconds = Math.max(1, now - since) / 1e9;
+		long nonces = 0;
+		long delta = 0;
+
+		for (int i = 0; i < workers; i++)
+		{
+			workerNonces[i] = counters.getNonces(i);
+			workerIdle[i] = now - counters.getLastUpdate(i);
+			long d = workerNonces[i] - (previous == null ? 0 : previous.workerNonces[i]);
+			workerRates[i] = d / seconds;
+			nonces += workerNonces[i];
+			delta += d;
+		}
+
+		return new PowProgress(now, now - counters.getStartTime(), workerNonces, workerRates, workerIdle, nonces,
+				delta / seconds, getSuccessProbability(target, nonces));
+	}
+
+	/**
+	 * Returns the probability that at least one of the given number of trials
+	 * reaches the target.
+	 *
+	 * @param target The target.
+	 * @param trials The number of trials.
+	 * @return The probability.
+	 */
+	public static double getSuccessProbability(long target, long trials)
+	{
+		// A trial succeeds with p = (target + 1) / 2^64, so n trials succeed
+		// with 1 - (1 - p)^n. log1p/expm1 keep the precision for tiny p.
+		double p = (target + 1.0) / TWO_POW_64;
+
+		return -Math.expm1(trials * Math.log1p(-p));
+	}
+
+	/**
+	 * Returns the time since the start of the calculation.
+	 *
+	 * @return The elapsed time in milliseconds.
+	 */
+	public long getElapsedTime()
+	{
+		return elapsed / 1000000;
+	}
+
+	/**
+	 * Returns the time since the start of the calculation, measured with
+	 * System.nanoTime().
+	 *
+	 * @return The elapsed time in nanoseconds.
+	 */
+	public long getElapsedNanoTime()
+	{
+		return elapsed;
+	}
+
+	public int getWorkers()
+	{
+		return workerNonces.length;
+	}
+
+	/**
+	 * Returns the number of nonces tried by all workers. Every nonce takes
+	 * two hashes.
+	 *
+	 * @return The number of nonces.
+	 */
+	public long getNonces()
+	{
+		return nonces;
+	}
+
+	/**
+	 * Returns the number of nonces all workers tried per second since the
+	 * previous snapshot.
+	 *
+	 * @return The aggregate nonce rate.
+	 */
+	public double getNonceRate()
+	{
+		return nonceRate;
+	}
+
+	/**
+	 * Returns the number of hashes all workers calculated per second since the
+	 * previous snapshot, two per nonce.
+	 *
+	 * @return The aggregate hash rate.
+	 */
+	public double getHashRate()
+	{
+		return nonceRate * 2;
+	}
+
+	/**
+	 * Returns the number of nonces tried per second over the whole
+	 * calculation.
+	 *
+	 * @return The average nonce rate.
+	 */
+	public double getAverageNonceRate()
+	{
+		return elapsed == 0 ? 0 : nonces / (elapsed / 1e9);
+	}
+
+	public long getWorkerNonces(int worker)
+	{
+		return workerNonces[worker];
+	}
+
+	public double getWorkerNonceRate(int worker)
+	{
+		return workerRates[worker];
+	}
+
+	/**
+	 * Returns true if the given worker did not report any progress for the
+	 * given time. Workers report after every chunk of nonces, which takes
+	 * about {@link NonceScheduler#CHUNK_TIME} milliseconds plus the time they
+	 * sleep to limit the system load.
+	 *
+	 * @param worker The worker.
+	 * @param thresholdMillis The time without progress after which a worker
+	 *            counts as stalled.
+	 * @return True if the worker is stalled.
+	 */
+	public boolean isStalled(int worker, long thresholdMillis)
+	{
+		return workerIdle[worker] > thresholdMillis * 1000000;
+	}
+
+	/**
+	 * Returns the probability that a valid nonce would have been found with
+	 * the nonces tried so far.
+	 *
+	 * @return The probability, from 0 to 1.
+	 */
+	public double getSuccessProbability()
+	{
+		return successProbability;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "PowProgress[elapsed=" + getElapsedTime() + "ms, nonces=" + nonces + ", nonceRate=" + (long) nonceRate
+				+ "/s, successProbability=" + successProbability + "]";
+	}
+}
@@ -0,0 +1,18 @@
+package sibbo.bitmessage.android;
+
+/**
+ * Interface to receive the progress of a running POW calculation.
+ * 
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public interface PowProgressListener 
+{
+	/**
+	 * Informs the listener about the progress of a calculation. Called from
+	 * the sampling thread, not from a worker.
+	 * 
+	 * @param progress The current progress.
+	 */
+	void progressUpdated(PowProgress progress);
+}
@@ -0,0 +1,114 @@
+package sibbo.bitmessage.android;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the counters of a running calculation at a fixed interval and hands
+ * the snapshots to a {@link PowProgressListener}. Sampling happens on its own
+ * thread, the workers never wait for it.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowProgressSampler implements Runnable
+{
+	/** The counters to sample. */
+	private final PowCounters counters;
+
+	/** The target of the calculation. */
+	private final long target;
+
+	/** The listener to inform, may be null if only {@link #sample()} is used. */
+	private final PowProgressListener listener;
+
+	/** The thread that samples, null if not started. */
+	private ScheduledExecutorService executor;
+
+	/** The last snapshot. */
+	private PowProgress last;
+
+	/**
+	 * Creates a new PowProgressSampler.
+	 *
+	 * @param counters The counters to sample.
+	 * @param target The target of the calculation.
+	 * @param listener The listener to inform, or null.
+	 */
+	public PowProgressSampler(PowCounters counters, long target, PowProgressListener listener)
+	{
+		this.counters = counters;
+		this.target = target;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts sampling.
+	 *
+	 * @param intervalMillis The time between two snapshots in milliseconds.
+	 */
+	public synchronized void start(long intervalMillis)
+	{
+		if (executor != null || listener == null)
+		{
+			return;
+		}
+
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "POW Progress Sampler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.scheduleAtFixedRate(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops sampling and hands a final snapshot to the listener.
+	 */
+	public void stop()
+	{
+		synchronized (this)
+		{
+			if (executor == null)
+			{
+				return;
+			}
+
+			executor.shutdownNow();
+			executor = null;
+		}
+
+		run();
+	}
+
+	/**
+	 * Takes a snapshot. The rates are calculated over the time since the
+	 * previous snapshot.
+	 *
+	 * @return The snapshot.
+	 */
+	public synchronized PowProgress sample()
+	{
+		last = PowProgress.sample(counters, target, last);
+
+		return last;
+	}
+
+	@Override
+	public void run()
+	{
+		PowProgress progress = sample();
+
+		if (listener != null)
+		{
+			listener.progressUpdated(progress);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package sibbo.bitmessage.android;
+
+/**
+ * The result of a POW job run by a {@link PowEngine}.
+ * 
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class PowResult 
+{
+	/** The nonce, only meaningful if the POW was successful. */
+	private final long nonce;
+
+	/** How the calculation ended. */
+	private final PowOutcome outcome;
+
+	/** The number of hashes calculated for the job. */
+	private final long hashesCalculated;
+
+	/** The time in milliseconds from the submission of the job to its result. */
+	private final long elapsedTime;
+
+	/**
+	 * Creates a new PowResult.
+	 * 
+	 * @param nonce The nonce.
+	 * @param outcome How the calculation ended.
+	 * @param hashesCalculated The number of hashes calculated for the job.
+	 * @param elapsedTime The time in milliseconds from the submission of the
+	 *            job to its result.
+	 */
+	public PowResult(long nonce, PowOutcome outcome, long hashesCalculated, long elapsedTime)
+	{
+		this.nonce = nonce;
+		this.outcome = outcome;
+		this.hashesCalculated = hashesCalculated;
+		this.elapsedTime = elapsedTime;
+	}
+
+	/**
+	 * Returns the nonce. Note that it only fulfills the target if
+	 * {@link #isSuccessful()} returns true.
+	 * 
+	 * @return The nonce.
+	 */
+	public long getNonce()
+	{
+		return nonce;
+	}
+
+	/**
+	 * Returns the nonce as 8 bytes in big endian order, as it is used in
+	 * objects.
+	 * 
+	 * @return The nonce bytes.
+	 */
+	public byte[] getNonceBytes()
+	{
+		return Util.getBytes(nonce);
+	}
+
+	public boolean isSuccessful()
+	{
+		return outcome == PowOutcome.FOUND;
+	}
+	
+	public PowOutcome getOutcome()
+	{
+		return outcome;
+	}
+
+	public long getHashesCalculated()
+	{
+		return hashesCalculated;
+	}
+
+	public long getElapsedTime()
+	{
+		return elapsedTime;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "PowResult[nonce=" + nonce + ", outcome=" + outcome + ", hashes=" + hashesCalculated
+				+ ", elapsed=" + elapsedTime + "ms]";
+	}
+}
@@ -0,0 +1,458 @@
+package sibbo.bitmessage.android;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the nonces found for initial hashes, so an object that is queued
+ * again after a failure, a crash or a retry by the user does not have to be
+ * calculated again.<br />
+ * <br />
+ * The cache is keyed by the initial hash alone and stores the nonce with its
+ * trial value, the number the POW compares to the target. A lookup is answered
+ * if the trial value fulfills the requested target, so a nonce found for a
+ * stricter target also answers any easier one. If several nonces are found for
+ * the same hash, the one with the lowest trial value is kept.<br />
+ * <br />
+ * The entries are kept in LRU order and bounded in number, and they expire
+ * after a time to live. With a file, the cache survives restarts: every new
+ * entry is appended to it, and it is rewritten without the stale lines once
+ * they outnumber the entries. An entry loaded from the file is checked once,
+ * with one double SHA-512 on its first lookup, and dropped if its nonce does
+ * not give its trial value. Lookups are constant time, and the cache can be
+ * shared by any number of threads.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowResultCache
+{
+	private static final Logger LOG = Logger.getLogger(PowResultCache.class.getName());
+
+	/** The default maximum number of entries. */
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	/** The default time to live of an entry, 28 days, the longest TTL of an object. */
+	public static final long DEFAULT_TTL = 28L * 24 * 60 * 60 * 1000;
+
+	/** The first line of the file, identifies the format. */
+	private static final String HEADER = "# POW result cache 1";
+
+	/** A cached nonce. */
+	private static final class CachedNonce
+	{
+		private final long nonce;
+		private final long trialValue;
+		private final long time;
+
+		/** True once the trial value is known to belong to the nonce. */
+		private boolean checked;
+
+		private CachedNonce(long nonce, long trialValue, long time, boolean checked)
+		{
+			this.nonce = nonce;
+			this.trialValue = trialValue;
+			this.time = time;
+			this.checked = checked;
+		}
+	}
+
+	/** The entries in LRU order, the least recently used first. */
+	private final LinkedHashMap<ByteBuffer, CachedNonce> entries;
+
+	/** The file the cache is stored in, or null. */
+	private final File file;
+
+	private final int maxEntries;
+	private final long ttl;
+
+	/** The number of lines in the file. */
+	private int lines;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Creates a cache that is only kept in memory, with the default size and
+	 * time to live.
+	 */
+	public PowResultCache()
+	{
+		this(null, DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+	}
+
+	/**
+	 * Creates a new PowResultCache and loads the entries stored in the file.
+	 *
+	 * @param file The file, created with the first entry, or null to keep the
+	 *            cache in memory only.
+	 * @param maxEntries The maximum number of entries, the least recently used
+	 *            are evicted first.
+	 * @param ttlMillis The time in milliseconds after which an entry expires.
+	 */
+	public PowResultCache(File file, final int maxEntries, long ttlMillis)
+	{
+		if (maxEntries < 1 || ttlMillis < 1)
+		{
+			throw new IllegalArgumentException("maxEntries and ttlMillis must be at least 1.");
+		}
+
+		this.file = file;
+		this.maxEntries = maxEntries;
+		this.ttl = ttlMillis;
+		this.entries = new LinkedHashMap<ByteBuffer, CachedNonce>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CachedNonce> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+
+		load();
+	}
+
+	/**
+	 * Returns a cached nonce that fulfills the target.
+	 *
+	 * @param initialHash The hash of the message.
+	 * @param target The target.
+	 * @return The nonce, or -1 if none is cached.
+	 */
+	public long get(byte[] initialHash, long target)
+	{
+		CachedNonce e;
+
+		synchronized (entries)
+		{
+			ByteBuffer key = ByteBuffer.wrap(initialHash);
+			e = entries.get(key);
+
+			if (e != null && isExpired(e, System.currentTimeMillis()))
+			{
+				entries.remove(key);
+				e = null;
+			}
+
+			if (e != null && !e.checked)
+			{
+				long value = new Sha512Kernel(initialHash).trial(e.nonce);
+
+				if (value < 0 || value != e.trialValue)
+				{
+					LOG.warning("Dropped a cached nonce that does not give its trial value: " + e.nonce);
+					entries.remove(key);
+					e = null;
+				}
+				else
+				{
+					e.checked = true;
+				}
+			}
+		}
+
+		if (e == null || e.trialValue > target)
+		{
+			misses.incrementAndGet();
+			return -1;
+		}
+
+		hits.incrementAndGet();
+
+		return e.nonce;
+	}
+
+	/**
+	 * Stores a nonce that was found for an initial hash.
+	 *
+	 * @param initialHash The hash of the message.
+	 * @param nonce The nonce.
+	 * @param trialValue The trial value of the nonce, as calculated by the
+	 *            worker that found it.
+	 */
+	public void put(byte[] initialHash, long nonce, long trialValue)
+	{
+		if (trialValue < 0)
+		{
+			// Fulfills no target, see POWWorker
+			return;
+		}
+
+		CachedNonce e = new CachedNonce(nonce, trialValue, System.currentTimeMillis(), true);
+
+		synchronized (entries)
+		{
+			ByteBuffer key = ByteBuffer.wrap(initialHash.clone());
+			CachedNonce old = entries.get(key);
+
+			if (old != null && !isExpired(old, e.time) && old.trialValue <= trialValue)
+			{
+				return;
+			}
+
+			entries.put(key, e);
+			append(key, e);
+		}
+	}
+
+	/**
+	 * Removes all entries, also from the file.
+	 */
+	public void clear()
+	{
+		synchronized (entries)
+		{
+			entries.clear();
+			rewrite();
+		}
+	}
+
+	public int size()
+	{
+		synchronized (entries)
+		{
+			return entries.size();
+		}
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Returns the share of lookups that were answered.
+	 *
+	 * @return The hit rate from 0 to 1, 0 if there were no lookups.
+	 */
+	public double getHitRate()
+	{
+		long h = hits.get();
+		long total = h + misses.get();
+
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	private boolean isExpired(CachedNonce e, long now)
+	{
+		return now - e.time >= ttl;
+	}
+
+	/**
+	 * Appends an entry to the file, and rewrites the file if it has too many
+	 * stale lines.
+	 */
+	private void append(ByteBuffer key, CachedNonce e)
+	{
+		if (file == null)
+		{
+			return;
+		}
+
+		if (lines >= 2 * maxEntries)
+		{
+			rewrite();
+			return;
+		}
+
+		try
+		{
+			boolean exists = file.isFile();
+			Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "US-ASCII");
+
+			try
+			{
+				if (!exists)
+				{
+					out.write(HEADER + "\n");
+					lines = 0;
+				}
+
+				out.write(format(key, e));
+				lines++;
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException x)
+		{
+			LOG.log(Level.WARNING, "Could not store a POW result in " + file, x);
+		}
+	}
+
+	/**
+	 * Writes the current entries to a new file that replaces the old one.
+	 */
+	private void rewrite()
+	{
+		if (file == null)
+		{
+			return;
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+
+		try
+		{
+			Writer out = new OutputStreamWriter(new FileOutputStream(temp), "US-ASCII");
+
+			try
+			{
+				out.write(HEADER + "\n");
+
+				// Least recently used first, so loading restores the order.
+				for (Map.Entry<ByteBuffer, CachedNonce> e : entries.entrySet())
+				{
+					out.write(format(e.getKey(), e.getValue()));
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+
+			if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+			{
+				throw new IOException("Could not replace " + file);
+			}
+
+			lines = entries.size();
+		}
+		catch (IOException x)
+		{
+			LOG.log(Level.WARNING, "Could not rewrite the POW result cache " + file, x);
+		}
+	}
+
+	private static String format(ByteBuffer key, CachedNonce e)
+	{
+		StringBuilder line = new StringBuilder();
+
+		for (int i = key.position(); i < key.limit(); i++)
+		{
+			byte b = key.get(i);
+			line.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+
+		return line.append('\t').append(e.nonce).append('\t').append(e.trialValue).append('\t').append(e.time)
+				.append('\n').toString();
+	}
+
+	/**
+	 * Loads the entries of the file. Damaged lines are skipped, and of several
+	 * lines for the same hash the best is kept.
+	 */
+	private void load()
+	{
+		if (file == null)
+		{
+			return;
+		}
+
+		int damaged = 0;
+		BufferedReader in;
+
+		try
+		{
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+		}
+		catch (FileNotFoundException e)
+		{
+			return;
+		}
+		catch (IOException e)
+		{
+			LOG.log(Level.WARNING, "Could not load the POW result cache " + file, e);
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+
+		try
+		{
+			String line;
+
+			while ((line = in.readLine()) != null)
+			{
+				if (line.length() == 0 || line.startsWith("#"))
+				{
+					continue;
+				}
+
+				lines++;
+				String[] f = line.split("\t");
+
+				try
+				{
+					if (f.length != 4 || f[0].length() != 128)
+					{
+						throw new NumberFormatException();
+					}
+
+					byte[] hash = new byte[64];
+
+					for (int i = 0; i < hash.length; i++)
+					{
+						hash[i] = (byte) Integer.parseInt(f[0].substring(2 * i, 2 * i + 2), 16);
+					}
+
+					CachedNonce e = new CachedNonce(Long.parseLong(f[1]), Long.parseLong(f[2]), Long.parseLong(f[3]),
+							false);
+					ByteBuffer key = ByteBuffer.wrap(hash);
+					CachedNonce old = entries.get(key);
+
+					if (!isExpired(e, now) && (old == null || e.trialValue < old.trialValue))
+					{
+						entries.put(key, e);
+					}
+				}
+				catch (NumberFormatException e)
+				{
+					damaged++;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.log(Level.WARNING, "Could not load the POW result cache " + file, e);
+		}
+		finally
+		{
+			try
+			{
+				in.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing to do
+			}
+		}
+
+		if (damaged > 0)
+		{
+			LOG.warning("Skipped " + damaged + " damaged lines of " + file);
+		}
+	}
+}
@@ -0,0 +1,658 @@
+package sibbo.bitmessage.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Runs the POW at full load for minutes and records how the hash rate holds
+ * up. Phones and fanless machines reach their best rate in the first seconds
+ * and throttle once they are hot, so a short test overstates the rate of the
+ * long calculations of high difficulties.<br />
+ * <br />
+ * The calculation tries nonces of a seeded initial hash with no target until
+ * the duration is over. At every interval the hash rate of each worker and the
+ * CPU time of the workers are sampled. The CPU time is read per thread where
+ * the JVM measures it or /proc has it, as on Android, otherwise for the whole
+ * process (see {@link #getCpuTimeSource()}). From the samples the test derives the peak
+ * rate, the decay curve relative to it, the time throttling starts, the
+ * steady-state rate of the last third of the test and the hashes per
+ * CPU-second.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowSoakTest
+{
+	private static final Logger LOG = Logger.getLogger(PowSoakTest.class.getName());
+
+	/** The default duration in seconds. */
+	public static final int DEFAULT_DURATION = 600;
+
+	/** The default time between two samples in milliseconds. */
+	public static final long DEFAULT_INTERVAL = 10000;
+
+	/** The default drop below the peak rate that counts as throttling. */
+	public static final double DEFAULT_THRESHOLD = 0.1;
+
+	/** The number of consecutive samples whose rates are averaged. */
+	private static final int SMOOTHING = 3;
+
+	/** The target no nonce fulfills, so the test runs for its whole duration. */
+	private static final long NO_TARGET = -1;
+
+	/**
+	 * Where the CPU times of the samples come from.
+	 */
+	public enum CpuTimeSource
+	{
+		/** The CPU time of the worker threads. */
+		THREADS,
+
+		/** The CPU time of the whole process, including the sampling. */
+		PROCESS,
+
+		/** No CPU time could be read. */
+		NONE
+	}
+
+	/**
+	 * A sample of the test, covering one interval.
+	 */
+	public static final class Sample
+	{
+		private final long time;
+		private final long wallTime;
+		private final double hashRate;
+		private final double[] workerHashRates;
+		private final long cpuTime;
+
+		private Sample(long time, long wallTime, double hashRate, double[] workerHashRates, long cpuTime)
+		{
+			this.time = time;
+			this.wallTime = wallTime;
+			this.hashRate = hashRate;
+			this.workerHashRates = workerHashRates;
+			this.cpuTime = cpuTime;
+		}
+
+		/**
+		 * Returns the time of the end of this sample.
+		 *
+		 * @return The time since the start of the test in milliseconds.
+		 */
+		public long getTime()
+		{
+			return time;
+		}
+
+		/**
+		 * Returns the hash rate of all workers together in the interval.
+		 *
+		 * @return The hash rate.
+		 */
+		public double getHashRate()
+		{
+			return hashRate;
+		}
+
+		/**
+		 * Returns the hash rate of each worker in the interval.
+		 *
+		 * @return The hash rates by worker.
+		 */
+		public double[] getWorkerHashRates()
+		{
+			return workerHashRates.clone();
+		}
+
+		/**
+		 * Returns the CPU time used in the interval.
+		 *
+		 * @return The CPU time in nanoseconds, or -1 if unknown.
+		 */
+		public long getCpuTime()
+		{
+			return cpuTime;
+		}
+
+		/**
+		 * Returns the average number of CPUs that were busy in the interval.
+		 *
+		 * @return The CPU load, 1 per fully used CPU, or NaN if unknown.
+		 */
+		public double getCpuLoad()
+		{
+			return cpuTime < 0 ? Double.NaN : (double) cpuTime / wallTime;
+		}
+
+		/**
+		 * Returns the number of hashes per second of CPU time in the interval.
+		 *
+		 * @return The hashes per CPU-second, or NaN if unknown.
+		 */
+		public double getHashesPerCpuSecond()
+		{
+			return cpuTime <= 0 ? Double.NaN : hashRate * wallTime / cpuTime;
+		}
+	}
+
+	private int duration = DEFAULT_DURATION;
+	private long interval = DEFAULT_INTERVAL;
+	private double threshold = DEFAULT_THRESHOLD;
+
+	/** The number of worker threads, or 0 to ask the default {@link ThreadTuner}. */
+	private int threadCount;
+
+	private ProofOfWorkFunction function = ProofOfWorkFunctions.DOUBLE_SHA512;
+	private long seed;
+
+	/** Receives the progress of the calculation, or null. */
+	private PowProgressListener progressListener;
+
+	/** The calculation of the running test, used to cancel it. */
+	private volatile POWCalculator running;
+
+	/** Set by {@link #cancel()}. */
+	private volatile boolean cancelled;
+
+	/** The samples of the running or last test. */
+	private final List<Sample> samples = Collections.synchronizedList(new ArrayList<Sample>());
+
+	private CpuTimeSource cpuTimeSource = CpuTimeSource.NONE;
+
+	/** The totals of the samples of the last test. */
+	private long totalHashes;
+	private long totalWallTime;
+	private long totalCpuTime;
+	private long measuredWallTime;
+
+	/**
+	 * Sets the time the test runs.
+	 *
+	 * @param seconds The duration in seconds.
+	 */
+	public void setDuration(int seconds)
+	{
+		if (seconds < 1)
+		{
+			throw new IllegalArgumentException("seconds must be at least 1.");
+		}
+
+		duration = seconds;
+	}
+
+	public int getDuration()
+	{
+		return duration;
+	}
+
+	/**
+	 * Sets the time between two samples.
+	 *
+	 * @param millis The interval in milliseconds.
+	 */
+	public void setInterval(long millis)
+	{
+		if (millis < 1)
+		{
+			throw new IllegalArgumentException("millis must be at least 1.");
+		}
+
+		interval = millis;
+	}
+
+	public long getInterval()
+	{
+		return interval;
+	}
+
+	/**
+	 * Sets the drop below the peak rate that counts as throttling.
+	 *
+	 * @param newThreshold The drop, e.g. 0.1 for 10%.
+	 */
+	public void setThreshold(double newThreshold)
+	{
+		if (newThreshold <= 0 || newThreshold >= 1)
+		{
+			throw new IllegalArgumentException("newThreshold must be between 0 and 1.");
+		}
+
+		threshold = newThreshold;
+	}
+
+	/**
+	 * Sets the number of worker threads. The default is the count of
+	 * {@link ThreadTuner#getDefault()}.
+	 *
+	 * @param newThreadCount The number of worker threads.
+	 */
+	public void setThreadCount(int newThreadCount)
+	{
+		if (newThreadCount < 1)
+		{
+			throw new IllegalArgumentException("newThreadCount must be at least 1.");
+		}
+
+		threadCount = newThreadCount;
+	}
+
+	public int getThreadCount()
+	{
+		return threadCount > 0 ? threadCount : ThreadTuner.getDefault().getThreadCount();
+	}
+
+	/**
+	 * Sets the function the test calculates. The default is
+	 * {@link ProofOfWorkFunctions#DOUBLE_SHA512}.
+	 *
+	 * @param newFunction The function.
+	 */
+	public void setFunction(ProofOfWorkFunction newFunction)
+	{
+		function = newFunction;
+	}
+
+	/**
+	 * Sets the seed the initial hash is derived from, see
+	 * {@link PowBenchmark#getInitialHash(long)}.
+	 *
+	 * @param newSeed The seed.
+	 */
+	public void setSeed(long newSeed)
+	{
+		seed = newSeed;
+	}
+
+	/**
+	 * Sets a listener that receives the progress of the calculation at every
+	 * sample.
+	 *
+	 * @param listener The listener, or null to remove it.
+	 */
+	public void setProgressListener(PowProgressListener listener)
+	{
+		progressListener = listener;
+	}
+
+	/**
+	 * Runs the test.<br />
+	 * <b>WARNING: This takes the whole duration.</b>
+	 *
+	 * @return The samples, or null if the test was cancelled.
+	 */
+	public synchronized List<Sample> run()
+	{
+		cancelled = false;
+		samples.clear();
+		cpuTimeSource = CpuClock.isThreadTimeSupported() ? CpuTimeSource.THREADS
+				: CpuClock.getProcessCpuTime() >= 0 ? CpuTimeSource.PROCESS : CpuTimeSource.NONE;
+
+		final POWCalculator pow = new POWCalculator();
+		pow.setThreadCount(getThreadCount());
+		pow.setFunction(function);
+		pow.setTarget(NO_TARGET);
+		pow.setInitialHash(PowBenchmark.getInitialHash(seed));
+		pow.setLoadGovernor(new LoadGovernor(LoadGovernor.Profile.MAX_THROUGHPUT));
+
+		final Sampler sampler = new Sampler(pow);
+		pow.setProgressListener(new PowProgressListener()
+		{
+			@Override
+			public void progressUpdated(PowProgress progress)
+			{
+				sampler.sample(progress);
+
+				if (progressListener != null)
+				{
+					progressListener.progressUpdated(progress);
+				}
+			}
+		}, interval);
+
+		running = pow;
+
+		if (cancelled)
+		{
+			return null;
+		}
+
+		pow.execute(duration);
+		running = null;
+
+		if (pow.getOutcome() != PowOutcome.TIMED_OUT)
+		{
+			return null;
+		}
+
+		totalHashes = sampler.hashes;
+		totalWallTime = sampler.wallTime;
+		totalCpuTime = sampler.cpuTime;
+		measuredWallTime = sampler.measuredWallTime;
+		LOG.info("Soak test: peak " + (long) getPeakHashRate() + " h/s, onset " + getThrottleOnset()
+				+ " ms, " + (long) getHashesPerCpuSecond() + " hashes per CPU-second");
+
+		return getSamples();
+	}
+
+	/**
+	 * Cancels the test. Can be called from any thread, {@link #run()} then
+	 * returns null.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+
+		POWCalculator pow = running;
+
+		if (pow != null)
+		{
+			pow.cancel();
+		}
+	}
+
+	/**
+	 * Returns the samples of the running or last test. Can be called from any
+	 * thread.
+	 *
+	 * @return The samples, the oldest first.
+	 */
+	public List<Sample> getSamples()
+	{
+		synchronized (samples)
+		{
+			return new ArrayList<Sample>(samples);
+		}
+	}
+
+	/**
+	 * Returns where the CPU times of the last test came from.
+	 *
+	 * @return The source.
+	 */
+	public CpuTimeSource getCpuTimeSource()
+	{
+		return cpuTimeSource;
+	}
+
+	/**
+	 * Returns the highest hash rate of the last test, averaged over a few
+	 * consecutive samples so a single fast interval doesn't count.
+	 *
+	 * @return The peak hash rate, 0 if there are no samples.
+	 */
+	public double getPeakHashRate()
+	{
+		double[] smoothed = getSmoothedRates(getSamples());
+		double peak = 0;
+
+		for (double rate : smoothed)
+		{
+			peak = Math.max(peak, rate);
+		}
+
+		return peak;
+	}
+
+	/**
+	 * Returns the decay curve of the last test: the hash rate of every sample
+	 * relative to the peak hash rate.
+	 *
+	 * @return The relative rates, one per sample.
+	 */
+	public double[] getDecayCurve()
+	{
+		List<Sample> s = getSamples();
+		double peak = getPeakHashRate();
+		double[] curve = new double[s.size()];
+
+		for (int i = 0; i < curve.length && peak > 0; i++)
+		{
+			curve[i] = s.get(i).getHashRate() / peak;
+		}
+
+		return curve;
+	}
+
+	/**
+	 * Returns the time throttling started in the last test: the start of the
+	 * first interval after the peak whose averaged rate is below the peak by
+	 * more than the threshold.
+	 *
+	 * @return The time since the start of the test in milliseconds, or -1 if
+	 *         the rate did not drop.
+	 */
+	public long getThrottleOnset()
+	{
+		List<Sample> s = getSamples();
+		double[] smoothed = getSmoothedRates(s);
+		int peak = 0;
+
+		for (int i = 1; i < smoothed.length; i++)
+		{
+			if (smoothed[i] > smoothed[peak])
+			{
+				peak = i;
+			}
+		}
+
+		for (int i = peak + 1; i < smoothed.length; i++)
+		{
+			if (smoothed[i] < smoothed[peak] * (1 - threshold))
+			{
+				return s.get(i - 1).getTime();
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns the steady-state hash rate of the last test, from the samples
+	 * of its last third.
+	 *
+	 * @return The rate statistics, or null if there are less than two samples.
+	 */
+	public RateStatistics getSteadyState()
+	{
+		List<Sample> s = getSamples();
+
+		if (s.size() < 2)
+		{
+			return null;
+		}
+
+		int first = Math.min(s.size() - 2, s.size() * 2 / 3);
+		double[] rates = new double[s.size() - first];
+
+		for (int i = 0; i < rates.length; i++)
+		{
+			rates[i] = s.get(first + i).getHashRate();
+		}
+
+		return RateStatistics.of(rates);
+	}
+
+	/**
+	 * Returns the steady-state hash rate relative to the peak hash rate.
+	 *
+	 * @return The share of the peak rate that is kept, 1 if there was no
+	 *         throttling, or NaN if there are less than two samples.
+	 */
+	public double getSustainedShare()
+	{
+		RateStatistics steady = getSteadyState();
+		double peak = getPeakHashRate();
+
+		return steady == null || peak == 0 ? Double.NaN : steady.getMean() / peak;
+	}
+
+	/**
+	 * Returns the hash rate of the whole last test against the wall clock.
+	 *
+	 * @return The hash rate.
+	 */
+	public double getHashRate()
+	{
+		return totalWallTime == 0 ? 0 : totalHashes * 1e9 / totalWallTime;
+	}
+
+	/**
+	 * Returns the hashes of the last test per second of CPU time, over the
+	 * samples whose CPU time is known.
+	 *
+	 * @return The hashes per CPU-second, or NaN if no CPU time is known.
+	 */
+	public double getHashesPerCpuSecond()
+	{
+		if (totalCpuTime <= 0 || measuredWallTime == 0)
+		{
+			return Double.NaN;
+		}
+
+		// The hashes of the samples with a known CPU time.
+		double hashes = 0;
+
+		for (Sample s : getSamples())
+		{
+			if (s.cpuTime >= 0)
+			{
+				hashes += s.hashRate * s.wallTime / 1e9;
+			}
+		}
+
+		return hashes * 1e9 / totalCpuTime;
+	}
+
+	/**
+	 * Returns the average number of CPUs that were busy in the last test.
+	 *
+	 * @return The CPU load, 1 per fully used CPU, or NaN if unknown.
+	 */
+	public double getCpuLoad()
+	{
+		return totalCpuTime < 0 || measuredWallTime == 0 ? Double.NaN : (double) totalCpuTime / measuredWallTime;
+	}
+
+	/**
+	 * Returns the moving averages of the hash rates of {@link #SMOOTHING}
+	 * consecutive samples, one per sample that starts such a run.
+	 */
+	private static double[] getSmoothedRates(List<Sample> s)
+	{
+		int window = Math.min(SMOOTHING, s.size());
+		double[] smoothed = new double[s.size() - window + (window == 0 ? 0 : 1)];
+
+		for (int i = 0; i < smoothed.length; i++)
+		{
+			for (int j = 0; j < window; j++)
+			{
+				smoothed[i] += s.get(i + j).getHashRate() / window;
+			}
+		}
+
+		return smoothed;
+	}
+
+	/**
+	 * Turns the progress snapshots of the calculation into samples. Only
+	 * called by the sampler thread of the calculation.
+	 */
+	private final class Sampler
+	{
+		private final POWCalculator pow;
+
+		private long lastElapsed;
+		private long[] lastNonces;
+		private long lastCpuTime;
+
+		/** The totals of the samples. */
+		private long hashes;
+		private long wallTime;
+		private long cpuTime;
+		private long measuredWallTime;
+
+		private Sampler(POWCalculator pow)
+		{
+			this.pow = pow;
+			this.lastCpuTime = cpuTimeSource == CpuTimeSource.PROCESS ? CpuClock.getProcessCpuTime() : 0;
+		}
+
+		private void sample(PowProgress progress)
+		{
+			long elapsed = progress.getElapsedNanoTime();
+			long wall = elapsed - lastElapsed;
+
+			if (lastNonces == null)
+			{
+				lastNonces = new long[progress.getWorkers()];
+			}
+
+			// Snapshots after a short remainder of an interval, and those at
+			// the end of the test while the workers stop, are dropped.
+			if (wall < interval * 500000 || elapsed > duration * 1000000000L - interval * 500000)
+			{
+				return;
+			}
+
+			double[] workerRates = new double[lastNonces.length];
+			long nonces = 0;
+
+			for (int i = 0; i < workerRates.length; i++)
+			{
+				long n = progress.getWorkerNonces(i);
+				workerRates[i] = 2 * (n - lastNonces[i]) * 1e9 / wall;
+				nonces += n - lastNonces[i];
+				lastNonces[i] = n;
+			}
+
+			long cpu = readCpuTime();
+			long cpuDelta = cpu < 0 || lastCpuTime < 0 ? -1 : cpu - lastCpuTime;
+			lastCpuTime = cpu;
+			lastElapsed = elapsed;
+
+			hashes += 2 * nonces;
+			wallTime += wall;
+
+			if (cpuDelta >= 0)
+			{
+				cpuTime += cpuDelta;
+				measuredWallTime += wall;
+			}
+
+			samples.add(new Sample(elapsed / 1000000, wall, 2 * nonces * 1e9 / wall, workerRates, cpuDelta));
+		}
+
+		/**
+		 * Returns the CPU time used so far, or -1 if it can't be read.
+		 */
+		private long readCpuTime()
+		{
+			switch (cpuTimeSource)
+			{
+				case THREADS:
+					long sum = 0;
+
+					for (Thread t : pow.getWorkerThreads())
+					{
+						long time = t == null ? 0 : CpuClock.getThreadCpuTime(t);
+
+						if (time < 0)
+						{
+							return -1;
+						}
+
+						sum += time;
+					}
+
+					return sum;
+				case PROCESS:
+					return CpuClock.getProcessCpuTime();
+				default:
+					return -1;
+			}
+		}
+	}
+}
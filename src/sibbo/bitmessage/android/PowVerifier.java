@@ -0,0 +1,474 @@
+package sibbo.bitmessage.android;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks the POW of received objects.<br />
+ * <br />
+ * Batches are split between the threads of a pool. Every thread has its own
+ * {@link Sha512Kernel} and digest, which are reused for every object, so a
+ * verification does not allocate anything. The POW value of every verified
+ * object with a known payload is kept in a bounded LRU cache keyed by its
+ * inventory hash, so an object that is announced by many peers is only hashed
+ * once. The value is cached rather than the result, so the same entry answers
+ * for any difficulty.<br />
+ * <br />
+ * The inventory hashes of the cache are always calculated by the verifier, an
+ * inventory hash from a peer could belong to another object. A request with
+ * only an initial hash can name an inventory hash the verifier calculated
+ * before, but its entry is only used if it was calculated for the same nonce
+ * and initial hash.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class PowVerifier
+{
+	/**
+	 * An object whose POW should be checked.
+	 */
+	public static final class Request
+	{
+		private final long nonce;
+		private final byte[] payload;
+		private final byte[] initialHash;
+		private final int payloadLength;
+		private final PowParameters parameters;
+		/** Calculated by the verifier, or given for a request without payload. */
+		private byte[] inventoryHash;
+
+		private Request(long nonce, byte[] payload, byte[] initialHash, int payloadLength, PowParameters parameters,
+				byte[] inventoryHash)
+		{
+			this.nonce = nonce;
+			this.payload = payload;
+			this.initialHash = initialHash;
+			this.payloadLength = payloadLength;
+			this.parameters = parameters;
+			this.inventoryHash = inventoryHash;
+		}
+
+		/**
+		 * Creates a request for an object of which the payload is known. Its
+		 * inventory hash is calculated during the verification.
+		 *
+		 * @param nonce The nonce of the object.
+		 * @param payload The payload the POW was done for.
+		 * @param difficultyFactor The difficulty factor, 1 is the network
+		 *            minimum.
+		 * @return The request.
+		 */
+		public static Request forPayload(long nonce, byte[] payload, int difficultyFactor)
+		{
+			return forPayload(nonce, payload, PowParameters.forDifficulty(difficultyFactor));
+		}
+
+		/**
+		 * Creates a request for an object of which the payload is known, with
+		 * the POW parameters of the object, e.g. including its time to live.
+		 *
+		 * @param nonce The nonce of the object.
+		 * @param payload The payload the POW was done for.
+		 * @param parameters The POW parameters of the object.
+		 * @return The request.
+		 */
+		public static Request forPayload(long nonce, byte[] payload, PowParameters parameters)
+		{
+			return new Request(nonce, payload, null, payload.length, parameters, null);
+		}
+
+		/**
+		 * Creates a request for an object of which only the initial hash is
+		 * known. Its result is not cached, but an earlier result can be looked
+		 * up by inventory hash.
+		 *
+		 * @param nonce The nonce of the object.
+		 * @param initialHash The hash of the payload.
+		 * @param payloadLength The length of the payload.
+		 * @param difficultyFactor The difficulty factor, 1 is the network
+		 *            minimum.
+		 * @param inventoryHash The inventory hash {@link #getInventoryHash()}
+		 *            returned for the object, or null. Only used if its entry
+		 *            has the same nonce and initial hash.
+		 * @return The request.
+		 */
+		public static Request forInitialHash(long nonce, byte[] initialHash, int payloadLength,
+				int difficultyFactor, byte[] inventoryHash)
+		{
+			return forInitialHash(nonce, initialHash, payloadLength, PowParameters.forDifficulty(difficultyFactor),
+					inventoryHash);
+		}
+
+		/**
+		 * Creates a request for an object of which only the initial hash is
+		 * known, with the POW parameters of the object.
+		 *
+		 * @param nonce The nonce of the object.
+		 * @param initialHash The hash of the payload.
+		 * @param payloadLength The length of the payload.
+		 * @param parameters The POW parameters of the object.
+		 * @param inventoryHash The inventory hash {@link #getInventoryHash()}
+		 *            returned for the object, or null. Only used if its entry
+		 *            has the same nonce and initial hash.
+		 * @return The request.
+		 */
+		public static Request forInitialHash(long nonce, byte[] initialHash, int payloadLength,
+				PowParameters parameters, byte[] inventoryHash)
+		{
+			return new Request(nonce, null, initialHash, payloadLength, parameters, inventoryHash);
+		}
+
+		public long getNonce()
+		{
+			return nonce;
+		}
+
+		/**
+		 * Returns the inventory hash of the object, which is calculated during
+		 * the verification of a request with payload.
+		 *
+		 * @return The inventory hash, or null if it is not known.
+		 */
+		public byte[] getInventoryHash()
+		{
+			return inventoryHash;
+		}
+	}
+
+	/**
+	 * A cached POW value with the object it was calculated for.
+	 */
+	private static final class CachedValue
+	{
+		private final long nonce;
+
+		/** The first 8 bytes of the initial hash. */
+		private final long initialHash;
+
+		private final long value;
+
+		private CachedValue(long nonce, long initialHash, long value)
+		{
+			this.nonce = nonce;
+			this.initialHash = initialHash;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * The hashing state of one verification thread.
+	 */
+	private static final class Context
+	{
+		private final MessageDigest sha512 = Sha512Backends.getDefault().newDigest();
+		private final Sha512Kernel kernel = new Sha512Kernel(new byte[64]);
+		private final byte[] nonceBytes = new byte[8];
+		private final byte[] hash = new byte[64];
+	}
+
+	/** The number of objects below which a batch is verified by the calling thread. */
+	private static final int MIN_PARALLEL_BATCH = 64;
+
+	/** The default number of cached POW values. */
+	public static final int DEFAULT_CACHE_SIZE = 100000;
+
+	private final ExecutorService pool;
+	private final int threads;
+
+	/** The POW values by inventory hash, in access order. */
+	private final Map<ByteBuffer, CachedValue> cache;
+
+	private final ThreadLocal<Context> contexts = new ThreadLocal<Context>()
+	{
+		@Override
+		protected Context initialValue()
+		{
+			return new Context();
+		}
+	};
+
+	private final AtomicLong verifications = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong verificationNanos = new AtomicLong();
+
+	/**
+	 * Creates a verifier with one thread per CPU and the default cache size.
+	 */
+	public PowVerifier()
+	{
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Creates a new PowVerifier.
+	 *
+	 * @param threads The number of verification threads.
+	 * @param cacheSize The maximum number of cached POW values, 0 for no
+	 *            cache.
+	 */
+	public PowVerifier(int threads, final int cacheSize)
+	{
+		if (threads < 1)
+		{
+			throw new IllegalArgumentException("threads must be at least 1.");
+		}
+
+		this.threads = threads;
+		this.cache = new LinkedHashMap<ByteBuffer, CachedValue>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CachedValue> eldest)
+			{
+				return size() > cacheSize;
+			}
+		};
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "POW Verifier No. " + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Checks the POW of a single object in the calling thread.
+	 *
+	 * @param request The object.
+	 * @return True if the POW is valid.
+	 */
+	public boolean verify(Request request)
+	{
+		long start = System.nanoTime();
+		boolean valid = verify(request, contexts.get());
+
+		verificationNanos.addAndGet(System.nanoTime() - start);
+
+		return valid;
+	}
+
+	/**
+	 * Checks the POW of a batch of objects in parallel.
+	 *
+	 * @param requests The objects.
+	 * @return The results, in the order of the requests.
+	 * @throws InterruptedException If interrupted while waiting for the
+	 *             verification threads.
+	 */
+	public boolean[] verifyAll(final List<Request> requests) throws InterruptedException
+	{
+		final boolean[] results = new boolean[requests.size()];
+		long start = System.nanoTime();
+
+		if (requests.size() < MIN_PARALLEL_BATCH || threads == 1)
+		{
+			Context context = contexts.get();
+
+			for (int i = 0; i < results.length; i++)
+			{
+				results[i] = verify(requests.get(i), context);
+			}
+		}
+		else
+		{
+			int slices = Math.min(threads, results.length / (MIN_PARALLEL_BATCH / 2));
+			final CountDownLatch done = new CountDownLatch(slices);
+
+			for (int s = 0; s < slices; s++)
+			{
+				final int from = (int) ((long) results.length * s / slices);
+				final int to = (int) ((long) results.length * (s + 1) / slices);
+
+				pool.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							Context context = contexts.get();
+
+							for (int i = from; i < to; i++)
+							{
+								results[i] = verify(requests.get(i), context);
+							}
+						}
+						finally
+						{
+							done.countDown();
+						}
+					}
+				});
+			}
+
+			done.await();
+		}
+
+		verificationNanos.addAndGet(System.nanoTime() - start);
+
+		return results;
+	}
+
+	/**
+	 * Does the verification of one object.
+	 */
+	private boolean verify(Request request, Context context)
+	{
+		long target = request.parameters.getTarget(request.payloadLength);
+		verifications.incrementAndGet();
+
+		try
+		{
+			if (request.inventoryHash == null && request.payload != null)
+			{
+				request.inventoryHash = getInventoryHash(request, context);
+			}
+
+			CachedValue cached = null;
+
+			if (request.inventoryHash != null)
+			{
+				synchronized (cache)
+				{
+					cached = cache.get(ByteBuffer.wrap(request.inventoryHash));
+				}
+
+				// The inventory hash of a request without payload was not
+				// calculated here, it only names an entry.
+				if (cached != null && request.payload == null && (cached.nonce != request.nonce
+						|| cached.initialHash != Util.getLong(request.initialHash)))
+				{
+					cached = null;
+				}
+			}
+
+			long value;
+
+			if (cached != null)
+			{
+				cacheHits.incrementAndGet();
+				value = cached.value;
+			}
+			else
+			{
+				if (request.payload != null)
+				{
+					context.sha512.update(request.payload);
+					context.sha512.digest(context.hash, 0, 64);
+					context.kernel.setInitialHash(context.hash);
+				}
+				else
+				{
+					context.kernel.setInitialHash(request.initialHash);
+				}
+
+				value = context.kernel.trial(request.nonce);
+
+				if (request.payload != null)
+				{
+					CachedValue v = new CachedValue(request.nonce, Util.getLong(context.hash), value);
+
+					synchronized (cache)
+					{
+						cache.put(ByteBuffer.wrap(request.inventoryHash), v);
+					}
+				}
+			}
+
+			return value >= 0 && value <= target;
+		}
+		catch (DigestException e)
+		{
+			throw new IllegalStateException("SHA-512 digest failed.", e);
+		}
+	}
+
+	/**
+	 * Calculates the inventory hash of an object, the first 32 bytes of
+	 * {@code sha512(sha512(nonce || payload))}.
+	 */
+	private static byte[] getInventoryHash(Request request, Context context) throws DigestException
+	{
+		long nonce = request.nonce;
+
+		for (int i = 7; i >= 0; i--)
+		{
+			context.nonceBytes[i] = (byte) nonce;
+			nonce >>>= 8;
+		}
+
+		context.sha512.update(context.nonceBytes);
+		context.sha512.update(request.payload);
+		context.sha512.digest(context.hash, 0, 64);
+		context.sha512.update(context.hash);
+		context.sha512.digest(context.hash, 0, 64);
+
+		byte[] inventoryHash = new byte[32];
+		System.arraycopy(context.hash, 0, inventoryHash, 0, 32);
+
+		return inventoryHash;
+	}
+
+	/**
+	 * Returns the number of objects verified so far, including those that
+	 * were answered from the cache.
+	 *
+	 * @return The number of verifications.
+	 */
+	public long getVerifications()
+	{
+		return verifications.get();
+	}
+
+	public long getCacheHits()
+	{
+		return cacheHits.get();
+	}
+
+	public int getCacheSize()
+	{
+		synchronized (cache)
+		{
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Returns the number of objects verified per second, measured over the
+	 * time the verifier was busy.
+	 *
+	 * @return The verifications per second.
+	 */
+	public double getVerificationsPerSecond()
+	{
+		long nanos = verificationNanos.get();
+
+		return nanos == 0 ? 0 : verifications.get() * 1e9 / nanos;
+	}
+
+	/**
+	 * Stops the verification threads.
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,35 @@
+package sibbo.bitmessage.android;
+
+/**
+ * A function a proof of work can be done with. It only defines the trial,
+ * i.e. how the trial value of a nonce is calculated from the initial hash;
+ * the nonce ranges, threads, load control, time limits and progress counters
+ * of {@link POWCalculator} and {@link PowEngine} are the same for every
+ * function, and so are the benchmarks. That makes candidate functions
+ * comparable with the double SHA-512 of the Bitmessage protocol.<br />
+ * <br />
+ * Every function accepts a nonce by the same rule, see
+ * {@link ProofOfWorkFunctions#isAcceptable(long, long)}, and is counted as two
+ * hashes per nonce, so the hash rates of different functions compare the cost
+ * of their trials.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public interface ProofOfWorkFunction
+{
+	/**
+	 * Returns the name of this function, which can be used to select it.
+	 *
+	 * @return The name.
+	 */
+	public String getName();
+
+	/**
+	 * Creates a new trial for the given initial hash.
+	 *
+	 * @param initialHash The 64 byte hash of the message.
+	 * @return The trial.
+	 */
+	public ProofOfWorkTrial newTrial(byte[] initialHash);
+}
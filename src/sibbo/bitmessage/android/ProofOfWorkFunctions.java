@@ -0,0 +1,103 @@
+package sibbo.bitmessage.android;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The known {@link ProofOfWorkFunction}s. Calculations use
+ * {@link #DOUBLE_SHA512}, the function of the Bitmessage protocol, unless
+ * they are given another one; the others are candidates for comparisons.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class ProofOfWorkFunctions
+{
+	/** The function of the Bitmessage protocol. */
+	public static final ProofOfWorkFunction DOUBLE_SHA512 = new DoubleSha512Function();
+
+	/** The known functions. */
+	private static final List<ProofOfWorkFunction> functions = new ArrayList<ProofOfWorkFunction>(Arrays.asList(
+			DOUBLE_SHA512, new HashFirstSha512Function(), new MemoryHardFunction()));
+
+	/** Utility class */
+	private ProofOfWorkFunctions()
+	{
+
+	}
+
+	/**
+	 * Adds a function, so it can be found by its name.
+	 *
+	 * @param function The function.
+	 */
+	public static synchronized void register(ProofOfWorkFunction function)
+	{
+		functions.add(function);
+	}
+
+	/**
+	 * Returns all known functions.
+	 *
+	 * @return The functions.
+	 */
+	public static synchronized List<ProofOfWorkFunction> getFunctions()
+	{
+		return new ArrayList<ProofOfWorkFunction>(functions);
+	}
+
+	/**
+	 * Returns the function with the given name. A memory-hard function with
+	 * another scratchpad is named {@value MemoryHardFunction#NAME} followed by
+	 * its size in KiB, e.g. "memory-hard-1024".
+	 *
+	 * @param name The name of the function.
+	 * @return The function.
+	 */
+	public static synchronized ProofOfWorkFunction get(String name)
+	{
+		for (ProofOfWorkFunction f : functions)
+		{
+			if (f.getName().equals(name))
+			{
+				return f;
+			}
+		}
+
+		String prefix = MemoryHardFunction.NAME + "-";
+
+		if (name.startsWith(prefix))
+		{
+			try
+			{
+				int kib = Integer.parseInt(name.substring(prefix.length()));
+
+				if (kib > 0 && kib <= Integer.MAX_VALUE / 1024)
+				{
+					return new MemoryHardFunction(kib * 1024 / 64);
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				// Unknown, see below
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown proof of work function: " + name);
+	}
+
+	/**
+	 * Returns true if a trial value fulfills the target. The trial value is
+	 * read as a signed long, so values of 2^63 and more, which are negative,
+	 * fulfill no target.
+	 *
+	 * @param trialValue The trial value.
+	 * @param target The target collision quality.
+	 * @return True if the nonce of the trial value is a valid result.
+	 */
+	public static boolean isAcceptable(long trialValue, long target)
+	{
+		return trialValue <= target && trialValue >= 0;
+	}
+}
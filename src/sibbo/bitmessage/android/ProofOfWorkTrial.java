@@ -0,0 +1,31 @@
+package sibbo.bitmessage.android;
+
+/**
+ * Does the trials of a {@link ProofOfWorkFunction} for one initial hash. An
+ * instance is not thread safe, every worker uses its own.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public interface ProofOfWorkTrial
+{
+	/**
+	 * Does a single trial.
+	 *
+	 * @param nonce The nonce to try.
+	 * @return The trial value, the number that is compared to the target.
+	 */
+	public long trial(long nonce);
+
+	/**
+	 * Does the trials for {@code count} consecutive nonces.
+	 *
+	 * @param from The first nonce.
+	 * @param count The number of nonces.
+	 * @param target The target collision quality.
+	 * @return The first nonce whose trial value is accepted by
+	 *         {@link ProofOfWorkFunctions#isAcceptable(long, long)}, or -1 if
+	 *         there is none.
+	 */
+	public long search(long from, int count, long target);
+}
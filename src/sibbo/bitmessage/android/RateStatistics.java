@@ -0,0 +1,212 @@
+package sibbo.bitmessage.android;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics of rates measured over several windows: mean, standard
+ * deviation and the 95% confidence interval of the mean.<br />
+ * <br />
+ * Outliers are rejected before anything is calculated, with the modified
+ * z-score of Iglewicz and Hoaglin: a window whose distance from the median is
+ * more than {@link #OUTLIER_SCORE} times the median absolute deviation (scaled
+ * to a standard deviation) counts as an outlier. A window in which the system
+ * suspended the process or another app took the CPUs thus does not distort
+ * the result.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class RateStatistics
+{
+	/** The modified z-score above which a window is rejected. */
+	public static final double OUTLIER_SCORE = 3.5;
+
+	/** Scales the median absolute deviation to a standard deviation. */
+	private static final double MAD_SCALE = 1.4826;
+
+	/** The two-sided 95% quantiles of the t-distribution for 1 to 30 degrees of freedom. */
+	private static final double[] T_95 = { 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+			2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086, 2.080, 2.074, 2.069, 2.064, 2.060,
+			2.056, 2.052, 2.048, 2.045, 2.042 };
+
+	private final int windows;
+	private final int rejected;
+	private final double mean;
+	private final double standardDeviation;
+	private final double confidence;
+
+	private RateStatistics(int windows, int rejected, double mean, double standardDeviation, double confidence)
+	{
+		this.windows = windows;
+		this.rejected = rejected;
+		this.mean = mean;
+		this.standardDeviation = standardDeviation;
+		this.confidence = confidence;
+	}
+
+	/**
+	 * Calculates the statistics of the given rates, without the outliers.
+	 *
+	 * @param rates The rate of every window.
+	 * @return The statistics.
+	 */
+	public static RateStatistics of(double[] rates)
+	{
+		double[] kept = rejectOutliers(rates);
+		int n = kept.length;
+		double mean = 0;
+
+		for (double rate : kept)
+		{
+			mean += rate / n;
+		}
+
+		double variance = 0;
+
+		for (double rate : kept)
+		{
+			variance += (rate - mean) * (rate - mean);
+		}
+
+		double deviation = n > 1 ? Math.sqrt(variance / (n - 1)) : 0;
+		double confidence = n > 1 ? getT95(n - 1) * deviation / Math.sqrt(n) : Double.POSITIVE_INFINITY;
+
+		return new RateStatistics(n, rates.length - n, n == 0 ? 0 : mean, deviation, confidence);
+	}
+
+	/**
+	 * Returns the rates that are not outliers, in their original order.
+	 */
+	private static double[] rejectOutliers(double[] rates)
+	{
+		if (rates.length < 3)
+		{
+			return rates.clone();
+		}
+
+		double median = getMedian(rates);
+		double[] distances = new double[rates.length];
+
+		for (int i = 0; i < rates.length; i++)
+		{
+			distances[i] = Math.abs(rates[i] - median);
+		}
+
+		double mad = getMedian(distances) * MAD_SCALE;
+
+		if (mad == 0)
+		{
+			return rates.clone();
+		}
+
+		double[] kept = new double[rates.length];
+		int n = 0;
+
+		for (int i = 0; i < rates.length; i++)
+		{
+			if (distances[i] / mad <= OUTLIER_SCORE)
+			{
+				kept[n++] = rates[i];
+			}
+		}
+
+		// Arrays.copyOf is not available before API level 9.
+		double[] result = new double[n];
+		System.arraycopy(kept, 0, result, 0, n);
+
+		return result;
+	}
+
+	private static double getMedian(double[] values)
+	{
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int middle = sorted.length / 2;
+
+		return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+	}
+
+	/**
+	 * Returns the two-sided 95% quantile of the t-distribution. Beyond the
+	 * table, 1.96 + 2.4 / df is within 0.002 of it.
+	 */
+	private static double getT95(int degreesOfFreedom)
+	{
+		return degreesOfFreedom <= T_95.length ? T_95[degreesOfFreedom - 1] : 1.96 + 2.4 / degreesOfFreedom;
+	}
+
+	/**
+	 * Returns a copy of these statistics with every rate multiplied by the
+	 * given factor, e.g. to turn nonce rates into hash rates.
+	 *
+	 * @param factor The factor.
+	 * @return The scaled statistics.
+	 */
+	public RateStatistics scale(double factor)
+	{
+		return new RateStatistics(windows, rejected, mean * factor, standardDeviation * factor, confidence * factor);
+	}
+
+	/**
+	 * Returns the number of windows the statistics were calculated from.
+	 *
+	 * @return The number of windows without the outliers.
+	 */
+	public int getWindows()
+	{
+		return windows;
+	}
+
+	/**
+	 * Returns the number of windows that were rejected as outliers.
+	 *
+	 * @return The number of outliers.
+	 */
+	public int getRejected()
+	{
+		return rejected;
+	}
+
+	public double getMean()
+	{
+		return mean;
+	}
+
+	/**
+	 * Returns the sample standard deviation of the windows.
+	 *
+	 * @return The standard deviation, 0 if there is only one window.
+	 */
+	public double getStandardDeviation()
+	{
+		return standardDeviation;
+	}
+
+	/**
+	 * Returns half the width of the 95% confidence interval of the mean.
+	 *
+	 * @return The mean is within +/- this value with 95% confidence, infinite
+	 *         if there are less than two windows.
+	 */
+	public double getConfidence()
+	{
+		return confidence;
+	}
+
+	public double getLower()
+	{
+		return mean - confidence;
+	}
+
+	public double getUpper()
+	{
+		return mean + confidence;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RateStatistics[mean=" + (long) mean + "/s, standardDeviation=" + (long) standardDeviation
+				+ ", confidence=" + (long) confidence + ", windows=" + windows + ", rejected=" + rejected + "]";
+	}
+}
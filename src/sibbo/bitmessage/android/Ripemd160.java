@@ -0,0 +1,243 @@
+package sibbo.bitmessage.android;
+
+/**
+ * A RIPEMD-160 implementation in plain Java.<br />
+ * <br />
+ * Not every JVM provides RIPEMD-160 as a MessageDigest, the JDK does not, and
+ * the address search calculates it for every candidate key. This class keeps
+ * its state in fields and hashes into a caller's array, so hashing does not
+ * allocate anything. An instance is not thread safe; every thread needs its
+ * own.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class Ripemd160
+{
+	/** The length of a digest in bytes. */
+	public static final int DIGEST_LENGTH = 20;
+
+	/** The message word each step of the left line uses. */
+	private static final int[] RL = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 7, 4, 13, 1, 10, 6, 15,
+			3, 12, 0, 9, 5, 2, 14, 11, 8, 3, 10, 14, 4, 9, 15, 8, 1, 2, 7, 0, 6, 13, 11, 5, 12, 1, 9, 11, 10, 0, 8, 12,
+			4, 13, 3, 7, 15, 14, 5, 6, 2, 4, 0, 5, 9, 7, 12, 2, 10, 14, 1, 3, 8, 11, 6, 15, 13 };
+
+	/** The message word each step of the right line uses. */
+	private static final int[] RR = { 5, 14, 7, 0, 9, 2, 11, 4, 13, 6, 15, 8, 1, 10, 3, 12, 6, 11, 3, 7, 0, 13, 5,
+			10, 14, 15, 8, 12, 4, 9, 1, 2, 15, 5, 1, 3, 7, 14, 6, 9, 11, 8, 12, 2, 10, 0, 4, 13, 8, 6, 4, 1, 3, 11, 15,
+			0, 5, 12, 2, 13, 9, 7, 10, 14, 12, 15, 10, 4, 1, 5, 8, 7, 6, 2, 13, 14, 0, 3, 9, 11 };
+
+	/** The rotation of each step of the left line. */
+	private static final int[] SL = { 11, 14, 15, 12, 5, 8, 7, 9, 11, 13, 14, 15, 6, 7, 9, 8, 7, 6, 8, 13, 11, 9, 7,
+			15, 7, 12, 15, 9, 11, 7, 13, 12, 11, 13, 6, 7, 14, 9, 13, 15, 14, 8, 13, 6, 5, 12, 7, 5, 11, 12, 14, 15, 14,
+			15, 9, 8, 9, 14, 5, 6, 8, 6, 5, 12, 9, 15, 5, 11, 6, 8, 13, 12, 5, 12, 13, 14, 11, 8, 5, 6 };
+
+	/** The rotation of each step of the right line. */
+	private static final int[] SR = { 8, 9, 9, 11, 13, 15, 15, 5, 7, 7, 8, 11, 14, 14, 12, 6, 9, 13, 15, 7, 12, 8, 9,
+			11, 7, 7, 12, 7, 6, 15, 13, 11, 9, 7, 15, 11, 8, 6, 6, 14, 12, 13, 5, 14, 13, 13, 7, 5, 15, 5, 8, 11, 14,
+			14, 6, 14, 6, 9, 12, 9, 12, 5, 15, 8, 8, 5, 12, 9, 12, 5, 14, 6, 8, 13, 6, 5, 15, 13, 11, 11 };
+
+	/** The constants of the five rounds of the left line. */
+	private static final int[] KL = { 0x00000000, 0x5a827999, 0x6ed9eba1, 0x8f1bbcdc, 0xa953fd4e };
+
+	/** The constants of the five rounds of the right line. */
+	private static final int[] KR = { 0x50a28be6, 0x5c4dd124, 0x6d703ef3, 0x7a6d76e9, 0x00000000 };
+
+	/** The chaining state. */
+	private final int[] h = new int[5];
+
+	/** The message words of the current block. */
+	private final int[] x = new int[16];
+
+	/** The bytes of the current block that are not processed yet. */
+	private final byte[] buffer = new byte[64];
+
+	/** The number of bytes in the buffer. */
+	private int bufferLength;
+
+	/** The number of bytes hashed since the last reset. */
+	private long length;
+
+	/**
+	 * Creates a new Ripemd160.
+	 */
+	public Ripemd160()
+	{
+		reset();
+	}
+
+	/**
+	 * Returns the RIPEMD-160 sum of the given data.
+	 *
+	 * @param data The data.
+	 * @return The 20 byte digest.
+	 */
+	public static byte[] digest(byte[] data)
+	{
+		Ripemd160 ripemd160 = new Ripemd160();
+		ripemd160.update(data, 0, data.length);
+		byte[] result = new byte[DIGEST_LENGTH];
+		ripemd160.digest(result, 0);
+
+		return result;
+	}
+
+	/**
+	 * Starts a new digest.
+	 */
+	public void reset()
+	{
+		h[0] = 0x67452301;
+		h[1] = 0xefcdab89;
+		h[2] = 0x98badcfe;
+		h[3] = 0x10325476;
+		h[4] = 0xc3d2e1f0;
+		bufferLength = 0;
+		length = 0;
+	}
+
+	/**
+	 * Adds data to the digest.
+	 *
+	 * @param data The data.
+	 * @param offset The first byte to add.
+	 * @param count The number of bytes to add.
+	 */
+	public void update(byte[] data, int offset, int count)
+	{
+		length += count;
+
+		if (bufferLength > 0)
+		{
+			int n = Math.min(count, 64 - bufferLength);
+			System.arraycopy(data, offset, buffer, bufferLength, n);
+			bufferLength += n;
+			offset += n;
+			count -= n;
+
+			if (bufferLength < 64)
+			{
+				return;
+			}
+
+			compress(buffer, 0);
+			bufferLength = 0;
+		}
+
+		while (count >= 64)
+		{
+			compress(data, offset);
+			offset += 64;
+			count -= 64;
+		}
+
+		System.arraycopy(data, offset, buffer, 0, count);
+		bufferLength = count;
+	}
+
+	/**
+	 * Finishes the digest, writes it to the given array and resets the state.
+	 *
+	 * @param out The array the digest is written to.
+	 * @param offset The position of the first byte of the digest.
+	 */
+	public void digest(byte[] out, int offset)
+	{
+		long bits = length << 3;
+		buffer[bufferLength++] = (byte) 0x80;
+
+		if (bufferLength > 56)
+		{
+			for (int i = bufferLength; i < 64; i++)
+			{
+				buffer[i] = 0;
+			}
+
+			compress(buffer, 0);
+			bufferLength = 0;
+		}
+
+		for (int i = bufferLength; i < 56; i++)
+		{
+			buffer[i] = 0;
+		}
+
+		for (int i = 0; i < 8; i++)
+		{
+			buffer[56 + i] = (byte) (bits >>> (8 * i));
+		}
+
+		compress(buffer, 0);
+
+		for (int i = 0; i < 5; i++)
+		{
+			out[offset + 4 * i] = (byte) h[i];
+			out[offset + 4 * i + 1] = (byte) (h[i] >>> 8);
+			out[offset + 4 * i + 2] = (byte) (h[i] >>> 16);
+			out[offset + 4 * i + 3] = (byte) (h[i] >>> 24);
+		}
+
+		reset();
+	}
+
+	/**
+	 * Processes one block of 64 bytes.
+	 */
+	private void compress(byte[] block, int offset)
+	{
+		for (int i = 0; i < 16; i++)
+		{
+			int p = offset + 4 * i;
+			x[i] = (block[p] & 0xff) | (block[p + 1] & 0xff) << 8 | (block[p + 2] & 0xff) << 16
+					| (block[p + 3] & 0xff) << 24;
+		}
+
+		int al = h[0], bl = h[1], cl = h[2], dl = h[3], el = h[4];
+		int ar = al, br = bl, cr = cl, dr = dl, er = el;
+
+		for (int j = 0; j < 80; j++)
+		{
+			int round = j >> 4;
+			int t = Integer.rotateLeft(al + f(round, bl, cl, dl) + x[RL[j]] + KL[round], SL[j]) + el;
+			al = el;
+			el = dl;
+			dl = Integer.rotateLeft(cl, 10);
+			cl = bl;
+			bl = t;
+
+			t = Integer.rotateLeft(ar + f(4 - round, br, cr, dr) + x[RR[j]] + KR[round], SR[j]) + er;
+			ar = er;
+			er = dr;
+			dr = Integer.rotateLeft(cr, 10);
+			cr = br;
+			br = t;
+		}
+
+		int t = h[1] + cl + dr;
+		h[1] = h[2] + dl + er;
+		h[2] = h[3] + el + ar;
+		h[3] = h[4] + al + br;
+		h[4] = h[0] + bl + cr;
+		h[0] = t;
+	}
+
+	/**
+	 * The boolean function of a round.
+	 */
+	private static int f(int round, int x, int y, int z)
+	{
+		switch (round)
+		{
+			case 0:
+				return x ^ y ^ z;
+			case 1:
+				return (x & y) | (~x & z);
+			case 2:
+				return (x | ~y) ^ z;
+			case 3:
+				return (x & z) | (y & ~z);
+			default:
+				return x ^ (y | ~z);
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package sibbo.bitmessage.android;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * The arithmetic of the elliptic curve secp256k1, which Bitmessage keys are
+ * on, with BigInteger.<br />
+ * <br />
+ * Points are affine {x, y} arrays, and null is the point at infinity. The
+ * scalar multiplication works in Jacobian coordinates, so it only needs one
+ * modular inversion at the end. It is not constant time: it is meant for
+ * deriving public keys while searching for an address, not for signing.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class Secp256k1
+{
+	/** The prime of the field. */
+	public static final BigInteger P = new BigInteger(
+			"FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16);
+
+	/** The order of the base point. */
+	public static final BigInteger N = new BigInteger(
+			"FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+
+	/** The base point. */
+	public static final BigInteger[] G = {
+			new BigInteger("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16),
+			new BigInteger("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16) };
+
+	/** The length of an uncompressed public key: 0x04, x and y. */
+	public static final int PUBLIC_KEY_LENGTH = 65;
+
+	/** The length of a private key. */
+	public static final int PRIVATE_KEY_LENGTH = 32;
+
+	private static final BigInteger TWO = BigInteger.valueOf(2);
+	private static final BigInteger THREE = BigInteger.valueOf(3);
+	private static final BigInteger EIGHT = BigInteger.valueOf(8);
+
+	/** Utility class */
+	private Secp256k1()
+	{
+
+	}
+
+	/**
+	 * Returns a random private key from 1 to N - 1.
+	 *
+	 * @param random The source of randomness.
+	 * @return The private key.
+	 */
+	public static BigInteger newPrivateKey(SecureRandom random)
+	{
+		BigInteger k;
+
+		do
+		{
+			k = new BigInteger(256, random);
+		}
+		while (k.signum() == 0 || k.compareTo(N) >= 0);
+
+		return k;
+	}
+
+	/**
+	 * Returns the uncompressed public key of a private key.
+	 *
+	 * @param privateKey The private key, from 1 to N - 1.
+	 * @return The 65 byte public key.
+	 */
+	public static byte[] getPublicKey(BigInteger privateKey)
+	{
+		BigInteger[] point = multiply(privateKey, G);
+		byte[] key = new byte[PUBLIC_KEY_LENGTH];
+		encode(point[0], point[1], key, 0);
+
+		return key;
+	}
+
+	/**
+	 * Writes an uncompressed public key.
+	 *
+	 * @param x The x coordinate.
+	 * @param y The y coordinate.
+	 * @param out The array the key is written to.
+	 * @param offset The position of the 65 bytes of the key.
+	 */
+	public static void encode(BigInteger x, BigInteger y, byte[] out, int offset)
+	{
+		out[offset] = 4;
+		toBytes(x, out, offset + 1, 32);
+		toBytes(y, out, offset + 33, 32);
+	}
+
+	/**
+	 * Writes a non-negative number as a big-endian number of fixed length.
+	 *
+	 * @param value The number, less than 2^(8 * length).
+	 * @param out The array the number is written to.
+	 * @param offset The position of the first byte.
+	 * @param length The number of bytes.
+	 */
+	public static void toBytes(BigInteger value, byte[] out, int offset, int length)
+	{
+		byte[] b = value.toByteArray();
+		int n = Math.min(b.length, length);
+
+		for (int i = 0; i < length - n; i++)
+		{
+			out[offset + i] = 0;
+		}
+
+		System.arraycopy(b, b.length - n, out, offset + length - n, n);
+	}
+
+	/**
+	 * Adds two points.
+	 *
+	 * @param a A point, or null.
+	 * @param b A point, or null.
+	 * @return The sum, or null for the point at infinity.
+	 */
+	public static BigInteger[] add(BigInteger[] a, BigInteger[] b)
+	{
+		if (a == null)
+		{
+			return b;
+		}
+
+		if (b == null)
+		{
+			return a;
+		}
+
+		BigInteger lambda;
+
+		if (a[0].equals(b[0]))
+		{
+			if (!a[1].equals(b[1]) || a[1].signum() == 0)
+			{
+				return null;
+			}
+
+			// Doubling, the tangent: 3x^2 / 2y
+			lambda = THREE.multiply(a[0].pow(2)).multiply(a[1].shiftLeft(1).modInverse(P)).mod(P);
+		}
+		else
+		{
+			lambda = b[1].subtract(a[1]).multiply(b[0].subtract(a[0]).modInverse(P)).mod(P);
+		}
+
+		BigInteger x = lambda.pow(2).subtract(a[0]).subtract(b[0]).mod(P);
+		BigInteger y = lambda.multiply(a[0].subtract(x)).subtract(a[1]).mod(P);
+
+		return new BigInteger[] { x, y };
+	}
+
+	/**
+	 * Multiplies a point by a scalar.
+	 *
+	 * @param k The scalar, not negative.
+	 * @param point The point.
+	 * @return The product, or null for the point at infinity.
+	 */
+	public static BigInteger[] multiply(BigInteger k, BigInteger[] point)
+	{
+		// Jacobian coordinates (X, Y, Z) stand for (X / Z^2, Y / Z^3).
+		BigInteger[] r = null;
+
+		for (int i = k.bitLength() - 1; i >= 0; i--)
+		{
+			r = twice(r);
+
+			if (k.testBit(i))
+			{
+				r = addAffine(r, point);
+			}
+		}
+
+		if (r == null)
+		{
+			return null;
+		}
+
+		BigInteger zInverse = r[2].modInverse(P);
+		BigInteger zInverse2 = zInverse.multiply(zInverse).mod(P);
+
+		return new BigInteger[] { r[0].multiply(zInverse2).mod(P),
+				r[1].multiply(zInverse2).multiply(zInverse).mod(P) };
+	}
+
+	/**
+	 * Doubles a point in Jacobian coordinates.
+	 */
+	private static BigInteger[] twice(BigInteger[] a)
+	{
+		if (a == null || a[1].signum() == 0)
+		{
+			return null;
+		}
+
+		BigInteger y2 = a[1].multiply(a[1]).mod(P);
+		BigInteger s = a[0].multiply(y2).shiftLeft(2).mod(P);
+		BigInteger m = THREE.multiply(a[0].multiply(a[0])).mod(P);
+		BigInteger x = m.multiply(m).subtract(s.shiftLeft(1)).mod(P);
+		BigInteger y = m.multiply(s.subtract(x)).subtract(EIGHT.multiply(y2.multiply(y2))).mod(P);
+		BigInteger z = TWO.multiply(a[1]).multiply(a[2]).mod(P);
+
+		return new BigInteger[] { x, y, z };
+	}
+
+	/**
+	 * Adds an affine point to a point in Jacobian coordinates.
+	 */
+	private static BigInteger[] addAffine(BigInteger[] a, BigInteger[] b)
+	{
+		if (a == null)
+		{
+			return new BigInteger[] { b[0], b[1], BigInteger.ONE };
+		}
+
+		BigInteger z2 = a[2].multiply(a[2]).mod(P);
+		BigInteger u = b[0].multiply(z2).mod(P);
+		BigInteger s = b[1].multiply(z2).multiply(a[2]).mod(P);
+		BigInteger h = u.subtract(a[0]).mod(P);
+		BigInteger r = s.subtract(a[1]).mod(P);
+
+		if (h.signum() == 0)
+		{
+			return r.signum() == 0 ? twice(a) : null;
+		}
+
+		BigInteger h2 = h.multiply(h).mod(P);
+		BigInteger h3 = h2.multiply(h).mod(P);
+		BigInteger v = a[0].multiply(h2).mod(P);
+		BigInteger x = r.multiply(r).subtract(h3).subtract(v.shiftLeft(1)).mod(P);
+		BigInteger y = r.multiply(v.subtract(x)).subtract(a[1].multiply(h3)).mod(P);
+		BigInteger z = a[2].multiply(h).mod(P);
+
+		return new BigInteger[] { x, y, z };
+	}
+}
@@ -0,0 +1,44 @@
+package sibbo.bitmessage.android;
+
+import java.security.MessageDigest;
+
+/**
+ * A SHA-512 implementation that can be used for the hashing of this
+ * application. {@link Sha512Backends} selects the backend that is used.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public interface Sha512Backend
+{
+	/**
+	 * Returns the name of this backend, which can be used to select it.
+	 *
+	 * @return The name.
+	 */
+	public String getName();
+
+	/**
+	 * Returns true if this backend can be used on this machine.
+	 *
+	 * @return True if this backend is available.
+	 */
+	public boolean isAvailable();
+
+	/**
+	 * Creates a new SHA-512 digest. Must only be called if the backend is
+	 * available.
+	 *
+	 * @return The digest.
+	 */
+	public MessageDigest newDigest();
+
+	/**
+	 * Creates a new POW trial for the given initial hash. Must only be called
+	 * if the backend is available.
+	 *
+	 * @param initialHash The 64 byte hash of the message.
+	 * @return The trial.
+	 */
+	public Sha512Trial newTrial(byte[] initialHash);
+}
@@ -0,0 +1,421 @@
+package sibbo.bitmessage.android;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Selects the {@link Sha512Backend} that is used by {@link Digest} and the POW
+ * workers.<br />
+ * <br />
+ * The first time a backend is needed, every available backend is checked
+ * against known answers, and the POW trial rate of those that pass is
+ * measured until it doesn't improve any more, which takes up to a second. The
+ * fastest one becomes the default. The choice can be overridden with
+ * {@link #setDefault(String)} or the system property {@value #PROPERTY}.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class Sha512Backends
+{
+	private static final Logger LOG = Logger.getLogger(Sha512Backends.class.getName());
+
+	/** The system property that selects a backend by name. */
+	public static final String PROPERTY = "sibbo.bitmessage.sha512.backend";
+
+	/** The minimum number of measurement rounds for each backend. */
+	private static final int MIN_ROUNDS = 4;
+
+	/** The maximum number of measurement rounds for each backend. */
+	private static final int MAX_ROUNDS = 30;
+
+	/** The number of rounds without improvement after which the measurement stops. */
+	private static final int STABLE_ROUNDS = 3;
+
+	/** The time in milliseconds of one measurement round. */
+	private static final long ROUND_TIME = 20;
+
+	/** The known answers: input and hex encoded SHA-512 hash. */
+	private static final String[][] KNOWN_ANSWERS = {
+			{ "", "cf83e1357eefb8bdf1542850d66d8007d620e4050b5715dc83f4a921d36ce9ce"
+					+ "47d0d13c5d85f2b0ff8318d2877eec2f63b931bd47417a81a538327af927da3e" },
+			{ "abc", "ddaf35a193617abacc417349ae20413112e6fa4e89a97ea20a9eeee64b55d39a"
+					+ "2192992a274fc1a836ba3c23a3feebbd454d4423643ce80e2a9ac94fa54ca49f" },
+			{ "abcdefghbcdefghicdefghijdefghijkefghijklfghijklmghijklmnhijklmnoijklmnop"
+					+ "jklmnopqklmnopqrlmnopqrsmnopqrstnopqrstu",
+					"8e959b75dae313da8cf4f72814fc143f8f7779c6eb9f7fa17299aeadb6889018"
+							+ "501d289e4900f7e4331b99dec4b5433ac7d329eeb6dd26545e96e55b874be909" } };
+
+	/** The known backends, in the order of preference for equal rates. */
+	private static final List<Sha512Backend> backends = new ArrayList<Sha512Backend>(Arrays.asList(
+			new JavaSha512Backend(), new JcaSha512Backend(), new NativeSha512Backend()));
+
+	/** The Vector API backend, only part of JVM builds, see vector/. */
+	private static final String VECTOR_BACKEND = "sibbo.bitmessage.android.VectorSha512Backend";
+
+	static
+	{
+		registerOptional(VECTOR_BACKEND);
+	}
+
+	/** The measured trial rates by backend name. */
+	private static final Map<String, Double> rates = new LinkedHashMap<String, Double>();
+
+	/** The backend in use, null until selected. */
+	private static volatile Sha512Backend current;
+
+	/** Utility class */
+	private Sha512Backends()
+	{
+
+	}
+
+	/**
+	 * Adds a backend. It is considered the next time a backend is selected.
+	 *
+	 * @param backend The backend.
+	 */
+	public static synchronized void register(Sha512Backend backend)
+	{
+		backends.add(backend);
+	}
+
+	/**
+	 * Adds a backend whose class is not part of every build, if it is there.
+	 *
+	 * @param className The name of the backend class.
+	 */
+	private static void registerOptional(String className)
+	{
+		try
+		{
+			backends.add((Sha512Backend) Class.forName(className).newInstance());
+		}
+		catch (ClassNotFoundException e)
+		{
+			// Not part of this build
+		}
+		catch (Exception e)
+		{
+			LOG.fine("Backend " + className + " can't be created: " + e);
+		}
+		catch (LinkageError e)
+		{
+			LOG.fine("Backend " + className + " can't be loaded: " + e);
+		}
+	}
+
+	/**
+	 * Returns all known backends, available or not.
+	 *
+	 * @return The backends.
+	 */
+	public static synchronized List<Sha512Backend> getBackends()
+	{
+		return new ArrayList<Sha512Backend>(backends);
+	}
+
+	/**
+	 * Returns the backend in use. Selects one if none is selected yet.
+	 *
+	 * @return The backend.
+	 */
+	public static Sha512Backend getDefault()
+	{
+		Sha512Backend b = current;
+
+		if (b == null)
+		{
+			synchronized (Sha512Backends.class)
+			{
+				if (current == null)
+				{
+					String name = System.getProperty(PROPERTY);
+					current = name == null ? select() : find(name);
+				}
+
+				b = current;
+			}
+		}
+
+		return b;
+	}
+
+	/**
+	 * Uses the given backend from now on. Workers that are already running
+	 * keep their backend.
+	 *
+	 * @param backend The backend, or null to select one again.
+	 */
+	public static synchronized void setDefault(Sha512Backend backend)
+	{
+		if (backend != null && !isCorrect(backend))
+		{
+			throw new IllegalArgumentException("Backend " + backend.getName() + " is not available or incorrect.");
+		}
+
+		current = backend;
+	}
+
+	/**
+	 * Uses the backend with the given name from now on.
+	 *
+	 * @param name The name of the backend.
+	 */
+	public static synchronized void setDefault(String name)
+	{
+		current = find(name);
+	}
+
+	private static synchronized Sha512Backend find(String name)
+	{
+		for (Sha512Backend b : backends)
+		{
+			if (b.getName().equals(name))
+			{
+				if (!isCorrect(b))
+				{
+					throw new IllegalArgumentException("Backend " + name + " is not available or incorrect.");
+				}
+
+				return b;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown backend: " + name);
+	}
+
+	/**
+	 * Checks and measures all available backends and returns the fastest
+	 * correct one.
+	 *
+	 * @return The fastest backend.
+	 */
+	public static synchronized Sha512Backend select()
+	{
+		List<Sha512Backend> candidates = new ArrayList<Sha512Backend>();
+		List<Sha512Trial> trials = new ArrayList<Sha512Trial>();
+		byte[] initialHash = new byte[64];
+		new Random().nextBytes(initialHash);
+
+		for (Sha512Backend b : backends)
+		{
+			if (isCorrect(b))
+			{
+				candidates.add(b);
+				trials.add(b.newTrial(initialHash));
+			}
+			else
+			{
+				LOG.info("SHA-512 backend " + b.getName() + " is not available or failed the known answer tests.");
+			}
+		}
+
+		// The rounds are interleaved and only the best round of each backend
+		// counts, so the Java backends are compared after the JIT compiler
+		// has compiled them, like a native backend is from the start. Some
+		// JVMs only switch to the CPU instructions of their provider after
+		// a few hundred milliseconds, so this goes on until no backend gets
+		// faster any more.
+		double[] best = new double[candidates.size()];
+		int stable = 0;
+
+		for (int round = 0; round < MAX_ROUNDS && (round < MIN_ROUNDS || stable < STABLE_ROUNDS); round++)
+		{
+			boolean improved = false;
+
+			for (int i = 0; i < candidates.size(); i++)
+			{
+				double rate = measure(trials.get(i));
+
+				if (rate > best[i] * 1.05)
+				{
+					improved = true;
+				}
+
+				best[i] = Math.max(best[i], rate);
+			}
+
+			stable = improved ? 0 : stable + 1;
+		}
+
+		Sha512Backend fastest = null;
+		double fastestRate = 0;
+		rates.clear();
+
+		for (int i = 0; i < candidates.size(); i++)
+		{
+			Sha512Backend b = candidates.get(i);
+			rates.put(b.getName(), best[i]);
+			LOG.info("SHA-512 backend " + b.getName() + ": " + (long) best[i] + " trials/s");
+
+			if (fastest == null || best[i] > fastestRate)
+			{
+				fastest = b;
+				fastestRate = best[i];
+			}
+		}
+
+		// The pure Java backend always passes, so there is always one.
+		LOG.info("Using SHA-512 backend " + fastest.getName());
+
+		return fastest;
+	}
+
+	/**
+	 * Returns the trial rates measured by the last selection.
+	 *
+	 * @return The trial rates per second by backend name.
+	 */
+	public static synchronized Map<String, Double> getRates()
+	{
+		return Collections.unmodifiableMap(new LinkedHashMap<String, Double>(rates));
+	}
+
+	/**
+	 * Returns true if the backend is available and its digests and trials give
+	 * the right results, also when the input is fed in pieces.
+	 *
+	 * @param backend The backend.
+	 * @return True if the backend can be used.
+	 */
+	public static boolean isCorrect(Sha512Backend backend)
+	{
+		if (!backend.isAvailable())
+		{
+			return false;
+		}
+
+		try
+		{
+			MessageDigest sha512 = backend.newDigest();
+
+			for (String[] answer : KNOWN_ANSWERS)
+			{
+				byte[] input = answer[0].getBytes("US-ASCII");
+				byte[] expected = fromHex(answer[1]);
+
+				if (!Arrays.equals(sha512.digest(input), expected))
+				{
+					return false;
+				}
+
+				for (byte b : input)
+				{
+					sha512.update(b);
+				}
+
+				if (!Arrays.equals(sha512.digest(), expected))
+				{
+					return false;
+				}
+			}
+
+			// Inputs around the block size, fed in uneven pieces, compared to
+			// the pure Java implementation.
+			MessageDigest reference = new JavaSha512();
+			Random random = new Random(0);
+
+			for (int length = 100; length < 300; length += 7)
+			{
+				byte[] input = new byte[length];
+				random.nextBytes(input);
+
+				sha512.update(input, 0, length / 3);
+				sha512.update(input, length / 3, length - length / 3);
+
+				if (!Arrays.equals(sha512.digest(), reference.digest(input)))
+				{
+					return false;
+				}
+			}
+
+			byte[] initialHash = new byte[64];
+			random.nextBytes(initialHash);
+			Sha512Trial trial = backend.newTrial(initialHash);
+
+			for (long nonce = 0; nonce < 16; nonce++)
+			{
+				long expected = Util.getLong(reference.digest(reference.digest(concat(Util.getBytes(nonce),
+						initialHash))));
+
+				if (trial.trial(nonce) != expected)
+				{
+					return false;
+				}
+
+				long target = expected < 0 ? -1 : expected;
+
+				if (trial.search(nonce, 1, target) != (expected < 0 ? -1 : nonce))
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+		catch (Exception e)
+		{
+			LOG.info("SHA-512 backend " + backend.getName() + " failed: " + e);
+			return false;
+		}
+		catch (LinkageError e)
+		{
+			LOG.info("SHA-512 backend " + backend.getName() + " failed: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Measures the POW trial rate of a backend for one round.
+	 *
+	 * @param trial The trial of the backend.
+	 * @return The number of trials per second.
+	 */
+	private static double measure(Sha512Trial trial)
+	{
+		int batch = 256;
+		long nonce = 0;
+		long start = System.nanoTime();
+		long end = start + ROUND_TIME * 1000000;
+		long now;
+
+		do
+		{
+			trial.search(nonce, batch, -1);
+			nonce += batch;
+			now = System.nanoTime();
+		}
+		while (now - end < 0);
+
+		return nonce * 1e9 / (now - start);
+	}
+
+	private static byte[] concat(byte[] a, byte[] b)
+	{
+		byte[] result = new byte[a.length + b.length];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+
+		return result;
+	}
+
+	private static byte[] fromHex(String hex)
+	{
+		byte[] result = new byte[hex.length() / 2];
+
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+
+		return result;
+	}
+}
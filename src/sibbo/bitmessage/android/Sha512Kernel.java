@@ -0,0 +1,289 @@
+package sibbo.bitmessage.android;
+
+/**
+ * An allocation-free SHA-512 kernel specialised for the POW trial
+ * {@code sha512(sha512(nonce || initialHash))}.<br />
+ * <br />
+ * The input of the first hash is always 72 bytes and therefore fits into a
+ * single 128 byte block, the input of the second hash is the 64 byte result of
+ * the first one. All message schedule words that only depend on the initial
+ * hash are calculated once in {@link #setInitialHash(byte[])}, and of the
+ * second hash only the first output word is calculated, because that is all
+ * the target check needs.<br />
+ * <br />
+ * Instances are not thread safe, every worker thread needs its own kernel.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class Sha512Kernel implements Sha512Trial
+{
+	/** The SHA-512 round constants. */
+	static final long[] K = {
+			0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+			0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+			0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+			0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+			0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+			0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+			0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+			0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+			0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+			0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+			0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+			0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+			0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+			0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+			0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+			0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+			0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+			0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+			0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+			0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L };
+
+	/** The SHA-512 initial hash value. */
+	static final long[] IV = {
+			0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+			0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L };
+
+	/** The length of the first hash input (nonce and initial hash) in bits. */
+	private static final long FIRST_INPUT_BITS = 72 * 8;
+
+	/** The length of the second hash input (the first hash) in bits. */
+	private static final long SECOND_INPUT_BITS = 64 * 8;
+
+	/** The padding word following the message. */
+	private static final long PADDING = 0x8000000000000000L;
+
+	/** The message schedule of the first block, words 1 to 15 and 17 are constant per job. */
+	private final long[] w1 = new long[80];
+
+	/** The message schedule of the second block. */
+	private final long[] w2 = new long[80];
+
+	/** The part of schedule word 16 of the first block that does not depend on the nonce. */
+	private long w16Partial;
+
+	/** The output of the first hash. */
+	private final long[] state = new long[8];
+
+	/**
+	 * Creates a new kernel for the given initial hash.
+	 *
+	 * @param initialHash The 64 byte hash of the message.
+	 */
+	public Sha512Kernel(byte[] initialHash)
+	{
+		setInitialHash(initialHash);
+	}
+
+	/**
+	 * Prepares this kernel for a new job. This is the only place where the
+	 * initial hash is read.
+	 *
+	 * @param initialHash The 64 byte hash of the message.
+	 */
+	public void setInitialHash(byte[] initialHash)
+	{
+		if (initialHash == null || initialHash.length != 64)
+		{
+			throw new IllegalArgumentException("initialHash must be 64 bytes long.");
+		}
+
+		long[] w = w1;
+
+		for (int i = 0; i < 8; i++)
+		{
+			w[i + 1] = readLong(initialHash, i * 8);
+		}
+
+		w[9] = PADDING;
+		w[10] = 0;
+		w[11] = 0;
+		w[12] = 0;
+		w[13] = 0;
+		w[14] = 0;
+		w[15] = FIRST_INPUT_BITS;
+
+		w16Partial = sigma1(w[14]) + w[9] + sigma0(w[1]);
+		w[17] = sigma1(w[15]) + w[10] + sigma0(w[2]) + w[1];
+
+		w = w2;
+		w[8] = PADDING;
+		w[9] = 0;
+		w[10] = 0;
+		w[11] = 0;
+		w[12] = 0;
+		w[13] = 0;
+		w[14] = 0;
+		w[15] = SECOND_INPUT_BITS;
+	}
+
+	/**
+	 * Does a single POW trial.
+	 *
+	 * @param nonce The nonce to try.
+	 * @return The first 8 bytes of {@code sha512(sha512(nonce || initialHash))}
+	 *         as big endian long, the same value
+	 *         {@code Util.getLong(hash)} would return.
+	 */
+	@Override
+	public long trial(long nonce)
+	{
+		long[] w = w1;
+
+		w[0] = nonce;
+		w[16] = w16Partial + nonce;
+
+		for (int t = 18; t < 80; t++)
+		{
+			w[t] = sigma1(w[t - 2]) + w[t - 7] + sigma0(w[t - 15]) + w[t - 16];
+		}
+
+		compress(w, state);
+
+		w = w2;
+		System.arraycopy(state, 0, w, 0, 8);
+
+		for (int t = 16; t < 80; t++)
+		{
+			w[t] = sigma1(w[t - 2]) + w[t - 7] + sigma0(w[t - 15]) + w[t - 16];
+		}
+
+		// Only the first output word is needed for the target check.
+		return compress(w, null);
+	}
+
+	@Override
+	public long search(long from, int count, long target)
+	{
+		long end = from + count;
+
+		for (long n = from; n < end; n++)
+		{
+			long result = trial(n);
+
+			if (result <= target && result >= 0)
+			{
+				return n;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Runs the 80 SHA-512 rounds on an expanded message schedule, starting
+	 * from the initial hash value. The rounds are unrolled by 8 so that the
+	 * working variables never have to be shifted.
+	 *
+	 * @param w The expanded message schedule.
+	 * @param out Receives the 8 output words, or null if only the first word
+	 *            is needed.
+	 * @return The first output word.
+	 */
+	private static long compress(long[] w, long[] out)
+	{
+		long a = IV[0];
+		long b = IV[1];
+		long c = IV[2];
+		long d = IV[3];
+		long e = IV[4];
+		long f = IV[5];
+		long g = IV[6];
+		long h = IV[7];
+
+		for (int t = 0; t < 80; t += 8)
+		{
+			h += bigSigma1(e) + ch(e, f, g) + K[t] + w[t];
+			d += h;
+			h += bigSigma0(a) + maj(a, b, c);
+
+			g += bigSigma1(d) + ch(d, e, f) + K[t + 1] + w[t + 1];
+			c += g;
+			g += bigSigma0(h) + maj(h, a, b);
+
+			f += bigSigma1(c) + ch(c, d, e) + K[t + 2] + w[t + 2];
+			b += f;
+			f += bigSigma0(g) + maj(g, h, a);
+
+			e += bigSigma1(b) + ch(b, c, d) + K[t + 3] + w[t + 3];
+			a += e;
+			e += bigSigma0(f) + maj(f, g, h);
+
+			d += bigSigma1(a) + ch(a, b, c) + K[t + 4] + w[t + 4];
+			h += d;
+			d += bigSigma0(e) + maj(e, f, g);
+
+			c += bigSigma1(h) + ch(h, a, b) + K[t + 5] + w[t + 5];
+			g += c;
+			c += bigSigma0(d) + maj(d, e, f);
+
+			b += bigSigma1(g) + ch(g, h, a) + K[t + 6] + w[t + 6];
+			f += b;
+			b += bigSigma0(c) + maj(c, d, e);
+
+			a += bigSigma1(f) + ch(f, g, h) + K[t + 7] + w[t + 7];
+			e += a;
+			a += bigSigma0(b) + maj(b, c, d);
+		}
+
+		if (out != null)
+		{
+			out[0] = IV[0] + a;
+			out[1] = IV[1] + b;
+			out[2] = IV[2] + c;
+			out[3] = IV[3] + d;
+			out[4] = IV[4] + e;
+			out[5] = IV[5] + f;
+			out[6] = IV[6] + g;
+			out[7] = IV[7] + h;
+		}
+
+		return IV[0] + a;
+	}
+
+	/**
+	 * Reads 8 bytes in big endian order.
+	 *
+	 * @param b The bytes.
+	 * @param offset The position of the first byte.
+	 * @return The long.
+	 */
+	static long readLong(byte[] b, int offset)
+	{
+		return (b[offset] & 0xFFL) << 56 | (b[offset + 1] & 0xFFL) << 48 | (b[offset + 2] & 0xFFL) << 40
+				| (b[offset + 3] & 0xFFL) << 32 | (b[offset + 4] & 0xFFL) << 24 | (b[offset + 5] & 0xFFL) << 16
+				| (b[offset + 6] & 0xFFL) << 8 | (b[offset + 7] & 0xFFL);
+	}
+
+	static long ch(long x, long y, long z)
+	{
+		return (x & y) ^ (~x & z);
+	}
+
+	static long maj(long x, long y, long z)
+	{
+		return (x & y) ^ (x & z) ^ (y & z);
+	}
+
+	static long bigSigma0(long x)
+	{
+		return Long.rotateRight(x, 28) ^ Long.rotateRight(x, 34) ^ Long.rotateRight(x, 39);
+	}
+
+	static long bigSigma1(long x)
+	{
+		return Long.rotateRight(x, 14) ^ Long.rotateRight(x, 18) ^ Long.rotateRight(x, 41);
+	}
+
+	static long sigma0(long x)
+	{
+		return Long.rotateRight(x, 1) ^ Long.rotateRight(x, 8) ^ (x >>> 7);
+	}
+
+	static long sigma1(long x)
+	{
+		return Long.rotateRight(x, 19) ^ Long.rotateRight(x, 61) ^ (x >>> 6);
+	}
+}
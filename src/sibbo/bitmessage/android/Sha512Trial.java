@@ -0,0 +1,34 @@
+package sibbo.bitmessage.android;
+
+/**
+ * Does POW trials for one initial hash, i.e. calculates
+ * {@code sha512(sha512(nonce || initialHash))} for many nonces. Every
+ * {@link Sha512Backend} provides its own implementation, which is the trial of
+ * {@link DoubleSha512Function}. An instance is not thread safe, every worker
+ * uses its own.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public interface Sha512Trial extends ProofOfWorkTrial
+{
+	/**
+	 * Does a single POW trial.
+	 *
+	 * @param nonce The nonce to try.
+	 * @return The first 8 bytes of {@code sha512(sha512(nonce || initialHash))}
+	 *         as big endian long.
+	 */
+	public long trial(long nonce);
+
+	/**
+	 * Does the trials for {@code count} consecutive nonces.
+	 *
+	 * @param from The first nonce.
+	 * @param count The number of nonces.
+	 * @param target The target collision quality.
+	 * @return The first nonce whose trial value is between 0 and the target,
+	 *         or -1 if there is none.
+	 */
+	public long search(long from, int count, long target);
+}
@@ -0,0 +1,592 @@
+package sibbo.bitmessage.android;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the number of POW worker threads that gives the highest hash rate on
+ * this machine.<br />
+ * <br />
+ * One thread per CPU is not always right: logical CPUs of an SMT core share
+ * its execution units, the big and little cores of a phone SoC differ in
+ * speed, and a container may only be allowed a fraction of the CPUs it sees.
+ * The tuner first reads the CPU quota of the cgroup the process runs in and
+ * never goes beyond it. It then measures the hash rate for increasing thread
+ * counts with {@link PowBenchmark} and picks the knee of the curve: the
+ * smallest count that reaches all but {@link #KNEE_TOLERANCE} of the highest
+ * rate. More threads than that only add heat and contention.<br />
+ * <br />
+ * The result is stored per machine, so tuning only takes a few seconds once.
+ * Until a machine is tuned, {@link #getThreadCount()} returns the number of
+ * CPUs allowed by the quota.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class ThreadTuner
+{
+	private static final Logger LOG = Logger.getLogger(ThreadTuner.class.getName());
+
+	/**
+	 * The measured hash rate at one thread count.
+	 */
+	public static final class Point
+	{
+		private final int threads;
+		private final double hashRate;
+		private final double speedup;
+		private final double efficiency;
+		private final double marginalSpeedup;
+
+		private Point(int threads, double hashRate, double singleRate, double previousRate, int previousThreads)
+		{
+			this.threads = threads;
+			this.hashRate = hashRate;
+			this.speedup = hashRate / singleRate;
+			this.efficiency = speedup / threads;
+			this.marginalSpeedup = (hashRate - previousRate) / singleRate / (threads - previousThreads);
+		}
+
+		public int getThreads()
+		{
+			return threads;
+		}
+
+		/**
+		 * Returns the hash rate of all threads together.
+		 *
+		 * @return The hashes per second.
+		 */
+		public double getHashRate()
+		{
+			return hashRate;
+		}
+
+		/**
+		 * Returns the hash rate relative to one thread.
+		 *
+		 * @return The speedup.
+		 */
+		public double getSpeedup()
+		{
+			return speedup;
+		}
+
+		/**
+		 * Returns the speedup per thread, 1 for perfect scaling.
+		 *
+		 * @return The efficiency.
+		 */
+		public double getEfficiency()
+		{
+			return efficiency;
+		}
+
+		/**
+		 * Returns the speedup each thread added since the last measured count
+		 * contributed, 1 if it was as fast as the first thread, 0 or less if
+		 * it did not help.
+		 *
+		 * @return The speedup per added thread.
+		 */
+		public double getMarginalSpeedup()
+		{
+			return marginalSpeedup;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Point[threads=" + threads + ", hashRate=" + (long) hashRate + ", speedup=" + speedup
+					+ ", efficiency=" + efficiency + ", marginalSpeedup=" + marginalSpeedup + "]";
+		}
+	}
+
+	/** The part of the highest hash rate a thread count may lack and still count as the knee. */
+	public static final double KNEE_TOLERANCE = 0.05;
+
+	/** The time in milliseconds one thread count is measured. */
+	public static final long PROBE_TIME = 300;
+
+	/** The time in milliseconds after which a stored tuning is repeated. */
+	public static final long TUNING_MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+	/** The number of measured thread counts without a new best after which no more are tried. */
+	private static final int STALE_PROBES = 2;
+
+	/** The gain over the best rate so far that counts as a new best. */
+	private static final double MIN_GAIN = 0.02;
+
+	private static final String KEY_THREADS = "threads";
+	private static final String KEY_TUNING_TIME = "tuningTime";
+	private static final String KEY_CORES = "cores";
+	private static final String KEY_CPU_LIMIT = "cpuLimit";
+	private static final String KEY_BACKEND = "backend";
+	private static final String KEY_RATES = "rates";
+
+	/** The cgroup v2 CPU limit, "max" or "quota period". */
+	private static final String CGROUP2_CPU_MAX = "/sys/fs/cgroup/cpu.max";
+
+	/** The directories of the cgroup v1 CPU controller. */
+	private static final String[] CGROUP1_CPU = { "/sys/fs/cgroup/cpu", "/sys/fs/cgroup/cpu,cpuacct" };
+
+	/** The tuner used by calculations that don't set a thread count. */
+	private static volatile ThreadTuner defaultTuner = new ThreadTuner();
+
+	/** The file the tuning is stored in, or null. */
+	private final File store;
+
+	/** The tuned thread count, 0 if not tuned. */
+	private volatile int threads;
+
+	/** The measured scaling curve, empty if not known. */
+	private volatile List<Point> curve = Collections.emptyList();
+
+	/** True once the store was read. */
+	private boolean loaded;
+
+	/**
+	 * Creates a tuner that does not store its result.
+	 */
+	public ThreadTuner()
+	{
+		this(null);
+	}
+
+	/**
+	 * Creates a new ThreadTuner.
+	 *
+	 * @param store The file the tuning is loaded from and stored in, or null
+	 *            if it should not be stored.
+	 */
+	public ThreadTuner(File store)
+	{
+		this.store = store;
+	}
+
+	/**
+	 * Returns the tuner that calculations use if no thread count was set.
+	 *
+	 * @return The default tuner.
+	 */
+	public static ThreadTuner getDefault()
+	{
+		return defaultTuner;
+	}
+
+	/**
+	 * Sets the tuner that calculations use if no thread count was set, e.g.
+	 * one with a store in the files directory of the app.
+	 *
+	 * @param tuner The tuner.
+	 */
+	public static void setDefault(ThreadTuner tuner)
+	{
+		if (tuner == null)
+		{
+			throw new NullPointerException("tuner must not be null.");
+		}
+
+		defaultTuner = tuner;
+	}
+
+	/**
+	 * Returns the number of threads to use: the tuned count if this machine
+	 * was tuned, otherwise the number of CPUs allowed by the quota. Never
+	 * tunes by itself.
+	 *
+	 * @return The number of threads.
+	 */
+	public int getThreadCount()
+	{
+		int t = threads;
+
+		if (t == 0)
+		{
+			synchronized (this)
+			{
+				if (!loaded)
+				{
+					loaded = true;
+					load();
+				}
+
+				t = threads;
+			}
+		}
+
+		return t == 0 ? getCpuLimit() : t;
+	}
+
+	/**
+	 * Returns true if the thread count was tuned on this machine.
+	 *
+	 * @return True if tuned.
+	 */
+	public boolean isTuned()
+	{
+		getThreadCount();
+
+		return threads > 0;
+	}
+
+	/**
+	 * Returns the scaling curve of the last tuning.
+	 *
+	 * @return The measured points by thread count, empty if not tuned.
+	 */
+	public List<Point> getScalingCurve()
+	{
+		return curve;
+	}
+
+	/**
+	 * Measures the hash rate at increasing thread counts, up to the number of
+	 * CPUs allowed by the quota, and stores the knee.<br />
+	 * <b>WARNING: This takes a few seconds and uses all CPUs.</b>
+	 *
+	 * @return The scaling curve, or null if the tuning was interrupted.
+	 */
+	public List<Point> tune()
+	{
+		return tune(new CancellationToken());
+	}
+
+	/**
+	 * Measures the hash rate at increasing thread counts, up to the number of
+	 * CPUs allowed by the quota, and stores the knee. The token is checked
+	 * before every thread count, a cancelled tuning stores nothing.<br />
+	 * <b>WARNING: This takes a few seconds and uses all CPUs.</b>
+	 *
+	 * @param token Cancels the tuning.
+	 * @return The scaling curve, or null if the tuning was interrupted or
+	 *         cancelled.
+	 */
+	public synchronized List<Point> tune(CancellationToken token)
+	{
+		int maxThreads = getCpuLimit();
+		double threadRate = new PowEstimator().calibrate(PROBE_TIME / 2);
+		List<Point> points = new ArrayList<Point>();
+		double best = 0;
+		int stale = 0;
+
+		for (int n = 1; n <= maxThreads && stale < STALE_PROBES; n = nextCount(n, maxThreads))
+		{
+			if (token.isCancelled())
+			{
+				LOG.info("Thread tuning cancelled");
+				return null;
+			}
+
+			PowBenchmark benchmark = new PowBenchmark();
+			benchmark.setThreads(n);
+			benchmark.setRuns(2, n == 1 ? 1 : 0);
+			benchmark.setNonces(Math.max(1024, (long) (threadRate * n * PROBE_TIME / 2000)));
+
+			BenchmarkResult result = benchmark.run();
+
+			if (result == null)
+			{
+				return null;
+			}
+
+			double rate = result.getHashRate();
+			Point previous = points.isEmpty() ? null : points.get(points.size() - 1);
+			double singleRate = previous == null ? rate : points.get(0).getHashRate();
+			points.add(new Point(n, rate, singleRate, previous == null ? 0 : previous.getHashRate(),
+					previous == null ? 0 : previous.getThreads()));
+
+			// The rate per thread of this count sizes the next probe.
+			threadRate = rate / 2 / n;
+			stale = rate > best * (1 + MIN_GAIN) ? 0 : stale + 1;
+			best = Math.max(best, rate);
+		}
+
+		threads = getKnee(points);
+		curve = Collections.unmodifiableList(points);
+		LOG.info("Tuned POW thread count: " + threads + " of " + maxThreads + " CPUs");
+		save();
+
+		return curve;
+	}
+
+	/**
+	 * Returns the thread count that is measured after n: every count up to 8,
+	 * then steps of a quarter, and always the limit itself.
+	 */
+	private static int nextCount(int n, int maxThreads)
+	{
+		int next = n < 8 ? n + 1 : n + n / 4;
+
+		return n < maxThreads ? Math.min(next, maxThreads) : n + 1;
+	}
+
+	/**
+	 * Returns the smallest thread count that reaches all but the tolerance of
+	 * the highest rate.
+	 */
+	private static int getKnee(List<Point> points)
+	{
+		double best = 0;
+
+		for (Point p : points)
+		{
+			best = Math.max(best, p.getHashRate());
+		}
+
+		for (Point p : points)
+		{
+			if (p.getHashRate() >= best * (1 - KNEE_TOLERANCE))
+			{
+				return p.getThreads();
+			}
+		}
+
+		return 1;
+	}
+
+	/**
+	 * Returns the number of CPUs this process may use: the number of CPUs of
+	 * the JVM, limited by the CPU quota of its cgroup. A quota of 1.5 CPUs
+	 * allows 2 threads.
+	 *
+	 * @return The number of CPUs, at least 1.
+	 */
+	public static int getCpuLimit()
+	{
+		int cpus = Runtime.getRuntime().availableProcessors();
+		double quota = getCpuQuota();
+
+		if (quota > 0)
+		{
+			cpus = Math.min(cpus, (int) Math.ceil(quota));
+		}
+
+		return Math.max(1, cpus);
+	}
+
+	/**
+	 * Returns the CPU quota of the cgroup of this process, for cgroup v2 and
+	 * v1.
+	 *
+	 * @return The quota in CPUs, e.g. 1.5, or -1 if there is none.
+	 */
+	public static double getCpuQuota()
+	{
+		String max = readLine(new File(CGROUP2_CPU_MAX));
+
+		if (max != null)
+		{
+			String[] parts = max.trim().split("\\s+");
+
+			if (parts.length == 2 && !parts[0].equals("max"))
+			{
+				return quota(parts[0], parts[1]);
+			}
+
+			return -1;
+		}
+
+		for (String dir : CGROUP1_CPU)
+		{
+			String quota = readLine(new File(dir, "cpu.cfs_quota_us"));
+			String period = readLine(new File(dir, "cpu.cfs_period_us"));
+
+			if (quota != null && period != null)
+			{
+				return quota(quota.trim(), period.trim());
+			}
+		}
+
+		return -1;
+	}
+
+	private static double quota(String quota, String period)
+	{
+		try
+		{
+			double q = Double.parseDouble(quota);
+			double p = Double.parseDouble(period);
+
+			return q > 0 && p > 0 ? q / p : -1;
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the first line of a file.
+	 *
+	 * @return The line, or null if the file can't be read.
+	 */
+	private static String readLine(File file)
+	{
+		if (!file.isFile())
+		{
+			return null;
+		}
+
+		BufferedReader in = null;
+
+		try
+		{
+			in = new BufferedReader(new FileReader(file));
+
+			return in.readLine();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		finally
+		{
+			close(in);
+		}
+	}
+
+	/**
+	 * Loads the tuning from the store if it was done on this machine with the
+	 * same CPUs and SHA-512 backend and is not too old.
+	 */
+	private void load()
+	{
+		if (store == null || !store.isFile())
+		{
+			return;
+		}
+
+		Properties p = new Properties();
+		InputStream in = null;
+
+		try
+		{
+			in = new FileInputStream(store);
+			p.load(in);
+
+			int t = Integer.parseInt(p.getProperty(KEY_THREADS, "0"));
+			long time = Long.parseLong(p.getProperty(KEY_TUNING_TIME, "0"));
+			int cores = Integer.parseInt(p.getProperty(KEY_CORES, "0"));
+			int cpuLimit = Integer.parseInt(p.getProperty(KEY_CPU_LIMIT, "0"));
+
+			if (t > 0 && cores == Runtime.getRuntime().availableProcessors() && cpuLimit == getCpuLimit()
+					&& Sha512Backends.getDefault().getName().equals(p.getProperty(KEY_BACKEND))
+					&& System.currentTimeMillis() - time < TUNING_MAX_AGE)
+			{
+				threads = t;
+				curve = parseCurve(p.getProperty(KEY_RATES, ""));
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.log(Level.WARNING, "Could not load the thread tuning from " + store, e);
+		}
+		catch (NumberFormatException e)
+		{
+			LOG.log(Level.WARNING, "Invalid thread tuning in " + store, e);
+		}
+		finally
+		{
+			close(in);
+		}
+	}
+
+	/**
+	 * Parses the stored rates, "threads:rate" pairs separated by commas.
+	 */
+	private static List<Point> parseCurve(String rates)
+	{
+		List<Point> points = new ArrayList<Point>();
+
+		for (String pair : rates.split(","))
+		{
+			int colon = pair.indexOf(':');
+
+			if (colon < 0)
+			{
+				continue;
+			}
+
+			int n = Integer.parseInt(pair.substring(0, colon));
+			double rate = Double.parseDouble(pair.substring(colon + 1));
+			Point previous = points.isEmpty() ? null : points.get(points.size() - 1);
+			double singleRate = previous == null ? rate : points.get(0).getHashRate();
+			points.add(new Point(n, rate, singleRate, previous == null ? 0 : previous.getHashRate(),
+					previous == null ? 0 : previous.getThreads()));
+		}
+
+		return Collections.unmodifiableList(points);
+	}
+
+	private void save()
+	{
+		if (store == null)
+		{
+			return;
+		}
+
+		StringBuilder rates = new StringBuilder();
+
+		for (Point point : curve)
+		{
+			if (rates.length() > 0)
+			{
+				rates.append(',');
+			}
+
+			rates.append(point.getThreads()).append(':').append(point.getHashRate());
+		}
+
+		Properties p = new Properties();
+		p.setProperty(KEY_THREADS, Integer.toString(threads));
+		p.setProperty(KEY_TUNING_TIME, Long.toString(System.currentTimeMillis()));
+		p.setProperty(KEY_CORES, Integer.toString(Runtime.getRuntime().availableProcessors()));
+		p.setProperty(KEY_CPU_LIMIT, Integer.toString(getCpuLimit()));
+		p.setProperty(KEY_BACKEND, Sha512Backends.getDefault().getName());
+		p.setProperty(KEY_RATES, rates.toString());
+		OutputStream out = null;
+
+		try
+		{
+			out = new FileOutputStream(store);
+			p.store(out, "POW thread count tuning");
+		}
+		catch (IOException e)
+		{
+			LOG.log(Level.WARNING, "Could not store the thread tuning in " + store, e);
+		}
+		finally
+		{
+			close(out);
+		}
+	}
+
+	private static void close(Closeable c)
+	{
+		if (c != null)
+		{
+			try
+			{
+				c.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing left to do.
+			}
+		}
+	}
+}
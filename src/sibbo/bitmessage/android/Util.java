@@ -36,17 +36,45 @@ public final class Util
 	 * @return An integer created from the given bytes.
 	 */
 	public static int getInt(byte[] b) 
+	{
+		return getInt(b, 0);
+	}
+
+	/**
+	 * Reads an integer from the given position of an array, without copying.
+	 * 
+	 * @param b The byte data in big endian order.
+	 * @param offset The position of the first byte.
+	 * @return The integer.
+	 */
+	public static int getInt(byte[] b, int offset) 
 	{
 		int i = 0;
 
-		i |= (b[0] & 0xFF) << 24;
-		i |= (b[1] & 0xFF) << 16;
-		i |= (b[2] & 0xFF) << 8;
-		i |= (b[3] & 0xFF);
+		i |= (b[offset] & 0xFF) << 24;
+		i |= (b[offset + 1] & 0xFF) << 16;
+		i |= (b[offset + 2] & 0xFF) << 8;
+		i |= (b[offset + 3] & 0xFF);
 
 		return i;
 	}
 
+	/**
+	 * Writes an integer in big endian order into an array, without allocating
+	 * a new one.
+	 * 
+	 * @param b The array.
+	 * @param offset The position of the first byte.
+	 * @param i The integer.
+	 */
+	public static void putInt(byte[] b, int offset, int i) 
+	{
+		b[offset] = (byte) (i >> 24);
+		b[offset + 1] = (byte) (i >> 16);
+		b[offset + 2] = (byte) (i >> 8);
+		b[offset + 3] = (byte) i;
+	}
+
 	/**
 	 * Returns a byte array containing the bytes of the given long in big endian
 	 * order.
@@ -70,18 +98,47 @@ public final class Util
 	 * @return A long created from the given bytes.
 	 */
 	public static long getLong(byte[] b) 
+	{
+		return getLong(b, 0);
+	}
+
+	/**
+	 * Reads a long from the given position of an array, without copying.
+	 * 
+	 * @param b The byte data in big endian order.
+	 * @param offset The position of the first byte.
+	 * @return The long.
+	 */
+	public static long getLong(byte[] b, int offset) 
 	{
 		long l = 0;
 
-		l |= (b[0] & 0xFFL) << 56;
-		l |= (b[1] & 0xFFL) << 48;
-		l |= (b[2] & 0xFFL) << 40;
-		l |= (b[3] & 0xFFL) << 32;
-		l |= (b[4] & 0xFFL) << 24;
-		l |= (b[5] & 0xFFL) << 16;
-		l |= (b[6] & 0xFFL) << 8;
-		l |= (b[7] & 0xFFL);
+		l |= (b[offset] & 0xFFL) << 56;
+		l |= (b[offset + 1] & 0xFFL) << 48;
+		l |= (b[offset + 2] & 0xFFL) << 40;
+		l |= (b[offset + 3] & 0xFFL) << 32;
+		l |= (b[offset + 4] & 0xFFL) << 24;
+		l |= (b[offset + 5] & 0xFFL) << 16;
+		l |= (b[offset + 6] & 0xFFL) << 8;
+		l |= (b[offset + 7] & 0xFFL);
 
 		return l;
 	}
+
+	/**
+	 * Writes a long in big endian order into an array, without allocating a
+	 * new one, e.g. a nonce into a serialized object.
+	 * 
+	 * @param b The array.
+	 * @param offset The position of the first byte.
+	 * @param l The long.
+	 */
+	public static void putLong(byte[] b, int offset, long l) 
+	{
+		for (int i = offset + 7; i >= offset; i--)
+		{
+			b[i] = (byte) l;
+			l >>>= 8;
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,456 @@
+package sibbo.bitmessage.android;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * Reads and writes the primitives of the Bitmessage protocol directly in
+ * {@link ByteBuffer}s, heap or direct, so an object can be built in a reused
+ * buffer without intermediate arrays.<br />
+ * <br />
+ * An object starts with the header written by
+ * {@link #putObjectHeader(ByteBuffer, long, int, long, long)}: an 8 byte nonce
+ * slot, the expires time, the object type, the version and the stream number.
+ * The payload follows. Its initial hash is taken over the region after the
+ * nonce straight from the buffer, and the nonce found for it is written back
+ * into the slot in place. All numbers are big endian, as the protocol
+ * requires, whatever the order of the buffer is set to. The methods move the
+ * position of the buffer like its relative get and put methods, except those
+ * that take the start of an object, which leave it alone.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public final class WireCodec
+{
+	/** The length of the nonce at the start of an object. */
+	public static final int NONCE_LENGTH = 8;
+
+	/** The longest var_int, a marker byte and 8 bytes. */
+	public static final int MAX_VAR_INT_LENGTH = 9;
+
+	/** Utility class */
+	private WireCodec()
+	{
+
+	}
+
+	/**
+	 * Returns the number of bytes a var_int takes.
+	 *
+	 * @param value The value, read as unsigned.
+	 * @return 1, 3, 5 or 9.
+	 */
+	public static int getVarIntLength(long value)
+	{
+		if (value >= 0 && value < 0xfd)
+		{
+			return 1;
+		}
+		else if (value >= 0 && value <= 0xffff)
+		{
+			return 3;
+		}
+		else if (value >= 0 && value <= 0xffffffffL)
+		{
+			return 5;
+		}
+
+		return 9;
+	}
+
+	/**
+	 * Writes a var_int in its shortest form.
+	 *
+	 * @param buffer The buffer.
+	 * @param value The value, read as unsigned.
+	 */
+	public static void putVarInt(ByteBuffer buffer, long value)
+	{
+		switch (getVarIntLength(value))
+		{
+			case 1:
+				buffer.put((byte) value);
+				break;
+			case 3:
+				buffer.put((byte) 0xfd);
+				putShort(buffer, (int) value);
+				break;
+			case 5:
+				buffer.put((byte) 0xfe);
+				putInt(buffer, (int) value);
+				break;
+			default:
+				buffer.put((byte) 0xff);
+				putLong(buffer, value);
+		}
+	}
+
+	/**
+	 * Reads a var_int.
+	 *
+	 * @param buffer The buffer.
+	 * @return The value, to be read as unsigned.
+	 * @throws IllegalArgumentException If the value is not in its shortest
+	 *             form, which the protocol does not allow.
+	 * @throws BufferUnderflowException If the buffer ends within the var_int.
+	 */
+	public static long getVarInt(ByteBuffer buffer)
+	{
+		int first = buffer.get() & 0xff;
+		long value;
+		int length;
+
+		switch (first)
+		{
+			case 0xfd:
+				value = getShort(buffer);
+				length = 3;
+				break;
+			case 0xfe:
+				value = getInt(buffer) & 0xffffffffL;
+				length = 5;
+				break;
+			case 0xff:
+				value = getLong(buffer);
+				length = 9;
+				break;
+			default:
+				return first;
+		}
+
+		if (getVarIntLength(value) != length)
+		{
+			throw new IllegalArgumentException("var_int " + value + " is not in its shortest form.");
+		}
+
+		return value;
+	}
+
+	/**
+	 * Writes a var_str: the length of its UTF-8 encoding as var_int, then the
+	 * encoding. The characters are encoded straight into the buffer.
+	 *
+	 * @param buffer The buffer.
+	 * @param s The string.
+	 */
+	public static void putVarString(ByteBuffer buffer, String s)
+	{
+		putVarInt(buffer, getUtf8Length(s));
+
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+
+			if (c < 0x80)
+			{
+				buffer.put((byte) c);
+			}
+			else if (c < 0x800)
+			{
+				buffer.put((byte) (0xc0 | c >> 6));
+				buffer.put((byte) (0x80 | c & 0x3f));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+			{
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buffer.put((byte) (0xf0 | cp >> 18));
+				buffer.put((byte) (0x80 | cp >> 12 & 0x3f));
+				buffer.put((byte) (0x80 | cp >> 6 & 0x3f));
+				buffer.put((byte) (0x80 | cp & 0x3f));
+			}
+			else
+			{
+				// A lone surrogate is encoded as '?', as String.getBytes() does.
+				if (isSurrogate(c))
+				{
+					buffer.put((byte) '?');
+					continue;
+				}
+
+				buffer.put((byte) (0xe0 | c >> 12));
+				buffer.put((byte) (0x80 | c >> 6 & 0x3f));
+				buffer.put((byte) (0x80 | c & 0x3f));
+			}
+		}
+	}
+
+	/**
+	 * Reads a var_str.
+	 *
+	 * @param buffer The buffer.
+	 * @return The string, decoded as UTF-8.
+	 * @throws BufferUnderflowException If the buffer ends within the var_str.
+	 */
+	public static String getVarString(ByteBuffer buffer)
+	{
+		long length = getVarInt(buffer);
+
+		if (length < 0 || length > buffer.remaining())
+		{
+			throw new BufferUnderflowException();
+		}
+
+		int n = (int) length;
+
+		try
+		{
+			if (buffer.hasArray())
+			{
+				String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), n, "UTF-8");
+				buffer.position(buffer.position() + n);
+
+				return s;
+			}
+
+			byte[] bytes = new byte[n];
+			buffer.get(bytes);
+
+			return new String(bytes, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException("UTF-8 is not supported.", e);
+		}
+	}
+
+	/**
+	 * Writes a var_int length followed by the bytes, e.g. a public key or a
+	 * message.
+	 *
+	 * @param buffer The buffer.
+	 * @param bytes The array holding the bytes.
+	 * @param offset The position of the first byte.
+	 * @param length The number of bytes.
+	 */
+	public static void putVarBytes(ByteBuffer buffer, byte[] bytes, int offset, int length)
+	{
+		putVarInt(buffer, length);
+		buffer.put(bytes, offset, length);
+	}
+
+	/**
+	 * Returns the number of bytes the UTF-8 encoding of a string takes.
+	 *
+	 * @param s The string.
+	 * @return The number of bytes.
+	 */
+	public static int getUtf8Length(String s)
+	{
+		int length = 0;
+
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+
+			if (c < 0x80)
+			{
+				length += 1;
+			}
+			else if (c < 0x800)
+			{
+				length += 2;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+			{
+				length += 4;
+				i++;
+			}
+			else
+			{
+				length += isSurrogate(c) ? 1 : 3;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Writes the header of an object with an empty nonce slot. The payload is
+	 * written after it.
+	 *
+	 * @param buffer The buffer.
+	 * @param expiresTime The time the object expires, in seconds since the
+	 *            epoch.
+	 * @param objectType The object type, e.g. 2 for a msg.
+	 * @param version The version of the object.
+	 * @param streamNumber The stream number.
+	 * @return The start of the object, to be passed to the other methods for
+	 *         the object.
+	 */
+	public static int putObjectHeader(ByteBuffer buffer, long expiresTime, int objectType, long version,
+			long streamNumber)
+	{
+		int start = buffer.position();
+
+		putLong(buffer, 0);
+		putLong(buffer, expiresTime);
+		putInt(buffer, objectType);
+		putVarInt(buffer, version);
+		putVarInt(buffer, streamNumber);
+
+		return start;
+	}
+
+	/**
+	 * Writes the nonce into the slot of an object in place.
+	 *
+	 * @param buffer The buffer holding the object.
+	 * @param objectStart The start of the object.
+	 * @param nonce The nonce.
+	 */
+	public static void putNonce(ByteBuffer buffer, int objectStart, long nonce)
+	{
+		for (int i = objectStart + NONCE_LENGTH - 1; i >= objectStart; i--)
+		{
+			buffer.put(i, (byte) nonce);
+			nonce >>>= 8;
+		}
+	}
+
+	/**
+	 * Reads the nonce of an object.
+	 *
+	 * @param buffer The buffer holding the object.
+	 * @param objectStart The start of the object.
+	 * @return The nonce.
+	 */
+	public static long getNonce(ByteBuffer buffer, int objectStart)
+	{
+		long nonce = 0;
+
+		for (int i = objectStart; i < objectStart + NONCE_LENGTH; i++)
+		{
+			nonce = nonce << 8 | buffer.get(i) & 0xffL;
+		}
+
+		return nonce;
+	}
+
+	/**
+	 * Returns the payload length of an object as {@link PowParameters}
+	 * expects it, i.e. without the nonce.
+	 *
+	 * @param objectStart The start of the object.
+	 * @param objectEnd The position after its last byte.
+	 * @return The payload length.
+	 */
+	public static int getPayloadLength(int objectStart, int objectEnd)
+	{
+		return objectEnd - objectStart - NONCE_LENGTH;
+	}
+
+	/**
+	 * Calculates the initial hash of an object, the SHA-512 of everything after
+	 * the nonce, straight from the buffer. A heap buffer is hashed from its
+	 * array, a direct one by the digest's own buffer handling.
+	 *
+	 * @param sha512 The digest, it is reset first.
+	 * @param buffer The buffer holding the object.
+	 * @param objectStart The start of the object.
+	 * @param objectEnd The position after its last byte.
+	 * @param out The array the 64 byte hash is written to.
+	 * @param offset The position of the hash in the array.
+	 */
+	public static void initialHash(MessageDigest sha512, ByteBuffer buffer, int objectStart, int objectEnd,
+			byte[] out, int offset)
+	{
+		sha512.reset();
+
+		if (buffer.hasArray())
+		{
+			sha512.update(buffer.array(), buffer.arrayOffset() + objectStart + NONCE_LENGTH,
+					getPayloadLength(objectStart, objectEnd));
+		}
+		else
+		{
+			ByteBuffer region = buffer.duplicate();
+			region.limit(objectEnd).position(objectStart + NONCE_LENGTH);
+			sha512.update(region);
+		}
+
+		try
+		{
+			sha512.digest(out, offset, 64);
+		}
+		catch (DigestException e)
+		{
+			throw new IllegalStateException("SHA-512 digest failed.", e);
+		}
+	}
+
+	/**
+	 * Calculates the initial hash of an object with the default
+	 * {@link Sha512Backend}.
+	 *
+	 * @param buffer The buffer holding the object.
+	 * @param objectStart The start of the object.
+	 * @param objectEnd The position after its last byte.
+	 * @return The 64 byte initial hash.
+	 */
+	public static byte[] initialHash(ByteBuffer buffer, int objectStart, int objectEnd)
+	{
+		byte[] hash = new byte[64];
+		initialHash(Sha512Backends.getDefault().newDigest(), buffer, objectStart, objectEnd, hash, 0);
+
+		return hash;
+	}
+
+	private static boolean isSurrogate(char c)
+	{
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+	}
+
+	private static void putShort(ByteBuffer buffer, int value)
+	{
+		buffer.put((byte) (value >> 8));
+		buffer.put((byte) value);
+	}
+
+	private static void putInt(ByteBuffer buffer, int value)
+	{
+		if (buffer.order() == ByteOrder.BIG_ENDIAN)
+		{
+			buffer.putInt(value);
+		}
+		else
+		{
+			buffer.putInt(Integer.reverseBytes(value));
+		}
+	}
+
+	private static void putLong(ByteBuffer buffer, long value)
+	{
+		if (buffer.order() == ByteOrder.BIG_ENDIAN)
+		{
+			buffer.putLong(value);
+		}
+		else
+		{
+			buffer.putLong(Long.reverseBytes(value));
+		}
+	}
+
+	private static int getShort(ByteBuffer buffer)
+	{
+		return (buffer.get() & 0xff) << 8 | buffer.get() & 0xff;
+	}
+
+	private static int getInt(ByteBuffer buffer)
+	{
+		int value = buffer.getInt();
+
+		return buffer.order() == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value);
+	}
+
+	private static long getLong(ByteBuffer buffer)
+	{
+		long value = buffer.getLong();
+
+		return buffer.order() == ByteOrder.BIG_ENDIAN ? value : Long.reverseBytes(value);
+	}
+}
@@ -0,0 +1,232 @@
+package sibbo.bitmessage.android;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the workers of one calculation, each on its own thread, and waits
+ * until the calculation ends. {@link POWCalculator} and {@link AddressSearch}
+ * both run their workers this way.<br />
+ * <br />
+ * A calculation ends when a worker ends it with {@link #end(Runnable)}, e.g.
+ * because it found a result or its time ran out, when it is cancelled, or
+ * when every worker has stopped. The first worker that ends it is its
+ * result. A worker that throws is logged and counted as failed, the others
+ * go on. The workers share the token of the group, which also carries the
+ * time allowed.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ * @param <W> The type of the workers.
+ */
+final class WorkerGroup<W extends Runnable>
+{
+	private static final Logger LOG = Logger.getLogger(WorkerGroup.class.getName());
+
+	/** Stops the workers, also carries the time allowed. */
+	private final CancellationToken token;
+
+	/** Released when the calculation ends. */
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	/** The first worker that ended the calculation. */
+	private final AtomicReference<W> winner = new AtomicReference<W>();
+
+	/** The number of workers that have not stopped yet. */
+	private final AtomicInteger running = new AtomicInteger();
+
+	/** The number of workers that threw. */
+	private final AtomicInteger failures = new AtomicInteger();
+
+	/** The threads of the workers, null until created. */
+	private volatile Thread[] threads = new Thread[0];
+
+	/** Set by {@link #cancel()} or an interrupt while waiting. */
+	private volatile boolean cancelled;
+
+	/**
+	 * Creates a new WorkerGroup.
+	 *
+	 * @param maxTime The maximum time in seconds the calculation may take.
+	 */
+	WorkerGroup(int maxTime)
+	{
+		token = new CancellationToken(maxTime * 1000L);
+	}
+
+	/**
+	 * Returns the token the workers must stop on.
+	 *
+	 * @return The token.
+	 */
+	CancellationToken getToken()
+	{
+		return token;
+	}
+
+	/**
+	 * Starts a thread for every worker.
+	 *
+	 * @param workers The workers.
+	 * @param name The name of the threads, followed by the number of the
+	 *            worker.
+	 */
+	void start(W[] workers, final String name)
+	{
+		Thread[] t = new Thread[workers.length];
+		running.set(workers.length);
+		threads = t;
+
+		for (int i = 0; i < workers.length; i++)
+		{
+			final W worker = workers[i];
+
+			t[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					boolean completed = false;
+					CpuClock.registerThread();
+
+					try
+					{
+						worker.run();
+						completed = true;
+					}
+					catch (RuntimeException e)
+					{
+						LOG.log(Level.SEVERE, Thread.currentThread().getName() + " failed", e);
+					}
+					finally
+					{
+						if (!completed)
+						{
+							failures.incrementAndGet();
+						}
+
+						if (running.decrementAndGet() == 0)
+						{
+							finished.countDown();
+						}
+					}
+				}
+			}, name + " No. " + i);
+			t[i].start();
+		}
+	}
+
+	/**
+	 * Ends the calculation. Called by a worker that found a result or ran out
+	 * of time. Only the first worker is kept, no matter how many end it at
+	 * once.
+	 *
+	 * @param worker The worker.
+	 * @return True if this worker ended the calculation.
+	 */
+	boolean end(W worker)
+	{
+		if (winner.compareAndSet(null, worker))
+		{
+			token.cancel();
+			finished.countDown();
+
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Cancels the calculation. Can be called from any thread.
+	 */
+	void cancel()
+	{
+		cancelled = true;
+		token.cancel();
+		finished.countDown();
+	}
+
+	/**
+	 * Waits until the calculation ends, then stops the remaining workers and
+	 * waits for their threads. An interrupt cancels the calculation.
+	 */
+	void await()
+	{
+		try
+		{
+			finished.await();
+		}
+		catch (InterruptedException e)
+		{
+			LOG.info("Waiting interrupted!");
+			cancelled = true;
+			Thread.currentThread().interrupt();
+		}
+
+		// Stops the remaining workers, they notice it within one chunk or
+		// batch.
+		token.cancel();
+
+		for (Thread t : threads)
+		{
+			try
+			{
+				if (t != null)
+				{
+					t.join();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Returns the worker that ended the calculation.
+	 *
+	 * @return The worker, or null if it was cancelled or every worker
+	 *         stopped without ending it.
+	 */
+	W getWinner()
+	{
+		return winner.get();
+	}
+
+	/**
+	 * Returns true if the calculation was cancelled or the waiting thread was
+	 * interrupted.
+	 *
+	 * @return True if cancelled.
+	 */
+	boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Returns the number of workers that threw.
+	 *
+	 * @return The number of failed workers.
+	 */
+	int getFailures()
+	{
+		return failures.get();
+	}
+
+	/**
+	 * Returns the threads of the workers. The threads that are not created
+	 * yet are null.
+	 *
+	 * @return A copy of the threads.
+	 */
+	Thread[] getThreads()
+	{
+		return threads.clone();
+	}
+}
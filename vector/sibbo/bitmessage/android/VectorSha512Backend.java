@@ -0,0 +1,288 @@
+package sibbo.bitmessage.android;
+
+import java.security.MessageDigest;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A backend that does the POW trials of several nonces at once with the Vector
+ * API of JDK 16 and newer, one nonce per lane of a {@link LongVector}.<br />
+ * <br />
+ * This class is not part of the app, it is only compiled into JVM builds, see
+ * benchmarks/pom.xml. {@link Sha512Backends} loads it by reflection if it is
+ * there. It is only available if the JVM was started with
+ * {@code --add-modules jdk.incubator.vector} and a vector holds at least two
+ * longs, otherwise one of the other backends is used. Digests are done by
+ * {@link JavaSha512}, because a single message can't be spread over lanes.<br />
+ * <br />
+ * The trials follow {@link Sha512Kernel}: the schedule words of the first
+ * block that only depend on the initial hash are calculated once, and of the
+ * second hash only the first output word is calculated.
+ *
+ * @author Jonathan Coe
+ * @version 1.0
+ */
+public class VectorSha512Backend implements Sha512Backend
+{
+	/** The module of the Vector API. */
+	public static final String MODULE = "jdk.incubator.vector";
+
+	@Override
+	public String getName()
+	{
+		return "vector";
+	}
+
+	@Override
+	public boolean isAvailable()
+	{
+		try
+		{
+			return ModuleLayer.boot().findModule(MODULE).isPresent() && Trial.LANES >= 2;
+		}
+		catch (LinkageError e)
+		{
+			return false;
+		}
+	}
+
+	@Override
+	public MessageDigest newDigest()
+	{
+		return new JavaSha512();
+	}
+
+	@Override
+	public Sha512Trial newTrial(byte[] initialHash)
+	{
+		return new Trial(initialHash);
+	}
+
+	/**
+	 * The vectorised POW trial. The message schedules hold the words of all
+	 * lanes one after the other, word t of lane i is at {@code t * LANES + i}.
+	 * Instances are not thread safe.
+	 */
+	private static final class Trial implements Sha512Trial
+	{
+		private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+		/** The number of nonces per vector. */
+		private static final int LANES = SPECIES.length();
+
+		/** The lane numbers, added to the first nonce of a vector. */
+		private static final LongVector LANE_OFFSETS = LongVector.zero(SPECIES).addIndex(1);
+
+		/** The length of the first input in bits: nonce and initial hash. */
+		private static final long FIRST_INPUT_BITS = 72 * 8;
+
+		/** The length of the second input in bits: the first hash. */
+		private static final long SECOND_INPUT_BITS = 64 * 8;
+
+		private static final long PADDING = 0x8000000000000000L;
+
+		/** Does the single trials. */
+		private final Sha512Kernel kernel;
+
+		/** The message schedule of the first block, words 1 to 15 and 17 are constant per job. */
+		private final long[] w1 = new long[80 * LANES];
+
+		/** The message schedule of the second block. */
+		private final long[] w2 = new long[80 * LANES];
+
+		/** The part of schedule word 16 of the first block that does not depend on the nonce. */
+		private final long w16Partial;
+
+		Trial(byte[] initialHash)
+		{
+			kernel = new Sha512Kernel(initialHash);
+
+			long[] w = new long[18];
+
+			for (int i = 0; i < 8; i++)
+			{
+				w[i + 1] = Sha512Kernel.readLong(initialHash, i * 8);
+			}
+
+			w[9] = PADDING;
+			w[15] = FIRST_INPUT_BITS;
+			w16Partial = Sha512Kernel.sigma1(w[14]) + w[9] + Sha512Kernel.sigma0(w[1]);
+			w[17] = Sha512Kernel.sigma1(w[15]) + w[10] + Sha512Kernel.sigma0(w[2]) + w[1];
+
+			for (int t = 1; t < 18; t++)
+			{
+				if (t != 16)
+				{
+					fill(w1, t, w[t]);
+				}
+			}
+
+			fill(w2, 8, PADDING);
+			fill(w2, 15, SECOND_INPUT_BITS);
+		}
+
+		@Override
+		public long trial(long nonce)
+		{
+			return kernel.trial(nonce);
+		}
+
+		@Override
+		public long search(long from, int count, long target)
+		{
+			for (int i = 0; i < count; i += LANES)
+			{
+				LongVector results = trials(from + i);
+				VectorMask<Long> found = results.compare(VectorOperators.GE, 0).and(
+						results.compare(VectorOperators.LE, target));
+
+				if (found.anyTrue())
+				{
+					// The lanes after the last nonce of the search are not
+					// part of it.
+					int lane = found.firstTrue();
+
+					return lane < count - i ? from + i + lane : -1;
+				}
+			}
+
+			return -1;
+		}
+
+		/**
+		 * Does the trials of {@code LANES} consecutive nonces.
+		 *
+		 * @param first The first nonce.
+		 * @return The trial values, in the order of the nonces.
+		 */
+		private LongVector trials(long first)
+		{
+			LongVector nonces = LANE_OFFSETS.add(first);
+			nonces.intoArray(w1, 0);
+			nonces.add(w16Partial).intoArray(w1, 16 * LANES);
+			expand(w1, 18);
+
+			compress(w1, w2);
+			expand(w2, 16);
+
+			// Only the first output word is needed for the target check.
+			return compress(w2, null);
+		}
+
+		/**
+		 * Sets a schedule word to the same value in all lanes.
+		 */
+		private static void fill(long[] w, int t, long value)
+		{
+			LongVector.broadcast(SPECIES, value).intoArray(w, t * LANES);
+		}
+
+		/**
+		 * Calculates the schedule words from {@code from} to 79.
+		 */
+		private static void expand(long[] w, int from)
+		{
+			for (int t = from; t < 80; t++)
+			{
+				LongVector w2 = LongVector.fromArray(SPECIES, w, (t - 2) * LANES);
+				LongVector w7 = LongVector.fromArray(SPECIES, w, (t - 7) * LANES);
+				LongVector w15 = LongVector.fromArray(SPECIES, w, (t - 15) * LANES);
+				LongVector w16 = LongVector.fromArray(SPECIES, w, (t - 16) * LANES);
+
+				sigma1(w2).add(w7).add(sigma0(w15)).add(w16).intoArray(w, t * LANES);
+			}
+		}
+
+		/**
+		 * Runs the 80 SHA-512 rounds on an expanded message schedule, starting
+		 * from the initial hash value.
+		 *
+		 * @param w The expanded message schedule.
+		 * @param out Receives the first 8 schedule words of the second block,
+		 *            or null if only the first output word is needed.
+		 * @return The first output word.
+		 */
+		private static LongVector compress(long[] w, long[] out)
+		{
+			long[] iv = Sha512Kernel.IV;
+			long[] k = Sha512Kernel.K;
+			LongVector a = LongVector.broadcast(SPECIES, iv[0]);
+			LongVector b = LongVector.broadcast(SPECIES, iv[1]);
+			LongVector c = LongVector.broadcast(SPECIES, iv[2]);
+			LongVector d = LongVector.broadcast(SPECIES, iv[3]);
+			LongVector e = LongVector.broadcast(SPECIES, iv[4]);
+			LongVector f = LongVector.broadcast(SPECIES, iv[5]);
+			LongVector g = LongVector.broadcast(SPECIES, iv[6]);
+			LongVector h = LongVector.broadcast(SPECIES, iv[7]);
+
+			for (int t = 0; t < 80; t++)
+			{
+				LongVector t1 = h.add(bigSigma1(e)).add(ch(e, f, g)).add(k[t])
+						.add(LongVector.fromArray(SPECIES, w, t * LANES));
+				LongVector t2 = bigSigma0(a).add(maj(a, b, c));
+				h = g;
+				g = f;
+				f = e;
+				e = d.add(t1);
+				d = c;
+				c = b;
+				b = a;
+				a = t1.add(t2);
+			}
+
+			if (out != null)
+			{
+				a.add(iv[0]).intoArray(out, 0);
+				b.add(iv[1]).intoArray(out, LANES);
+				c.add(iv[2]).intoArray(out, 2 * LANES);
+				d.add(iv[3]).intoArray(out, 3 * LANES);
+				e.add(iv[4]).intoArray(out, 4 * LANES);
+				f.add(iv[5]).intoArray(out, 5 * LANES);
+				g.add(iv[6]).intoArray(out, 6 * LANES);
+				h.add(iv[7]).intoArray(out, 7 * LANES);
+			}
+
+			return a.add(iv[0]);
+		}
+
+		private static LongVector ch(LongVector x, LongVector y, LongVector z)
+		{
+			return z.lanewise(VectorOperators.XOR, x.and(y.lanewise(VectorOperators.XOR, z)));
+		}
+
+		private static LongVector maj(LongVector x, LongVector y, LongVector z)
+		{
+			return x.and(y).or(z.and(x.or(y)));
+		}
+
+		private static LongVector bigSigma0(LongVector x)
+		{
+			return ror(x, 28).lanewise(VectorOperators.XOR, ror(x, 34)).lanewise(VectorOperators.XOR, ror(x, 39));
+		}
+
+		private static LongVector bigSigma1(LongVector x)
+		{
+			return ror(x, 14).lanewise(VectorOperators.XOR, ror(x, 18)).lanewise(VectorOperators.XOR, ror(x, 41));
+		}
+
+		private static LongVector sigma0(LongVector x)
+		{
+			return ror(x, 1).lanewise(VectorOperators.XOR, ror(x, 8)).lanewise(VectorOperators.XOR,
+					x.lanewise(VectorOperators.LSHR, 7));
+		}
+
+		private static LongVector sigma1(LongVector x)
+		{
+			return ror(x, 19).lanewise(VectorOperators.XOR, ror(x, 61)).lanewise(VectorOperators.XOR,
+					x.lanewise(VectorOperators.LSHR, 6));
+		}
+
+		private static LongVector ror(LongVector x, int n)
+		{
+			return x.lanewise(VectorOperators.ROR, n);
+		}
+	}
+}